@@ -0,0 +1,312 @@
+package com.dnstt.client;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * App-wide leveled logger.
+ *
+ * Callers on any thread append to a fixed-size ring buffer without taking a
+ * lock: a sequence number is claimed with one atomic increment and the entry
+ * is stored in its slot. A single background thread drains the ring in
+ * batches, a short delay after the first unflushed entry, and hands each batch
+ * to logcat, the optional rotating file sink and any listeners. A burst of
+ * messages during search or connect therefore costs the UI one post per batch
+ * instead of one per line.
+ *
+ * Debug messages are dropped unless this is a debug build. DEBUG is a
+ * compile-time constant in release builds, so hot paths that guard with
+ * {@code if (AppLog.DEBUG)} lose the message formatting entirely.
+ */
+public final class AppLog {
+    public static final boolean DEBUG = BuildConfig.DEBUG;
+
+    public static final int LEVEL_DEBUG = 0;
+    public static final int LEVEL_INFO = 1;
+    public static final int LEVEL_WARN = 2;
+    public static final int LEVEL_ERROR = 3;
+
+    private static final String LOG_TAG = "DnsttLog";
+
+    // Power of two, so a sequence number maps to its slot with a mask
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+
+    // Entries logged within this window are delivered together
+    private static final long BATCH_DELAY_MS = 100;
+
+    private static final String LOG_FILE = "dnstt.log";
+    private static final long MAX_FILE_BYTES = 512 * 1024;
+    // Rotated files kept besides the current one: dnstt.log.1, dnstt.log.2
+    private static final int MAX_OLD_FILES = 2;
+
+    /**
+     * One log line. Immutable, so it can be handed between threads.
+     */
+    public static final class Entry {
+        public final long seq;
+        public final long timeMs;
+        public final int level;
+        public final String tag;
+        public final String message;
+
+        Entry(long seq, long timeMs, int level, String tag, String message) {
+            this.seq = seq;
+            this.timeMs = timeMs;
+            this.level = level;
+            this.tag = tag;
+            this.message = message;
+        }
+
+        public char levelChar() {
+            return AppLog.levelChar(level);
+        }
+    }
+
+    /**
+     * Receives batches of entries in order, on the logger's thread.
+     * Implementations that touch views must post to the main thread, once per
+     * batch.
+     */
+    public interface Listener {
+        void onLog(List<Entry> batch);
+    }
+
+    private static final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong nextSeq = new AtomicLong();
+    private static final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private static final Handler writer;
+
+    // Writer thread only
+    private static long delivered;
+    private static File logDir;
+    private static BufferedWriter fileOut;
+    private static long fileBytes;
+    private static SimpleDateFormat fileTimeFormat;
+
+    static {
+        HandlerThread thread = new HandlerThread("AppLog");
+        thread.start();
+        writer = new Handler(thread.getLooper());
+    }
+
+    private AppLog() {
+    }
+
+    public static void d(String tag, String message) {
+        if (DEBUG) append(LEVEL_DEBUG, tag, message);
+    }
+
+    public static void i(String tag, String message) {
+        append(LEVEL_INFO, tag, message);
+    }
+
+    public static void w(String tag, String message) {
+        append(LEVEL_WARN, tag, message);
+    }
+
+    public static void e(String tag, String message) {
+        append(LEVEL_ERROR, tag, message);
+    }
+
+    private static void append(int level, String tag, String message) {
+        long seq = nextSeq.getAndIncrement();
+        ring.set((int) (seq & MASK), new Entry(seq, System.currentTimeMillis(), level, tag, message));
+        if (flushScheduled.compareAndSet(false, true)) {
+            writer.postDelayed(AppLog::flush, BATCH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Start receiving entries. The listener first gets the entries still in
+     * the ring, then every later batch, with no gap or repeat between them.
+     */
+    public static void addListener(Listener listener) {
+        writer.post(() -> {
+            // Deliver pending entries to the existing listeners first, so the
+            // replay below ends exactly where live delivery begins
+            flush();
+            List<Entry> backlog = collect(Math.max(0, delivered - CAPACITY), delivered);
+            if (!backlog.isEmpty()) {
+                listener.onLog(backlog);
+            }
+            listeners.add(listener);
+        });
+    }
+
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Also write entries to a rotating file in the given directory. Calling
+     * again with the same directory does nothing.
+     */
+    public static void enableFileSink(File dir) {
+        writer.post(() -> {
+            if (dir.equals(logDir)) return;
+            closeFile();
+            logDir = dir;
+            openFile();
+        });
+    }
+
+    /**
+     * Current log file followed by the rotated ones, oldest last. Only files
+     * that exist are returned.
+     */
+    public static List<File> logFiles(File dir) {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i <= MAX_OLD_FILES; i++) {
+            File f = rotated(dir, i);
+            if (f.exists()) files.add(f);
+        }
+        return files;
+    }
+
+    public static char levelChar(int level) {
+        switch (level) {
+            case LEVEL_DEBUG: return 'D';
+            case LEVEL_WARN: return 'W';
+            case LEVEL_ERROR: return 'E';
+            default: return 'I';
+        }
+    }
+
+    // Writer thread
+
+    private static void flush() {
+        flushScheduled.set(false);
+        long end = nextSeq.get();
+        List<Entry> batch = collect(Math.max(delivered, end - CAPACITY), end);
+        long next = batch.isEmpty() ? delivered : batch.get(batch.size() - 1).seq + 1;
+        // A writer claimed a slot but hasn't stored its entry yet
+        if (next < end && flushScheduled.compareAndSet(false, true)) {
+            writer.postDelayed(AppLog::flush, BATCH_DELAY_MS);
+        }
+        if (batch.isEmpty()) return;
+        delivered = next;
+
+        for (Entry entry : batch) {
+            Log.println(logcatPriority(entry.level), entry.tag != null ? entry.tag : LOG_TAG, entry.message);
+        }
+        writeFile(batch);
+        for (Listener listener : listeners) {
+            try {
+                listener.onLog(batch);
+            } catch (Exception e) {
+                Log.w(LOG_TAG, "Log listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Entries with sequence numbers in [from, end), stopping early at a slot
+     * whose entry hasn't been stored yet.
+     */
+    private static List<Entry> collect(long from, long end) {
+        if (from >= end) return Collections.emptyList();
+        List<Entry> batch = new ArrayList<>((int) (end - from));
+        for (long seq = from; seq < end; seq++) {
+            Entry entry = ring.get((int) (seq & MASK));
+            if (entry == null || entry.seq < seq) break;
+            // Overwritten by a newer lap; the older lines are gone
+            if (entry.seq > seq) continue;
+            batch.add(entry);
+        }
+        return Collections.unmodifiableList(batch);
+    }
+
+    private static int logcatPriority(int level) {
+        switch (level) {
+            case LEVEL_DEBUG: return Log.DEBUG;
+            case LEVEL_WARN: return Log.WARN;
+            case LEVEL_ERROR: return Log.ERROR;
+            default: return Log.INFO;
+        }
+    }
+
+    private static File rotated(File dir, int index) {
+        return new File(dir, index == 0 ? LOG_FILE : LOG_FILE + "." + index);
+    }
+
+    private static void openFile() {
+        if (logDir == null) return;
+        if (!logDir.isDirectory() && !logDir.mkdirs()) {
+            Log.w(LOG_TAG, "Cannot create log directory " + logDir);
+            logDir = null;
+            return;
+        }
+        File file = rotated(logDir, 0);
+        try {
+            fileOut = new BufferedWriter(new FileWriter(file, true));
+            fileBytes = file.length();
+            if (fileTimeFormat == null) {
+                fileTimeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot open log file", e);
+            fileOut = null;
+        }
+    }
+
+    private static void closeFile() {
+        if (fileOut == null) return;
+        try {
+            fileOut.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+        fileOut = null;
+    }
+
+    private static void writeFile(List<Entry> batch) {
+        if (fileOut == null) return;
+        Date date = new Date();
+        try {
+            for (Entry entry : batch) {
+                date.setTime(entry.timeMs);
+                String line = fileTimeFormat.format(date) + " " + entry.levelChar() + "/"
+                        + entry.tag + ": " + entry.message + "\n";
+                fileOut.write(line);
+                fileBytes += line.length();
+            }
+            fileOut.flush();
+            if (fileBytes >= MAX_FILE_BYTES) {
+                rotate();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Log file write failed", e);
+            closeFile();
+        }
+    }
+
+    private static void rotate() {
+        closeFile();
+        rotated(logDir, MAX_OLD_FILES).delete();
+        for (int i = MAX_OLD_FILES - 1; i >= 0; i--) {
+            File from = rotated(logDir, i);
+            if (from.exists()) {
+                from.renameTo(rotated(logDir, i + 1));
+            }
+        }
+        openFile();
+    }
+}
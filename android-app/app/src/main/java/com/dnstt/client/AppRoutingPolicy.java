@@ -0,0 +1,140 @@
+package com.dnstt.client;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.net.VpnService;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Per-app routing policy for VPN mode.
+ *
+ * MODE_ALL sends every app except this one through the tunnel. MODE_INCLUDE
+ * sends only the selected apps; MODE_EXCLUDE sends every app except the
+ * selected ones. Keeping bulk traffic such as app-store updates and video
+ * streaming off the tunnel leaves its few hundred KB/s for the apps that
+ * need it.
+ */
+public class AppRoutingPolicy {
+    private static final String PREFS_NAME = "app_routing_prefs";
+    private static final String KEY_MODE = "mode";
+    private static final String KEY_PACKAGES = "packages";
+
+    public static final String MODE_ALL = "all";
+    public static final String MODE_INCLUDE = "include";
+    public static final String MODE_EXCLUDE = "exclude";
+
+    private String mode;
+    private final Set<String> packages;
+
+    public AppRoutingPolicy(String mode, Set<String> packages) {
+        this.mode = mode;
+        this.packages = new HashSet<>(packages);
+    }
+
+    /**
+     * Load the saved policy, or MODE_ALL if none was saved
+     */
+    public static AppRoutingPolicy load(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String mode = prefs.getString(KEY_MODE, MODE_ALL);
+        // getStringSet's result must not be modified, the constructor copies it
+        Set<String> packages = prefs.getStringSet(KEY_PACKAGES, Collections.emptySet());
+        return new AppRoutingPolicy(mode, packages);
+    }
+
+    public void save(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putString(KEY_MODE, mode)
+                .putStringSet(KEY_PACKAGES, new HashSet<>(packages))
+                .apply();
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    public Set<String> getPackages() {
+        return Collections.unmodifiableSet(packages);
+    }
+
+    public void setPackages(Set<String> selected) {
+        packages.clear();
+        packages.addAll(selected);
+    }
+
+    /**
+     * Apply the policy to a VPN builder. This app's own traffic never goes
+     * through the tunnel, or the DNSTT client would loop into itself.
+     * Selected apps that are no longer installed are skipped.
+     *
+     * @return the number of selected apps that were applied
+     */
+    public int apply(VpnService.Builder builder, String selfPackage) {
+        int applied = 0;
+        if (MODE_INCLUDE.equals(mode) && !packages.isEmpty()) {
+            // Allowed and disallowed apps can't be mixed; leaving ourselves
+            // off the allow list keeps us out of the tunnel.
+            for (String pkg : packages) {
+                if (pkg.equals(selfPackage)) continue;
+                try {
+                    builder.addAllowedApplication(pkg);
+                    applied++;
+                } catch (PackageManager.NameNotFoundException e) {
+                    // Uninstalled since it was selected
+                }
+            }
+            if (applied > 0) {
+                return applied;
+            }
+            // None of the selected apps exist any more. An empty allow list
+            // would capture everything, including us, so fall through.
+        }
+
+        try {
+            builder.addDisallowedApplication(selfPackage);
+        } catch (PackageManager.NameNotFoundException e) {
+            // Cannot happen for our own package
+        }
+        if (MODE_EXCLUDE.equals(mode)) {
+            for (String pkg : packages) {
+                if (pkg.equals(selfPackage)) continue;
+                try {
+                    builder.addDisallowedApplication(pkg);
+                    applied++;
+                } catch (PackageManager.NameNotFoundException e) {
+                    // Uninstalled since it was selected
+                }
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Whether traffic from the given package is routed through the tunnel
+     */
+    public boolean isTunneled(String pkg, String selfPackage) {
+        if (pkg.equals(selfPackage)) return false;
+        if (MODE_INCLUDE.equals(mode) && !packages.isEmpty()) return packages.contains(pkg);
+        if (MODE_EXCLUDE.equals(mode)) return !packages.contains(pkg);
+        return true;
+    }
+
+    public String describe() {
+        if (MODE_INCLUDE.equals(mode) && !packages.isEmpty()) {
+            return "only " + packages.size() + " selected app(s)";
+        }
+        if (MODE_EXCLUDE.equals(mode) && !packages.isEmpty()) {
+            return "all apps except " + packages.size() + " selected";
+        }
+        return "all apps";
+    }
+}
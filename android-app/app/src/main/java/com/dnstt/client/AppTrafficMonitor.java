@@ -0,0 +1,140 @@
+package com.dnstt.client;
+
+import android.app.AppOpsManager;
+import android.app.usage.NetworkStats;
+import android.app.usage.NetworkStatsManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-app traffic counters, used to see which apps saturate the tunnel.
+ *
+ * Android attributes traffic sent through a VPN to the app that sent it, so
+ * the system network stats give per-app bytes. Reading them needs the usage
+ * access special permission; without it every query returns nothing. The
+ * system only persists stats every few minutes, so counts lag somewhat.
+ */
+public class AppTrafficMonitor {
+
+    /**
+     * Bytes sent and received by one app since the baseline
+     */
+    public static class AppUsage {
+        public final String packageName;
+        public final String label;
+        public final long rxBytes;
+        public final long txBytes;
+
+        AppUsage(String packageName, String label, long rxBytes, long txBytes) {
+            this.packageName = packageName;
+            this.label = label;
+            this.rxBytes = rxBytes;
+            this.txBytes = txBytes;
+        }
+
+        public long totalBytes() {
+            return rxBytes + txBytes;
+        }
+    }
+
+    private static final int[] NETWORK_TYPES = {
+            ConnectivityManager.TYPE_WIFI,
+            ConnectivityManager.TYPE_MOBILE,
+    };
+
+    private final Context context;
+    private final NetworkStatsManager statsManager;
+    private Map<Integer, long[]> baseline = new HashMap<>();
+    private long startTime;
+
+    public AppTrafficMonitor(Context context) {
+        this.context = context.getApplicationContext();
+        this.statsManager = (NetworkStatsManager) context.getSystemService(Context.NETWORK_STATS_SERVICE);
+    }
+
+    public static boolean hasUsageAccess(Context context) {
+        AppOpsManager appOps = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+        if (appOps == null) return false;
+        int mode = appOps.checkOpNoThrow(AppOpsManager.OPSTR_GET_USAGE_STATS,
+                Process.myUid(), context.getPackageName());
+        return mode == AppOpsManager.MODE_ALLOWED;
+    }
+
+    /**
+     * Start counting from now
+     */
+    public void reset() {
+        startTime = System.currentTimeMillis();
+        baseline = snapshot();
+    }
+
+    /**
+     * Per-app usage since the last reset, busiest first. UIDs shared by
+     * several packages are reported under the first one.
+     */
+    public List<AppUsage> getUsage() {
+        Map<Integer, long[]> current = snapshot();
+        PackageManager pm = context.getPackageManager();
+        List<AppUsage> result = new ArrayList<>();
+        for (Map.Entry<Integer, long[]> entry : current.entrySet()) {
+            long[] base = baseline.get(entry.getKey());
+            long rx = entry.getValue()[0] - (base != null ? base[0] : 0);
+            long tx = entry.getValue()[1] - (base != null ? base[1] : 0);
+            if (rx + tx <= 0) continue;
+
+            String[] pkgs = pm.getPackagesForUid(entry.getKey());
+            if (pkgs == null || pkgs.length == 0) continue;
+            String label = pkgs[0];
+            try {
+                ApplicationInfo info = pm.getApplicationInfo(pkgs[0], 0);
+                label = pm.getApplicationLabel(info).toString();
+            } catch (PackageManager.NameNotFoundException e) {
+                // Keep the package name
+            }
+            result.add(new AppUsage(pkgs[0], label, rx, tx));
+        }
+        Collections.sort(result, (a, b) -> Long.compare(b.totalBytes(), a.totalBytes()));
+        return result;
+    }
+
+    /**
+     * Total rx/tx bytes per UID since the last reset, summed across network
+     * types. The system keeps stats in buckets of a couple of hours, and the
+     * query returns whole buckets, so this includes some traffic from before
+     * the reset; the baseline cancels it out.
+     */
+    private Map<Integer, long[]> snapshot() {
+        Map<Integer, long[]> totals = new HashMap<>();
+        if (statsManager == null || !hasUsageAccess(context)) {
+            return totals;
+        }
+        long now = System.currentTimeMillis();
+        NetworkStats.Bucket bucket = new NetworkStats.Bucket();
+        for (int type : NETWORK_TYPES) {
+            try (NetworkStats stats = statsManager.querySummary(type, null, startTime, now)) {
+                while (stats.hasNextBucket()) {
+                    stats.getNextBucket(bucket);
+                    long[] t = totals.get(bucket.getUid());
+                    if (t == null) {
+                        t = new long[2];
+                        totals.put(bucket.getUid(), t);
+                    }
+                    t[0] += bucket.getRxBytes();
+                    t[1] += bucket.getTxBytes();
+                }
+            } catch (Exception e) {
+                // No stats for this network type (e.g. no SIM)
+            }
+        }
+        return totals;
+    }
+}
@@ -0,0 +1,62 @@
+package com.dnstt.client;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import mobile.Mobile;
+
+/**
+ * Saves the addresses the DNSTT client connects to DoH and DoT servers by,
+ * instead of resolving their hostnames through the system resolver. The
+ * client ships with addresses for the common providers and refreshes them
+ * through the tunnel while connected; saving them keeps the refreshed ones
+ * for the next run.
+ */
+public class BootstrapAddrs {
+    private static final String TAG = "BootstrapAddrs";
+    private static final String PREFS_NAME = "bootstrap_addrs";
+    private static final String KEY_ADDRS = "addrs";
+
+    // The client's cache lives as long as the process, which the activity
+    // and the VPN service share; load into it once
+    private static boolean loaded;
+
+    private final SharedPreferences prefs;
+
+    public BootstrapAddrs(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Hand the saved addresses to the client, before it connects
+     */
+    public void load() {
+        synchronized (BootstrapAddrs.class) {
+            if (loaded) return;
+            loaded = true;
+        }
+        String addrs = prefs.getString(KEY_ADDRS, null);
+        if (addrs != null) {
+            Mobile.loadBootstrapAddrs(addrs);
+        }
+    }
+
+    /**
+     * Save the client's addresses, including any refreshed while connected
+     */
+    public void save() {
+        String addrs = Mobile.getBootstrapAddrs();
+        if (addrs.equals(prefs.getString(KEY_ADDRS, null))) return;
+        prefs.edit().putString(KEY_ADDRS, addrs).apply();
+        AppLog.i(TAG, "Saved bootstrap addresses");
+    }
+
+    /**
+     * The cached addresses of a DoH or DoT server's hostname, as literals,
+     * so looking them up doesn't touch the system resolver
+     */
+    public static String[] lookup(String host) {
+        String addrs = Mobile.bootstrapAddrsFor(host);
+        return addrs.isEmpty() ? new String[0] : addrs.split(" ");
+    }
+}
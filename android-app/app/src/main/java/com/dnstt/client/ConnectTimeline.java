@@ -0,0 +1,337 @@
+package com.dnstt.client;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Timeline of one connect, from pressing Connect to the first byte an app
+ * receives through the tunnel, split into phases.
+ *
+ * Each phase is emitted as an android.os.Trace section so it shows up in a
+ * system trace, and when the connect completes the time at which each phase
+ * was reached goes into a persistent per-phase histogram, kept per app
+ * version, so p50/p95 connect times can be compared across releases.
+ *
+ * The activity and the VPN service both mark phases, from several threads,
+ * so all state is guarded by the class lock.
+ */
+public final class ConnectTimeline {
+    public static final int SEARCH_START = 0;
+    public static final int FIRST_SUCCESS = 1;
+    public static final int WINNER_CHOSEN = 2;
+    public static final int CLIENT_START = 3;
+    public static final int SOCKS_READY = 4;
+    public static final int TUN_ESTABLISHED = 5;
+    public static final int TUN2SOCKS_STARTED = 6;
+    public static final int FIRST_BYTE = 7;
+    public static final int PHASE_COUNT = 8;
+
+    private static final String[] PHASE_NAMES = {
+            "search start", "first success", "winner chosen", "client start",
+            "SOCKS ready", "TUN established", "tun2socks started", "first byte"
+    };
+
+    // Histogram bucket upper bounds in ms; the last bucket is open-ended
+    private static final long[] BUCKET_MS = {
+            100, 250, 500, 1000, 2000, 3000, 5000, 8000, 12000, 20000, 30000, 60000
+    };
+
+    private static final String PREFS_NAME = "connect_timeline";
+    private static final String KEY_RECENT = "recent";
+    private static final int MAX_RECENT = 20;
+    private static final String TRACE_PREFIX = "dnstt:";
+
+    /**
+     * One finished connect, for export
+     */
+    public static class Record {
+        public long startedAtMs;  // Wall clock
+        public String version;
+        public boolean success;
+        /** Ms from start to each phase, -1 where the phase wasn't reached */
+        public long[] phaseMs;
+    }
+
+    private static final Gson gson = new Gson();
+
+    // Current connect; startTime 0 when none is in progress
+    private static long startTime;
+    private static long startWallTime;
+    private static final long[] marks = new long[PHASE_COUNT];
+    private static int lastPhase = -1;
+    private static int traceCookie;
+
+    private ConnectTimeline() {
+    }
+
+    /**
+     * Start timing a connect, replacing any unfinished one
+     */
+    public static synchronized void begin() {
+        endTraceSection();
+        startTime = SystemClock.elapsedRealtime();
+        startWallTime = System.currentTimeMillis();
+        Arrays.fill(marks, -1);
+        lastPhase = -1;
+        traceCookie++;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(TRACE_PREFIX + "connect", traceCookie);
+        }
+    }
+
+    /**
+     * Start timing unless a connect is already being timed, for connects
+     * that don't go through the activity, like a service restart
+     */
+    public static synchronized void beginIfIdle() {
+        if (startTime == 0) begin();
+    }
+
+    public static synchronized boolean isActive() {
+        return startTime != 0;
+    }
+
+    /**
+     * Record that a phase was reached now. Only the first mark of each phase
+     * counts; marks outside a connect are ignored.
+     */
+    public static void mark(int phase) {
+        markAt(phase, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Record that a phase was reached deltaMs after an earlier phase, for
+     * times measured elsewhere (the first byte is timed by the Go client
+     * from its start). Ignored if the earlier phase wasn't reached.
+     */
+    public static synchronized void markAfter(int phase, int basePhase, long deltaMs) {
+        if (startTime == 0 || marks[basePhase] < 0) return;
+        record(phase, marks[basePhase] + deltaMs);
+    }
+
+    private static synchronized void markAt(int phase, long elapsedRealtime) {
+        if (startTime == 0) return;
+        record(phase, Math.max(0, elapsedRealtime - startTime));
+    }
+
+    private static void record(int phase, long ms) {
+        if (marks[phase] >= 0) return;
+        marks[phase] = ms;
+
+        // One trace section per phase, running from the previous phase's
+        // mark to this one. Sections cross threads, so async sections are
+        // used where available; older releases get an instant marker.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            if (lastPhase >= 0) {
+                Trace.endAsyncSection(TRACE_PREFIX + PHASE_NAMES[lastPhase], traceCookie);
+            }
+            Trace.beginAsyncSection(TRACE_PREFIX + PHASE_NAMES[phase], traceCookie);
+        } else {
+            Trace.beginSection(TRACE_PREFIX + PHASE_NAMES[phase]);
+            Trace.endSection();
+        }
+        lastPhase = phase;
+        AppLog.i("ConnectTimeline", PHASE_NAMES[phase] + " at " + ms + " ms");
+    }
+
+    /**
+     * Phase time of the current connect, -1 if not reached
+     */
+    public static synchronized long get(int phase) {
+        return startTime != 0 ? marks[phase] : -1;
+    }
+
+    /**
+     * Finish the current connect and record it. Failed connects are kept in
+     * the recent list but stay out of the histograms, which describe how
+     * long a working connect takes.
+     */
+    public static synchronized void finish(Context context, boolean success) {
+        if (startTime == 0) return;
+        endTraceSection();
+
+        Record record = new Record();
+        record.startedAtMs = startWallTime;
+        record.version = BuildConfig.VERSION_NAME;
+        record.success = success;
+        record.phaseMs = marks.clone();
+        startTime = 0;
+
+        SharedPreferences prefs = prefs(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        if (success) {
+            for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                if (record.phaseMs[phase] < 0) continue;
+                long[] counts = histogram(prefs, record.version, phase);
+                counts[bucket(record.phaseMs[phase])]++;
+                editor.putString(histogramKey(record.version, phase), join(counts));
+            }
+        }
+        List<Record> recent = recent(prefs);
+        recent.add(0, record);
+        while (recent.size() > MAX_RECENT) recent.remove(recent.size() - 1);
+        editor.putString(KEY_RECENT, gson.toJson(recent));
+        editor.apply();
+    }
+
+    private static void endTraceSection() {
+        if (startTime == 0 || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return;
+        if (lastPhase >= 0) {
+            Trace.endAsyncSection(TRACE_PREFIX + PHASE_NAMES[lastPhase], traceCookie);
+        }
+        Trace.endAsyncSection(TRACE_PREFIX + "connect", traceCookie);
+    }
+
+    // Reporting
+
+    /**
+     * Percentile of a phase's time for this version, from its histogram, as
+     * the upper bound of the bucket it falls in. -1 without data.
+     */
+    public static long percentile(Context context, int phase, double p) {
+        long[] counts = histogram(prefs(context), BuildConfig.VERSION_NAME, phase);
+        long total = 0;
+        for (long c : counts) total += c;
+        if (total == 0) return -1;
+        long target = (long) Math.ceil(p / 100.0 * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, target)) {
+                return i < BUCKET_MS.length ? BUCKET_MS[i] : Long.MAX_VALUE;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Readable summary: per-phase p50/p95 for this version and the most
+     * recent connect
+     */
+    public static String describe(Context context) {
+        SharedPreferences prefs = prefs(context);
+        StringBuilder sb = new StringBuilder();
+        sb.append("Version ").append(BuildConfig.VERSION_NAME).append(", time from Connect\n\n");
+        sb.append(String.format(Locale.US, "%-18s %8s %8s %6s\n", "Phase", "p50", "p95", "n"));
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            long[] counts = histogram(prefs, BuildConfig.VERSION_NAME, phase);
+            long n = 0;
+            for (long c : counts) n += c;
+            sb.append(String.format(Locale.US, "%-18s %8s %8s %6d\n", PHASE_NAMES[phase],
+                    formatBound(percentile(context, phase, 50)),
+                    formatBound(percentile(context, phase, 95)), n));
+        }
+
+        List<Record> recent = recent(prefs);
+        if (!recent.isEmpty()) {
+            Record last = recent.get(0);
+            sb.append("\nLast connect").append(last.success ? "" : " (failed)").append(":\n");
+            appendRecord(sb, last);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Everything recorded, all versions, as plain text for sharing
+     */
+    public static String export(Context context) {
+        SharedPreferences prefs = prefs(context);
+        StringBuilder sb = new StringBuilder();
+        sb.append("DNSTT connect timeline export\n");
+        sb.append("Buckets (ms, upper bound):");
+        for (long b : BUCKET_MS) sb.append(' ').append(b);
+        sb.append(" inf\n\n");
+
+        List<String> keys = new ArrayList<>(prefs.getAll().keySet());
+        Collections.sort(keys);
+        for (String key : keys) {
+            if (key.equals(KEY_RECENT)) continue;
+            sb.append(key).append(": ").append(prefs.getString(key, "")).append('\n');
+        }
+
+        sb.append("\nRecent connects:\n");
+        for (Record record : recent(prefs)) {
+            sb.append(String.format(Locale.US, "%tF %<tT  v%s  %s\n", record.startedAtMs,
+                    record.version, record.success ? "ok" : "failed"));
+            appendRecord(sb, record);
+        }
+        return sb.toString();
+    }
+
+    private static void appendRecord(StringBuilder sb, Record record) {
+        for (int phase = 0; phase < PHASE_COUNT && phase < record.phaseMs.length; phase++) {
+            if (record.phaseMs[phase] < 0) continue;
+            sb.append(String.format(Locale.US, "  %-18s %6d ms\n", PHASE_NAMES[phase], record.phaseMs[phase]));
+        }
+    }
+
+    private static String formatBound(long ms) {
+        if (ms < 0) return "-";
+        if (ms == Long.MAX_VALUE) return ">" + BUCKET_MS[BUCKET_MS.length - 1] / 1000 + "s";
+        return ms < 1000 ? "≤" + ms + "ms" : "≤" + (ms / 1000.0) + "s";
+    }
+
+    // Storage
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static String histogramKey(String version, int phase) {
+        return "v" + version + "|" + PHASE_NAMES[phase];
+    }
+
+    private static int bucket(long ms) {
+        for (int i = 0; i < BUCKET_MS.length; i++) {
+            if (ms <= BUCKET_MS[i]) return i;
+        }
+        return BUCKET_MS.length;
+    }
+
+    private static long[] histogram(SharedPreferences prefs, String version, int phase) {
+        long[] counts = new long[BUCKET_MS.length + 1];
+        String value = prefs.getString(histogramKey(version, phase), null);
+        if (value == null) return counts;
+        String[] parts = value.split(",");
+        for (int i = 0; i < parts.length && i < counts.length; i++) {
+            try {
+                counts[i] = Long.parseLong(parts[i]);
+            } catch (NumberFormatException e) {
+                // Leave the bucket empty
+            }
+        }
+        return counts;
+    }
+
+    private static String join(long[] counts) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < counts.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(counts[i]);
+        }
+        return sb.toString();
+    }
+
+    private static List<Record> recent(SharedPreferences prefs) {
+        String json = prefs.getString(KEY_RECENT, null);
+        if (json == null) return new ArrayList<>();
+        try {
+            List<Record> list = gson.fromJson(json, new TypeToken<List<Record>>() {}.getType());
+            return list != null ? list : new ArrayList<>();
+        } catch (RuntimeException e) {
+            return new ArrayList<>();
+        }
+    }
+}
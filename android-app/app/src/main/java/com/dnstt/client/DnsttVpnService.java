@@ -4,18 +4,38 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ServiceInfo;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.Uri;
 import android.net.VpnService;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
-import android.util.Log;
+import android.os.PowerManager;
 
 import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import hev.htproxy.TProxyService;
 import mobile.Client;
@@ -24,7 +44,7 @@ import mobile.Mobile;
 import mobile.StatusCallback;
 
 public class DnsttVpnService extends VpnService implements StatusCallback {
-    private static final String TAG = "DnsttVpnService";
+    static final String TAG = "DnsttVpnService";
     private static final String CHANNEL_ID = "dnstt_vpn";
     private static final int NOTIFICATION_ID = 1;
 
@@ -36,13 +56,169 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
     public static final String EXTRA_DOMAIN = "domain";
     public static final String EXTRA_PUBKEY = "pubkey";
     public static final String EXTRA_TUNNELS = "tunnels";
+    public static final String EXTRA_DATA_PATH = "data_path";
+    public static final String EXTRA_UDP_POLICY = "udp_policy";
+    public static final String EXTRA_IPV6_MODE = "ipv6_mode";
+    public static final String EXTRA_DNS_UPSTREAM = "dns_upstream";
+    public static final String EXTRA_BYPASS_LAN = "bypass_lan";
+    public static final String EXTRA_EXCLUDED_ROUTES = "excluded_routes";
+    public static final String EXTRA_ENGINE_PROFILE = "engine_profile";
+
+    // How tun2socks reaches the DNSTT client's SOCKS listener.
+    // DATA_PATH_TCP uses a TCP loopback socket; DATA_PATH_UNIX uses a
+    // Unix-domain socket, which skips the kernel TCP/IP stack for every flow.
+    public static final String DATA_PATH_TCP = "tcp";
+    public static final String DATA_PATH_UNIX = "unix";
+
+    // What happens to UDP other than DNS entering the TUN; the tunnel only
+    // carries streams, so none of it can be delivered. UDP_POLICY_REJECT
+    // answers QUIC handshakes so browsers fall back to TCP immediately
+    // instead of waiting out a timeout; UDP_POLICY_DROP discards silently.
+    public static final String UDP_POLICY_REJECT = "reject";
+    public static final String UDP_POLICY_DROP = "drop";
+
+    // IPv6 handling. IPV6_MODE_OFF leaves IPv6 outside the VPN, where on
+    // dual-stack networks it bypasses the tunnel. IPV6_MODE_REJECT captures
+    // ::/0 and refuses it immediately so apps go straight to IPv4 instead of
+    // stalling on Happy Eyeballs. IPV6_MODE_TUNNEL carries it through the
+    // tunnel.
+    public static final String IPV6_MODE_OFF = "off";
+    public static final String IPV6_MODE_REJECT = "reject";
+    public static final String IPV6_MODE_TUNNEL = "tunnel";
+
+    private static final String VPN_ADDR6 = "fd00::2";
+    private static final String VPN_ADDR4 = "10.0.0.2";
+    private static final int VPN_PREFIX4 = 24;
+    private static final String VPN_SUBNET4 = "10.0.0.0/24";
+
+    // Port 0 lets the OS pick a free port; the bound address is reported back
+    // through onListenerReady and handed to tun2socks.
+    private static final String SOCKS_LISTEN_ADDR = "127.0.0.1:0";
+    private static final String UNIX_ADDR_PREFIX = "unix:";
+    private static final String SOCKS_SOCKET_NAME = "socks.sock";
+
+    // Virtual DNS server advertised to apps. Queries to it (and any other UDP
+    // port 53 traffic entering the TUN) are answered by the DNSTT client's
+    // caching stub, which forwards misses through the tunnel to the
+    // upstream resolver, EXTRA_DNS_UPSTREAM or DEFAULT_DNS_UPSTREAM.
+    private static final String VIRTUAL_DNS_ADDR = "10.0.0.53";
+    public static final String DEFAULT_DNS_UPSTREAM = "1.1.1.1:53";
+
+    // Upper bounds for waiting on the Go client's listener events. These are
+    // safety nets only; the events normally arrive as soon as the work is done.
+    private static final long LISTENER_READY_TIMEOUT_MS = 30000;
+    private static final long LISTENER_CLOSED_TIMEOUT_MS = 5000;
+
+    // Stats sampling intervals: fast while the app is on screen, slow while
+    // only the notification can be seen, and not at all with the screen off
+    private static final long SAMPLE_INTERVAL_UI_MS = 1000;
+    private static final long SAMPLE_INTERVAL_SCREEN_ON_MS = 5000;
+    private static final long NOTIFICATION_MIN_INTERVAL_MS = 5000;
+
+    // How often per-app traffic counters are refreshed while the per-app
+    // traffic dialog is open
+    private static final long APP_TRAFFIC_INTERVAL_MS = 5000;
 
     private ParcelFileDescriptor vpnInterface;
     private Client dnsttClient;
     private TProxyService tun2socks;
     private volatile boolean running = false;
     private volatile boolean stopping = false;
-    private Thread statsThread;
+    private HandlerThread statsThread;
+    private Handler statsHandler;
+    private BroadcastReceiver screenReceiver;
+    private volatile boolean screenOn = true;
+
+    // Sampler state, only touched on the stats thread
+    // Counters are read into one reused buffer, so sampling allocates nothing
+    private final TunnelStats tunnelStats = new TunnelStats();
+    private long lastTxBytes;
+    private long lastRxBytes;
+    private long lastConnectFailures;
+    private long lastSampleTime;
+    private long lastAppTrafficTime;
+    private boolean appUsageWasWatched;
+    private long lastNotificationTime;
+
+    private NotificationCompat.Builder notificationBuilder;
+    private String lastNotificationText;
+    private volatile CountDownLatch listenerReady;
+    private volatile CountDownLatch listenerClosed;
+    private volatile String listenerAddr;
+    private String ipv6Mode = IPV6_MODE_REJECT;
+    private String dnsUpstream = DEFAULT_DNS_UPSTREAM;
+    private AppRoutingPolicy routingPolicy;
+    private boolean bypassLan = true;
+    private String[] extraExcludedRoutes = new String[0];
+    private List<InetAddress> resolverAddrs = Collections.emptyList();
+    // Resolver the tunnel currently runs over; reconnects can change it
+    private volatile String activeTransportType;
+    private volatile String activeTransportAddr;
+    private volatile String activeDomain;
+    private NetworkMonitor networkMonitor;
+    // Rebuilds the tunnels when latency probes stop being answered
+    private final TunnelHealth tunnelHealth = new TunnelHealth();
+    // Adjusts the tunnel count while connected when started with "auto"
+    private TunnelTuner tunnelTuner;
+    private volatile boolean autoTunnels;
+    private KnownResolvers knownResolvers;
+    private ResponseSizes responseSizes;
+    private BootstrapAddrs bootstrapAddrs;
+    private volatile boolean offline;
+    // Physical network tunnel sockets are bound to
+    private volatile Network underlyingNetwork;
+    private Tun2socksProfile engineProfile = Tun2socksProfile.forName(Tun2socksProfile.THROUGHPUT);
+
+    // Session totals for comparing engine profiles, written by the stats thread
+    private long sessionRxBytes;
+    private long sessionTxBytes;
+    private long sessionActiveMs;
+    private double sessionPeakKBps;
+    private AppTrafficMonitor appTraffic;
+
+    // Latest per-app traffic through the tunnel, busiest first
+    private static volatile List<AppTrafficMonitor.AppUsage> appUsage = Collections.emptyList();
+
+    public static List<AppTrafficMonitor.AppUsage> getAppUsage() {
+        return appUsage;
+    }
+
+    // Set while the UI shows per-app traffic. Querying the system's usage
+    // stats is costly, so the counters are only refreshed while watched.
+    private static volatile boolean appUsageWatched;
+
+    public static void setAppUsageWatched(boolean watched) {
+        appUsageWatched = watched;
+    }
+
+    // UDP refused by the UDP policy this session, and the QUIC handshakes
+    // among it that were rejected; written by the stats thread
+    private static volatile long udpBlocked;
+    private static volatile long udpRejected;
+
+    public static long getUdpBlocked() {
+        return udpBlocked;
+    }
+
+    public static long getUdpRejected() {
+        return udpRejected;
+    }
+
+    // IPv6 attempts short-circuited this session under IPV6_MODE_REJECT;
+    // written by the stats thread
+    private static volatile long ipv6Rejected;
+
+    public static long getIpv6Rejected() {
+        return ipv6Rejected;
+    }
+
+    // Per-second and per-minute throughput of the current session; written
+    // only by the stats thread, read by the UI without locking
+    private static final ThroughputHistory throughputHistory = new ThroughputHistory();
+
+    public static ThroughputHistory getThroughputHistory() {
+        return throughputHistory;
+    }
 
     // Callback for UI updates - use WeakReference to prevent memory leaks
     private static java.lang.ref.WeakReference<StatusCallback> uiCallbackRef;
@@ -51,6 +227,18 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
         uiCallbackRef = callback != null ? new java.lang.ref.WeakReference<>(callback) : null;
     }
 
+    // Whether the app's UI is on screen; stats are sampled faster while it is
+    private static volatile boolean uiVisible = false;
+    private static java.lang.ref.WeakReference<DnsttVpnService> instanceRef;
+
+    public static void setUiVisible(boolean visible) {
+        uiVisible = visible;
+        DnsttVpnService service = instanceRef != null ? instanceRef.get() : null;
+        if (service != null) {
+            service.rescheduleSampling();
+        }
+    }
+
     private static StatusCallback getUiCallback() {
         return uiCallbackRef != null ? uiCallbackRef.get() : null;
     }
@@ -59,7 +247,14 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
     public void onCreate() {
         super.onCreate();
         createNotificationChannel();
+        instanceRef = new java.lang.ref.WeakReference<>(this);
         tun2socks = TProxyService.getInstance();
+        tunnelTuner = new TunnelTuner(this);
+        responseSizes = new ResponseSizes(this);
+        knownResolvers = new KnownResolvers(this);
+        bootstrapAddrs = new BootstrapAddrs(this);
+        bootstrapAddrs.load();
+        AppLog.enableFileSink(new File(getFilesDir(), "logs"));
         log("VPN service created");
     }
 
@@ -85,19 +280,43 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
             String domain = intent.getStringExtra(EXTRA_DOMAIN);
             String pubkey = intent.getStringExtra(EXTRA_PUBKEY);
             int tunnels = intent.getIntExtra(EXTRA_TUNNELS, 8);
+            String dataPath = intent.getStringExtra(EXTRA_DATA_PATH);
+            if (dataPath == null) {
+                dataPath = DATA_PATH_TCP;
+            }
+            String udpPolicy = intent.getStringExtra(EXTRA_UDP_POLICY);
+            if (udpPolicy == null) {
+                udpPolicy = UDP_POLICY_REJECT;
+            }
+            String ipv6 = intent.getStringExtra(EXTRA_IPV6_MODE);
+            ipv6Mode = ipv6 != null ? ipv6 : IPV6_MODE_REJECT;
+            String upstream = intent.getStringExtra(EXTRA_DNS_UPSTREAM);
+            dnsUpstream = upstream != null && !upstream.isEmpty() ? upstream : DEFAULT_DNS_UPSTREAM;
+            bypassLan = intent.getBooleanExtra(EXTRA_BYPASS_LAN, true);
+            engineProfile = Tun2socksProfile.forName(intent.getStringExtra(EXTRA_ENGINE_PROFILE));
+            String excludedRoutes = intent.getStringExtra(EXTRA_EXCLUDED_ROUTES);
+            extraExcludedRoutes = excludedRoutes != null && !excludedRoutes.trim().isEmpty()
+                    ? excludedRoutes.split(",") : new String[0];
 
             log("Starting VPN with:");
             log("  Transport: " + transportType + " via " + transportAddr);
             log("  Domain: " + domain);
-            log("  Tunnels: " + tunnels);
-
-            startVpn(transportType, transportAddr, domain, pubkey, tunnels);
+            log("  Tunnels: " + (tunnels == TunnelTuner.AUTO ? "auto" : tunnels));
+            log("  Data path: " + dataPath);
+            log("  UDP policy: " + udpPolicy);
+            log("  IPv6: " + ipv6Mode);
+            log("  DNS upstream: " + dnsUpstream);
+            log("  Bypass LAN: " + bypassLan);
+            log("  Engine profile: " + engineProfile.label);
+
+            startVpn(transportType, transportAddr, domain, pubkey, tunnels, dataPath, udpPolicy);
         }
 
         return START_STICKY;
     }
 
-    private void startVpn(String transportType, String transportAddr, String domain, String pubkey, int tunnels) {
+    private void startVpn(String transportType, String transportAddr, String domain, String pubkey, int tunnels,
+                          String dataPath, String udpPolicy) {
         // Start foreground service with proper type for Android 14+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
             startForeground(NOTIFICATION_ID, createNotification("Connecting..."),
@@ -106,161 +325,314 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
             startForeground(NOTIFICATION_ID, createNotification("Connecting..."));
         }
         onStatusChange(1, "Initializing DNSTT client...");
+        ConnectTimeline.beginIfIdle();
 
         // Start DNSTT client first
+        listenerReady = new CountDownLatch(1);
+        listenerClosed = new CountDownLatch(1);
+        listenerAddr = null;
+        // Keep the tunnel's own sockets out of the VPN and on the current
+        // physical network; NetworkMonitor keeps this up to date
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        underlyingNetwork = cm != null ? cm.getActiveNetwork() : null;
+        Mobile.setSocketProtector(this::protectSocket);
+
+        autoTunnels = tunnels == TunnelTuner.AUTO;
+        String networkKey = cm != null && underlyingNetwork != null
+                ? NetworkMonitor.networkKey(cm.getNetworkCapabilities(underlyingNetwork),
+                        cm.getLinkProperties(underlyingNetwork))
+                : null;
+        if (autoTunnels) {
+            tunnels = tunnelTuner.initialCount(networkKey, transportType, transportAddr);
+            log("Tunnels: auto, starting with " + tunnels);
+        }
+        int startTunnels = tunnels;
+
         dnsttClient = Mobile.newClient();
         dnsttClient.setCallback(this);
+        activeTransportType = transportType;
+        activeTransportAddr = transportAddr;
+        activeDomain = domain;
+        tunnelHealth.reset();
 
         Config config = Mobile.newConfig();
         config.setTransportType(transportType);
         config.setTransportAddr(transportAddr);
         config.setDomain(domain);
         config.setPubkeyHex(pubkey);
-        config.setListenAddr("127.0.0.1:1080");
+        config.setListenAddr(socksListenAddr(dataPath));
         config.setTunnels(tunnels);
-        config.setMTU(1232);
         config.setUTLSFingerprint("none"); // Use standard TLS - uTLS causes errors on Android
         config.setUseZstd(true); // Enable zstd compression (server has it on by default)
-        log("Zstd compression: enabled");
+        config.setCompressionMode(Mobile.CompressionAuto); // Skip it for traffic that doesn't compress
+        config.setDNSUpstream(dnsUpstream);
+        config.setUDPPolicy(udpPolicy);
+        config.setIPv6Mode(ipv6Mode);
+        log("Zstd compression: auto");
 
         new Thread(() -> {
             try {
                 log("Starting DNSTT client...");
                 onStatusChange(1, "Establishing DNS tunnel...");
 
-                // Retry logic for port binding issues
-                int maxRetries = 5;
-                int retryDelay = 1500; // ms - start with longer delay
-                Exception lastException = null;
-
-                for (int attempt = 1; attempt <= maxRetries; attempt++) {
-                    try {
-                        dnsttClient.start(config);
-                        log("DNSTT client started successfully" + (attempt > 1 ? " (attempt " + attempt + ")" : ""));
-                        break; // Success, exit retry loop
-
-                    } catch (Exception e) {
-                        lastException = e;
-                        String errorMsg = e.getMessage();
-
-                        // Check if it's a port binding issue
-                        if (errorMsg != null && errorMsg.contains("bind") && errorMsg.contains("address already in use")) {
-                            if (attempt < maxRetries) {
-                                log("Port 1080 still in use, waiting " + retryDelay + "ms before retry " + attempt + "/" + (maxRetries - 1));
-                                onStatusChange(1, "Port busy, retrying in " + (retryDelay/1000.0) + "s...");
-                                Thread.sleep(retryDelay);
-                                // Exponential backoff: increase delay for next retry
-                                retryDelay = (int)(retryDelay * 1.3);
-                            } else {
-                                log("Failed to bind port after " + maxRetries + " attempts");
-                                throw e; // Out of retries, throw to outer catch
-                            }
-                        } else {
-                            // Different error, don't retry
-                            throw e;
-                        }
-                    }
+                // Ask for responses this resolver carries whole; cached, so
+                // usually this doesn't wait on the network
+                long responseSize = responseSizes.sizeFor(networkKey, transportType, transportAddr, domain);
+                config.setResponseSize(responseSize);
+                log(responseSize > 0
+                        ? "Response size: " + responseSize + " bytes"
+                        : "Response size: server default");
+
+                // The tunnel handshakes on its own thread while the VPN
+                // interface is built here. start() returns once the first
+                // tunnel is up and the listener is bound; the listener binds
+                // an OS-assigned port, so there is no "address already in
+                // use" to retry on.
+                Client client = dnsttClient;
+                FutureTask<Void> tunnelStart = new FutureTask<>(() -> {
+                    client.start(config);
+                    return null;
+                });
+                ConnectTimeline.mark(ConnectTimeline.CLIENT_START);
+                new Thread(tunnelStart, "DnsttStart").start();
+
+                // Look up the resolvers before the VPN exists so their
+                // addresses can be kept out of the routes
+                resolverAddrs = resolveCandidateResolvers(transportType, transportAddr);
+                buildVpnInterface();
+
+                log("Waiting for DNS tunnel...");
+                try {
+                    tunnelStart.get(LISTENER_READY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    throw new IOException(cause.getMessage(), cause);
+                } catch (TimeoutException e) {
+                    throw new IOException("Timed out waiting for DNS tunnel");
+                }
+                if (!listenerReady.await(LISTENER_READY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Timed out waiting for SOCKS listener");
                 }
+                log("SOCKS listener ready on " + listenerAddr);
+                ConnectTimeline.mark(ConnectTimeline.SOCKS_READY);
 
-                log("DNSTT client started, waiting for connection...");
-                // Give DNSTT a moment to establish connection
-                Thread.sleep(1000);
+                // Bring tun2socks up on the interface built above
+                startTun2socks();
 
-                log("Establishing VPN interface...");
-                onStatusChange(1, "Establishing VPN interface...");
-                // Now establish VPN with tun2socks
-                establishVpn();
+                if (autoTunnels) {
+                    tunnelTuner.start(client, networkKey, transportType, transportAddr, startTunnels);
+                }
 
             } catch (Exception e) {
-                log("Failed to start: " + e.getMessage());
+                logError("Failed to start: " + e.getMessage());
+                ConnectTimeline.finish(DnsttVpnService.this, false);
                 onStatusChange(3, "Error: " + e.getMessage());
-                stopSelf();
+                // The interface may already be up; tear everything down.
+                // A start still handshaking on DnsttStart sees the stop and
+                // closes its tunnels and listener itself.
+                stopVpn();
             }
         }).start();
     }
 
-    private void establishVpn() {
+    /**
+     * Build and establish the VPN interface. Runs while the tunnel is still
+     * handshaking; packets the interface captures before tun2socks starts
+     * are held by the kernel queue or dropped and retransmitted.
+     */
+    private void buildVpnInterface() throws IOException {
+        log("Building VPN interface...");
+        Builder builder = new Builder();
+        builder.setSession("DNSTT VPN")
+                .addAddress(VPN_ADDR4, VPN_PREFIX4)
+                .setMtu(engineProfile.mtu)
+                .setBlocking(false);  // Non-blocking for tun2socks
+
+        // Route everything except LAN ranges and the resolvers through the
+        // tunnel. A reconnect can move to another network's known resolver
+        // while the interface stays up, so all of those are excluded along
+        // with the one in use.
+        List<RouteBuilder.Route> routes = buildRoutes(false);
+        boolean captureIpv6 = !IPV6_MODE_OFF.equals(ipv6Mode);
+        if (captureIpv6) {
+            builder.addAddress(VPN_ADDR6, 128);
+            routes.addAll(buildRoutes(true));
+        }
+        for (RouteBuilder.Route route : routes) {
+            builder.addRoute(route.address, route.prefixLength);
+        }
+
+        // App DNS goes to the virtual resolver inside the TUN and is served
+        // by the DNSTT client's caching stub instead of leaking outside
+        builder.addDnsServer(VIRTUAL_DNS_ADDR);
+
+        Network network = underlyingNetwork;
+        if (network != null) {
+            builder.setUnderlyingNetworks(new Network[] {network});
+        }
+
+        // Apply the per-app policy; our own app is always excluded to
+        // prevent loops
+        routingPolicy = AppRoutingPolicy.load(this);
         try {
-            log("Building VPN interface...");
-            Builder builder = new Builder();
-            builder.setSession("DNSTT VPN")
-                    .addAddress("10.0.0.2", 24)
-                    .setMtu(8500)  // Higher MTU for tun2socks efficiency
-                    .setBlocking(false);  // Non-blocking for tun2socks
-
-            // Route all traffic except DNS servers through the tunnel
-            // We split the 0.0.0.0/0 route to exclude 8.8.8.8 and 8.8.4.4
-            // This allows DNS to work normally while other traffic goes through tunnel
-            builder.addRoute("0.0.0.0", 1);    // 0.0.0.0 - 127.255.255.255
-            builder.addRoute("128.0.0.0", 1);  // 128.0.0.0 - 255.255.255.255
-
-            // Note: Not adding DNS servers means the system will use existing DNS
-            // This is intentional since DNSTT's SOCKS5 doesn't support UDP
-
-            // Exclude our own app to prevent loops
-            try {
-                builder.addDisallowedApplication(getPackageName());
-                log("Excluded self from VPN to prevent loops");
-            } catch (Exception e) {
-                log("Could not exclude self: " + e.getMessage());
-            }
+            int applied = routingPolicy.apply(builder, getPackageName());
+            log("App routing: " + routingPolicy.describe() + " (" + applied + " applied)");
+        } catch (Exception e) {
+            logWarn("Could not apply app routing: " + e.getMessage());
+        }
 
-            vpnInterface = builder.establish();
+        vpnInterface = builder.establish();
 
-            if (vpnInterface == null) {
-                throw new IOException("VPN interface is null - permission may have been revoked");
-            }
+        if (vpnInterface == null) {
+            throw new IOException("VPN interface is null - permission may have been revoked");
+        }
+        ConnectTimeline.mark(ConnectTimeline.TUN_ESTABLISHED);
+
+        log("VPN interface established successfully");
+        log("  Address: " + VPN_ADDR4 + "/" + VPN_PREFIX4);
+        log("  MTU: " + engineProfile.mtu);
+        log("  Routes: " + routes.size() + (captureIpv6 ? " (IPv6 " + ipv6Mode + ")" : " (IPv4 only)"));
+        for (InetAddress addr : resolverAddrs) {
+            log("  Excluded resolver: " + addr.getHostAddress());
+        }
+        log("  DNS: " + VIRTUAL_DNS_ADDR + " (cached, via " + dnsUpstream + " in tunnel)");
+    }
 
-            log("VPN interface established successfully");
-            log("  Address: 10.0.0.2/24");
-            log("  MTU: 8500");
-            log("  Routes: 0.0.0.0/1, 128.0.0.0/1 (excludes DNS)");
+    /**
+     * Start tun2socks on the established interface, pointed at the SOCKS
+     * listener, and mark the VPN as running.
+     */
+    private void startTun2socks() throws IOException {
+        // Create tun2socks config file
+        String configPath = createTun2socksConfig(listenerAddr);
+        log("Created tun2socks config at: " + configPath);
+
+        // Start tun2socks with the TUN fd
+        int tunFd = vpnInterface.getFd();
+        log("Starting tun2socks with TUN fd: " + tunFd);
+        tun2socks.TProxyStartService(configPath, tunFd);
+        log("tun2socks started successfully");
+        ConnectTimeline.mark(ConnectTimeline.TUN2SOCKS_STARTED);
+
+        running = true;
+
+        appTraffic = new AppTrafficMonitor(this);
+        appTraffic.reset();
+        appUsage = Collections.emptyList();
+        udpBlocked = 0;
+        udpRejected = 0;
+        ipv6Rejected = 0;
+        if (!AppTrafficMonitor.hasUsageAccess(this)) {
+            log("Per-app traffic counters need usage access");
+        }
 
-            // Create tun2socks config file
-            String configPath = createTun2socksConfig();
-            log("Created tun2socks config at: " + configPath);
+        // Start stats monitoring thread
+        startStatsMonitor();
+        startNetworkMonitor();
 
-            // Start tun2socks with the TUN fd
-            int tunFd = vpnInterface.getFd();
-            log("Starting tun2socks with TUN fd: " + tunFd);
-            tun2socks.TProxyStartService(configPath, tunFd);
-            log("tun2socks started successfully");
+        updateNotification("Connected");
+        onStatusChange(2, "VPN Connected - All traffic routed through tunnel");
+    }
 
-            running = true;
+    private List<RouteBuilder.Route> buildRoutes(boolean ipv6) throws IOException {
+        RouteBuilder routes = new RouteBuilder(ipv6);
+        if (bypassLan) {
+            routes.excludeAll(ipv6 ? RouteBuilder.LAN_IPV6 : RouteBuilder.LAN_IPV4);
+        }
+        for (String cidr : extraExcludedRoutes) {
+            routes.exclude(cidr);
+        }
+        for (InetAddress addr : resolverAddrs) {
+            routes.exclude(addr);
+        }
+        if (!ipv6) {
+            // The virtual DNS server lives in our own subnet, inside 10.0.0.0/8
+            routes.include(VPN_SUBNET4);
+        }
+        return routes.build();
+    }
 
-            // Start stats monitoring thread
-            startStatsMonitor();
+    /**
+     * Addresses of every resolver the tunnel may talk to before the VPN is
+     * rebuilt: the one it starts with, and those reconnectForNetwork can
+     * switch to
+     */
+    private List<InetAddress> resolveCandidateResolvers(String transportType, String transportAddr) {
+        Set<InetAddress> addrs = new LinkedHashSet<>(resolveResolver(transportType, transportAddr));
+        for (KnownResolvers.Resolver known : knownResolvers.all()) {
+            if (!known.sameAs(transportType, transportAddr)) {
+                addrs.addAll(resolveResolver(known.transportType, known.transportAddr));
+            }
+        }
+        return new ArrayList<>(addrs);
+    }
 
-            updateNotification("Connected");
-            onStatusChange(2, "VPN Connected - All traffic routed through tunnel");
+    /**
+     * Addresses of the resolver the tunnel talks to, so its traffic never
+     * loops back into the VPN. Returns an empty list if it can't be resolved.
+     */
+    private List<InetAddress> resolveResolver(String transportType, String transportAddr) {
+        if (transportAddr == null) return Collections.emptyList();
+        String host;
+        if ("doh".equals(transportType)) {
+            host = Uri.parse(transportAddr).getHost();
+        } else {
+            // host:port, with IPv6 literals in brackets
+            host = transportAddr;
+            int sep = host.lastIndexOf(':');
+            if (host.startsWith("[")) {
+                int end = host.indexOf(']');
+                host = end > 0 ? host.substring(1, end) : null;
+            } else if (sep > 0 && host.indexOf(':') == sep) {
+                host = host.substring(0, sep);
+            }
+        }
+        if (host == null || host.isEmpty()) return Collections.emptyList();
+        try {
+            List<InetAddress> addrs = new ArrayList<>();
+            // The client connects to cached addresses without resolving
+            // the host, so those are the ones to keep out of the routes
+            for (String literal : BootstrapAddrs.lookup(host)) {
+                addrs.add(InetAddress.getByName(literal));
+            }
+            if (!addrs.isEmpty()) return addrs;
+            Collections.addAll(addrs, InetAddress.getAllByName(host));
+            return addrs;
+        } catch (IOException e) {
+            logWarn("Could not resolve resolver " + host + ": " + e.getMessage());
+            return Collections.emptyList();
+        }
+    }
 
-        } catch (Exception e) {
-            log("Failed to establish VPN: " + e.getMessage());
-            e.printStackTrace();
-            onStatusChange(3, "VPN Error: " + e.getMessage());
-            stopVpn();
+    private String socksListenAddr(String dataPath) {
+        if (DATA_PATH_UNIX.equals(dataPath)) {
+            return UNIX_ADDR_PREFIX + new File(getCacheDir(), SOCKS_SOCKET_NAME).getAbsolutePath();
         }
+        return SOCKS_LISTEN_ADDR;
     }
 
-    private String createTun2socksConfig() throws IOException {
-        // Create YAML config for hev-socks5-tunnel
-        // Note: DNSTT SOCKS5 proxy only supports TCP, so we use udp: 'tcp' to tunnel
-        // UDP packets (like DNS) over TCP through the SOCKS5 proxy.
-        String config = "tunnel:\n" +
-                "  name: tun0\n" +
-                "  mtu: 8500\n" +
-                "  ipv4: 10.0.0.2\n" +
-                "\n" +
-                "socks5:\n" +
-                "  port: 1080\n" +
-                "  address: 127.0.0.1\n" +
-                "  udp: 'tcp'\n" +
-                "\n" +
-                "misc:\n" +
-                "  task-stack-size: 81920\n" +
-                "  connect-timeout: 5000\n" +
-                "  read-write-timeout: 60000\n" +
-                "  log-level: debug\n";
+    private String createTun2socksConfig(String socksAddr) throws IOException {
+        if (socksAddr == null) {
+            throw new IOException("SOCKS listener address is unknown");
+        }
+
+        String socksEndpoint;
+        if (socksAddr.startsWith(UNIX_ADDR_PREFIX)) {
+            // hev-socks5-tunnel treats an absolute path as a Unix socket
+            socksEndpoint = "  address: '" + socksAddr.substring(UNIX_ADDR_PREFIX.length()) + "'\n";
+        } else {
+            int sep = socksAddr.lastIndexOf(':');
+            if (sep <= 0) {
+                throw new IOException("Malformed SOCKS listener address: " + socksAddr);
+            }
+            socksEndpoint = "  port: " + socksAddr.substring(sep + 1) + "\n" +
+                    "  address: " + socksAddr.substring(0, sep) + "\n";
+        }
+
+        // The DNSTT client answers UDP port 53 from its DNS stub and refuses
+        // other UDP according to the UDP policy.
+        String config = engineProfile.toYaml(socksEndpoint, VPN_ADDR4,
+                IPV6_MODE_OFF.equals(ipv6Mode) ? null : VPN_ADDR6);
 
         File configFile = new File(getCacheDir(), "tun2socks.yml");
         try (FileOutputStream fos = new FileOutputStream(configFile)) {
@@ -271,62 +643,195 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
     }
 
     private void startStatsMonitor() {
-        statsThread = new Thread(() -> {
-            long lastTxBytes = 0;
-            long lastRxBytes = 0;
-            long lastUpdateTime = System.currentTimeMillis();
+        sessionRxBytes = 0;
+        sessionTxBytes = 0;
+        sessionActiveMs = 0;
+        sessionPeakKBps = 0;
+        lastSampleTime = 0;
+        lastConnectFailures = 0;
+        lastAppTrafficTime = System.currentTimeMillis();
+        appUsageWasWatched = false;
+        lastNotificationTime = 0;
+        throughputHistory.clear();
+
+        statsThread = new HandlerThread("StatsThread");
+        statsThread.start();
+        statsHandler = new Handler(statsThread.getLooper());
+
+        PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
+        screenOn = pm == null || pm.isInteractive();
+        screenReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                screenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+                rescheduleSampling();
+            }
+        };
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        ContextCompat.registerReceiver(this, screenReceiver, filter, ContextCompat.RECEIVER_NOT_EXPORTED);
 
-            while (running && !stopping) {
-                try {
-                    Thread.sleep(1000);
-
-                    if (!running || stopping) break;
-
-                    if (tun2socks == null) break;
-
-                    long[] stats = tun2socks.TProxyGetStats();
-                    if (stats != null && stats.length >= 4) {
-                        long txBytes = stats[1];
-                        long rxBytes = stats[3];
-                        long currentTime = System.currentTimeMillis();
-                        long timeDelta = currentTime - lastUpdateTime;
-
-                        // Calculate speed
-                        double speedKBps = 0;
-                        if (timeDelta > 0 && lastUpdateTime > 0) {
-                            long bytesDelta = (txBytes - lastTxBytes) + (rxBytes - lastRxBytes);
-                            speedKBps = (bytesDelta / 1024.0) / (timeDelta / 1000.0);
-                        }
-
-                        // Report to UI
-                        StatusCallback callback = getUiCallback();
-                        if (callback != null) {
-                            callback.onBytesTransferred(rxBytes, txBytes);
-                        }
-
-                        // Update notification with live stats
-                        String notifText = String.format("↓ %s  ↑ %s  •  %.1f KB/s",
-                                formatBytes(rxBytes), formatBytes(txBytes), speedKBps);
-                        updateNotification(notifText);
-
-                        // Log significant changes
-                        if (txBytes - lastTxBytes > 10000 || rxBytes - lastRxBytes > 10000) {
-                            log("Traffic: TX=" + formatBytes(txBytes) + " RX=" + formatBytes(rxBytes));
-                        }
-
-                        lastTxBytes = txBytes;
-                        lastRxBytes = rxBytes;
-                        lastUpdateTime = currentTime;
+        rescheduleSampling();
+    }
+
+    /**
+     * How often to sample stats right now, or 0 to stop sampling. Nobody can
+     * see the numbers with the screen off, so the service doesn't wake up at
+     * all then; the byte counters are cumulative, so nothing is lost.
+     */
+    private long samplingInterval() {
+        if (!running || stopping || !screenOn || offline) return 0;
+        return uiVisible ? SAMPLE_INTERVAL_UI_MS : SAMPLE_INTERVAL_SCREEN_ON_MS;
+    }
+
+    /**
+     * Apply a change in who is observing. Runs on the stats thread so it
+     * can't race with a sample rescheduling itself.
+     */
+    private void rescheduleSampling() {
+        Handler handler = statsHandler;
+        if (handler == null) return;
+        handler.post(() -> {
+            handler.removeCallbacks(sampleRunnable);
+            if (samplingInterval() > 0) {
+                sampleStats();
+            } else {
+                // The next sample starts a new baseline instead of averaging
+                // over the time we were suspended
+                lastSampleTime = 0;
+            }
+        });
+    }
+
+    private final Runnable sampleRunnable = this::sampleStats;
+
+    // Runs on the stats thread
+    private void sampleStats() {
+        if (!running || stopping) return;
+        try {
+            if (tunnelStats.poll(dnsttClient)) {
+                long txBytes = tunnelStats.bytesOut();
+                long rxBytes = tunnelStats.bytesIn();
+                long currentTime = System.currentTimeMillis();
+                long timeDelta = currentTime - lastSampleTime;
+
+                // Calculate speed
+                double speedKBps = 0;
+                if (lastSampleTime > 0 && timeDelta > 0) {
+                    long bytesDelta = (txBytes - lastTxBytes) + (rxBytes - lastRxBytes);
+                    speedKBps = (bytesDelta / 1024.0) / (timeDelta / 1000.0);
+                    // Bytes and time are counted over the same sampled
+                    // intervals; traffic during screen-off gaps, when
+                    // nothing is sampled, is left out of both
+                    if (bytesDelta > 0) {
+                        sessionActiveMs += timeDelta;
+                        sessionRxBytes += rxBytes - lastRxBytes;
+                        sessionTxBytes += txBytes - lastTxBytes;
                     }
-                } catch (InterruptedException e) {
-                    break;
-                } catch (Exception e) {
-                    log("Stats error: " + e.getMessage());
+                    throughputHistory.record(rxBytes - lastRxBytes, txBytes - lastTxBytes,
+                            (int) Math.max(1, Math.round(timeDelta / 1000.0)));
+
+                    // Log significant changes
+                    if (AppLog.DEBUG && (txBytes - lastTxBytes > 10000 || rxBytes - lastRxBytes > 10000)) {
+                        AppLog.d(TAG, "Traffic: TX=" + formatBytes(txBytes) + " RX=" + formatBytes(rxBytes));
+                    }
+                }
+                long failures = tunnelStats.connectFailures();
+                if (failures > lastConnectFailures) {
+                    logWarn("Connections failed through tunnel: " + (failures - lastConnectFailures)
+                            + " (" + tunnelStats.activeSessions() + " active, "
+                            + tunnelStats.tunnels() + " tunnels)");
+                }
+                lastConnectFailures = failures;
+                udpBlocked = tunnelStats.udpBlocked();
+                udpRejected = tunnelStats.udpRejected();
+                ipv6Rejected = tunnelStats.ipv6Rejected();
+
+                sessionPeakKBps = Math.max(sessionPeakKBps, speedKBps);
+
+                // Report to UI
+                StatusCallback callback = getUiCallback();
+                if (callback != null && uiVisible) {
+                    callback.onBytesTransferred(rxBytes, txBytes);
                 }
+
+                // Update the notification with live stats, at most every few
+                // seconds; updateNotification skips unchanged text
+                if (currentTime - lastNotificationTime >= NOTIFICATION_MIN_INTERVAL_MS) {
+                    lastNotificationTime = currentTime;
+                    updateNotification("↓ " + formatBytes(rxBytes) + "  ↑ " + formatBytes(txBytes)
+                            + "  •  " + Math.round(speedKBps) + " KB/s");
+                }
+
+                lastTxBytes = txBytes;
+                lastRxBytes = rxBytes;
+                lastSampleTime = currentTime;
             }
-            log("Stats monitor stopped");
-        }, "StatsThread");
-        statsThread.start();
+
+            // Refresh as soon as the UI starts watching, then periodically
+            boolean watched = appUsageWatched;
+            if (watched && (!appUsageWasWatched
+                    || System.currentTimeMillis() - lastAppTrafficTime >= APP_TRAFFIC_INTERVAL_MS)) {
+                lastAppTrafficTime = System.currentTimeMillis();
+                updateAppUsage();
+            }
+            appUsageWasWatched = watched;
+        } catch (Exception e) {
+            logError("Stats error: " + e.getMessage());
+        }
+
+        long interval = samplingInterval();
+        if (interval > 0) {
+            statsHandler.postDelayed(sampleRunnable, interval);
+        }
+    }
+
+    private void stopStatsMonitor() {
+        if (screenReceiver != null) {
+            try {
+                unregisterReceiver(screenReceiver);
+            } catch (IllegalArgumentException e) {
+                // Not registered
+            }
+            screenReceiver = null;
+        }
+        if (statsThread != null) {
+            log("Stopping stats monitor...");
+            statsHandler.removeCallbacksAndMessages(null);
+            statsThread.quitSafely();
+            try {
+                statsThread.join(2000); // Wait up to 2 seconds for a sample in progress
+            } catch (InterruptedException e) {
+                log("Interrupted while waiting for stats thread");
+            }
+            statsThread = null;
+            statsHandler = null;
+
+            // Sampling has stopped, so the session totals are final
+            new Tun2socksProfileStats(this).record(engineProfile.name,
+                    sessionActiveMs, sessionRxBytes, sessionTxBytes, sessionPeakKBps);
+        }
+    }
+
+    private void updateAppUsage() {
+        if (appTraffic == null || routingPolicy == null) return;
+        List<AppTrafficMonitor.AppUsage> usage = new ArrayList<>();
+        for (AppTrafficMonitor.AppUsage app : appTraffic.getUsage()) {
+            if (routingPolicy.isTunneled(app.packageName, getPackageName())) {
+                usage.add(app);
+            }
+        }
+        appUsage = Collections.unmodifiableList(usage);
+
+        if (!usage.isEmpty()) {
+            StringBuilder sb = new StringBuilder("Top apps:");
+            for (int i = 0; i < Math.min(3, usage.size()); i++) {
+                AppTrafficMonitor.AppUsage app = usage.get(i);
+                sb.append(i == 0 ? " " : ", ").append(app.label).append(" ").append(formatBytes(app.totalBytes()));
+            }
+            log(sb.toString());
+        }
     }
 
     private String formatBytes(long bytes) {
@@ -336,6 +841,129 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
         return (bytes / (1024 * 1024 * 1024)) + " GB";
     }
 
+    /**
+     * Declare the physical network the tunnel runs over, so the system
+     * reports the VPN's metering and link speed from it, and bind new tunnel
+     * sockets to it. null falls back to the system default network.
+     */
+    private void useUnderlyingNetwork(Network network) {
+        underlyingNetwork = network;
+        setUnderlyingNetworks(network != null ? new Network[] {network} : null);
+    }
+
+    /**
+     * Called by the DNSTT client for every socket it opens to the resolver,
+     * before the socket is bound or connected
+     */
+    private boolean protectSocket(long fd) {
+        if (!protect((int) fd)) {
+            logWarn("Could not protect tunnel socket " + fd);
+            return false;
+        }
+        Network network = underlyingNetwork;
+        if (network != null) {
+            // fromFd dups the descriptor; binding the dup binds the socket
+            try (ParcelFileDescriptor pfd = ParcelFileDescriptor.fromFd((int) fd)) {
+                network.bindSocket(pfd.getFileDescriptor());
+            } catch (IOException e) {
+                // The network may have just gone away; the default will do
+                logWarn("Could not bind tunnel socket to network: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private void startNetworkMonitor() {
+        offline = false;
+        networkMonitor = new NetworkMonitor(this, networkListener);
+        networkMonitor.start();
+    }
+
+    private void stopNetworkMonitor() {
+        if (networkMonitor != null) {
+            networkMonitor.stop();
+            networkMonitor = null;
+        }
+        offline = false;
+    }
+
+    /**
+     * Keeps the tunnel alive across network changes. The VPN interface,
+     * tun2socks and the SOCKS listener stay up throughout; only the DNSTT
+     * client's tunnels are rebuilt, so apps see a stall rather than a drop.
+     */
+    private final NetworkMonitor.Listener networkListener = new NetworkMonitor.Listener() {
+        @Override
+        public void onNetworkAvailable(Network network, String key, boolean changed) {
+            boolean wasOffline = offline;
+            offline = false;
+            // Before reconnecting, so the new tunnels' sockets bind to it
+            useUnderlyingNetwork(network);
+            if (changed) {
+                log("Network changed (" + key + "), reconnecting tunnel...");
+                reconnectForNetwork(key);
+            } else {
+                if (wasOffline) {
+                    log("Network back (" + key + ")");
+                    updateNotification("Connected");
+                }
+                // The tunnel works here, so remember its resolver
+                knownResolvers.put(key, activeTransportType, activeTransportAddr);
+            }
+            rescheduleSampling();
+        }
+
+        @Override
+        public void onNetworkLost() {
+            offline = true;
+            useUnderlyingNetwork(null);
+            logWarn("Network lost, waiting for it to come back");
+            updateNotification("Waiting for network...");
+            rescheduleSampling();
+        }
+    };
+
+    /**
+     * Rebuild the tunnels on a new network, or on the same one when they have
+     * stopped answering, trying the resolver last known to work on that
+     * network before the one in use. Blocks until done.
+     */
+    private void reconnectForNetwork(String key) {
+        Client client = dnsttClient;
+        if (client == null || !running || stopping) return;
+
+        List<KnownResolvers.Resolver> candidates = new ArrayList<>();
+        KnownResolvers.Resolver known = knownResolvers.get(key);
+        if (known != null && !known.sameAs(activeTransportType, activeTransportAddr)) {
+            candidates.add(known);
+        }
+        candidates.add(new KnownResolvers.Resolver(activeTransportType, activeTransportAddr));
+
+        for (KnownResolvers.Resolver resolver : candidates) {
+            if (!running || stopping) return;
+            try {
+                log("Reconnecting via " + resolver.transportType + " " + resolver.transportAddr);
+                // A new network can mean a different path to the resolver
+                long responseSize = responseSizes.sizeFor(key, resolver.transportType, resolver.transportAddr,
+                        activeDomain);
+                client.reconnectWithResponseSize(resolver.transportType, resolver.transportAddr, responseSize);
+                activeTransportType = resolver.transportType;
+                activeTransportAddr = resolver.transportAddr;
+                knownResolvers.put(key, resolver.transportType, resolver.transportAddr);
+                if (autoTunnels) {
+                    tunnelTuner.retarget(key, resolver.transportType, resolver.transportAddr);
+                }
+                log("Tunnel reconnected");
+                updateNotification("Connected");
+                return;
+            } catch (Exception e) {
+                logWarn("Reconnect via " + resolver.transportAddr + " failed: " + e.getMessage());
+            }
+        }
+        logError("Could not reconnect the tunnel");
+        updateNotification("Reconnect failed");
+    }
+
     private void stopVpn() {
         log("Stopping VPN...");
 
@@ -353,18 +981,12 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
 
         stopping = true;
         running = false;
+        // A connect torn down before its first byte
+        ConnectTimeline.finish(this, false);
 
-        // Stop stats thread
-        if (statsThread != null && statsThread.isAlive()) {
-            log("Stopping stats thread...");
-            statsThread.interrupt();
-            try {
-                statsThread.join(2000); // Wait up to 2 seconds for thread to finish
-            } catch (InterruptedException e) {
-                log("Interrupted while waiting for stats thread");
-            }
-            statsThread = null;
-        }
+        tunnelTuner.stop();
+        stopStatsMonitor();
+        stopNetworkMonitor();
 
         // Stop tun2socks first
         if (tun2socks != null) {
@@ -373,7 +995,7 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
                 tun2socks.TProxyStopService();
                 log("tun2socks stopped");
             } catch (Exception e) {
-                log("Error stopping tun2socks: " + e.getMessage());
+                logError("Error stopping tun2socks: " + e.getMessage());
             }
         }
 
@@ -383,7 +1005,7 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
                 vpnInterface.close();
                 log("VPN interface closed");
             } catch (IOException e) {
-                log("Error closing VPN interface: " + e.getMessage());
+                logError("Error closing VPN interface: " + e.getMessage());
             }
             vpnInterface = null;
         }
@@ -392,21 +1014,36 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
         if (dnsttClient != null) {
             log("Stopping DNSTT client...");
             try {
+                long udpBlocked = dnsttClient.getUDPBlocked();
+                long ipv6Rejected = dnsttClient.getIPv6Rejected();
+                if (ipv6Rejected > 0) {
+                    log("IPv6 attempts short-circuited: " + ipv6Rejected);
+                }
+                if (udpBlocked > 0) {
+                    log("UDP blocked: " + udpBlocked + " datagrams, " + dnsttClient.getUDPRejected()
+                            + " QUIC handshakes rejected (by port: " + dnsttClient.getUDPBlockedSummary() + ")");
+                }
                 dnsttClient.stop();
                 log("DNSTT client stopped");
-
-                // Give OS time to release port 1080 from TIME_WAIT state
-                // This prevents "address already in use" on quick reconnections
-                // Increased to 1500ms for better reliability
-                Thread.sleep(1500);
-                log("Port cleanup delay completed");
+                bootstrapAddrs.save();
+
+                // stop() normally returns after the listener is closed, so this
+                // wait only matters if the close event is delivered late.
+                // Only wait when a listener was actually bound.
+                boolean wasListening = listenerReady != null && listenerReady.getCount() == 0;
+                if (wasListening && !listenerClosed.await(LISTENER_CLOSED_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    log("SOCKS listener did not report close");
+                }
             } catch (InterruptedException e) {
-                log("Cleanup delay interrupted: " + e.getMessage());
+                log("Interrupted while waiting for listener close: " + e.getMessage());
             } catch (Exception e) {
-                log("Error stopping DNSTT client: " + e.getMessage());
+                logError("Error stopping DNSTT client: " + e.getMessage());
             }
             dnsttClient = null;
         }
+        // protect() is only meaningful while this service runs
+        Mobile.setSocketProtector(null);
+        underlyingNetwork = null;
 
         // Notify UI BEFORE stopping the service
         onStatusChange(0, "Disconnected");
@@ -421,12 +1058,13 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
     public void onDestroy() {
         log("VPN service being destroyed");
         stopVpn();
+        instanceRef = null;
         super.onDestroy();
     }
 
     @Override
     public void onStatusChange(long state, String message) {
-        log("Status: " + state + " - " + message);
+        if (AppLog.DEBUG) AppLog.d(TAG, "Status: " + state + " - " + message);
 
         if (state == 2) {
             updateNotification("Connected");
@@ -440,6 +1078,19 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
         }
     }
 
+    /**
+     * The connect is timed until the first byte comes back through the
+     * tunnel, which the Go client clocks from start(). Reported from Go, so
+     * it doesn't wait for the stats sampler, which sleeps with the screen off.
+     */
+    @Override
+    public void onFirstByte(long ms) {
+        if (ConnectTimeline.isActive()) {
+            ConnectTimeline.markAfter(ConnectTimeline.FIRST_BYTE, ConnectTimeline.CLIENT_START, ms);
+            ConnectTimeline.finish(this, true);
+        }
+    }
+
     @Override
     public void onBytesTransferred(long bytesIn, long bytesOut) {
         StatusCallback callback = getUiCallback();
@@ -448,15 +1099,84 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
         }
     }
 
-    private void log(String message) {
-        Log.d(TAG, message);
-        // Also send to UI if callback is set
+    @Override
+    public void onListenerReady(String addr) {
+        listenerAddr = addr;
+        CountDownLatch ready = listenerReady;
+        if (ready != null) {
+            ready.countDown();
+        }
+
         StatusCallback callback = getUiCallback();
         if (callback != null) {
-            callback.onStatusChange(-1, "[VPN] " + message);
+            callback.onListenerReady(addr);
         }
     }
 
+    @Override
+    public void onListenerClosed() {
+        CountDownLatch closed = listenerClosed;
+        if (closed != null) {
+            closed.countDown();
+        }
+
+        StatusCallback callback = getUiCallback();
+        if (callback != null) {
+            callback.onListenerClosed();
+        }
+    }
+
+    @Override
+    public void onLatencyUpdate(long lastMs, long minMs, long avgMs, long p95Ms, long lossPercent) {
+        if (AppLog.DEBUG) {
+            AppLog.d(TAG, "RTT " + lastMs + " ms (min " + minMs + ", avg " + avgMs + ", p95 " + p95Ms
+                    + ", loss " + lossPercent + "%)");
+        }
+
+        // Probes keep coming with the screen off, when the stats sampler
+        // sleeps, so the tuner is fed from here
+        Client client = dnsttClient;
+        long bytesIn = client != null ? client.getBytesIn() : 0;
+        if (autoTunnels && client != null) {
+            tunnelTuner.onLatency(lossPercent);
+            tunnelTuner.onBytes(bytesIn + client.getBytesOut());
+        }
+
+        // Called on a Go thread; reconnecting blocks, so it gets its own
+        if (tunnelHealth.onProbe(lastMs, bytesIn) && running && !stopping && !offline) {
+            logWarn("Tunnel stopped answering (" + lossPercent + "% probe loss), reconnecting");
+            NetworkMonitor monitor = networkMonitor;
+            String key = monitor != null ? monitor.getCurrentKey() : null;
+            new Thread(() -> reconnectForNetwork(key), "DnsttFailover").start();
+        }
+
+        StatusCallback callback = getUiCallback();
+        if (callback != null) {
+            callback.onLatencyUpdate(lastMs, minMs, avgMs, p95Ms, lossPercent);
+        }
+    }
+
+    @Override
+    public void onCompressionStats(long rawOut, long wireOut, long rawIn, long wireIn, long cpuMs, String mode) {
+        StatusCallback callback = getUiCallback();
+        if (callback != null) {
+            callback.onCompressionStats(rawOut, wireOut, rawIn, wireIn, cpuMs, mode);
+        }
+    }
+
+    // The UI reads these from AppLog in batches rather than one callback each
+    private void log(String message) {
+        AppLog.i(TAG, message);
+    }
+
+    private void logWarn(String message) {
+        AppLog.w(TAG, message);
+    }
+
+    private void logError(String message) {
+        AppLog.e(TAG, message);
+    }
+
     private void createNotificationChannel() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel channel = new NotificationChannel(
@@ -473,35 +1193,45 @@ public class DnsttVpnService extends VpnService implements StatusCallback {
         }
     }
 
-    private Notification createNotification(String text) {
-        Intent intent = new Intent(this, MainActivity.class);
-        PendingIntent pendingIntent = PendingIntent.getActivity(
-                this, 0, intent,
-                PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT
-        );
+    /**
+     * Notifications reuse one builder, so the PendingIntents are created
+     * once per service instead of on every update.
+     */
+    private synchronized Notification createNotification(String text) {
+        if (notificationBuilder == null) {
+            Intent intent = new Intent(this, MainActivity.class);
+            PendingIntent pendingIntent = PendingIntent.getActivity(
+                    this, 0, intent,
+                    PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT
+            );
 
-        Intent stopIntent = new Intent(this, DnsttVpnService.class);
-        stopIntent.setAction(ACTION_STOP);
-        PendingIntent stopPendingIntent = PendingIntent.getService(
-                this, 0, stopIntent,
-                PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT
-        );
+            Intent stopIntent = new Intent(this, DnsttVpnService.class);
+            stopIntent.setAction(ACTION_STOP);
+            PendingIntent stopPendingIntent = PendingIntent.getService(
+                    this, 0, stopIntent,
+                    PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT
+            );
 
-        return new NotificationCompat.Builder(this, CHANNEL_ID)
-                .setContentTitle("DNSTT VPN - Connected")
-                .setContentText(text)
-                .setSmallIcon(R.drawable.ic_vpn_key)
-                .setContentIntent(pendingIntent)
-                .addAction(android.R.drawable.ic_menu_close_clear_cancel, "Disconnect", stopPendingIntent)
-                .setOngoing(true)
-                .setShowWhen(false)
-                .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
-                .setPriority(NotificationCompat.PRIORITY_LOW)
-                .setCategory(NotificationCompat.CATEGORY_SERVICE)
-                .build();
+            notificationBuilder = new NotificationCompat.Builder(this, CHANNEL_ID)
+                    .setContentTitle("DNSTT VPN - Connected")
+                    .setSmallIcon(R.drawable.ic_vpn_key)
+                    .setContentIntent(pendingIntent)
+                    .addAction(android.R.drawable.ic_menu_close_clear_cancel, "Disconnect", stopPendingIntent)
+                    .setOngoing(true)
+                    .setOnlyAlertOnce(true)
+                    .setShowWhen(false)
+                    .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
+                    .setPriority(NotificationCompat.PRIORITY_LOW)
+                    .setCategory(NotificationCompat.CATEGORY_SERVICE);
+        }
+        lastNotificationText = text;
+        return notificationBuilder.setContentText(text).build();
     }
 
     private void updateNotification(String text) {
+        synchronized (this) {
+            if (text.equals(lastNotificationText)) return;
+        }
         NotificationManager manager = getSystemService(NotificationManager.class);
         if (manager != null) {
             manager.notify(NOTIFICATION_ID, createNotification(text));
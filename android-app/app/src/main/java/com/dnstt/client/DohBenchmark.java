@@ -0,0 +1,154 @@
+package com.dnstt.client;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import mobile.Mobile;
+
+/**
+ * Benchmarks of the DoH providers on each network: the tunnel handshake
+ * time and downstream rate through every provider, measured all at once by
+ * {@link Mobile#benchmarkTransports}. Results are kept with the time they
+ * were taken, keyed by {@link NetworkMonitor#networkKey}, so the fastest
+ * provider reachable on the current network can be picked when DoH is
+ * chosen.
+ */
+public class DohBenchmark {
+    private static final String TAG = "DohBenchmark";
+    private static final String PREFS_NAME = "doh_benchmark";
+
+    /** Results older than this are not used */
+    private static final long MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+    private static final long TIMEOUT_MS = 10_000;
+    // Providers are ranked by handshake time plus the time to receive this
+    // much at their measured rate; unmeasured rates count as the slow one
+    private static final long REFERENCE_BYTES = 64 * 1024;
+    private static final long ASSUMED_BYTES_PER_SECOND = 4 * 1024;
+
+    /**
+     * One provider's measurement
+     */
+    public static class Result implements Comparable<Result> {
+        public final String url;
+        /** -1 if no tunnel came up through the provider */
+        public final long handshakeMs;
+        /** 0 if not measured */
+        public final long bytesPerSecond;
+        /** Wall-clock time of the measurement */
+        public final long timeMs;
+
+        Result(String url, long handshakeMs, long bytesPerSecond, long timeMs) {
+            this.url = url;
+            this.handshakeMs = handshakeMs;
+            this.bytesPerSecond = bytesPerSecond;
+            this.timeMs = timeMs;
+        }
+
+        public boolean reachable() {
+            return handshakeMs >= 0;
+        }
+
+        long costMs() {
+            long rate = bytesPerSecond > 0 ? bytesPerSecond : ASSUMED_BYTES_PER_SECOND;
+            return handshakeMs + REFERENCE_BYTES * 1000 / rate;
+        }
+
+        @Override
+        public int compareTo(Result other) {
+            if (reachable() != other.reachable()) return reachable() ? -1 : 1;
+            if (!reachable()) return url.compareTo(other.url);
+            return Long.compare(costMs(), other.costMs());
+        }
+    }
+
+    private final SharedPreferences prefs;
+
+    public DohBenchmark(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Measure every URL through the tunnel server and store the results
+     * for this network. Blocks for up to about twice the per-provider
+     * timeout, so call off the main thread.
+     *
+     * @return the results, fastest first
+     */
+    public List<Result> run(String networkKey, String domain, String pubkey, List<String> urls) throws Exception {
+        StringBuilder candidates = new StringBuilder();
+        for (String url : urls) {
+            candidates.append("doh ").append(url).append('\n');
+        }
+        List<Result> results = Collections.synchronizedList(new ArrayList<>());
+        long now = System.currentTimeMillis();
+        Mobile.benchmarkTransports(candidates.toString(), domain, pubkey, TIMEOUT_MS,
+                (candidate, handshakeMs, bytesPerSecond, errorMsg) -> {
+                    String url = candidate.substring(candidate.indexOf(' ') + 1);
+                    results.add(new Result(url, handshakeMs, bytesPerSecond, now));
+                });
+
+        SharedPreferences.Editor editor = prefs.edit();
+        for (Result r : results) {
+            editor.putString(key(networkKey, r.url), r.handshakeMs + "," + r.bytesPerSecond + "," + r.timeMs);
+        }
+        editor.apply();
+
+        List<Result> ranked = new ArrayList<>(results);
+        Collections.sort(ranked);
+        AppLog.i(TAG, "Benchmarked " + ranked.size() + " providers"
+                + (!ranked.isEmpty() && ranked.get(0).reachable() ? ", fastest " + ranked.get(0).url : ""));
+        return ranked;
+    }
+
+    /**
+     * Recent results for this network, fastest first
+     */
+    public List<Result> results(String networkKey) {
+        String prefix = (networkKey != null ? networkKey : "unknown") + "|";
+        long oldest = System.currentTimeMillis() - MAX_AGE_MS;
+        List<Result> results = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(prefix) || !(entry.getValue() instanceof String)) continue;
+            String[] parts = ((String) entry.getValue()).split(",");
+            if (parts.length != 3) continue;
+            try {
+                Result r = new Result(entry.getKey().substring(prefix.length()),
+                        Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                if (r.timeMs >= oldest) results.add(r);
+            } catch (NumberFormatException e) {
+                // Skip a damaged entry
+            }
+        }
+        Collections.sort(results);
+        return results;
+    }
+
+    /**
+     * The fastest provider reachable on this network by recent results, or
+     * null if there are none
+     */
+    public String fastest(String networkKey) {
+        List<Result> results = results(networkKey);
+        if (results.isEmpty() || !results.get(0).reachable()) return null;
+        return results.get(0).url;
+    }
+
+    /**
+     * Whether this URL failed on this network in the recent results
+     */
+    public boolean unreachable(String networkKey, String url) {
+        for (Result r : results(networkKey)) {
+            if (r.url.equals(url)) return !r.reachable();
+        }
+        return false;
+    }
+
+    private static String key(String networkKey, String url) {
+        return (networkKey != null ? networkKey : "unknown") + "|" + url;
+    }
+}
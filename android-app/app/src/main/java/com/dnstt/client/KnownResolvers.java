@@ -0,0 +1,73 @@
+package com.dnstt.client;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last resolver that carried a working tunnel on each network, keyed by
+ * {@link NetworkMonitor#networkKey}, so a reconnect after a network change
+ * can go straight to a resolver known to work there.
+ */
+public class KnownResolvers {
+    private static final String PREFS_NAME = "known_resolvers";
+
+    /**
+     * A transport type and address, as passed to the DNSTT client
+     */
+    public static class Resolver {
+        public final String transportType;
+        public final String transportAddr;
+
+        public Resolver(String transportType, String transportAddr) {
+            this.transportType = transportType;
+            this.transportAddr = transportAddr;
+        }
+
+        public boolean sameAs(String type, String addr) {
+            return transportType.equals(type) && transportAddr.equals(addr);
+        }
+    }
+
+    private final SharedPreferences prefs;
+
+    public KnownResolvers(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public Resolver get(String networkKey) {
+        if (networkKey == null) return null;
+        return parse(prefs.getString(networkKey, null));
+    }
+
+    /**
+     * The resolvers known on every network, without duplicates
+     */
+    public List<Resolver> all() {
+        List<Resolver> result = new ArrayList<>();
+        for (Object value : prefs.getAll().values()) {
+            Resolver resolver = value instanceof String ? parse((String) value) : null;
+            if (resolver == null) continue;
+            boolean seen = false;
+            for (Resolver r : result) {
+                if (r.sameAs(resolver.transportType, resolver.transportAddr)) seen = true;
+            }
+            if (!seen) result.add(resolver);
+        }
+        return result;
+    }
+
+    private static Resolver parse(String value) {
+        if (value == null) return null;
+        int sep = value.indexOf(' ');
+        if (sep <= 0) return null;
+        return new Resolver(value.substring(0, sep), value.substring(sep + 1));
+    }
+
+    public void put(String networkKey, String transportType, String transportAddr) {
+        if (networkKey == null) return;
+        prefs.edit().putString(networkKey, transportType + " " + transportAddr).apply();
+    }
+}
@@ -0,0 +1,165 @@
+package com.dnstt.client;
+
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Log lines for the main screen's RecyclerView, newest first.
+ *
+ * Entries are kept in two bounded rings: every entry, and the ones at or
+ * above the selected level. New batches are announced as item range inserts
+ * (and removes for lines that fell off the end), so adding a line costs one
+ * bound row instead of rebuilding the whole log. Main thread only.
+ */
+public class LogAdapter extends RecyclerView.Adapter<LogAdapter.LineHolder> {
+    public static final int CAPACITY = 5000;
+
+    /**
+     * Fixed-size ring of entries; index 0 is the newest
+     */
+    private static class Ring {
+        private final AppLog.Entry[] items = new AppLog.Entry[CAPACITY];
+        private int head;  // Slot of the next entry to add
+        private int size;
+
+        void add(AppLog.Entry entry) {
+            items[head] = entry;
+            head = (head + 1) % CAPACITY;
+            if (size < CAPACITY) size++;
+        }
+
+        AppLog.Entry get(int index) {
+            return items[(head - 1 - index + CAPACITY) % CAPACITY];
+        }
+
+        void clear() {
+            Arrays.fill(items, null);
+            head = 0;
+            size = 0;
+        }
+    }
+
+    private final Ring all = new Ring();
+    private final Ring shown = new Ring();
+    private int minLevel = AppLog.LEVEL_DEBUG;
+
+    // One formatter, and the formatted second it last produced, so lines
+    // logged within the same second share a string
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
+    private final Date date = new Date();
+    private long cachedSecond = -1;
+    private String cachedTime;
+
+    static class LineHolder extends RecyclerView.ViewHolder {
+        final TextView text;
+
+        LineHolder(TextView text) {
+            super(text);
+            this.text = text;
+        }
+    }
+
+    /**
+     * Add a batch of entries, oldest first as AppLog delivers them
+     */
+    public void add(List<AppLog.Entry> batch) {
+        int before = shown.size;
+        int added = 0;
+        for (AppLog.Entry entry : batch) {
+            all.add(entry);
+            if (entry.level >= minLevel) {
+                shown.add(entry);
+                added++;
+            }
+        }
+        if (added == 0) return;
+        if (added >= CAPACITY) {
+            notifyDataSetChanged();
+            return;
+        }
+        int evicted = before + added - shown.size;
+        if (evicted > 0) {
+            notifyItemRangeRemoved(before - evicted, evicted);
+        }
+        notifyItemRangeInserted(0, added);
+    }
+
+    public void clear() {
+        all.clear();
+        shown.clear();
+        notifyDataSetChanged();
+    }
+
+    public int getMinLevel() {
+        return minLevel;
+    }
+
+    /**
+     * Show only entries at or above the given level
+     */
+    public void setMinLevel(int level) {
+        if (level == minLevel) return;
+        minLevel = level;
+        shown.clear();
+        for (int i = all.size - 1; i >= 0; i--) {
+            AppLog.Entry entry = all.get(i);
+            if (entry.level >= level) shown.add(entry);
+        }
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getItemCount() {
+        return shown.size;
+    }
+
+    @NonNull
+    @Override
+    public LineHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        TextView view = (TextView) LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.item_log, parent, false);
+        return new LineHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull LineHolder holder, int position) {
+        AppLog.Entry entry = shown.get(position);
+        StringBuilder sb = new StringBuilder(entry.message.length() + 24);
+        sb.append('[').append(formatTime(entry.timeMs)).append("] ");
+        if (entry.level != AppLog.LEVEL_INFO) sb.append(entry.levelChar()).append(' ');
+        if (DnsttVpnService.TAG.equals(entry.tag)) sb.append("[VPN] ");
+        sb.append(entry.message);
+        holder.text.setText(sb);
+        holder.text.setTextColor(ContextCompat.getColor(holder.text.getContext(), levelColor(entry.level)));
+    }
+
+    private String formatTime(long timeMs) {
+        long second = timeMs / 1000;
+        if (second != cachedSecond) {
+            date.setTime(timeMs);
+            cachedTime = timeFormat.format(date);
+            cachedSecond = second;
+        }
+        return cachedTime;
+    }
+
+    private static int levelColor(int level) {
+        switch (level) {
+            case AppLog.LEVEL_DEBUG: return R.color.text_hint;
+            case AppLog.LEVEL_WARN: return R.color.connecting;
+            case AppLog.LEVEL_ERROR: return R.color.disconnected;
+            default: return R.color.text_secondary;
+        }
+    }
+}
@@ -3,12 +3,16 @@ package com.dnstt.client;
 import android.app.Activity;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
 import android.graphics.Color;
+import android.graphics.Typeface;
 import android.net.Uri;
 import android.net.VpnService;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.provider.Settings;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.AutoCompleteTextView;
@@ -17,7 +21,12 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.CountDownLatch;
@@ -27,7 +36,10 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
@@ -53,8 +65,19 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
     private volatile boolean isSearching = false;
     private volatile boolean cancelSearch = false;
     private boolean vpnMode = true;
+    private boolean unixSocketDataPath = false;
+    private String engineProfile = Tun2socksProfile.THROUGHPUT;
+    // Resolver the VPN's DNS stub asks through the tunnel
+    private String dnsUpstream = DnsttVpnService.DEFAULT_DNS_UPSTREAM;
+    // What the VPN does with UDP the tunnel can't carry
+    private String udpPolicy = DnsttVpnService.UDP_POLICY_REJECT;
+    // Whether IPv6 bypasses the VPN, is refused, or goes through the tunnel
+    private String ipv6Mode = DnsttVpnService.IPV6_MODE_REJECT;
     private boolean autoConnect = false;
     private boolean useAutoDns = true;  // Auto DNS: test and select best resolver
+    // Winner of the last Auto transport race; null when a transport is picked
+    private String racedTransportType;
+    private String racedTransportAddr;
     private boolean hasAutoConnected = false;
 
     // Performance settings
@@ -63,10 +86,25 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
     private String currentConnectedDns = null;  // Track current connected DNS for retry
 
     private DnsServerManager dnsServerManager;
+    private NetworkMonitor networkMonitor;
+    // Tunes the tunnel count in SOCKS proxy mode; the VPN service has its own
+    private TunnelTuner tunnelTuner;
+    private ResponseSizes responseSizes;
+    private BootstrapAddrs bootstrapAddrs;
+    // Pipelined VPN connect: the permission prompt and the resolver search
+    // run side by side; main thread only
+    private boolean vpnPermissionPending = false;
+    private boolean resolverReady = false;
+    // Transport the SOCKS proxy mode client was started with, for reconnects
+    private volatile String proxyTransportType;
+    private volatile String proxyTransportAddr;
     private Thread searchThread = null;
     private ExecutorService dnsTestExecutor = null;  // Track parallel DNS testing executor
     private static final long SEARCH_TIMEOUT_MS = 60000; // 60 seconds total timeout for DNS search
 
+    private static final String TAG = "MainActivity";
+    private static final String[] LOG_LEVEL_NAMES = {"All", "Info", "Warnings", "Errors"};
+
     // DoH provider presets - name -> URL mapping
     private static final String[][] DOH_PROVIDERS = {
         {"Google", "https://dns.google/dns-query"},
@@ -82,6 +120,21 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         {"Custom", ""}  // Custom option for manual entry
     };
 
+    // DoT endpoints raced in Auto transport mode
+    private static final String[] DOT_ENDPOINTS = {
+        "dns.google:853",
+        "one.one.one.one:853",
+        "dns.quad9.net:853",
+        "dns.adguard-dns.com:853",
+    };
+
+    // Auto transport: race UDP, DoH and DoT and connect over the first
+    // tunnel to come up
+    private static final String TRANSPORT_AUTO = "Auto";
+    private static final long RACE_WINDOW_MS = 8000;
+    // Only the top of the resolver list, so the race stays a short burst
+    private static final int RACE_UDP_CANDIDATES = 8;
+
     // UI Elements
     private TextView statusText;
     private TextView statusSubtext;
@@ -94,19 +147,37 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
     private TextView bytesOutText;
     private TextView qualityText;
     private TextView latencyText;
+    private TextView compressionText;
+    private View filteredLayout;
+    private TextView filteredText;
     private TextView speedText;
+    private ThroughputGraphView throughputGraph;
     private ProgressBar qualityBar;
     private View qualityBarLayout;
-    private TextView logText;
+    private RecyclerView logList;
+    private LinearLayoutManager logLayout;
+    private final LogAdapter logAdapter = new LogAdapter();
+    private MaterialButton logLevelButton;
     private AutoCompleteTextView transportType;
     private AutoCompleteTextView dohProvider;
-    private TextInputLayout dohProviderLayout;
+    private View dohProviderLayout;
     private TextInputLayout transportAddrLayout;
     private TextInputEditText transportAddr;
     private TextInputEditText domain;
     private TextInputEditText pubkey;
     private TextInputEditText tunnels;
     private SwitchMaterial vpnModeSwitch;
+    private SwitchMaterial unixSocketSwitch;
+    private TextView appRoutingText;
+    private MaterialButton appRoutingButton;
+    private TextView engineProfileText;
+    private MaterialButton engineProfileButton;
+    private TextView dnsUpstreamText;
+    private MaterialButton dnsUpstreamButton;
+    private TextView udpPolicyText;
+    private MaterialButton udpPolicyButton;
+    private TextView ipv6ModeText;
+    private MaterialButton ipv6ModeButton;
     private SwitchMaterial autoConnectSwitch;
     private SwitchMaterial autoDnsSwitch;
     private TextView autoDnsLabel;
@@ -123,6 +194,11 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
 
     // DNS config manager
     private DnsConfigManager dnsConfigManager;
+    // Auto transport race winner per network, shared with the VPN service
+    private KnownResolvers knownResolvers;
+    // DoH provider rankings per network
+    private DohBenchmark dohBenchmark;
+    private boolean benchmarking;  // main thread only
 
     // Activity result launcher for configuration activity
     private ActivityResultLauncher<Intent> configActivityLauncher;
@@ -131,7 +207,12 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
     private long lastBytesIn = 0;
     private long lastBytesOut = 0;
     private long lastUpdateTime = 0;
-    private long currentLatencyMs = 0;
+    private long currentLatencyMs = 0;  // Resolver probe latency from the search
+    // Round-trip probes through the tunnel; -1 until one is answered
+    private long rttAvgMs = -1;
+    private long rttP95Ms = -1;
+    private long rttLossPercent = 0;
+    private final TunnelHealth tunnelHealth = new TunnelHealth();
 
     // VPN permission launcher
     private ActivityResultLauncher<Intent> vpnPermissionLauncher;
@@ -142,8 +223,41 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         setContentView(R.layout.activity_main);
 
         handler = new Handler(Looper.getMainLooper());
+        AppLog.enableFileSink(new java.io.File(getFilesDir(), "logs"));
         client = mobile.Mobile.newClient();
         client.setCallback(this);
+        tunnelTuner = new TunnelTuner(this);
+        responseSizes = new ResponseSizes(this);
+        bootstrapAddrs = new BootstrapAddrs(this);
+        bootstrapAddrs.load();
+        knownResolvers = new KnownResolvers(this);
+        dohBenchmark = new DohBenchmark(this);
+
+        // Pause resolver probing while offline, and in SOCKS proxy mode
+        // rebuild the tunnels when the network changes (the VPN service
+        // does this itself in VPN mode)
+        networkMonitor = new NetworkMonitor(this, new NetworkMonitor.Listener() {
+            @Override
+            public void onNetworkAvailable(android.net.Network network, String key, boolean changed) {
+                if (!changed) return;
+                appendLog("Network changed: " + key);
+                Client c = client;
+                if (!vpnMode && isConnected && c != null && proxyTransportType != null) {
+                    try {
+                        c.reconnect(proxyTransportType, proxyTransportAddr);
+                        tunnelTuner.retarget(key, proxyTransportType, proxyTransportAddr);
+                    } catch (Exception e) {
+                        appendLog("Reconnect failed: " + e.getMessage());
+                    }
+                }
+            }
+
+            @Override
+            public void onNetworkLost() {
+                appendLog(isSearching ? "Network lost - resolver search paused" : "Network lost");
+            }
+        });
+        networkMonitor.start();
 
         // Initialize app updater
         appUpdater = new AppUpdater(this);
@@ -183,12 +297,24 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         vpnPermissionLauncher = registerForActivityResult(
                 new ActivityResultContracts.StartActivityForResult(),
                 result -> {
+                    vpnPermissionPending = false;
                     if (result.getResultCode() == Activity.RESULT_OK) {
                         appendLog("VPN permission granted");
-                        startVpnService();
+                        maybeStartVpnService();
                     } else {
                         appendLog("VPN permission denied by user");
-                        setInputsEnabled(true);
+                        resolverReady = false;
+                        if (isSearching) {
+                            // The search notices and resets the UI itself
+                            cancelSearch = true;
+                        } else {
+                            ConnectTimeline.finish(MainActivity.this, false);
+                            connectButton.setText(R.string.connect);
+                            statusText.setText(R.string.status_disconnected);
+                            statusText.setTextColor(getColor(R.color.disconnected));
+                            statusCircle.setBackgroundResource(R.drawable.status_circle_disconnected);
+                            setInputsEnabled(true);
+                        }
                     }
                 }
         );
@@ -232,10 +358,21 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         bytesOutText = findViewById(R.id.bytesOutText);
         qualityText = findViewById(R.id.qualityText);
         latencyText = findViewById(R.id.latencyText);
+        compressionText = findViewById(R.id.compressionText);
+        filteredLayout = findViewById(R.id.filteredLayout);
+        filteredText = findViewById(R.id.filteredText);
         speedText = findViewById(R.id.speedText);
+        throughputGraph = findViewById(R.id.throughputGraph);
+        throughputGraph.setHistory(DnsttVpnService.getThroughputHistory());
         qualityBar = findViewById(R.id.qualityBar);
         qualityBarLayout = findViewById(R.id.qualityBarLayout);
-        logText = findViewById(R.id.logText);
+        logList = findViewById(R.id.logList);
+        logLayout = new LinearLayoutManager(this);
+        logList.setLayoutManager(logLayout);
+        logList.setAdapter(logAdapter);
+        // Rows only change text; skip the change animation on every insert
+        logList.setItemAnimator(null);
+        logLevelButton = findViewById(R.id.logLevelButton);
         transportType = findViewById(R.id.transportType);
         dohProvider = findViewById(R.id.dohProvider);
         dohProviderLayout = findViewById(R.id.dohProviderLayout);
@@ -245,6 +382,17 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         pubkey = findViewById(R.id.pubkey);
         tunnels = findViewById(R.id.tunnels);
         vpnModeSwitch = findViewById(R.id.vpnModeSwitch);
+        unixSocketSwitch = findViewById(R.id.unixSocketSwitch);
+        appRoutingText = findViewById(R.id.appRoutingText);
+        appRoutingButton = findViewById(R.id.appRoutingButton);
+        engineProfileText = findViewById(R.id.engineProfileText);
+        engineProfileButton = findViewById(R.id.engineProfileButton);
+        dnsUpstreamText = findViewById(R.id.dnsUpstreamText);
+        dnsUpstreamButton = findViewById(R.id.dnsUpstreamButton);
+        udpPolicyText = findViewById(R.id.udpPolicyText);
+        udpPolicyButton = findViewById(R.id.udpPolicyButton);
+        ipv6ModeText = findViewById(R.id.ipv6ModeText);
+        ipv6ModeButton = findViewById(R.id.ipv6ModeButton);
         autoConnectSwitch = findViewById(R.id.autoConnectSwitch);
         autoDnsSwitch = findViewById(R.id.autoDnsSwitch);
         autoDnsLabel = findViewById(R.id.autoDnsLabel);
@@ -342,6 +490,23 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
             saveSettings();
         });
 
+        unixSocketSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            unixSocketDataPath = isChecked;
+            appendLog("VPN data path: " + (isChecked ? "Unix socket" : "TCP loopback"));
+            saveSettings();
+        });
+
+        appRoutingButton.setOnClickListener(v -> showAppRoutingDialog());
+        logLevelButton.setOnClickListener(v -> showLogLevelDialog());
+        findViewById(R.id.dohBenchmarkButton).setOnClickListener(v -> runDohBenchmark(true));
+        findViewById(R.id.connectTimingButton).setOnClickListener(v -> showConnectTimingDialog());
+        updateAppRoutingText(AppRoutingPolicy.load(this));
+
+        engineProfileButton.setOnClickListener(v -> showEngineProfileDialog());
+        dnsUpstreamButton.setOnClickListener(v -> showDnsUpstreamDialog());
+        udpPolicyButton.setOnClickListener(v -> showUdpPolicyDialog());
+        ipv6ModeButton.setOnClickListener(v -> showIpv6ModeDialog());
+
         autoConnectSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
             autoConnect = isChecked;
             appendLog("Auto-connect " + (isChecked ? "enabled" : "disabled"));
@@ -440,13 +605,17 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
             String selectedProvider = dohProvider.getText().toString();
             boolean isCustom = selectedProvider.equals("Custom");
             transportAddrLayout.setVisibility(isCustom ? View.VISIBLE : View.GONE);
+        } else if (type.equalsIgnoreCase(TRANSPORT_AUTO)) {
+            transportAddrLayout.setVisibility(View.VISIBLE);
+            transportAddr.setText("(race UDP, DoH and DoT)");
+            transportAddr.setEnabled(false);
         } else {
             transportAddrLayout.setVisibility(View.VISIBLE);
         }
     }
 
     private void setupTransportDropdown() {
-        String[] types = {"DoH", "DoT", "UDP"};
+        String[] types = {"DoH", "DoT", "UDP", TRANSPORT_AUTO};
         ArrayAdapter<String> adapter = new ArrayAdapter<>(this,
                 R.layout.dropdown_item, types);
         transportType.setAdapter(adapter);
@@ -477,6 +646,11 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                     }
                     transportAddr.setEnabled(true);
                     appendLog("Transport: DoH (DNS over HTTPS)");
+                    // Go with the fastest provider on this network,
+                    // measuring them first if there are no recent results
+                    if (!isCustom && !selectFastestDohProvider("fastest on this network")) {
+                        runDohBenchmark(false);
+                    }
                     break;
                 case 1: // DoT
                     // Auto DNS only works with UDP - disable it when switching to DoT
@@ -505,6 +679,19 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                         appendLog("Transport: UDP (manual)");
                     }
                     break;
+                case 3: // Auto
+                    // The race picks resolvers itself
+                    if (useAutoDns) {
+                        useAutoDns = false;
+                        autoDnsSwitch.setChecked(false);
+                        updateAutoDnsLabel();
+                    }
+                    dohProviderLayout.setVisibility(View.GONE);
+                    transportAddrLayout.setVisibility(View.VISIBLE);
+                    transportAddr.setText("(race UDP, DoH and DoT)");
+                    transportAddr.setEnabled(false);
+                    appendLog("Transport: Auto (fastest of UDP, DoH and DoT)");
+                    break;
             }
             saveSettings();
         });
@@ -613,13 +800,26 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
 
         saveSettings();
         setInputsEnabled(false);
+        ConnectTimeline.begin();
 
         String type = transportType.getText().toString();
         String dom = getText(domain);
-        int numTunnels = 8;
-        try {
-            numTunnels = Integer.parseInt(getText(tunnels));
-        } catch (NumberFormatException ignored) {}
+        int numTunnels = tunnelCountSetting();
+        racedTransportType = null;
+        racedTransportAddr = null;
+
+        // Ask for VPN permission first, so the dialog is up while resolvers
+        // are being probed; the service starts once both are done
+        resolverReady = false;
+        vpnPermissionPending = false;
+        if (vpnMode) {
+            Intent vpnIntent = VpnService.prepare(this);
+            if (vpnIntent != null) {
+                appendLog("Requesting VPN permission...");
+                vpnPermissionPending = true;
+                vpnPermissionLauncher.launch(vpnIntent);
+            }
+        }
 
         // If using Auto DNS and UDP, test resolvers and select the best one
         if (useAutoDns && type.equalsIgnoreCase("UDP")) {
@@ -629,25 +829,54 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
             return;
         }
 
+        if (type.equalsIgnoreCase(TRANSPORT_AUTO)) {
+            raceTransportsAndConnect(dom);
+            return;
+        }
+
+        // A preset that failed the benchmark on this network won't do
+        // better now
+        if (type.equalsIgnoreCase("DoH") && !dohProvider.getText().toString().equals("Custom")
+                && dohBenchmark.unreachable(currentNetworkKey(), getText(transportAddr))) {
+            selectFastestDohProvider("selected provider is unreachable on this network");
+        }
+
         // Manual mode or non-UDP transport
         String addr = getText(transportAddr);
         appendLog("Connecting to " + dom);
         appendLog("Transport: " + type + " via " + addr);
-        appendLog("Tunnels: " + numTunnels);
+        appendLog("Tunnels: " + (numTunnels == TunnelTuner.AUTO ? "auto" : numTunnels));
 
         if (vpnMode) {
-            appendLog("Requesting VPN permission...");
+            resolverReady = true;
+            maybeStartVpnService();
+        } else {
+            appendLog("Starting SOCKS5 proxy mode...");
+            connectSocksProxy();
+        }
+    }
+
+    /**
+     * Start the VPN service once the resolver is chosen and VPN permission is
+     * granted, whichever of the two finishes last
+     */
+    private void maybeStartVpnService() {
+        if (!resolverReady) return;
+        if (!vpnPermissionPending) {
+            // Paths that skipped connect(), like a retry, haven't asked yet
             Intent vpnIntent = VpnService.prepare(this);
             if (vpnIntent != null) {
+                appendLog("Requesting VPN permission...");
+                vpnPermissionPending = true;
                 vpnPermissionLauncher.launch(vpnIntent);
-            } else {
-                appendLog("VPN permission already granted");
-                startVpnService();
             }
-        } else {
-            appendLog("Starting SOCKS5 proxy mode...");
-            connectSocksProxy();
         }
+        if (vpnPermissionPending) {
+            appendLog("Waiting for VPN permission...");
+            return;
+        }
+        resolverReady = false;
+        startVpnService();
     }
 
     private void testAndConnectWithBestResolver(String dom, int numTunnels) {
@@ -687,6 +916,7 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         statusCircle.setBackgroundResource(R.drawable.status_circle_connecting);
 
         appendLog("Testing " + totalResolvers + " resolvers with " + parallelThreads + " parallel threads");
+        ConnectTimeline.mark(ConnectTimeline.SEARCH_START);
 
         String[] resolverArray = resolvers.split("\n");
         dnsTestExecutor = Executors.newFixedThreadPool(parallelThreads);  // Track executor for cleanup
@@ -714,6 +944,15 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                 CountDownLatch testLatch = new CountDownLatch(1);
 
                 try {
+                    // Offline every probe would fail; wait for a network
+                    // instead of writing resolvers off
+                    NetworkMonitor monitor = networkMonitor;
+                    if (monitor != null && !monitor.isOnline()) {
+                        handler.post(() -> statusText.setText("Waiting for network..."));
+                        if (!monitor.awaitOnline(SEARCH_TIMEOUT_MS) || cancelSearch) return;
+                        if (foundResolver.get() != null) return;
+                    }
+
                     Mobile.findFirstWorkingResolver(
                         resolver.trim() + "\n",
                         dom,
@@ -739,6 +978,7 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                     testLatch.await(dnsTimeout + 1000, TimeUnit.MILLISECONDS);
 
                     if (result[0] != null && foundResolver.compareAndSet(null, result[0])) {
+                        ConnectTimeline.mark(ConnectTimeline.FIRST_SUCCESS);
                         // This thread found the first working resolver!
                         final String foundDns = result[0];
                         final long foundLatency = latency[0];
@@ -773,6 +1013,7 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                     isSearching = false;
 
                     if (cancelSearch) {
+                        ConnectTimeline.finish(MainActivity.this, false);
                         appendLog("DNS search cancelled by user");
                         connectButton.setText(R.string.connect);
                         statusText.setText(R.string.status_disconnected);
@@ -784,8 +1025,9 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                     }
 
                     if (workingResolver == null || workingResolver.isEmpty()) {
+                        ConnectTimeline.finish(MainActivity.this, false);
                         appendLog("ERROR: No working resolver found after " + (searchDuration / 1000) + " seconds");
-                        appendLog("Try switching to DoH or DoT transport");
+                        appendLog("Try the Auto transport to race DoH and DoT as well");
                         connectButton.setText(R.string.connect);
                         statusText.setText(R.string.status_disconnected);
                         statusText.setTextColor(getColor(R.color.disconnected));
@@ -794,6 +1036,8 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                         return;
                     }
 
+                    ConnectTimeline.mark(ConnectTimeline.WINNER_CHOSEN);
+
                     // Save successful DNS for future prioritization
                     currentConnectedDns = workingResolver;
                     dnsConfigManager.saveLastSuccessfulDns(workingResolver);
@@ -808,14 +1052,8 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                     appendLog("Connecting via " + workingResolver);
 
                     if (vpnMode) {
-                        appendLog("Requesting VPN permission...");
-                        Intent vpnIntent = VpnService.prepare(MainActivity.this);
-                        if (vpnIntent != null) {
-                            vpnPermissionLauncher.launch(vpnIntent);
-                        } else {
-                            appendLog("VPN permission already granted");
-                            startVpnService();
-                        }
+                        resolverReady = true;
+                        maybeStartVpnService();
                     } else {
                         appendLog("Starting SOCKS5 proxy mode...");
                         connectSocksProxy();
@@ -839,6 +1077,603 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         }, "ParallelDNSSearchThread").start();
     }
 
+    /**
+     * Transport type to connect with: the race winner in Auto mode,
+     * otherwise the one selected
+     */
+    private String selectedTransportType() {
+        if (racedTransportType != null) return racedTransportType;
+        return transportType.getText().toString().toLowerCase();
+    }
+
+    private String selectedTransportAddr() {
+        if (racedTransportAddr != null) return racedTransportAddr;
+        return getText(transportAddr);
+    }
+
+    /**
+     * Auto transport: race the top UDP resolvers of the selected list, the
+     * DoH presets and the DoT endpoints, and connect over whichever tunnel
+     * comes up first. The winner is remembered per network and tried on its
+     * own first next time.
+     */
+    private void raceTransportsAndConnect(String dom) {
+        if (isSearching) {
+            appendLog("Search already in progress");
+            return;
+        }
+
+        String pubkeyHex = getText(pubkey);
+        if (pubkeyHex.isEmpty()) {
+            appendLog("Error: Public key is required");
+            return;
+        }
+
+        NetworkMonitor monitor = networkMonitor;
+        String networkKey = monitor != null ? monitor.getCurrentKey() : null;
+        KnownResolvers.Resolver known = knownResolvers.get(networkKey);
+        String candidates = raceCandidates();
+
+        isSearching = true;
+        cancelSearch = false;
+        connectButton.setText("Cancel");
+        statusText.setText("Racing transports...");
+        statusText.setTextColor(getColor(R.color.connecting));
+        statusCircle.setBackgroundResource(R.drawable.status_circle_connecting);
+        ConnectTimeline.mark(ConnectTimeline.SEARCH_START);
+
+        ResolverCallback callback = new ResolverCallback() {
+            @Override
+            public void onProgress(long tested, long total, String current) {
+                handler.post(() -> {
+                    if (isSearching) statusText.setText("Racing: " + tested + "/" + total);
+                });
+            }
+
+            @Override
+            public void onResult(String res, boolean success, long latencyMs, String errorMsg) {
+                if (success) {
+                    ConnectTimeline.mark(ConnectTimeline.FIRST_SUCCESS);
+                    appendLog("Race: " + res + " up in " + latencyMs + " ms");
+                }
+            }
+        };
+
+        new Thread(() -> {
+            String winner = "";
+            if (known != null) {
+                appendLog("Trying " + known.transportType + " " + known.transportAddr
+                        + " first (won last time on this network)");
+                winner = Mobile.raceTransports(known.transportType + " " + known.transportAddr,
+                        dom, pubkeyHex, RACE_WINDOW_MS / 2, callback);
+            }
+            if (winner.isEmpty() && !cancelSearch) {
+                appendLog("Racing UDP, DoH and DoT: " + candidates.split("\n").length + " candidates");
+                winner = Mobile.raceTransports(candidates, dom, pubkeyHex, RACE_WINDOW_MS, callback);
+            }
+            final String result = winner;
+
+            handler.post(() -> {
+                isSearching = false;
+
+                if (cancelSearch) {
+                    ConnectTimeline.finish(MainActivity.this, false);
+                    appendLog("Transport race cancelled by user");
+                    connectButton.setText(R.string.connect);
+                    statusText.setText(R.string.status_disconnected);
+                    statusText.setTextColor(getColor(R.color.disconnected));
+                    statusCircle.setBackgroundResource(R.drawable.status_circle_disconnected);
+                    setInputsEnabled(true);
+                    cancelSearch = false;
+                    return;
+                }
+
+                if (result.isEmpty()) {
+                    ConnectTimeline.finish(MainActivity.this, false);
+                    appendLog("ERROR: No transport came up within " + (RACE_WINDOW_MS / 1000) + " seconds");
+                    connectButton.setText(R.string.connect);
+                    statusText.setText(R.string.status_disconnected);
+                    statusText.setTextColor(getColor(R.color.disconnected));
+                    statusCircle.setBackgroundResource(R.drawable.status_circle_disconnected);
+                    setInputsEnabled(true);
+                    return;
+                }
+
+                ConnectTimeline.mark(ConnectTimeline.WINNER_CHOSEN);
+                int sep = result.indexOf(' ');
+                racedTransportType = result.substring(0, sep);
+                racedTransportAddr = result.substring(sep + 1);
+                knownResolvers.put(networkKey, racedTransportType, racedTransportAddr);
+
+                appendLog("====================================");
+                appendLog("✓ USING " + racedTransportType.toUpperCase() + ": " + racedTransportAddr);
+                appendLog("====================================");
+                connectButton.setText(R.string.disconnect);
+
+                if (vpnMode) {
+                    resolverReady = true;
+                    maybeStartVpnService();
+                } else {
+                    appendLog("Starting SOCKS5 proxy mode...");
+                    connectSocksProxy();
+                }
+            });
+        }, "TransportRace").start();
+    }
+
+    private String currentNetworkKey() {
+        NetworkMonitor monitor = networkMonitor;
+        return monitor != null ? monitor.getCurrentKey() : null;
+    }
+
+    /**
+     * Switch to the DoH preset ranked fastest on this network by recent
+     * benchmark results
+     *
+     * @return false if there are no such results
+     */
+    private boolean selectFastestDohProvider(String reason) {
+        String url = dohBenchmark.fastest(currentNetworkKey());
+        if (url == null) return false;
+        for (String[] provider : DOH_PROVIDERS) {
+            if (provider[1].equals(url)) {
+                if (!url.equals(getText(transportAddr))) {
+                    dohProvider.setText(provider[0], false);
+                    transportAddr.setText(url);
+                    appendLog("DoH Provider: " + provider[0] + " (" + reason + ")");
+                    saveSettings();
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Measure every DoH preset through the tunnel server at once and switch
+     * to the fastest if DoH is selected and no connect is under way.
+     * Interactive runs also show the ranking.
+     */
+    private void runDohBenchmark(boolean interactive) {
+        if (benchmarking) {
+            if (interactive) {
+                Toast.makeText(this, "Benchmark already running", Toast.LENGTH_SHORT).show();
+            }
+            return;
+        }
+        if (!hasValidSettings()) {
+            if (interactive) {
+                appendLog("Error: Domain and public key are required to benchmark");
+            }
+            return;
+        }
+
+        List<String> urls = new ArrayList<>();
+        for (String[] provider : DOH_PROVIDERS) {
+            if (!provider[1].isEmpty()) urls.add(provider[1]);
+        }
+        String networkKey = currentNetworkKey();
+        String dom = getText(domain);
+        String key = getText(pubkey);
+        benchmarking = true;
+        appendLog("Benchmarking " + urls.size() + " DoH providers...");
+
+        new Thread(() -> {
+            List<DohBenchmark.Result> results = null;
+            try {
+                results = dohBenchmark.run(networkKey, dom, key, urls);
+            } catch (Exception e) {
+                appendLog("DoH benchmark failed: " + e.getMessage());
+            }
+            final List<DohBenchmark.Result> ranked = results;
+            handler.post(() -> {
+                benchmarking = false;
+                if (ranked == null) return;
+                // Inputs are disabled from the start of a connect
+                if (transportType.isEnabled() && transportType.getText().toString().equalsIgnoreCase("DoH")
+                        && !dohProvider.getText().toString().equals("Custom")) {
+                    selectFastestDohProvider("fastest in benchmark");
+                }
+                if (interactive && !isFinishing()) {
+                    showDohBenchmarkDialog(ranked);
+                }
+            });
+        }, "DohBenchmark").start();
+    }
+
+    private void showDohBenchmarkDialog(List<DohBenchmark.Result> results) {
+        StringBuilder sb = new StringBuilder();
+        int rank = 1;
+        for (DohBenchmark.Result r : results) {
+            String name = r.url;
+            for (String[] provider : DOH_PROVIDERS) {
+                if (provider[1].equals(r.url)) name = provider[0];
+            }
+            if (r.reachable()) {
+                sb.append(String.format("%2d. %-20s %5d ms  %s\n", rank++, name, r.handshakeMs,
+                        r.bytesPerSecond > 0 ? formatBytes(r.bytesPerSecond) + "/s" : "--"));
+            } else {
+                sb.append(String.format("    %-20s unreachable\n", name));
+            }
+        }
+        AlertDialog dialog = new MaterialAlertDialogBuilder(this, R.style.ThemeOverlay_App_MaterialAlertDialog)
+                .setTitle("DoH providers on this network")
+                .setMessage(sb.length() > 0 ? sb.toString().trim() : "No results")
+                .setPositiveButton("Close", null)
+                .show();
+        // Columns only line up in a fixed-width font
+        TextView text = dialog.findViewById(android.R.id.message);
+        if (text != null) {
+            text.setTypeface(Typeface.MONOSPACE);
+            text.setTextSize(12);
+        }
+    }
+
+    /**
+     * Candidates for the transport race, one "type address" line each
+     */
+    private String raceCandidates() {
+        StringBuilder sb = new StringBuilder();
+        int udp = 0;
+        for (String resolver : dnsConfigManager.getDnsServersForAutoSearchWithPriority(null).split("\n")) {
+            if (resolver.trim().isEmpty()) continue;
+            if (udp++ >= RACE_UDP_CANDIDATES) break;
+            sb.append("udp ").append(resolver.trim()).append('\n');
+        }
+        for (String[] provider : DOH_PROVIDERS) {
+            if (!provider[1].isEmpty()) sb.append("doh ").append(provider[1]).append('\n');
+        }
+        for (String endpoint : DOT_ENDPOINTS) {
+            sb.append("dot ").append(endpoint).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void updateAppRoutingText(AppRoutingPolicy policy) {
+        appRoutingText.setText("Apps: " + policy.describe());
+    }
+
+    /**
+     * Pick which apps go through the tunnel in VPN mode
+     */
+    private void showAppRoutingDialog() {
+        AppRoutingPolicy policy = AppRoutingPolicy.load(this);
+        String[] modes = {AppRoutingPolicy.MODE_ALL, AppRoutingPolicy.MODE_INCLUDE, AppRoutingPolicy.MODE_EXCLUDE};
+        String[] labels = {"All apps", "Only selected apps", "All apps except selected"};
+        int checked = 0;
+        for (int i = 0; i < modes.length; i++) {
+            if (modes[i].equals(policy.getMode())) checked = i;
+        }
+
+        new MaterialAlertDialogBuilder(this, R.style.ThemeOverlay_App_MaterialAlertDialog)
+                .setTitle("Apps Using the Tunnel")
+                .setSingleChoiceItems(labels, checked, (dialog, which) -> {
+                    dialog.dismiss();
+                    policy.setMode(modes[which]);
+                    if (AppRoutingPolicy.MODE_ALL.equals(modes[which])) {
+                        saveAppRoutingPolicy(policy);
+                    } else {
+                        showAppPickerDialog(policy);
+                    }
+                })
+                .setNeutralButton("App Traffic", (dialog, which) -> showAppTrafficDialog())
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void showAppPickerDialog(AppRoutingPolicy policy) {
+        new Thread(() -> {
+            PackageManager pm = getPackageManager();
+            Intent launcher = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER);
+            Map<String, String> apps = new HashMap<>();
+            for (ResolveInfo info : pm.queryIntentActivities(launcher, 0)) {
+                String pkg = info.activityInfo.packageName;
+                if (!pkg.equals(getPackageName())) {
+                    apps.put(pkg, info.loadLabel(pm).toString());
+                }
+            }
+            List<String> packages = new ArrayList<>(apps.keySet());
+            Collections.sort(packages, (a, b) -> apps.get(a).compareToIgnoreCase(apps.get(b)));
+
+            // Show the traffic each app sent through the last VPN session, if
+            // known, to help spot the ones saturating the tunnel
+            Map<String, Long> traffic = new HashMap<>();
+            for (AppTrafficMonitor.AppUsage usage : DnsttVpnService.getAppUsage()) {
+                traffic.put(usage.packageName, usage.totalBytes());
+            }
+
+            String[] labels = new String[packages.size()];
+            boolean[] checked = new boolean[packages.size()];
+            for (int i = 0; i < packages.size(); i++) {
+                String pkg = packages.get(i);
+                Long bytes = traffic.get(pkg);
+                labels[i] = apps.get(pkg) + (bytes != null ? " (" + formatBytes(bytes) + ")" : "");
+                checked[i] = policy.getPackages().contains(pkg);
+            }
+
+            handler.post(() -> {
+                if (isFinishing()) return;
+                String title = AppRoutingPolicy.MODE_INCLUDE.equals(policy.getMode())
+                        ? "Apps to Tunnel" : "Apps to Bypass";
+                new MaterialAlertDialogBuilder(this, R.style.ThemeOverlay_App_MaterialAlertDialog)
+                        .setTitle(title)
+                        .setMultiChoiceItems(labels, checked, (dialog, which, isChecked) -> checked[which] = isChecked)
+                        .setPositiveButton("Save", (dialog, which) -> {
+                            Set<String> selected = new HashSet<>();
+                            for (int i = 0; i < packages.size(); i++) {
+                                if (checked[i]) selected.add(packages.get(i));
+                            }
+                            policy.setPackages(selected);
+                            saveAppRoutingPolicy(policy);
+                        })
+                        .setNegativeButton("Cancel", null)
+                        .show();
+            });
+        }).start();
+    }
+
+    /**
+     * Choose the tun2socks engine profile, showing how each one has done in
+     * past sessions
+     */
+    private void showEngineProfileDialog() {
+        Tun2socksProfile[] profiles = Tun2socksProfile.all();
+        Tun2socksProfileStats stats = new Tun2socksProfileStats(this);
+        String[] labels = new String[profiles.length];
+        int checked = 0;
+        for (int i = 0; i < profiles.length; i++) {
+            labels[i] = profiles[i].label + "\n" + stats.describe(profiles[i].name);
+            if (profiles[i].name.equals(engineProfile)) checked = i;
+        }
+
+        new MaterialAlertDialogBuilder(this, R.style.ThemeOverlay_App_MaterialAlertDialog)
+                .setTitle("Engine Profile")
+                .setSingleChoiceItems(labels, checked, (dialog, which) -> {
+                    dialog.dismiss();
+                    engineProfile = profiles[which].name;
+                    engineProfileText.setText("Engine: " + profiles[which].label);
+                    appendLog("Engine profile: " + profiles[which].label);
+                    saveSettings();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    /**
+     * Choose the resolver the VPN's DNS stub forwards to through the tunnel,
+     * for servers whose network blocks or tampers with the default one
+     */
+    private void showDnsUpstreamDialog() {
+        String[][] presets = {
+            {"Cloudflare", "1.1.1.1:53"},
+            {"Google", "8.8.8.8:53"},
+            {"Quad9", "9.9.9.9:53"},
+        };
+        String[] labels = new String[presets.length + 1];
+        int checked = presets.length;
+        for (int i = 0; i < presets.length; i++) {
+            labels[i] = presets[i][0] + " (" + presets[i][1] + ")";
+            if (presets[i][1].equals(dnsUpstream)) checked = i;
+        }
+        labels[presets.length] = checked == presets.length ? "Custom (" + dnsUpstream + ")" : "Custom...";
+
+        new MaterialAlertDialogBuilder(this, R.style.ThemeOverlay_App_MaterialAlertDialog)
+                .setTitle("Tunnel DNS")
+                .setSingleChoiceItems(labels, checked, (dialog, which) -> {
+                    dialog.dismiss();
+                    if (which < presets.length) {
+                        setDnsUpstream(presets[which][1]);
+                    } else {
+                        showCustomDnsUpstreamDialog();
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void showCustomDnsUpstreamDialog() {
+        TextInputEditText input = new TextInputEditText(this);
+        input.setHint("IP address, optionally with :port");
+        input.setSingleLine(true);
+        input.setText(dnsUpstream);
+        new MaterialAlertDialogBuilder(this, R.style.ThemeOverlay_App_MaterialAlertDialog)
+                .setTitle("Tunnel DNS")
+                .setView(input)
+                .setPositiveButton("OK", (dialog, which) -> {
+                    String upstream = normalizeDnsUpstream(getText(input));
+                    if (upstream == null) {
+                        Toast.makeText(this, "Enter an IP address, e.g. 1.1.1.1 or 1.1.1.1:53",
+                                Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    setDnsUpstream(upstream);
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private static final String[] UDP_POLICIES = {
+        DnsttVpnService.UDP_POLICY_REJECT, DnsttVpnService.UDP_POLICY_DROP,
+    };
+    private static final String[] UDP_POLICY_LABELS = {"Reject QUIC", "Drop"};
+
+    private static String udpPolicyLabel(String policy) {
+        for (int i = 0; i < UDP_POLICIES.length; i++) {
+            if (UDP_POLICIES[i].equals(policy)) return UDP_POLICY_LABELS[i];
+        }
+        return policy;
+    }
+
+    /**
+     * Choose what the VPN does with UDP other than DNS, which the tunnel
+     * can't carry: answer QUIC handshakes so browsers fall back to TCP at
+     * once, or drop it silently
+     */
+    private void showUdpPolicyDialog() {
+        int checked = udpPolicy.equals(DnsttVpnService.UDP_POLICY_DROP) ? 1 : 0;
+        String[] labels = {
+            UDP_POLICY_LABELS[0] + "\nBrowsers switch to TCP immediately",
+            UDP_POLICY_LABELS[1] + "\nApps wait for their UDP to time out",
+        };
+
+        new MaterialAlertDialogBuilder(this, R.style.ThemeOverlay_App_MaterialAlertDialog)
+                .setTitle("Other UDP")
+                .setSingleChoiceItems(labels, checked, (dialog, which) -> {
+                    dialog.dismiss();
+                    udpPolicy = UDP_POLICIES[which];
+                    udpPolicyText.setText("Other UDP: " + UDP_POLICY_LABELS[which]);
+                    appendLog("Other UDP: " + UDP_POLICY_LABELS[which]
+                            + (isConnected ? " (applies on next connect)" : ""));
+                    saveSettings();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private static final String[] IPV6_MODES = {
+        DnsttVpnService.IPV6_MODE_REJECT, DnsttVpnService.IPV6_MODE_TUNNEL, DnsttVpnService.IPV6_MODE_OFF,
+    };
+    private static final String[] IPV6_MODE_LABELS = {"Reject", "Tunnel", "Bypass VPN"};
+
+    private static String ipv6ModeLabel(String mode) {
+        for (int i = 0; i < IPV6_MODES.length; i++) {
+            if (IPV6_MODES[i].equals(mode)) return IPV6_MODE_LABELS[i];
+        }
+        return mode;
+    }
+
+    /**
+     * Choose how the VPN handles IPv6: refuse it so apps use IPv4 without
+     * waiting, carry it through the tunnel, or leave it outside the VPN
+     */
+    private void showIpv6ModeDialog() {
+        int checked = 0;
+        for (int i = 0; i < IPV6_MODES.length; i++) {
+            if (IPV6_MODES[i].equals(ipv6Mode)) checked = i;
+        }
+        String[] labels = {
+            IPV6_MODE_LABELS[0] + "\nApps go straight to IPv4",
+            IPV6_MODE_LABELS[1] + "\nFor servers with IPv6 connectivity",
+            IPV6_MODE_LABELS[2] + "\nIPv6 traffic is not protected",
+        };
+
+        new MaterialAlertDialogBuilder(this, R.style.ThemeOverlay_App_MaterialAlertDialog)
+                .setTitle("IPv6")
+                .setSingleChoiceItems(labels, checked, (dialog, which) -> {
+                    dialog.dismiss();
+                    ipv6Mode = IPV6_MODES[which];
+                    ipv6ModeText.setText("IPv6: " + IPV6_MODE_LABELS[which]);
+                    appendLog("IPv6: " + IPV6_MODE_LABELS[which]
+                            + (isConnected ? " (applies on next connect)" : ""));
+                    saveSettings();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void setDnsUpstream(String upstream) {
+        dnsUpstream = upstream;
+        dnsUpstreamText.setText("Tunnel DNS: " + upstream);
+        appendLog("Tunnel DNS: " + upstream + (isConnected ? " (applies on next connect)" : ""));
+        saveSettings();
+    }
+
+    /**
+     * An IP address with an optional port as "addr:port" ("[addr]:port" for
+     * IPv6, port 53 if none was given), or null if s isn't one. Only
+     * literals: the stub reaches the resolver through the tunnel, with no
+     * DNS of its own to look a name up.
+     */
+    private static String normalizeDnsUpstream(String s) {
+        String host = s.trim();
+        String port = "53";
+        if (host.startsWith("[")) {
+            int end = host.indexOf(']');
+            if (end < 0) return null;
+            String rest = host.substring(end + 1);
+            host = host.substring(1, end);
+            if (!rest.isEmpty()) {
+                if (!rest.startsWith(":")) return null;
+                port = rest.substring(1);
+            }
+        } else if (host.indexOf(':') >= 0 && host.indexOf(':') == host.lastIndexOf(':')) {
+            port = host.substring(host.indexOf(':') + 1);
+            host = host.substring(0, host.indexOf(':'));
+        }
+        try {
+            int p = Integer.parseInt(port);
+            if (p < 1 || p > 65535) return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (host.matches("\\d{1,3}(\\.\\d{1,3}){3}")) {
+            for (String octet : host.split("\\.")) {
+                if (Integer.parseInt(octet) > 255) return null;
+            }
+            return host + ":" + port;
+        }
+        if (host.indexOf(':') >= 0 && host.matches("[0-9a-fA-F:.]+")) {
+            return "[" + host + "]:" + port;
+        }
+        return null;
+    }
+
+    private void saveAppRoutingPolicy(AppRoutingPolicy policy) {
+        policy.save(this);
+        updateAppRoutingText(policy);
+        appendLog("App routing: " + policy.describe() + (isConnected ? " (applies on next connect)" : ""));
+    }
+
+    private void showAppTrafficDialog() {
+        if (!AppTrafficMonitor.hasUsageAccess(this)) {
+            new MaterialAlertDialogBuilder(this, R.style.ThemeOverlay_App_MaterialAlertDialog)
+                    .setTitle("Usage Access Needed")
+                    .setMessage("Per-app traffic counters read Android's network usage stats. "
+                            + "Allow usage access for DNSTT Client to see them.")
+                    .setPositiveButton("Open Settings", (dialog, which) ->
+                            startActivity(new Intent(Settings.ACTION_USAGE_ACCESS_SETTINGS)))
+                    .setNegativeButton("Cancel", null)
+                    .show();
+            return;
+        }
+
+        AlertDialog dialog = new MaterialAlertDialogBuilder(this, R.style.ThemeOverlay_App_MaterialAlertDialog)
+                .setTitle("Tunnel Traffic by App")
+                .setMessage(describeAppUsage())
+                .setPositiveButton("OK", null)
+                .show();
+
+        // The service only refreshes the counters while they are watched
+        DnsttVpnService.setAppUsageWatched(true);
+        Runnable refresh = new Runnable() {
+            @Override
+            public void run() {
+                dialog.setMessage(describeAppUsage());
+                handler.postDelayed(this, 1000);
+            }
+        };
+        handler.postDelayed(refresh, 1000);
+        dialog.setOnDismissListener(d -> {
+            handler.removeCallbacks(refresh);
+            DnsttVpnService.setAppUsageWatched(false);
+        });
+    }
+
+    private String describeAppUsage() {
+        List<AppTrafficMonitor.AppUsage> usage = DnsttVpnService.getAppUsage();
+        StringBuilder sb = new StringBuilder();
+        for (AppTrafficMonitor.AppUsage app : usage) {
+            sb.append(app.label)
+                    .append("\n  ↓ ").append(formatBytes(app.rxBytes))
+                    .append("  ↑ ").append(formatBytes(app.txBytes))
+                    .append("\n");
+        }
+        if (usage.isEmpty()) {
+            sb.append("No tunnel traffic recorded yet. Counters update while this is open and the VPN is connected.");
+        }
+        return sb.toString().trim();
+    }
+
     private void retryWithDifferentDns() {
         if (!isConnected || currentConnectedDns == null) {
             return;
@@ -857,10 +1692,7 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         // Wait for disconnect to complete, then search for new DNS
         handler.postDelayed(() -> {
             String dom = getText(domain);
-            int numTunnels = 8;
-            try {
-                numTunnels = Integer.parseInt(getText(tunnels));
-            } catch (NumberFormatException ignored) {}
+            int numTunnels = tunnelCountSetting();
 
             // Get resolvers with new order (failed DNS now at the end)
             String resolvers = dnsConfigManager.getDnsServersForAutoSearchWithPriority(null);
@@ -872,6 +1704,7 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
             }
 
             appendLog("Searching from top of reordered list...");
+            ConnectTimeline.begin();
             testAndConnectWithBestResolver(dom, numTunnels);
         }, 1500);
     }
@@ -913,16 +1746,18 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         appendLog("Starting VPN service...");
         Intent intent = new Intent(this, DnsttVpnService.class);
         intent.setAction(DnsttVpnService.ACTION_START);
-        intent.putExtra(DnsttVpnService.EXTRA_TRANSPORT_TYPE, transportType.getText().toString().toLowerCase());
-        intent.putExtra(DnsttVpnService.EXTRA_TRANSPORT_ADDR, getText(transportAddr));
+        intent.putExtra(DnsttVpnService.EXTRA_TRANSPORT_TYPE, selectedTransportType());
+        intent.putExtra(DnsttVpnService.EXTRA_TRANSPORT_ADDR, selectedTransportAddr());
         intent.putExtra(DnsttVpnService.EXTRA_DOMAIN, getText(domain));
         intent.putExtra(DnsttVpnService.EXTRA_PUBKEY, getText(pubkey));
+        intent.putExtra(DnsttVpnService.EXTRA_DATA_PATH,
+                unixSocketDataPath ? DnsttVpnService.DATA_PATH_UNIX : DnsttVpnService.DATA_PATH_TCP);
+        intent.putExtra(DnsttVpnService.EXTRA_ENGINE_PROFILE, engineProfile);
+        intent.putExtra(DnsttVpnService.EXTRA_DNS_UPSTREAM, dnsUpstream);
+        intent.putExtra(DnsttVpnService.EXTRA_UDP_POLICY, udpPolicy);
+        intent.putExtra(DnsttVpnService.EXTRA_IPV6_MODE, ipv6Mode);
 
-        try {
-            intent.putExtra(DnsttVpnService.EXTRA_TUNNELS, Integer.parseInt(getText(tunnels)));
-        } catch (NumberFormatException e) {
-            intent.putExtra(DnsttVpnService.EXTRA_TUNNELS, 8);
-        }
+        intent.putExtra(DnsttVpnService.EXTRA_TUNNELS, tunnelCountSetting());
 
         startForegroundService(intent);
     }
@@ -930,28 +1765,44 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
     private void connectSocksProxy() {
         Config config = mobile.Mobile.newConfig();
 
-        String type = transportType.getText().toString().toLowerCase();
+        String type = selectedTransportType();
         config.setTransportType(type);
-        config.setTransportAddr(getText(transportAddr));
+        config.setTransportAddr(selectedTransportAddr());
+        proxyTransportType = type;
+        proxyTransportAddr = selectedTransportAddr();
         config.setDomain(getText(domain));
         config.setPubkeyHex(getText(pubkey));
         config.setListenAddr("127.0.0.1:1080");
 
-        try {
-            config.setTunnels(Integer.parseInt(getText(tunnels)));
-        } catch (NumberFormatException e) {
-            config.setTunnels(8);
+        int numTunnels = tunnelCountSetting();
+        boolean autoTunnels = numTunnels == TunnelTuner.AUTO;
+        NetworkMonitor monitor = networkMonitor;
+        String networkKey = monitor != null ? monitor.getCurrentKey() : null;
+        if (autoTunnels) {
+            numTunnels = tunnelTuner.initialCount(networkKey, proxyTransportType, proxyTransportAddr);
+            appendLog("Tunnels: auto, starting with " + numTunnels);
         }
+        config.setTunnels(numTunnels);
+        int startTunnels = numTunnels;
 
-        config.setMTU(1232);
         config.setUTLSFingerprint("none"); // Use standard TLS - uTLS causes errors on Android
         config.setUseZstd(true); // Enable zstd compression (server has it on by default)
-        appendLog("Zstd compression: enabled");
+        config.setCompressionMode(mobile.Mobile.CompressionAuto); // Skip it for traffic that doesn't compress
+        appendLog("Zstd compression: auto");
+        String tunnelDomain = getText(domain);
 
         new Thread(() -> {
             try {
+                long responseSize = responseSizes.sizeFor(networkKey, type, proxyTransportAddr, tunnelDomain);
+                config.setResponseSize(responseSize);
+                appendLog(responseSize > 0
+                        ? "Response size: " + responseSize + " bytes"
+                        : "Response size: server default");
                 appendLog("Establishing tunnels...");
                 client.start(config);
+                if (autoTunnels) {
+                    tunnelTuner.start(client, networkKey, type, proxyTransportAddr, startTunnels);
+                }
             } catch (Exception e) {
                 handler.post(() -> {
                     appendLog("Connection error: " + e.getMessage());
@@ -996,12 +1847,14 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
             startForegroundService(intent);
         } else {
             appendLog("Stopping SOCKS proxy and all tunnels...");
+            tunnelTuner.stop();
             new Thread(() -> {
                 try {
                     if (client != null) {
                         appendLog("Stopping DNSTT client...");
                         client.stop();
                         appendLog("DNSTT client stopped");
+                        bootstrapAddrs.save();
                         client = null;
                     }
                 } catch (Exception e) {
@@ -1016,6 +1869,22 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         }
     }
 
+    /**
+     * Tunnel count from the Tunnels field: a number, or TunnelTuner.AUTO for
+     * "auto"
+     */
+    private int tunnelCountSetting() {
+        String value = getText(tunnels);
+        if (value.equalsIgnoreCase("auto")) {
+            return TunnelTuner.AUTO;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return 8;
+        }
+    }
+
     private String getText(TextInputEditText editText) {
         if (editText == null) {
             return "";
@@ -1027,7 +1896,8 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
     private void setInputsEnabled(boolean enabled) {
         transportType.setEnabled(enabled);
         // Only enable transport address if not in Auto DNS + UDP mode
-        if (enabled && useAutoDns && transportType.getText().toString().equalsIgnoreCase("UDP")) {
+        String type = transportType.getText().toString();
+        if (enabled && ((useAutoDns && type.equalsIgnoreCase("UDP")) || type.equalsIgnoreCase(TRANSPORT_AUTO))) {
             transportAddr.setEnabled(false);
         } else {
             transportAddr.setEnabled(enabled);
@@ -1036,37 +1906,66 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         pubkey.setEnabled(enabled);
         tunnels.setEnabled(enabled);
         vpnModeSwitch.setEnabled(enabled);
+        unixSocketSwitch.setEnabled(enabled);
+        appRoutingButton.setEnabled(enabled);
+        engineProfileButton.setEnabled(enabled);
+        dnsUpstreamButton.setEnabled(enabled);
+        udpPolicyButton.setEnabled(enabled);
+        ipv6ModeButton.setEnabled(enabled);
         autoConnectSwitch.setEnabled(enabled);
         autoDnsSwitch.setEnabled(enabled);
     }
 
     private void appendLog(String message) {
-        if (handler == null || logText == null) {
-            return;
-        }
+        AppLog.i(TAG, message);
+    }
 
+    /**
+     * Adds log batches to the log list. Batches arrive on the logger's
+     * thread; each one costs a single post to the main thread.
+     */
+    private final AppLog.Listener logListener = batch -> {
+        if (handler == null) return;
         handler.post(() -> {
-            try {
-                String timestamp = new java.text.SimpleDateFormat("HH:mm:ss", java.util.Locale.getDefault())
-                        .format(new java.util.Date());
-                String logLine = "[" + timestamp + "] " + message;
-
-                String current = logText.getText() != null ? logText.getText().toString() : "";
-                String newText = logLine + "\n" + current;
-                // Keep last 50 lines for more history
-                String[] lines = newText.split("\n");
-                if (lines.length > 50) {
-                    StringBuilder sb = new StringBuilder();
-                    for (int i = 0; i < 50; i++) {
-                        sb.append(lines[i]).append("\n");
-                    }
-                    newText = sb.toString();
-                }
-                logText.setText(newText);
-            } catch (Exception e) {
-                // Ignore errors in logging
-            }
+            // Follow new lines only if the user hasn't scrolled back
+            boolean atTop = logLayout == null || logLayout.findFirstVisibleItemPosition() <= 0;
+            logAdapter.add(batch);
+            if (atTop && logList != null) logList.scrollToPosition(0);
         });
+    };
+
+    private void showLogLevelDialog() {
+        new MaterialAlertDialogBuilder(this, R.style.ThemeOverlay_App_MaterialAlertDialog)
+                .setTitle("Show log level")
+                .setSingleChoiceItems(LOG_LEVEL_NAMES, logAdapter.getMinLevel(), (dialog, which) -> {
+                    logAdapter.setMinLevel(which);
+                    logLevelButton.setText(LOG_LEVEL_NAMES[which]);
+                    logList.scrollToPosition(0);
+                    dialog.dismiss();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void showConnectTimingDialog() {
+        AlertDialog dialog = new MaterialAlertDialogBuilder(this, R.style.ThemeOverlay_App_MaterialAlertDialog)
+                .setTitle("Connect timing")
+                .setMessage(ConnectTimeline.describe(this))
+                .setPositiveButton("Close", null)
+                .setNeutralButton("Export", (d, which) -> {
+                    Intent share = new Intent(Intent.ACTION_SEND);
+                    share.setType("text/plain");
+                    share.putExtra(Intent.EXTRA_SUBJECT, "DNSTT connect timing");
+                    share.putExtra(Intent.EXTRA_TEXT, ConnectTimeline.export(this));
+                    startActivity(Intent.createChooser(share, "Export connect timing"));
+                })
+                .show();
+        // Columns only line up in a fixed-width font
+        TextView text = dialog.findViewById(android.R.id.message);
+        if (text != null) {
+            text.setTypeface(Typeface.MONOSPACE);
+            text.setTextSize(12);
+        }
     }
 
     @Override
@@ -1105,6 +2004,9 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                         if (statsCard != null) statsCard.setVisibility(View.GONE);
                         if (qualityText != null) qualityText.setText("--");
                         if (latencyText != null) latencyText.setText("-- ms");
+                        if (compressionText != null) compressionText.setText("--");
+                        if (filteredText != null) filteredText.setText("--");
+                        if (filteredLayout != null) filteredLayout.setVisibility(View.GONE);
                         if (speedText != null) speedText.setText("-- KB/s");
                         // Hide retry button when disconnected
                         if (retryButton != null) retryButton.setVisibility(View.GONE);
@@ -1112,6 +2014,10 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                         lastBytesIn = 0;
                         lastBytesOut = 0;
                         lastUpdateTime = 0;
+                        rttAvgMs = -1;
+                        rttP95Ms = -1;
+                        rttLossPercent = 0;
+                        tunnelHealth.reset();
                         break;
                     case 1: // Connecting
                         if (statusText != null) statusText.setText(R.string.status_connecting);
@@ -1184,24 +2090,16 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                         long bytesOutDelta = bytesOut - lastBytesOut;
                         long totalBytesDelta = bytesInDelta + bytesOutDelta;
 
-                        // Calculate speed in KB/s
+                        // Calculate speed in KB/s. In VPN mode the service keeps a
+                        // per-second history, so average over a few seconds
+                        // instead of trusting a single delta.
                         double speedKBps = (totalBytesDelta / 1024.0) / (timeDelta / 1000.0);
-                        if (speedText != null) speedText.setText(String.format("%.1f KB/s", speedKBps));
-
-                        // Estimate latency from response time (rough approximation)
-                        // If we have data transfer, estimate latency based on throughput
-                        if (totalBytesDelta > 0 && currentLatencyMs == 0) {
-                            // Rough estimate: latency = timeDelta / number of round trips
-                            // Assume ~1KB per DNS query/response
-                            long estimatedRoundTrips = Math.max(1, totalBytesDelta / 1024);
-                            currentLatencyMs = timeDelta / estimatedRoundTrips;
-                            if (currentLatencyMs > 0 && currentLatencyMs < 5000 && latencyText != null) {
-                                latencyText.setText(currentLatencyMs + " ms");
-                            }
+                        ThroughputHistory history = DnsttVpnService.getThroughputHistory();
+                        if (vpnMode && history.secondCount() > 0) {
+                            speedKBps = history.averageBytesPerSecond(3) / 1024.0;
+                            if (throughputGraph != null) throughputGraph.invalidate();
                         }
-
-                        // Update quality indicator based on speed
-                        updateConnectionQuality(speedKBps);
+                        if (speedText != null) speedText.setText(String.format("%.1f KB/s", speedKBps));
                     }
 
                     // Show quality bar when connected
@@ -1210,6 +2108,10 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                     }
                 }
 
+                if (isConnected && vpnMode) {
+                    updateFilteredText();
+                }
+
                 lastBytesIn = bytesIn;
                 lastBytesOut = bytesOut;
                 lastUpdateTime = currentTime;
@@ -1219,36 +2121,134 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         });
     }
 
-    private void updateConnectionQuality(double speedKBps) {
-        // Quality score based on speed (0-100)
+    @Override
+    public void onListenerReady(String addr) {
+        appendLog("SOCKS5 listener ready on " + addr);
+    }
+
+    @Override
+    public void onListenerClosed() {
+        appendLog("SOCKS5 listener closed");
+    }
+
+    @Override
+    public void onFirstByte(long ms) {
+        // Only VPN connects are timed, and the service finishes those
+    }
+
+    @Override
+    public void onLatencyUpdate(long lastMs, long minMs, long avgMs, long p95Ms, long lossPercent) {
+        Client c = client;
+        if (!vpnMode && c != null) {
+            tunnelTuner.onLatency(lossPercent);
+            tunnelTuner.onBytes(c.getBytesIn() + c.getBytesOut());
+        }
+
+        // In VPN mode the service fails over itself; in SOCKS proxy mode the
+        // client is ours, so rebuild its tunnels when they stop answering
+        NetworkMonitor monitor = networkMonitor;
+        if (!vpnMode && c != null && tunnelHealth.onProbe(lastMs, c.getBytesIn()) && isConnected && proxyTransportType != null
+                && (monitor == null || monitor.isOnline())) {
+            appendLog("Tunnel stopped answering (" + lossPercent + "% probe loss), reconnecting");
+            String type = proxyTransportType;
+            String addr = proxyTransportAddr;
+            new Thread(() -> {
+                try {
+                    c.reconnect(type, addr);
+                } catch (Exception e) {
+                    appendLog("Reconnect failed: " + e.getMessage());
+                }
+            }, "DnsttFailover").start();
+        }
+
+        if (handler == null) {
+            return;
+        }
+        handler.post(() -> {
+            rttAvgMs = avgMs;
+            rttP95Ms = p95Ms;
+            rttLossPercent = lossPercent;
+            if (isConnected && qualityText != null) {
+                updateConnectionQuality();
+            }
+        });
+    }
+
+    @Override
+    public void onCompressionStats(long rawOut, long wireOut, long rawIn, long wireIn, long cpuMs, String mode) {
+        if (handler == null) {
+            return;
+        }
+        // Ratios are raw bytes per byte on the wire, per direction
+        String text = String.format("↓ %s  ↑ %s  %s, %d ms CPU",
+                compressionRatio(rawIn, wireIn), compressionRatio(rawOut, wireOut), mode, cpuMs);
+        handler.post(() -> {
+            if (isConnected && compressionText != null) {
+                compressionText.setText(text);
+            }
+        });
+    }
+
+    /**
+     * Show what the VPN refused locally this session, which the tunnel
+     * couldn't have carried anyway
+     */
+    private void updateFilteredText() {
+        if (filteredText == null || filteredLayout == null) return;
+        long udpBlocked = DnsttVpnService.getUdpBlocked();
+        long udpRejected = DnsttVpnService.getUdpRejected();
+        String text = "UDP " + udpBlocked;
+        if (udpRejected > 0) {
+            text += " (" + udpRejected + " QUIC rejected)";
+        }
+        if (DnsttVpnService.IPV6_MODE_REJECT.equals(ipv6Mode)) {
+            text += "  IPv6 " + DnsttVpnService.getIpv6Rejected();
+        }
+        filteredText.setText(text);
+        filteredLayout.setVisibility(View.VISIBLE);
+    }
+
+    private static String compressionRatio(long raw, long wire) {
+        if (wire <= 0) return "--";
+        return String.format("%.1f×", (double) raw / wire);
+    }
+
+    private void updateConnectionQuality() {
+        // Quality score (0-100) from the round-trip probes through the
+        // tunnel: p95 RTT, since stalls hurt more than the average suggests,
+        // and loss
         int qualityScore;
         String qualityLabel;
         int qualityColor;
 
-        if (speedKBps >= 100) {
+        if (rttLossPercent >= 50 || (rttAvgMs < 0 && rttLossPercent > 0)) {
+            qualityScore = 10;
+            qualityLabel = "Very Poor";
+            qualityColor = Color.parseColor("#F44336"); // Red
+        } else if (rttAvgMs < 0) {
+            qualityScore = 0;
+            qualityLabel = "Measuring";
+            qualityColor = Color.parseColor("#9E9E9E"); // Gray
+        } else if (rttP95Ms <= 400 && rttLossPercent == 0) {
             qualityScore = 100;
             qualityLabel = "Excellent";
             qualityColor = Color.parseColor("#4CAF50"); // Green
-        } else if (speedKBps >= 50) {
+        } else if (rttP95Ms <= 800 && rttLossPercent <= 10) {
             qualityScore = 80;
             qualityLabel = "Good";
             qualityColor = Color.parseColor("#8BC34A"); // Light green
-        } else if (speedKBps >= 20) {
+        } else if (rttP95Ms <= 1500 && rttLossPercent <= 20) {
             qualityScore = 60;
             qualityLabel = "Fair";
             qualityColor = Color.parseColor("#FFEB3B"); // Yellow
-        } else if (speedKBps >= 5) {
+        } else if (rttP95Ms <= 3000) {
             qualityScore = 40;
             qualityLabel = "Poor";
             qualityColor = Color.parseColor("#FF9800"); // Orange
-        } else if (speedKBps > 0) {
+        } else {
             qualityScore = 20;
             qualityLabel = "Very Poor";
             qualityColor = Color.parseColor("#F44336"); // Red
-        } else {
-            qualityScore = 0;
-            qualityLabel = "No Data";
-            qualityColor = Color.parseColor("#9E9E9E"); // Gray
         }
 
         qualityText.setText(qualityLabel);
@@ -1256,9 +2256,10 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         qualityBar.setProgress(qualityScore);
         qualityBar.getProgressDrawable().setColorFilter(qualityColor, android.graphics.PorterDuff.Mode.SRC_IN);
 
-        // Update latency display (if we have latency data)
-        if (currentLatencyMs > 0) {
-            latencyText.setText(currentLatencyMs + " ms");
+        if (rttAvgMs >= 0) {
+            latencyText.setText(rttLossPercent > 0
+                    ? rttAvgMs + " ms, " + rttLossPercent + "% loss"
+                    : rttAvgMs + " ms");
         }
     }
 
@@ -1279,6 +2280,11 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                 .putString("pubkey", getText(pubkey))
                 .putString("tunnels", getText(tunnels))
                 .putBoolean("vpnMode", vpnMode)
+                .putBoolean("unixSocketDataPath", unixSocketDataPath)
+                .putString("engineProfile", engineProfile)
+                .putString("dnsUpstream", dnsUpstream)
+                .putString("udpPolicy", udpPolicy)
+                .putString("ipv6Mode", ipv6Mode)
                 .putBoolean("autoConnect", autoConnect)
                 .putBoolean("useAutoDns", useAutoDns)
                 .putInt("parallelThreads", parallelThreads)
@@ -1304,6 +2310,21 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         vpnMode = prefs.getBoolean("vpnMode", true);
         vpnModeSwitch.setChecked(vpnMode);
 
+        unixSocketDataPath = prefs.getBoolean("unixSocketDataPath", false);
+        unixSocketSwitch.setChecked(unixSocketDataPath);
+
+        engineProfile = prefs.getString("engineProfile", Tun2socksProfile.THROUGHPUT);
+        engineProfileText.setText("Engine: " + Tun2socksProfile.forName(engineProfile).label);
+
+        dnsUpstream = prefs.getString("dnsUpstream", DnsttVpnService.DEFAULT_DNS_UPSTREAM);
+        dnsUpstreamText.setText("Tunnel DNS: " + dnsUpstream);
+
+        udpPolicy = prefs.getString("udpPolicy", DnsttVpnService.UDP_POLICY_REJECT);
+        udpPolicyText.setText("Other UDP: " + udpPolicyLabel(udpPolicy));
+
+        ipv6Mode = prefs.getString("ipv6Mode", DnsttVpnService.IPV6_MODE_REJECT);
+        ipv6ModeText.setText("IPv6: " + ipv6ModeLabel(ipv6Mode));
+
         autoConnect = prefs.getBoolean("autoConnect", false);
         autoConnectSwitch.setChecked(autoConnect);
 
@@ -1333,6 +2354,23 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
         }
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Let the VPN service sample stats quickly while we're on screen
+        DnsttVpnService.setUiVisible(true);
+        // The listener replays what is still buffered, so start from empty
+        logAdapter.clear();
+        AppLog.addListener(logListener);
+    }
+
+    @Override
+    protected void onStop() {
+        DnsttVpnService.setUiVisible(false);
+        AppLog.removeListener(logListener);
+        super.onStop();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
@@ -1361,6 +2399,7 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
                 appendLog("Stopping SOCKS client on app close...");
                 client.stop();
                 appendLog("SOCKS client stopped");
+                bootstrapAddrs.save();
             } catch (Exception e) {
                 appendLog("Error stopping client on destroy: " + e.getMessage());
             }
@@ -1378,6 +2417,11 @@ public class MainActivity extends AppCompatActivity implements StatusCallback {
             }
         }
 
+        if (networkMonitor != null) {
+            networkMonitor.stop();
+            networkMonitor = null;
+        }
+
         // Remove UI callback to prevent memory leak
         DnsttVpnService.setUiCallback(null);
 
@@ -0,0 +1,201 @@
+package com.dnstt.client;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.net.InetAddress;
+
+/**
+ * Follows the device's default network through ConnectivityManager callbacks
+ * and reports when it is lost and when a network is usable again.
+ *
+ * Losses are reported right away so callers can stop probing at once.
+ * Availability is reported after the network has settled for a moment,
+ * since a switch from Wi-Fi to mobile data fires a burst of callbacks.
+ * Listener methods run on the monitor's own thread and may block.
+ */
+public class NetworkMonitor {
+    private static final long SETTLE_MS = 1500;
+
+    public interface Listener {
+        /**
+         * A default network is usable.
+         *
+         * @param network the network, for binding sockets to it
+         * @param key     identifies the network, see {@link #networkKey}
+         * @param changed true if this is a different network from the one
+         *                last reported, so existing sockets are likely dead;
+         *                false for the first report after start()
+         */
+        void onNetworkAvailable(Network network, String key, boolean changed);
+
+        void onNetworkLost();
+    }
+
+    private final ConnectivityManager cm;
+    private final Listener listener;
+    private final Object lock = new Object();
+    private HandlerThread thread;
+    private Handler handler;
+    private ConnectivityManager.NetworkCallback callback;
+
+    // Monitor thread only
+    private Network network;
+    private Network reportedNetwork;
+
+    private volatile boolean online = true;
+    private volatile String currentKey;
+
+    public NetworkMonitor(Context context, Listener listener) {
+        this.cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.listener = listener;
+    }
+
+    public void start() {
+        if (cm == null || callback != null) return;
+        thread = new HandlerThread("NetworkMonitor");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        callback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network n) {
+                handler.post(() -> {
+                    network = n;
+                    scheduleSettle();
+                });
+            }
+
+            @Override
+            public void onLinkPropertiesChanged(Network n, LinkProperties lp) {
+                handler.post(() -> {
+                    if (n.equals(network)) scheduleSettle();
+                });
+            }
+
+            @Override
+            public void onLost(Network n) {
+                handler.post(() -> {
+                    if (!n.equals(network)) return;
+                    network = null;
+                    handler.removeCallbacks(settle);
+                    setOnline(false);
+                    listener.onNetworkLost();
+                });
+            }
+        };
+        try {
+            cm.registerDefaultNetworkCallback(callback);
+        } catch (RuntimeException e) {
+            // Too many callbacks registered by this app, or no permission
+            AppLog.w("NetworkMonitor", "Cannot watch network changes: " + e.getMessage());
+            callback = null;
+            stopThread();
+        }
+    }
+
+    public void stop() {
+        if (callback == null) return;
+        try {
+            cm.unregisterNetworkCallback(callback);
+        } catch (RuntimeException e) {
+            // Already unregistered
+        }
+        callback = null;
+        stopThread();
+        setOnline(true);
+    }
+
+    private void stopThread() {
+        if (thread != null) {
+            // Keep handler: callbacks already in flight may still post to it,
+            // which is harmless once its looper has quit
+            thread.quitSafely();
+            thread = null;
+        }
+    }
+
+    public boolean isOnline() {
+        return online;
+    }
+
+    /**
+     * Key of the current default network, or null before one was reported
+     */
+    public String getCurrentKey() {
+        return currentKey;
+    }
+
+    /**
+     * Block until a network is available, or the timeout passes.
+     *
+     * @return true if online
+     */
+    public boolean awaitOnline(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (lock) {
+            while (!online) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                lock.wait(left);
+            }
+        }
+        return true;
+    }
+
+    private void setOnline(boolean value) {
+        synchronized (lock) {
+            online = value;
+            lock.notifyAll();
+        }
+    }
+
+    private void scheduleSettle() {
+        handler.removeCallbacks(settle);
+        handler.postDelayed(settle, SETTLE_MS);
+    }
+
+    private final Runnable settle = () -> {
+        Network n = network;
+        if (n == null) return;
+        String key = networkKey(cm.getNetworkCapabilities(n), cm.getLinkProperties(n));
+        if (key == null) return;  // Link properties not known yet; they'll trigger another settle
+        boolean changed = reportedNetwork != null && !n.equals(reportedNetwork);
+        if (n.equals(reportedNetwork) && key.equals(currentKey) && online) return;
+        reportedNetwork = n;
+        currentKey = key;
+        setOnline(true);
+        listener.onNetworkAvailable(n, key, changed);
+    };
+
+    /**
+     * Identifies a network by its transport and DNS servers, e.g.
+     * "wifi|192.168.1.1". Two Wi-Fi networks rarely hand out the same DNS
+     * servers, and this needs no location permission, unlike the SSID.
+     */
+    static String networkKey(NetworkCapabilities caps, LinkProperties lp) {
+        if (caps == null || lp == null) return null;
+        StringBuilder sb = new StringBuilder();
+        if (caps.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+            sb.append("wifi");
+        } else if (caps.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            sb.append("cellular");
+        } else if (caps.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+            sb.append("ethernet");
+        } else {
+            sb.append("other");
+        }
+        sb.append('|');
+        boolean first = true;
+        for (InetAddress dns : lp.getDnsServers()) {
+            if (!first) sb.append(',');
+            sb.append(dns.getHostAddress());
+            first = false;
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package com.dnstt.client;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import mobile.Mobile;
+
+/**
+ * The largest DNS response each resolver passes back whole, as found by
+ * {@link Mobile#probeResponseSize}, so tunnels ask the server for responses
+ * that fit instead of a fixed size. Some resolvers truncate above about 900
+ * bytes while others pass 4096, and middleboxes on the way can cut it further.
+ *
+ * Results are kept for a week per network and resolver. A probe takes at
+ * most {@link #PROBE_TIMEOUT_MS} and is only made when there is no fresh
+ * result, so it blocks: call off the main thread.
+ */
+public class ResponseSizes {
+    private static final String TAG = "ResponseSizes";
+    private static final String PREFS_NAME = "response_sizes";
+    private static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final long PROBE_TIMEOUT_MS = 2000;
+
+    private final SharedPreferences prefs;
+
+    public ResponseSizes(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * The response size to configure for this resolver, probing it if there
+     * is no recent result. 0 means the server's default: the server predates
+     * size probes, or the probe failed.
+     */
+    public long sizeFor(String networkKey, String transportType, String transportAddr, String domain) {
+        String key = key(networkKey, transportType, transportAddr);
+        long cached = get(key);
+        if (cached >= 0) return cached;
+        try {
+            long size = Mobile.probeResponseSize(transportType, transportAddr, domain, PROBE_TIMEOUT_MS);
+            prefs.edit().putString(key, size + "," + System.currentTimeMillis()).apply();
+            AppLog.i(TAG, transportAddr + ": " + (size > 0
+                    ? "responses up to " + size + " bytes"
+                    : "server does not support size probes"));
+            return size;
+        } catch (Exception e) {
+            // Not cached: the resolver may just be down right now
+            AppLog.w(TAG, transportAddr + ": size probe failed: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * The cached size, or -1 if there is none or it is too old
+     */
+    private long get(String key) {
+        String value = prefs.getString(key, null);
+        if (value == null) return -1;
+        int sep = value.indexOf(',');
+        if (sep <= 0) return -1;
+        try {
+            long size = Long.parseLong(value.substring(0, sep));
+            long time = Long.parseLong(value.substring(sep + 1));
+            if (System.currentTimeMillis() - time > MAX_AGE_MS) return -1;
+            return size;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String key(String networkKey, String transportType, String transportAddr) {
+        return (networkKey != null ? networkKey : "unknown") + "|" + transportType + " " + transportAddr;
+    }
+}
@@ -0,0 +1,195 @@
+package com.dnstt.client;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes VPN routes as the complement of a set of excluded prefixes.
+ *
+ * VpnService can only add routes, not exclude them (excludeRoute needs API
+ * 33), so to keep LAN traffic and the resolver's own address out of the
+ * tunnel the captured space is split into the smallest set of prefixes that
+ * covers everything except the exclusions. One builder handles one address
+ * family.
+ */
+public class RouteBuilder {
+
+    /** RFC 1918 private ranges, link-local, multicast and limited broadcast */
+    public static final String[] LAN_IPV4 = {
+            "10.0.0.0/8",
+            "172.16.0.0/12",
+            "192.168.0.0/16",
+            "169.254.0.0/16",
+            "224.0.0.0/4",
+            "255.255.255.255/32",
+    };
+
+    /** Unique local, link-local and multicast */
+    public static final String[] LAN_IPV6 = {
+            "fc00::/7",
+            "fe80::/10",
+            "ff00::/8",
+    };
+
+    /**
+     * A route as passed to VpnService.Builder.addRoute
+     */
+    public static class Route {
+        public final InetAddress address;
+        public final int prefixLength;
+
+        Route(InetAddress address, int prefixLength) {
+            this.address = address;
+            this.prefixLength = prefixLength;
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostAddress() + "/" + prefixLength;
+        }
+    }
+
+    // A prefix as the integer value of its network address and its length
+    private static class Prefix {
+        final BigInteger network;
+        final int length;
+
+        Prefix(BigInteger network, int length) {
+            this.network = network;
+            this.length = length;
+        }
+    }
+
+    private final int bits;
+    private final List<Prefix> excluded = new ArrayList<>();
+    private final List<Prefix> included = new ArrayList<>();
+
+    /**
+     * @param ipv6 whether this builder computes IPv6 routes rather than IPv4
+     */
+    public RouteBuilder(boolean ipv6) {
+        this.bits = ipv6 ? 128 : 32;
+    }
+
+    /**
+     * Exclude a CIDR prefix such as "192.168.0.0/16". Prefixes of the other
+     * address family are ignored.
+     */
+    public RouteBuilder exclude(String cidr) throws UnknownHostException {
+        Prefix p = parse(cidr);
+        if (p != null) excluded.add(p);
+        return this;
+    }
+
+    public RouteBuilder excludeAll(String[] cidrs) throws UnknownHostException {
+        for (String cidr : cidrs) {
+            exclude(cidr);
+        }
+        return this;
+    }
+
+    /**
+     * Exclude a single host. Addresses of the other family are ignored.
+     */
+    public RouteBuilder exclude(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (bytes.length * 8 == bits) {
+            excluded.add(new Prefix(new BigInteger(1, bytes), bits));
+        }
+        return this;
+    }
+
+    /**
+     * Route a prefix into the tunnel even if it overlaps an exclusion, e.g.
+     * the VPN's own subnet inside 10.0.0.0/8. The more specific route wins.
+     */
+    public RouteBuilder include(String cidr) throws UnknownHostException {
+        Prefix p = parse(cidr);
+        if (p != null) included.add(p);
+        return this;
+    }
+
+    public List<Route> build() throws UnknownHostException {
+        List<Prefix> routes = new ArrayList<>();
+        routes.add(new Prefix(BigInteger.ZERO, 0));
+        for (Prefix ex : excluded) {
+            List<Prefix> next = new ArrayList<>();
+            for (Prefix r : routes) {
+                if (contains(ex, r)) {
+                    // Entirely excluded
+                    continue;
+                }
+                if (!contains(r, ex)) {
+                    // Disjoint
+                    next.add(r);
+                    continue;
+                }
+                // Split r down to ex, keeping the half that does not
+                // contain ex at every level.
+                for (int len = r.length + 1; len <= ex.length; len++) {
+                    BigInteger bit = BigInteger.ONE.shiftLeft(bits - len);
+                    BigInteger exHalf = ex.network.and(mask(len));
+                    next.add(new Prefix(exHalf.xor(bit), len));
+                }
+            }
+            routes = next;
+        }
+        routes.addAll(included);
+
+        List<Route> result = new ArrayList<>(routes.size());
+        for (Prefix p : routes) {
+            result.add(new Route(toAddress(p.network), p.length));
+        }
+        return result;
+    }
+
+    // Whether outer contains inner
+    private boolean contains(Prefix outer, Prefix inner) {
+        return outer.length <= inner.length
+                && inner.network.and(mask(outer.length)).equals(outer.network);
+    }
+
+    private BigInteger mask(int length) {
+        BigInteger all = BigInteger.ONE.shiftLeft(bits).subtract(BigInteger.ONE);
+        BigInteger host = BigInteger.ONE.shiftLeft(bits - length).subtract(BigInteger.ONE);
+        return all.xor(host);
+    }
+
+    private Prefix parse(String cidr) throws UnknownHostException {
+        String s = cidr.trim();
+        int slash = s.indexOf('/');
+        String host = slash >= 0 ? s.substring(0, slash) : s;
+        // Only parse literals here; never trigger a DNS lookup
+        if (!host.matches("[0-9a-fA-F.:]+")) {
+            throw new UnknownHostException("Not an IP prefix: " + cidr);
+        }
+        byte[] bytes = InetAddress.getByName(host).getAddress();
+        if (bytes.length * 8 != bits) {
+            return null;
+        }
+        int length = bits;
+        if (slash >= 0) {
+            try {
+                length = Integer.parseInt(s.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                throw new UnknownHostException("Bad prefix length: " + cidr);
+            }
+            if (length < 0 || length > bits) {
+                throw new UnknownHostException("Bad prefix length: " + cidr);
+            }
+        }
+        return new Prefix(new BigInteger(1, bytes).and(mask(length)), length);
+    }
+
+    private InetAddress toAddress(BigInteger value) throws UnknownHostException {
+        byte[] raw = value.toByteArray();
+        byte[] bytes = new byte[bits / 8];
+        // toByteArray may add a sign byte or drop leading zeros
+        int copy = Math.min(raw.length, bytes.length);
+        System.arraycopy(raw, raw.length - copy, bytes, bytes.length - copy, copy);
+        return InetAddress.getByAddress(bytes);
+    }
+}
@@ -0,0 +1,108 @@
+package com.dnstt.client;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.Locale;
+
+/**
+ * Live throughput graph drawn straight from a ThroughputHistory: download
+ * and upload per second over the last few minutes, with the median, 95th
+ * percentile and peak of the combined rate.
+ */
+public class ThroughputGraphView extends View {
+    private static final int WINDOW_SECONDS = 120;
+
+    private final Paint rxPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint txPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint gridPaint = new Paint();
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Path rxPath = new Path();
+    private final Path txPath = new Path();
+    private final long[] scratch = new long[ThroughputHistory.SECONDS];
+
+    private ThroughputHistory history;
+
+    public ThroughputGraphView(Context context) {
+        this(context, null);
+    }
+
+    public ThroughputGraphView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        float density = getResources().getDisplayMetrics().density;
+
+        rxPaint.setStyle(Paint.Style.STROKE);
+        rxPaint.setStrokeWidth(2 * density);
+        rxPaint.setColor(ContextCompat.getColor(context, R.color.primary));
+
+        txPaint.setStyle(Paint.Style.STROKE);
+        txPaint.setStrokeWidth(2 * density);
+        txPaint.setColor(ContextCompat.getColor(context, R.color.connecting));
+
+        gridPaint.setColor(ContextCompat.getColor(context, R.color.background_surface));
+        gridPaint.setStrokeWidth(density);
+
+        textPaint.setColor(ContextCompat.getColor(context, R.color.text_secondary));
+        textPaint.setTextSize(11 * getResources().getDisplayMetrics().scaledDensity);
+    }
+
+    public void setHistory(ThroughputHistory history) {
+        this.history = history;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        float width = getWidth();
+        float height = getHeight();
+        float textHeight = textPaint.getTextSize() * 1.4f;
+        float graphTop = textHeight;
+        float graphHeight = height - graphTop;
+
+        canvas.drawLine(0, height - 1, width, height - 1, gridPaint);
+        ThroughputHistory h = history;
+        int n = h != null ? Math.min(WINDOW_SECONDS, h.secondCount()) : 0;
+        if (n < 2) {
+            canvas.drawText("Collecting throughput samples...", 0, textPaint.getTextSize(), textPaint);
+            return;
+        }
+
+        long max = 1;
+        for (int age = 0; age < n; age++) {
+            max = Math.max(max, Math.max(h.secondRx(age), h.secondTx(age)));
+        }
+
+        // Newest sample at the right edge
+        float step = width / (WINDOW_SECONDS - 1);
+        rxPath.rewind();
+        txPath.rewind();
+        for (int age = n - 1; age >= 0; age--) {
+            float x = width - age * step;
+            float rxY = graphTop + graphHeight * (1 - (float) h.secondRx(age) / max);
+            float txY = graphTop + graphHeight * (1 - (float) h.secondTx(age) / max);
+            if (age == n - 1) {
+                rxPath.moveTo(x, rxY);
+                txPath.moveTo(x, txY);
+            } else {
+                rxPath.lineTo(x, rxY);
+                txPath.lineTo(x, txY);
+            }
+        }
+        canvas.drawPath(txPath, txPaint);
+        canvas.drawPath(rxPath, rxPaint);
+
+        long p50 = h.percentile(n, 50, scratch);
+        long p95 = h.percentile(n, 95, scratch);
+        long peak = h.percentile(n, 100, scratch);
+        canvas.drawText(String.format(Locale.US, "p50 %.1f  p95 %.1f  max %.1f KB/s",
+                        p50 / 1024.0, p95 / 1024.0, peak / 1024.0),
+                0, textPaint.getTextSize(), textPaint);
+    }
+}
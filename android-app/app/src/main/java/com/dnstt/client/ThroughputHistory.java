@@ -0,0 +1,154 @@
+package com.dnstt.client;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size history of tunnel throughput: one rx/tx sample per second for
+ * the last few minutes, and per-minute rollups for the last hour.
+ *
+ * There is a single writer (the VPN service's stats thread) and any number
+ * of readers. Samples are written into preallocated arrays and published by
+ * a volatile write of the sample count, so readers take no lock and copy
+ * nothing. A reader that is slower than a whole wrap of the buffer can see a
+ * slot overwritten by a newer sample; for a graph that is harmless.
+ */
+public class ThroughputHistory {
+    public static final int SECONDS = 300;
+    public static final int MINUTES = 60;
+
+    private final long[] secRx = new long[SECONDS];
+    private final long[] secTx = new long[SECONDS];
+    private volatile long secCount;
+
+    private final long[] minRx = new long[MINUTES];
+    private final long[] minTx = new long[MINUTES];
+    private final long[] minPeak = new long[MINUTES];
+    private volatile long minCount;
+
+    // Minute being accumulated; writer only
+    private long accRx;
+    private long accTx;
+    private long accPeak;
+    private int accSeconds;
+
+    // Writer side
+
+    /**
+     * Record bytes transferred over the given number of seconds. Samples
+     * taken less often than once a second are spread evenly over the seconds
+     * they cover.
+     */
+    public void record(long rxBytes, long txBytes, int seconds) {
+        if (seconds <= 0) return;
+        // Anything older than the buffer would be overwritten right away
+        int n = Math.min(seconds, SECONDS);
+        long rxEach = rxBytes / seconds;
+        long txEach = txBytes / seconds;
+        for (int i = 0; i < n; i++) {
+            boolean last = i == n - 1;
+            addSecond(last ? rxBytes - rxEach * (seconds - 1) : rxEach,
+                    last ? txBytes - txEach * (seconds - 1) : txEach);
+        }
+    }
+
+    private void addSecond(long rx, long tx) {
+        long count = secCount;
+        int slot = (int) (count % SECONDS);
+        secRx[slot] = rx;
+        secTx[slot] = tx;
+        secCount = count + 1;
+
+        accRx += rx;
+        accTx += tx;
+        accPeak = Math.max(accPeak, rx + tx);
+        if (++accSeconds == 60) {
+            long mCount = minCount;
+            int mSlot = (int) (mCount % MINUTES);
+            minRx[mSlot] = accRx;
+            minTx[mSlot] = accTx;
+            minPeak[mSlot] = accPeak;
+            minCount = mCount + 1;
+            accRx = 0;
+            accTx = 0;
+            accPeak = 0;
+            accSeconds = 0;
+        }
+    }
+
+    /**
+     * Start a new session. Writer only.
+     */
+    public void clear() {
+        secCount = 0;
+        minCount = 0;
+        accRx = 0;
+        accTx = 0;
+        accPeak = 0;
+        accSeconds = 0;
+    }
+
+    // Reader side. Ages count back from the newest sample, which is age 0.
+
+    public int secondCount() {
+        return (int) Math.min(secCount, SECONDS);
+    }
+
+    public long secondRx(int age) {
+        return secRx[slot(secCount, age, SECONDS)];
+    }
+
+    public long secondTx(int age) {
+        return secTx[slot(secCount, age, SECONDS)];
+    }
+
+    public int minuteCount() {
+        return (int) Math.min(minCount, MINUTES);
+    }
+
+    public long minuteRx(int age) {
+        return minRx[slot(minCount, age, MINUTES)];
+    }
+
+    public long minuteTx(int age) {
+        return minTx[slot(minCount, age, MINUTES)];
+    }
+
+    /** Busiest single second within the minute, rx + tx */
+    public long minutePeak(int age) {
+        return minPeak[slot(minCount, age, MINUTES)];
+    }
+
+    private static int slot(long count, int age, int size) {
+        return (int) ((count - 1 - age) % size + size) % size;
+    }
+
+    /**
+     * Average rx + tx bytes per second over the newest samples
+     */
+    public long averageBytesPerSecond(int seconds) {
+        int n = Math.min(seconds, secondCount());
+        if (n == 0) return 0;
+        long sum = 0;
+        for (int age = 0; age < n; age++) {
+            sum += secondRx(age) + secondTx(age);
+        }
+        return sum / n;
+    }
+
+    /**
+     * Percentile of rx + tx bytes per second over the newest samples.
+     *
+     * @param scratch reusable buffer of at least SECONDS entries, so callers
+     *                drawing every frame don't allocate
+     */
+    public long percentile(int seconds, double p, long[] scratch) {
+        int n = Math.min(seconds, secondCount());
+        if (n == 0) return 0;
+        for (int age = 0; age < n; age++) {
+            scratch[age] = secondRx(age) + secondTx(age);
+        }
+        Arrays.sort(scratch, 0, n);
+        int index = (int) Math.ceil(p / 100.0 * n) - 1;
+        return scratch[Math.max(0, Math.min(n - 1, index))];
+    }
+}
@@ -0,0 +1,130 @@
+package com.dnstt.client;
+
+/**
+ * A named set of hev-socks5-tunnel engine settings.
+ *
+ * The tun2socks YAML is generated from this model instead of a fixed
+ * string. Each profile trades memory against throughput and latency; the
+ * tunnel itself only does a few hundred KB/s, so large buffers mostly cost
+ * memory and add queueing delay rather than speed.
+ */
+public class Tun2socksProfile {
+
+    public static final String THROUGHPUT = "throughput";
+    public static final String LOW_MEMORY = "low_memory";
+    public static final String LOW_LATENCY = "low_latency";
+
+    // hev-socks5-tunnel needs task-stack-size >= tcp-buffer-size + 20480
+    private static final int STACK_OVERHEAD = 20480;
+
+    public final String name;
+    public final String label;
+
+    // tunnel:
+    /** MTU of the TUN interface; also used for VpnService.Builder.setMtu */
+    public final int mtu;
+
+    // socks5:
+    /**
+     * Send the SOCKS5 request without waiting for the method reply. The
+     * DNSTT client's SOCKS server reads the greeting and request separately,
+     * so every built-in profile leaves this off.
+     */
+    public final boolean pipeline;
+
+    // misc:
+    public final int taskStackSize;
+    public final int tcpBufferSize;
+    public final int udpRecvBufferSize;
+    public final int udpCopyBufferNums;
+    /** 0 means unlimited */
+    public final int maxSessionCount;
+    public final int connectTimeoutMs;
+    public final int tcpReadWriteTimeoutMs;
+    public final int udpReadWriteTimeoutMs;
+    /** debug, info, warn or error; anything below warn is costly on the packet path */
+    public final String logLevel;
+
+    public Tun2socksProfile(String name, String label, int mtu, boolean pipeline,
+                            int tcpBufferSize, int udpRecvBufferSize, int udpCopyBufferNums,
+                            int maxSessionCount, int connectTimeoutMs, int tcpReadWriteTimeoutMs,
+                            int udpReadWriteTimeoutMs, String logLevel) {
+        this.name = name;
+        this.label = label;
+        this.mtu = mtu;
+        this.pipeline = pipeline;
+        this.taskStackSize = tcpBufferSize + STACK_OVERHEAD;
+        this.tcpBufferSize = tcpBufferSize;
+        this.udpRecvBufferSize = udpRecvBufferSize;
+        this.udpCopyBufferNums = udpCopyBufferNums;
+        this.maxSessionCount = maxSessionCount;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.tcpReadWriteTimeoutMs = tcpReadWriteTimeoutMs;
+        this.udpReadWriteTimeoutMs = udpReadWriteTimeoutMs;
+        this.logLevel = logLevel;
+    }
+
+    /**
+     * Built-in profiles, in the order they are offered to the user
+     */
+    public static Tun2socksProfile[] all() {
+        return new Tun2socksProfile[] {
+                // Big buffers and a large MTU so tun2socks is never the
+                // bottleneck
+                new Tun2socksProfile(THROUGHPUT, "Throughput", 8500, false,
+                        65536, 524288, 10, 0, 10000, 300000, 60000, "warn"),
+                // Small buffers and a session cap for low-end devices
+                new Tun2socksProfile(LOW_MEMORY, "Low memory", 1500, false,
+                        8192, 65536, 2, 256, 10000, 120000, 30000, "error"),
+                // Small buffers keep queues short, short timeouts fail fast
+                new Tun2socksProfile(LOW_LATENCY, "Low latency", 1500, false,
+                        16384, 131072, 4, 0, 5000, 60000, 15000, "warn"),
+        };
+    }
+
+    /**
+     * The profile with the given name, or the throughput profile if unknown
+     */
+    public static Tun2socksProfile forName(String name) {
+        Tun2socksProfile[] profiles = all();
+        for (Tun2socksProfile p : profiles) {
+            if (p.name.equals(name)) return p;
+        }
+        return profiles[0];
+    }
+
+    /**
+     * Generate the hev-socks5-tunnel YAML.
+     *
+     * @param socksEndpoint YAML lines for socks5 address and port
+     * @param ipv6 the TUN's IPv6 address, or null when IPv6 is not captured
+     */
+    public String toYaml(String socksEndpoint, String ipv4, String ipv6) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("tunnel:\n")
+                .append("  name: tun0\n")
+                .append("  mtu: ").append(mtu).append('\n')
+                .append("  ipv4: ").append(ipv4).append('\n');
+        if (ipv6 != null) {
+            sb.append("  ipv6: '").append(ipv6).append("'\n");
+        }
+        sb.append('\n')
+                .append("socks5:\n")
+                .append(socksEndpoint)
+                // Carry UDP over the SOCKS5 TCP connection
+                .append("  udp: 'tcp'\n")
+                .append("  pipeline: ").append(pipeline).append('\n')
+                .append('\n')
+                .append("misc:\n")
+                .append("  task-stack-size: ").append(taskStackSize).append('\n')
+                .append("  tcp-buffer-size: ").append(tcpBufferSize).append('\n')
+                .append("  udp-recv-buffer-size: ").append(udpRecvBufferSize).append('\n')
+                .append("  udp-copy-buffer-nums: ").append(udpCopyBufferNums).append('\n')
+                .append("  max-session-count: ").append(maxSessionCount).append('\n')
+                .append("  connect-timeout: ").append(connectTimeoutMs).append('\n')
+                .append("  tcp-read-write-timeout: ").append(tcpReadWriteTimeoutMs).append('\n')
+                .append("  udp-read-write-timeout: ").append(udpReadWriteTimeoutMs).append('\n')
+                .append("  log-level: ").append(logLevel).append('\n');
+        return sb.toString();
+    }
+}
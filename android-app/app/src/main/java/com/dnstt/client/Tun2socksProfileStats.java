@@ -0,0 +1,73 @@
+package com.dnstt.client;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.google.gson.Gson;
+
+import java.util.Locale;
+
+/**
+ * Per-profile totals of the VPN sessions run with each tun2socks profile,
+ * built from the byte counters the service already samples, so profiles can
+ * be compared on the same device and network.
+ */
+public class Tun2socksProfileStats {
+    private static final String PREFS_NAME = "engine_profile_stats";
+
+    // Sessions with less traffic time than this say nothing about the profile
+    private static final long MIN_ACTIVE_MS = 10000;
+
+    /**
+     * Accumulated stats for one profile
+     */
+    public static class Totals {
+        public int sessions;
+        /** Time during which traffic was flowing, so idle time doesn't dilute the average */
+        public long activeMs;
+        /** Bytes carried during activeMs, not the session's whole traffic */
+        public long rxBytes;
+        public long txBytes;
+        public double peakKBps;
+
+        public double averageKBps() {
+            if (activeMs <= 0) return 0;
+            return ((rxBytes + txBytes) / 1024.0) / (activeMs / 1000.0);
+        }
+    }
+
+    private final SharedPreferences prefs;
+    private final Gson gson = new Gson();
+
+    public Tun2socksProfileStats(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public Totals get(String profile) {
+        String json = prefs.getString(profile, null);
+        Totals totals = json != null ? gson.fromJson(json, Totals.class) : null;
+        return totals != null ? totals : new Totals();
+    }
+
+    public void record(String profile, long activeMs, long rxBytes, long txBytes, double peakKBps) {
+        if (activeMs < MIN_ACTIVE_MS) return;
+        Totals totals = get(profile);
+        totals.sessions++;
+        totals.activeMs += activeMs;
+        totals.rxBytes += rxBytes;
+        totals.txBytes += txBytes;
+        totals.peakKBps = Math.max(totals.peakKBps, peakKBps);
+        prefs.edit().putString(profile, gson.toJson(totals)).apply();
+    }
+
+    /**
+     * One-line comparison text, e.g. "3 sessions, avg 42.0 KB/s, peak 180.5 KB/s"
+     */
+    public String describe(String profile) {
+        Totals totals = get(profile);
+        if (totals.sessions == 0) return "no sessions yet";
+        return String.format(Locale.US, "%d session%s, avg %.1f KB/s, peak %.1f KB/s",
+                totals.sessions, totals.sessions == 1 ? "" : "s",
+                totals.averageKBps(), totals.peakKBps);
+    }
+}
@@ -0,0 +1,56 @@
+package com.dnstt.client;
+
+import android.os.SystemClock;
+
+/**
+ * Decides when a connected tunnel has stopped answering and should be
+ * rebuilt, from the round-trip probes reported through
+ * StatusCallback.onLatencyUpdate.
+ *
+ * A single lost probe is common on a DNS tunnel, so failover waits for
+ * several in a row, and after one failover waits a while before the next
+ * so a resolver that is down for good doesn't cause a reconnect loop.
+ * On a busy tunnel probes queue behind the traffic and time out while data
+ * is still arriving, so a lost probe only counts if no bytes were received
+ * since the probe before it.
+ */
+public class TunnelHealth {
+    // Probes run every 5 s, so this is about 15 s without an answer
+    private static final int LOST_PROBES_FOR_FAILOVER = 3;
+    private static final long FAILOVER_COOLDOWN_MS = 60_000;
+
+    private int lostInARow;
+    private long lastFailoverTime;
+    private long lastBytesIn;
+
+    /**
+     * Record a probe result.
+     *
+     * @param lastMs round-trip time of the probe, -1 if it was lost
+     * @param bytesIn bytes received through the tunnel so far
+     * @return true if the tunnel should be rebuilt now
+     */
+    public synchronized boolean onProbe(long lastMs, long bytesIn) {
+        boolean received = bytesIn != lastBytesIn;
+        lastBytesIn = bytesIn;
+        if (lastMs >= 0 || received) {
+            lostInARow = 0;
+            return false;
+        }
+        lostInARow++;
+        long now = SystemClock.elapsedRealtime();
+        if (lostInARow < LOST_PROBES_FOR_FAILOVER
+                || (lastFailoverTime != 0 && now - lastFailoverTime < FAILOVER_COOLDOWN_MS)) {
+            return false;
+        }
+        lostInARow = 0;
+        lastFailoverTime = now;
+        return true;
+    }
+
+    public synchronized void reset() {
+        lostInARow = 0;
+        lastFailoverTime = 0;
+        lastBytesIn = 0;
+    }
+}
@@ -0,0 +1,110 @@
+package com.dnstt.client;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import mobile.Client;
+import mobile.Mobile;
+
+/**
+ * Named tunnel counters read from the DNSTT client.
+ *
+ * Client.readStats fills a fixed little-endian layout into a byte array this
+ * class owns, so polling allocates nothing: the array and its ByteBuffer view
+ * are created once and reused for every poll. Values are those of the last
+ * successful poll.
+ */
+public class TunnelStats {
+    private final byte[] raw = new byte[(int) Mobile.StatsBufferSize];
+    private final ByteBuffer buf = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Refresh the counters from the client
+     *
+     * @return false if there is no client to read from
+     */
+    public boolean poll(Client client) {
+        if (client == null) return false;
+        client.readStats(raw);
+        return true;
+    }
+
+    private long field(long index) {
+        return buf.getLong((int) index * 8);
+    }
+
+    /** Payload bytes received through the tunnel */
+    public long bytesIn() {
+        return field(Mobile.StatsBytesIn);
+    }
+
+    /** Payload bytes sent through the tunnel */
+    public long bytesOut() {
+        return field(Mobile.StatsBytesOut);
+    }
+
+    /** Connections currently open */
+    public long activeSessions() {
+        return field(Mobile.StatsActiveStreams);
+    }
+
+    public long streamsOpened() {
+        return field(Mobile.StatsStreamsOpened);
+    }
+
+    /** Connections that could not be carried through the tunnel */
+    public long connectFailures() {
+        return field(Mobile.StatsConnectFailures);
+    }
+
+    /** DNS queries sent by all tunnels */
+    public long packetsSent() {
+        return field(Mobile.StatsPacketsSent);
+    }
+
+    /** DNS responses received by all tunnels */
+    public long packetsReceived() {
+        return field(Mobile.StatsPacketsReceived);
+    }
+
+    /** UDP datagrams and IPv6 attempts refused locally */
+    public long packetsDropped() {
+        return field(Mobile.StatsPacketsDropped);
+    }
+
+    /** Non-DNS UDP datagrams refused by the UDP policy */
+    public long udpBlocked() {
+        return field(Mobile.StatsUDPBlocked);
+    }
+
+    /** QUIC handshakes among udpBlocked() answered with a rejection */
+    public long udpRejected() {
+        return field(Mobile.StatsUDPRejected);
+    }
+
+    /** IPv6 attempts and AAAA queries short-circuited under IPv6 reject */
+    public long ipv6Rejected() {
+        return field(Mobile.StatsIPv6Rejected);
+    }
+
+    public long sendErrors() {
+        return field(Mobile.StatsSendErrors);
+    }
+
+    public long dnsCacheHits() {
+        return field(Mobile.StatsDNSCacheHits);
+    }
+
+    public long dnsCacheMisses() {
+        return field(Mobile.StatsDNSCacheMisses);
+    }
+
+    public long tunnels() {
+        return field(Mobile.StatsTunnels);
+    }
+
+    /** Milliseconds from client start to the first byte received, 0 if none yet */
+    public long firstByteMs() {
+        return field(Mobile.StatsFirstByteMs);
+    }
+}
@@ -0,0 +1,211 @@
+package com.dnstt.client;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import mobile.Client;
+
+/**
+ * Tunes the number of parallel tunnels while connected, for "auto" in the
+ * Tunnels field.
+ *
+ * Each count is measured for a period. While there is traffic the tuner
+ * climbs: it adds tunnels as long as each step raises throughput clearly,
+ * then goes back to the better count and holds for a while. Heavy probe
+ * loss means the resolver is rate limiting us, so tunnels are removed
+ * whatever the throughput. The count it settles on is remembered per
+ * network and resolver and is where the next connect starts.
+ *
+ * Fed from the latency callback, on any thread, whether or not the screen
+ * is on; resizing runs on the tuner's own thread since it waits for
+ * handshakes.
+ */
+public class TunnelTuner {
+    /** Tunnel count that selects auto mode */
+    public static final int AUTO = 0;
+
+    private static final String TAG = "TunnelTuner";
+    private static final String PREFS_NAME = "tunnel_tuning";
+
+    private static final int DEFAULT_START = 4;
+    private static final int MIN_TUNNELS = 1;
+    private static final int MAX_TUNNELS = 16;  // mobile.MaxTunnels
+    private static final int STEP = 2;
+    private static final long PERIOD_MS = 20_000;
+    private static final long HOLD_MS = 5 * 60_000;
+    // Below this there isn't enough demand to tell counts apart
+    private static final double BUSY_BYTES_PER_SECOND = 8 * 1024;
+    // A step up must raise throughput by this factor to be kept
+    private static final double MIN_GAIN = 1.10;
+    private static final int HIGH_LOSS_PERCENT = 20;
+
+    private final SharedPreferences prefs;
+
+    private ExecutorService executor;
+    private Client client;
+    private String key;
+    private int count;
+    private boolean resizing;
+
+    // Current measurement period
+    private long periodStart;
+    private long periodStartBytes;
+    private long lastBytes;
+    private int lossPercent;
+
+    // Count and throughput before the last step up, 0 if not climbing
+    private int prevCount;
+    private double prevRate;
+    private long holdUntil;
+
+    public TunnelTuner(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * The count to connect with: the one remembered for this network and
+     * resolver, or a moderate default
+     */
+    public int initialCount(String networkKey, String transportType, String transportAddr) {
+        return prefs.getInt(key(networkKey, transportType, transportAddr), DEFAULT_START);
+    }
+
+    /**
+     * Start tuning a client that connected with count tunnels
+     */
+    public synchronized void start(Client client, String networkKey, String transportType,
+                                   String transportAddr, int count) {
+        if (executor == null) executor = Executors.newSingleThreadExecutor();
+        this.client = client;
+        this.count = count;
+        this.resizing = false;
+        retargetLocked(networkKey, transportType, transportAddr);
+    }
+
+    /**
+     * The client's tunnels now go over another network or resolver: start
+     * from the count remembered there, if any
+     */
+    public synchronized void retarget(String networkKey, String transportType, String transportAddr) {
+        if (client == null) return;
+        retargetLocked(networkKey, transportType, transportAddr);
+        int remembered = prefs.getInt(key, 0);
+        if (remembered > 0 && remembered != count) {
+            apply(remembered, "remembered for this network");
+        }
+    }
+
+    private void retargetLocked(String networkKey, String transportType, String transportAddr) {
+        key = key(networkKey, transportType, transportAddr);
+        periodStart = 0;
+        lossPercent = 0;
+        prevCount = 0;
+        // A remembered count is trusted for a while before exploring again
+        holdUntil = prefs.contains(key) ? SystemClock.elapsedRealtime() + HOLD_MS : 0;
+    }
+
+    public synchronized void stop() {
+        client = null;
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Latest probe loss, from StatusCallback.onLatencyUpdate
+     */
+    public synchronized void onLatency(long lossPercent) {
+        this.lossPercent = (int) lossPercent;
+    }
+
+    /**
+     * Total bytes carried so far, sampled with each latency probe (every
+     * 5 s, screen on or off)
+     */
+    public synchronized void onBytes(long totalBytes) {
+        lastBytes = totalBytes;
+        if (client == null || resizing) return;
+        long now = SystemClock.elapsedRealtime();
+        if (periodStart == 0 || totalBytes < periodStartBytes) {
+            startPeriod(now);
+            return;
+        }
+        long elapsed = now - periodStart;
+        if (elapsed < PERIOD_MS) return;
+        double rate = (totalBytes - periodStartBytes) * 1000.0 / elapsed;
+        startPeriod(now);
+
+        if (lossPercent >= HIGH_LOSS_PERCENT) {
+            if (count > MIN_TUNNELS) {
+                int next = Math.max(MIN_TUNNELS, count - STEP);
+                prevCount = 0;
+                holdUntil = now + HOLD_MS;
+                remember(next);
+                apply(next, "probe loss " + lossPercent + "%");
+            }
+            return;
+        }
+        if (rate < BUSY_BYTES_PER_SECOND || now < holdUntil) return;
+
+        boolean gained = prevCount > 0 && rate >= prevRate * MIN_GAIN;
+        if (prevCount == 0 || (gained && count < MAX_TUNNELS)) {
+            if (gained) remember(count);
+            if (count >= MAX_TUNNELS) {
+                holdUntil = now + HOLD_MS;
+                return;
+            }
+            prevCount = count;
+            prevRate = rate;
+            apply(Math.min(MAX_TUNNELS, count + STEP), String.format("%.1f KB/s", rate / 1024));
+        } else {
+            // The last step didn't pay off (or there's no room left):
+            // settle on the better of the two counts
+            int best = gained ? count : prevCount;
+            prevCount = 0;
+            holdUntil = now + HOLD_MS;
+            remember(best);
+            if (best != count) {
+                apply(best, String.format("%.1f KB/s was no better", rate / 1024));
+            }
+        }
+    }
+
+    private void startPeriod(long now) {
+        periodStart = now;
+        periodStartBytes = lastBytes;
+    }
+
+    private void apply(int next, String reason) {
+        Client c = client;
+        int from = count;
+        resizing = true;
+        executor.execute(() -> {
+            boolean ok = false;
+            try {
+                c.setTunnelCount(next);
+                ok = true;
+                AppLog.i(TAG, "Tunnels " + from + " -> " + next + " (" + reason + ")");
+            } catch (Exception e) {
+                AppLog.w(TAG, "Could not change tunnels to " + next + ": " + e.getMessage());
+            }
+            synchronized (TunnelTuner.this) {
+                resizing = false;
+                if (ok && client == c) count = next;
+                startPeriod(SystemClock.elapsedRealtime());
+            }
+        });
+    }
+
+    private void remember(int value) {
+        prefs.edit().putInt(key, value).apply();
+    }
+
+    private static String key(String networkKey, String transportType, String transportAddr) {
+        return (networkKey != null ? networkKey : "unknown") + "|" + transportType + " " + transportAddr;
+    }
+}
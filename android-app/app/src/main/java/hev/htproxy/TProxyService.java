@@ -23,7 +23,8 @@ public class TProxyService {
     public native void TProxyStopService();
 
     /**
-     * Get traffic statistics.
+     * Get traffic statistics. Allocates a new array on every call, so the
+     * periodic sampler reads the DNSTT client's counters (TunnelStats) instead.
      * @return long array: [tx_packets, tx_bytes, rx_packets, rx_bytes]
      */
     public native long[] TProxyGetStats();
@@ -0,0 +1,327 @@
+package dnstt_client
+
+// Bootstrap addresses for DoH and DoT servers.
+//
+// A DoH or DoT transport has to resolve its server's hostname before it can
+// connect, and on the networks this client is meant for that lookup goes to a
+// system resolver that is slow, unreliable or poisoned. BootstrapCache holds
+// addresses for those hostnames so the transports can connect to a known
+// address straight away, still sending the hostname as SNI and checking the
+// certificate against it. The cache is off unless an application installs
+// one in BootstrapAddrs; the mobile package does, with well-known addresses
+// of the common providers, and refreshes it through a tunnel once one is up.
+
+import (
+	"context"
+	"crypto/rand"
+	"crypto/tls"
+	"encoding/binary"
+	"errors"
+	"fmt"
+	"log"
+	"net"
+	"sort"
+	"strings"
+	"sync"
+	"time"
+
+	"www.bamsoftware.com/git/dnstt.git/dns"
+)
+
+const (
+	// https://tools.ietf.org/html/rfc1035#section-3.2.2
+	// https://tools.ietf.org/html/rfc3596#section-2.1
+	rrTypeA    = 1
+	rrTypeAAAA = 28
+
+	// Cached addresses are tried this far apart, without waiting for the
+	// previous attempt to fail (as in RFC 8305, Happy Eyeballs).
+	bootstrapAttemptDelay = 250 * time.Millisecond
+	// The host is resolved and dialed as usual this long after the first
+	// cached address is tried, in case none of them works on this network.
+	bootstrapResolveDelay = 1 * time.Second
+)
+
+// BootstrapAddrs, if not nil, is the cache the DoH and DoT transports connect
+// through. Set it once, before creating tunnels.
+var BootstrapAddrs *BootstrapCache
+
+// BootstrapCache maps hostnames to addresses to connect to instead of
+// resolving them. It is safe for concurrent use.
+type BootstrapCache struct {
+	mu    sync.Mutex
+	addrs map[string][]net.IP // by lowercase hostname
+}
+
+// NewBootstrapCache returns an empty BootstrapCache.
+func NewBootstrapCache() *BootstrapCache {
+	return &BootstrapCache{addrs: make(map[string][]net.IP)}
+}
+
+// Set replaces the addresses of host. Addresses that could not be the
+// server's (private, loopback and the like, which is what poisoned answers
+// usually contain) are dropped; if none is left, host keeps what it had.
+func (c *BootstrapCache) Set(host string, ips []net.IP) {
+	var usable []net.IP
+	for _, ip := range ips {
+		if bootstrapAddrUsable(ip) {
+			usable = append(usable, ip)
+		}
+	}
+	if len(usable) == 0 {
+		return
+	}
+	c.mu.Lock()
+	c.addrs[strings.ToLower(host)] = usable
+	c.mu.Unlock()
+}
+
+// Lookup returns the addresses of host, or nil if there are none.
+func (c *BootstrapCache) Lookup(host string) []net.IP {
+	c.mu.Lock()
+	defer c.mu.Unlock()
+	return append([]net.IP(nil), c.addrs[strings.ToLower(host)]...)
+}
+
+// Hosts returns the hostnames in the cache, sorted.
+func (c *BootstrapCache) Hosts() []string {
+	c.mu.Lock()
+	hosts := make([]string, 0, len(c.addrs))
+	for host := range c.addrs {
+		hosts = append(hosts, host)
+	}
+	c.mu.Unlock()
+	sort.Strings(hosts)
+	return hosts
+}
+
+// String returns the cache as one line per hostname, the hostname followed
+// by its addresses, separated by spaces. Load reads it back.
+func (c *BootstrapCache) String() string {
+	var b strings.Builder
+	for _, host := range c.Hosts() {
+		b.WriteString(host)
+		for _, ip := range c.Lookup(host) {
+			b.WriteByte(' ')
+			b.WriteString(ip.String())
+		}
+		b.WriteByte('\n')
+	}
+	return b.String()
+}
+
+// Load adds the entries in s, in the format of String, replacing the
+// addresses of hostnames already present. Malformed lines are skipped.
+func (c *BootstrapCache) Load(s string) {
+	for _, line := range strings.Split(s, "\n") {
+		fields := strings.Fields(line)
+		if len(fields) < 2 {
+			continue
+		}
+		var ips []net.IP
+		for _, field := range fields[1:] {
+			if ip := net.ParseIP(field); ip != nil {
+				ips = append(ips, ip)
+			}
+		}
+		c.Set(fields[0], ips)
+	}
+}
+
+// dial calls attempt for the cached addresses of addr's host, a short time
+// apart and without waiting for earlier attempts to fail, and a little later
+// for addr itself, which resolves the host as usual. The first connection
+// wins and the others are closed. attempt should include any TLS handshake,
+// so that an address that accepts the connection but fails the handshake
+// does not end the dial. Without cached addresses (or a cache), dial just
+// calls attempt for addr.
+func (c *BootstrapCache) dial(ctx context.Context, addr string, attempt func(ctx context.Context, target string) (net.Conn, error)) (net.Conn, error) {
+	host, port, err := net.SplitHostPort(addr)
+	if err != nil {
+		return nil, err
+	}
+	var ips []net.IP
+	if c != nil && net.ParseIP(host) == nil {
+		ips = c.Lookup(host)
+	}
+	if len(ips) == 0 {
+		return attempt(ctx, addr)
+	}
+
+	ctx, cancel := context.WithCancel(ctx)
+	defer cancel()
+	type result struct {
+		conn   net.Conn
+		target string
+		err    error
+	}
+	results := make(chan result, len(ips)+1)
+	start := func(target string, delay time.Duration) {
+		go func() {
+			timer := time.NewTimer(delay)
+			defer timer.Stop()
+			select {
+			case <-ctx.Done():
+				results <- result{target: target, err: ctx.Err()}
+				return
+			case <-timer.C:
+			}
+			conn, err := attempt(ctx, target)
+			results <- result{conn, target, err}
+		}()
+	}
+	for i, ip := range ips {
+		start(net.JoinHostPort(ip.String(), port), time.Duration(i)*bootstrapAttemptDelay)
+	}
+	start(addr, bootstrapResolveDelay)
+
+	var resolvedErr error
+	for pending := len(ips) + 1; pending > 0; pending-- {
+		r := <-results
+		if r.err == nil {
+			// Close the connections of attempts that finish later
+			go func(n int) {
+				for ; n > 0; n-- {
+					if late := <-results; late.conn != nil {
+						_ = late.conn.Close()
+					}
+				}
+			}(pending - 1)
+			return r.conn, nil
+		}
+		if r.target == addr {
+			resolvedErr = r.err
+		} else if ctx.Err() == nil {
+			log.Printf("bootstrap: %s at %s: %v", host, r.target, r.err)
+		}
+	}
+	return nil, resolvedErr
+}
+
+// dialContext connects to addr with dialer, through c (see dial).
+func (c *BootstrapCache) dialContext(ctx context.Context, dialer *net.Dialer, network, addr string) (net.Conn, error) {
+	return c.dial(ctx, addr, func(ctx context.Context, target string) (net.Conn, error) {
+		return dialer.DialContext(ctx, network, target)
+	})
+}
+
+// dialTLSContext connects to addr through c (see dial) and completes a TLS
+// handshake with the host of addr as server name, offering nextProtos by
+// ALPN, as tls.Dialer does.
+func (c *BootstrapCache) dialTLSContext(ctx context.Context, dialer *net.Dialer, network, addr string, nextProtos []string) (net.Conn, error) {
+	host, _, err := net.SplitHostPort(addr)
+	if err != nil {
+		return nil, err
+	}
+	config := &tls.Config{ServerName: host, NextProtos: nextProtos}
+	return c.dial(ctx, addr, func(ctx context.Context, target string) (net.Conn, error) {
+		conn, err := dialer.DialContext(ctx, network, target)
+		if err != nil {
+			return nil, err
+		}
+		tlsConn := tls.Client(conn, config)
+		if err := tlsConn.HandshakeContext(ctx); err != nil {
+			_ = conn.Close()
+			return nil, err
+		}
+		return tlsConn, nil
+	})
+}
+
+// Refresh looks up the A and AAAA records of every hostname in the cache,
+// and of the hostnames in extra, sending each query with exchange (which
+// should carry it somewhere the answer can be trusted, such as through a
+// tunnel). It replaces the addresses of the hostnames that got answers and
+// returns how many did.
+func (c *BootstrapCache) Refresh(extra []string, exchange func(query []byte) ([]byte, error)) int {
+	hosts := c.Hosts()
+	for _, host := range extra {
+		host = strings.ToLower(host)
+		if host != "" && net.ParseIP(host) == nil && len(c.Lookup(host)) == 0 {
+			hosts = append(hosts, host)
+		}
+	}
+	updated := 0
+	for _, host := range hosts {
+		var ips []net.IP
+		for _, rrType := range []uint16{rrTypeA, rrTypeAAAA} {
+			found, err := lookupBootstrapAddrs(exchange, host, rrType)
+			if err != nil {
+				log.Printf("bootstrap: refreshing %s: %v", host, err)
+				continue
+			}
+			ips = append(ips, found...)
+		}
+		if len(ips) > 0 {
+			c.Set(host, ips)
+			updated++
+		}
+	}
+	return updated
+}
+
+// lookupBootstrapAddrs sends one query of type rrType for host with exchange
+// and returns the addresses in the answer.
+func lookupBootstrapAddrs(exchange func([]byte) ([]byte, error), host string, rrType uint16) ([]net.IP, error) {
+	name, err := dns.ParseName(host)
+	if err != nil {
+		return nil, err
+	}
+	var idBuf [2]byte
+	if _, err := rand.Read(idBuf[:]); err != nil {
+		return nil, err
+	}
+	id := binary.BigEndian.Uint16(idBuf[:])
+	query := &dns.Message{
+		ID:    id,
+		Flags: 0x0100, // QR = 0, RD = 1
+		Question: []dns.Question{
+			{
+				Name:  name,
+				Type:  rrType,
+				Class: dns.ClassIN,
+			},
+		},
+	}
+	buf, err := query.WireFormat()
+	if err != nil {
+		return nil, err
+	}
+	buf, err = exchange(buf)
+	if err != nil {
+		return nil, err
+	}
+	resp, err := dns.MessageFromWireFormat(buf)
+	if err != nil {
+		return nil, err
+	}
+	if resp.ID != id || resp.Flags&0x8000 == 0 {
+		return nil, errors.New("response does not match query")
+	}
+	if resp.Rcode() != dns.RcodeNoError {
+		return nil, fmt.Errorf("rcode %d", resp.Rcode())
+	}
+	return bootstrapAnswerAddrs(&resp, rrType), nil
+}
+
+// bootstrapAnswerAddrs returns the addresses in the answer records of type
+// rrType in resp. Records of other types, such as the CNAMEs leading to the
+// addresses, are skipped.
+func bootstrapAnswerAddrs(resp *dns.Message, rrType uint16) []net.IP {
+	size := net.IPv4len
+	if rrType == rrTypeAAAA {
+		size = net.IPv6len
+	}
+	var ips []net.IP
+	for _, rr := range resp.Answer {
+		if rr.Type == rrType && rr.Class == dns.ClassIN && len(rr.Data) == size {
+			ips = append(ips, net.IP(append([]byte(nil), rr.Data...)))
+		}
+	}
+	return ips
+}
+
+// bootstrapAddrUsable reports whether ip could be a public server's address.
+func bootstrapAddrUsable(ip net.IP) bool {
+	return ip != nil && ip.IsGlobalUnicast() && !ip.IsPrivate()
+}
@@ -0,0 +1,118 @@
+package dnstt_client
+
+import (
+	"context"
+	"errors"
+	"net"
+	"testing"
+
+	"www.bamsoftware.com/git/dnstt.git/dns"
+)
+
+func TestBootstrapCacheSet(t *testing.T) {
+	c := NewBootstrapCache()
+	c.Set("DNS.Example", []net.IP{net.ParseIP("10.10.34.34"), net.ParseIP("192.0.2.1")})
+	got := c.Lookup("dns.example")
+	if len(got) != 1 || !got[0].Equal(net.ParseIP("192.0.2.1")) {
+		t.Errorf("got %v, want only the public address", got)
+	}
+
+	// A poisoned answer leaves the old addresses alone
+	c.Set("dns.example", []net.IP{net.ParseIP("127.0.0.1")})
+	if got := c.Lookup("dns.example"); len(got) != 1 {
+		t.Errorf("got %v after unusable update", got)
+	}
+}
+
+func TestBootstrapCacheStringLoad(t *testing.T) {
+	c := NewBootstrapCache()
+	c.Set("b.example", []net.IP{net.ParseIP("192.0.2.2"), net.ParseIP("2001:db8::2")})
+	c.Set("a.example", []net.IP{net.ParseIP("192.0.2.1")})
+	s := c.String()
+	if s != "a.example 192.0.2.1\nb.example 192.0.2.2 2001:db8::2\n" {
+		t.Errorf("got %q", s)
+	}
+
+	loaded := NewBootstrapCache()
+	loaded.Load(s + "malformed\n\nc.example not-an-ip\n")
+	if got := loaded.String(); got != s {
+		t.Errorf("got %q, want %q", got, s)
+	}
+}
+
+func TestBootstrapCacheRefresh(t *testing.T) {
+	c := NewBootstrapCache()
+	c.Set("dns.example", []net.IP{net.ParseIP("192.0.2.1")})
+	exchange := func(query []byte) ([]byte, error) {
+		msg, err := dns.MessageFromWireFormat(query)
+		if err != nil {
+			return nil, err
+		}
+		msg.Flags |= 0x8000
+		q := msg.Question[0]
+		if q.Type == rrTypeA {
+			msg.Answer = []dns.RR{{Name: q.Name, Type: rrTypeA, Class: dns.ClassIN, TTL: 300, Data: []byte{198, 51, 100, 7}}}
+		}
+		return msg.WireFormat()
+	}
+	if n := c.Refresh([]string{"New.Example", "192.0.2.9"}, exchange); n != 2 {
+		t.Errorf("refreshed %d hosts", n)
+	}
+	got := c.Lookup("dns.example")
+	if len(got) != 1 || !got[0].Equal(net.ParseIP("198.51.100.7")) {
+		t.Errorf("got %v", got)
+	}
+	if got := c.Lookup("new.example"); len(got) != 1 {
+		t.Errorf("extra host: got %v", got)
+	}
+	if got := c.Lookup("192.0.2.9"); len(got) != 0 {
+		t.Errorf("address literal was cached: %v", got)
+	}
+}
+
+func TestBootstrapCacheDial(t *testing.T) {
+	c := NewBootstrapCache()
+	c.Set("dns.example", []net.IP{net.ParseIP("192.0.2.1"), net.ParseIP("192.0.2.2")})
+	dial := func(working string) (string, error) {
+		var got string
+		conn, err := c.dial(context.Background(), "dns.example:853", func(ctx context.Context, target string) (net.Conn, error) {
+			if target != working {
+				// As a handshake failure would
+				return nil, errors.New("failed")
+			}
+			got = target
+			a, b := net.Pipe()
+			b.Close()
+			return a, nil
+		})
+		if err == nil {
+			conn.Close()
+		}
+		return got, err
+	}
+
+	if got, err := dial("192.0.2.2:853"); err != nil || got != "192.0.2.2:853" {
+		t.Errorf("second cached address: got %q, %v", got, err)
+	}
+	if got, err := dial("dns.example:853"); err != nil || got != "dns.example:853" {
+		t.Errorf("resolved address: got %q, %v", got, err)
+	}
+	if _, err := dial(""); err == nil {
+		t.Error("no error when every attempt failed")
+	}
+
+	// Without a cache, addr is dialed as it is
+	var none *BootstrapCache
+	conn, err := none.dial(context.Background(), "dns.example:853", func(ctx context.Context, target string) (net.Conn, error) {
+		if target != "dns.example:853" {
+			t.Errorf("dialed %q", target)
+		}
+		a, b := net.Pipe()
+		b.Close()
+		return a, nil
+	})
+	if err != nil {
+		t.Fatal(err)
+	}
+	conn.Close()
+}
@@ -2,7 +2,6 @@ package dnstt_client
 
 import (
 	"context"
-	"crypto/tls"
 	"errors"
 	"flag"
 	"fmt"
@@ -37,11 +36,50 @@ var sigChan = make(chan os.Signal, 1)
 // Must be set before creating tunnels and must match server configuration.
 var UseCompression = false
 
+// Compression, if not nil, sets the encoding mode of compressed tunnels and
+// collects their byte counts and coding time. Like UseCompression, it must
+// be set before creating tunnels.
+var Compression *turbotunnel.CompressionState
+
 // NumDNSSenders controls the number of parallel DNS query senders.
 // More senders = more parallel queries = higher throughput.
 // Default is 1 (sequential queries). Recommended: 2-4 for most cases.
 var NumDNSSenders = 1
 
+// socketProtector holds the function installed by SetSocketProtector. It is
+// read by dials on any goroutine while the app installs and removes it.
+var socketProtector atomic.Pointer[func(fd int) error]
+
+// SetSocketProtector installs protect to be called with the file descriptor
+// of every socket the transports create, before it is bound or connected.
+// On Android it keeps the tunnel's own traffic out of the VPN and on a chosen
+// physical network. A non-nil error fails the dial. nil removes it. Sockets
+// already created are not affected.
+func SetSocketProtector(protect func(fd int) error) {
+	if protect == nil {
+		socketProtector.Store(nil)
+		return
+	}
+	socketProtector.Store(&protect)
+}
+
+// socketControl is a net.Dialer and net.ListenConfig Control function that
+// passes the new socket to the protector installed by SetSocketProtector.
+func socketControl(network, address string, c syscall.RawConn) error {
+	p := socketProtector.Load()
+	if p == nil {
+		return nil
+	}
+	protect := *p
+	var err error
+	if cerr := c.Control(func(fd uintptr) {
+		err = protect(int(fd))
+	}); cerr != nil {
+		return cerr
+	}
+	return err
+}
+
 // Tunnel represents a single DNS tunnel with its own KCP, Noise, and smux session.
 type Tunnel struct {
 	pconn   net.PacketConn
@@ -69,6 +107,7 @@ type TunnelPool struct {
 	tunnels []*Tunnel
 	next    uint64 // atomic counter for round-robin
 	mu      sync.RWMutex
+	closed  bool
 }
 
 // NewTunnelPool creates a new empty tunnel pool.
@@ -78,10 +117,16 @@ func NewTunnelPool() *TunnelPool {
 	}
 }
 
-// Add adds a tunnel to the pool.
+// Add adds a tunnel to the pool. If the pool has been closed, as happens when
+// a tunnel finishes its handshake after the client stopped, the tunnel is
+// closed instead.
 func (p *TunnelPool) Add(t *Tunnel) {
 	p.mu.Lock()
 	defer p.mu.Unlock()
+	if p.closed {
+		_ = t.Close()
+		return
+	}
 	p.tunnels = append(p.tunnels, t)
 }
 
@@ -97,6 +142,21 @@ func (p *TunnelPool) Get() *Tunnel {
 	return p.tunnels[idx%uint64(len(p.tunnels))]
 }
 
+// Remove takes the most recently added tunnel out of rotation and returns it,
+// so that Get no longer hands it out. It returns nil rather than empty the
+// pool. The caller closes the tunnel, typically once NumStreams drops to
+// zero.
+func (p *TunnelPool) Remove() *Tunnel {
+	p.mu.Lock()
+	defer p.mu.Unlock()
+	if len(p.tunnels) <= 1 {
+		return nil
+	}
+	t := p.tunnels[len(p.tunnels)-1]
+	p.tunnels = p.tunnels[:len(p.tunnels)-1]
+	return t
+}
+
 // Size returns the number of tunnels in the pool.
 func (p *TunnelPool) Size() int {
 	p.mu.RLock()
@@ -112,6 +172,7 @@ func (p *TunnelPool) Close() {
 		_ = t.Close()
 	}
 	p.tunnels = nil
+	p.closed = true
 }
 
 // dnsNameCapacity returns the number of bytes remaining for encoded data after
@@ -159,15 +220,14 @@ func SampleUTLSDistribution(spec string) (*utls.ClientHelloID, error) {
 	return ids[sampleWeighted(weights)], nil
 }
 
-// createTunnel creates a single tunnel with all layers: transport → DNS → KCP → Noise → smux.
-func createTunnel(
+// newTransport opens the connection to the resolver that carries raw DNS
+// messages: DoH, DoT or plain UDP. Messages are written to and read from the
+// returned PacketConn, addressed to the returned address.
+func newTransport(
 	utlsClientHelloID *utls.ClientHelloID,
-	pubkey []byte,
-	domain dns.Name,
-	mtu int,
 	transportType string, // "doh", "dot", or "udp"
 	transportArg string,
-) (*Tunnel, error) {
+) (net.Addr, net.PacketConn, error) {
 	var remoteAddr net.Addr
 	var pconn net.PacketConn
 	var err error
@@ -179,6 +239,23 @@ func createTunnel(
 		if utlsClientHelloID == nil {
 			transport := http.DefaultTransport.(*http.Transport).Clone()
 			transport.Proxy = nil
+			// Same settings as the default dialer, plus socketControl
+			dialer := &net.Dialer{
+				Timeout:   30 * time.Second,
+				KeepAlive: 30 * time.Second,
+				Control:   socketControl,
+			}
+			transport.DialContext = func(ctx context.Context, network, addr string) (net.Conn, error) {
+				return BootstrapAddrs.dialContext(ctx, dialer, network, addr)
+			}
+			// Dial TLS here too, so a cached address that fails the
+			// handshake gives way to the others. The server name still
+			// comes from the URL, and HTTP/2 is kept by offering it by
+			// ALPN and forcing the attempt.
+			transport.DialTLSContext = func(ctx context.Context, network, addr string) (net.Conn, error) {
+				return BootstrapAddrs.dialTLSContext(ctx, dialer, network, addr, []string{"h2", "http/1.1"})
+			}
+			transport.ForceAttemptHTTP2 = true
 			rt = transport
 		} else {
 			rt = NewUTLSRoundTripper(nil, utlsClientHelloID)
@@ -190,7 +267,10 @@ func createTunnel(
 		remoteAddr = turbotunnel.DummyAddr{}
 		var dialTLSContext func(ctx context.Context, network, addr string) (net.Conn, error)
 		if utlsClientHelloID == nil {
-			dialTLSContext = (&tls.Dialer{}).DialContext
+			dialer := &net.Dialer{Control: socketControl}
+			dialTLSContext = func(ctx context.Context, network, addr string) (net.Conn, error) {
+				return BootstrapAddrs.dialTLSContext(ctx, dialer, network, addr, nil)
+			}
 		} else {
 			dialTLSContext = func(ctx context.Context, network, addr string) (net.Conn, error) {
 				return utlsDialContext(ctx, network, addr, nil, utlsClientHelloID)
@@ -201,19 +281,37 @@ func createTunnel(
 	case "udp":
 		remoteAddr, err = net.ResolveUDPAddr("udp", transportArg)
 		if err == nil {
-			pconn, err = net.ListenUDP("udp", nil)
+			lc := net.ListenConfig{Control: socketControl}
+			pconn, err = lc.ListenPacket(context.Background(), "udp", ":0")
 		}
 
 	default:
-		return nil, fmt.Errorf("unknown transport type: %s", transportType)
+		return nil, nil, fmt.Errorf("unknown transport type: %s", transportType)
+	}
+
+	if err != nil {
+		return nil, nil, fmt.Errorf("creating transport: %v", err)
 	}
+	return remoteAddr, pconn, nil
+}
 
+// createTunnel creates a single tunnel with all layers: transport → DNS → KCP → Noise → smux.
+func createTunnel(
+	utlsClientHelloID *utls.ClientHelloID,
+	pubkey []byte,
+	domain dns.Name,
+	mtu int,
+	transportType string, // "doh", "dot", or "udp"
+	transportArg string,
+	counters *PacketCounters, // may be nil
+) (*Tunnel, error) {
+	remoteAddr, pconn, err := newTransport(utlsClientHelloID, transportType, transportArg)
 	if err != nil {
-		return nil, fmt.Errorf("creating transport: %v", err)
+		return nil, err
 	}
 
 	// Wrap with DNS encoding, using parallel senders if configured
-	dnsConn := NewDNSPacketConnWithOptions(pconn, remoteAddr, domain, nil, NumDNSSenders)
+	dnsConn := newDNSPacketConn(pconn, remoteAddr, domain, nil, NumDNSSenders, counters)
 	pconn = dnsConn
 
 	// Open a KCP conn on the PacketConn
@@ -264,7 +362,7 @@ func createTunnel(
 	// Optionally wrap with compression
 	var smuxRW io.ReadWriteCloser = rw
 	if UseCompression {
-		compressedRW, err := turbotunnel.NewCompressedReadWriteCloser(rw)
+		compressedRW, err := turbotunnel.NewCompressedReadWriteCloserWithState(rw, Compression)
 		if err != nil {
 			_ = kcpConn.Close()
 			_ = pconn.Close()
@@ -455,7 +553,7 @@ func acceptLoop(ln *pt.SocksListener, utlsClientHelloID *utls.ClientHelloID, num
 				// Create tunnels in background
 				log.Printf("creating %d parallel tunnels for %s:%s", numTunnels, transportType, transportArg)
 				for i := 0; i < numTunnels; i++ {
-					tunnel, err := createTunnel(utlsClientHelloID, pubkey, domain, mtu, transportType, transportArg)
+					tunnel, err := createTunnel(utlsClientHelloID, pubkey, domain, mtu, transportType, transportArg, nil)
 					if err != nil {
 						log.Printf("failed to create tunnel %d: %v", i, err)
 						continue
@@ -677,7 +775,7 @@ func StartStandalone(
 	pool := NewTunnelPool()
 	log.Printf("creating %d parallel tunnels for %s:%s", numTunnels, transportType, transportArg)
 	for i := 0; i < numTunnels; i++ {
-		tunnel, err := createTunnel(utlsClientHelloID, pubkey, domain, mtu, transportType, transportArg)
+		tunnel, err := createTunnel(utlsClientHelloID, pubkey, domain, mtu, transportType, transportArg, nil)
 		if err != nil {
 			log.Printf("failed to create tunnel %d: %v", i, err)
 			continue
@@ -806,7 +904,7 @@ func StartWithResolverFallback(config ResolverConfig) error {
 
 		pool := NewTunnelPool()
 		for i := 0; i < config.NumTunnels; i++ {
-			tunnel, err := createTunnel(config.UTLSClientHelloID, config.Pubkey, domain, mtu, "udp", resolver)
+			tunnel, err := createTunnel(config.UTLSClientHelloID, config.Pubkey, domain, mtu, "udp", resolver, nil)
 			if err != nil {
 				log.Printf("failed to create tunnel %d: %v", i, err)
 				continue
@@ -985,7 +1083,8 @@ func ParseDomain(domainStr string) (dns.Name, error) {
 }
 
 // CreateTunnelExported creates a single tunnel with all layers.
-// This is an exported wrapper around createTunnel for mobile use.
+// This is an exported wrapper around createTunnel for mobile use. The
+// tunnel's DNS messages are counted in counters, if it is not nil.
 func CreateTunnelExported(
 	utlsClientHelloID interface{},
 	pubkey []byte,
@@ -993,6 +1092,7 @@ func CreateTunnelExported(
 	mtu int,
 	transportType string,
 	transportArg string,
+	counters *PacketCounters,
 ) (*Tunnel, error) {
 	var utlsID *utls.ClientHelloID
 	// Handle the Go interface nil gotcha: interface{}((*T)(nil)) != nil
@@ -1001,10 +1101,18 @@ func CreateTunnelExported(
 			utlsID = id
 		}
 	}
-	return createTunnel(utlsID, pubkey, domain, mtu, transportType, transportArg)
+	return createTunnel(utlsID, pubkey, domain, mtu, transportType, transportArg, counters)
 }
 
 // OpenStream opens a new stream on the tunnel's smux session.
 func (t *Tunnel) OpenStream() (net.Conn, error) {
 	return t.sess.OpenStream()
 }
+
+// NumStreams returns the number of streams open on the tunnel.
+func (t *Tunnel) NumStreams() int {
+	if t.sess == nil {
+		return 0
+	}
+	return t.sess.NumStreams()
+}
@@ -2,6 +2,9 @@ package dnstt_client
 
 import (
 	"bytes"
+	"context"
+	"errors"
+	"net"
 	"testing"
 	"www.bamsoftware.com/git/dnstt.git/dns"
 )
@@ -24,3 +27,51 @@ func TestDNSNameCapacity(t *testing.T) {
 		}
 	}
 }
+
+func TestSocketControl(t *testing.T) {
+	defer SetSocketProtector(nil)
+
+	var protected []int
+	SetSocketProtector(func(fd int) error {
+		protected = append(protected, fd)
+		return nil
+	})
+	lc := net.ListenConfig{Control: socketControl}
+	pconn, err := lc.ListenPacket(context.Background(), "udp", "127.0.0.1:0")
+	if err != nil {
+		t.Fatal(err)
+	}
+	pconn.Close()
+	if len(protected) != 1 || protected[0] < 0 {
+		t.Fatalf("protector saw %v, expected one socket", protected)
+	}
+
+	// A protector error fails the socket
+	SetSocketProtector(func(fd int) error {
+		return errors.New("no network")
+	})
+	if pconn, err := lc.ListenPacket(context.Background(), "udp", "127.0.0.1:0"); err == nil {
+		pconn.Close()
+		t.Fatal("ListenPacket succeeded despite protector error")
+	}
+}
+
+func TestTunnelPoolRemove(t *testing.T) {
+	pool := NewTunnelPool()
+	a, b := &Tunnel{}, &Tunnel{}
+	pool.Add(a)
+	pool.Add(b)
+	if got := pool.Remove(); got != b {
+		t.Fatalf("Remove returned %p, expected the last tunnel added %p", got, b)
+	}
+	if pool.Size() != 1 || pool.Get() != a {
+		t.Fatalf("pool has %d tunnels after Remove, expected only the first", pool.Size())
+	}
+	// The last tunnel stays
+	if got := pool.Remove(); got != nil {
+		t.Fatalf("Remove emptied the pool")
+	}
+	if n := b.NumStreams(); n != 0 {
+		t.Fatalf("tunnel without a session has %d streams", n)
+	}
+}
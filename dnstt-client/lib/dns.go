@@ -9,6 +9,7 @@ import (
 	"io"
 	"log"
 	"net"
+	"sync/atomic"
 	"time"
 
 	"www.bamsoftware.com/git/dnstt.git/dns"
@@ -53,6 +54,36 @@ const (
 // base32Encoding is a base32 encoding without padding.
 var base32Encoding = base32.StdEncoding.WithPadding(base32.NoPadding)
 
+// PacketCounters counts the DNS messages of the tunnels created with it, so
+// that an application can tell its tunnels' traffic apart from other
+// queries made in the same process. The zero value is ready to use, and
+// methods on a nil *PacketCounters do nothing.
+type PacketCounters struct {
+	sent       uint64
+	received   uint64
+	sendErrors uint64
+}
+
+// Load returns the number of DNS queries sent, DNS responses received, and
+// failed query sends.
+func (pc *PacketCounters) Load() (sent, received, sendErrors uint64) {
+	if pc == nil {
+		return 0, 0, 0
+	}
+	return atomic.LoadUint64(&pc.sent),
+		atomic.LoadUint64(&pc.received),
+		atomic.LoadUint64(&pc.sendErrors)
+}
+
+func (pc *PacketCounters) count(sent, received, sendErrors uint64) {
+	if pc == nil {
+		return
+	}
+	atomic.AddUint64(&pc.sent, sent)
+	atomic.AddUint64(&pc.received, received)
+	atomic.AddUint64(&pc.sendErrors, sendErrors)
+}
+
 // KCPStateFunc is a callback that returns the number of packets waiting to be sent in KCP.
 // This is used for pacing-based polling.
 type KCPStateFunc func() int
@@ -83,6 +114,8 @@ type DNSPacketConn struct {
 	// numSenders is the number of parallel sendLoop goroutines.
 	// More senders = more parallel DNS queries = higher throughput.
 	numSenders int
+	// counters, if not nil, counts the messages sent and received.
+	counters *PacketCounters
 	// QueuePacketConn is the direct receiver of ReadFrom and WriteTo calls.
 	// recvLoop and sendLoop take the messages out of the receive and send
 	// queues and actually put them on the network.
@@ -115,6 +148,12 @@ func NewDNSPacketConnWithPacing(transport net.PacketConn, addr net.Addr, domain
 // More senders = more parallel queries = higher throughput, but also more load on resolver.
 // Recommended: 1-4 senders for UDP, 2-8 for DoH/DoT.
 func NewDNSPacketConnWithOptions(transport net.PacketConn, addr net.Addr, domain dns.Name, kcpStateFunc KCPStateFunc, numSenders int) *DNSPacketConn {
+	return newDNSPacketConn(transport, addr, domain, kcpStateFunc, numSenders, nil)
+}
+
+// newDNSPacketConn is NewDNSPacketConnWithOptions with the messages counted
+// in counters, which may be nil.
+func newDNSPacketConn(transport net.PacketConn, addr net.Addr, domain dns.Name, kcpStateFunc KCPStateFunc, numSenders int, counters *PacketCounters) *DNSPacketConn {
 	if numSenders < 1 {
 		numSenders = DefaultNumSenders
 	}
@@ -127,6 +166,7 @@ func NewDNSPacketConnWithOptions(transport net.PacketConn, addr net.Addr, domain
 		pollChan:        make(chan struct{}, pollLimit),
 		kcpStateFunc:    kcpStateFunc,
 		numSenders:      numSenders,
+		counters:        counters,
 		QueuePacketConn: turbotunnel.NewQueuePacketConn(clientID, 0),
 	}
 	go func() {
@@ -257,6 +297,7 @@ func (c *DNSPacketConn) recvLoop(transport net.PacketConn) error {
 			log.Printf("MessageFromWireFormat: %v", err)
 			continue
 		}
+		c.counters.count(0, 1, 0)
 
 		payload := dnsResponsePayload(&resp, c.domain)
 
@@ -385,6 +426,11 @@ func (c *DNSPacketConn) send(transport net.PacketConn, p []byte, addr net.Addr)
 	}
 
 	_, err = transport.WriteTo(buf, addr)
+	if err != nil {
+		c.counters.count(0, 0, 1)
+	} else {
+		c.counters.count(1, 0, 0)
+	}
 	return err
 }
 
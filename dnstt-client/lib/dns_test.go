@@ -50,3 +50,21 @@ func TestNextPacket(t *testing.T) {
 		}
 	}
 }
+
+func TestPacketCounters(t *testing.T) {
+	var pc PacketCounters
+	pc.count(1, 0, 0)
+	pc.count(1, 0, 0)
+	pc.count(0, 1, 0)
+	pc.count(0, 0, 1)
+	if sent, received, sendErrors := pc.Load(); sent != 2 || received != 1 || sendErrors != 1 {
+		t.Errorf("got %d %d %d, expected 2 1 1", sent, received, sendErrors)
+	}
+
+	// Connections made without counters don't count anywhere
+	var none *PacketCounters
+	none.count(1, 1, 1)
+	if sent, received, sendErrors := none.Load(); sent != 0 || received != 0 || sendErrors != 0 {
+		t.Errorf("nil counters: got %d %d %d", sent, received, sendErrors)
+	}
+}
@@ -60,7 +60,7 @@ func TestDNSResolver(resolver string, domain dns.Name, timeout time.Duration) Re
 	ctx, cancel := context.WithTimeout(context.Background(), timeout)
 	defer cancel()
 
-	var d net.Dialer
+	d := net.Dialer{Control: socketControl}
 	conn, err := d.DialContext(ctx, "udp", resolver)
 	if err != nil {
 		result.Error = fmt.Sprintf("dial error: %v", err)
@@ -299,42 +299,65 @@ func TestTunnelConnection(
 		return fmt.Errorf("invalid domain: %v", err)
 	}
 
-	// Calculate MTU
-	mtu := dnsNameCapacity(domainName) - 8 - 1 - numPadding - 1
-	if mtu < 80 {
-		return fmt.Errorf("domain too long, MTU only %d bytes", mtu)
-	}
-
 	// Ensure resolver has port
 	if !strings.Contains(resolver, ":") {
 		resolver = resolver + ":53"
 	}
 
+	_, err = TestTunnelTransport("udp", resolver, domainName, pubkey, utlsClientHelloID, timeout)
+	return err
+}
+
+// TestTunnelTransport is TestTunnelConnection over any transport: "udp",
+// "doh" or "dot", with transportAddr as for createTunnel. On success it
+// returns how long the tunnel took to come up, Noise handshake included.
+func TestTunnelTransport(
+	transportType string,
+	transportAddr string,
+	domain dns.Name,
+	pubkey []byte,
+	utlsClientHelloID *utls.ClientHelloID,
+	timeout time.Duration,
+) (time.Duration, error) {
+	// Calculate MTU
+	mtu := dnsNameCapacity(domain) - 8 - 1 - numPadding - 1
+	if mtu < 80 {
+		return 0, fmt.Errorf("domain too long, MTU only %d bytes", mtu)
+	}
+
 	// Create tunnel with timeout context
-	done := make(chan error, 1)
-	var tunnel *Tunnel
+	type result struct {
+		tunnel *Tunnel
+		err    error
+	}
+	done := make(chan result, 1)
+	start := time.Now()
 
 	go func() {
-		var err error
-		tunnel, err = createTunnel(utlsClientHelloID, pubkey, domainName, mtu, "udp", resolver)
-		done <- err
+		tunnel, err := createTunnel(utlsClientHelloID, pubkey, domain, mtu, transportType, transportAddr, nil)
+		done <- result{tunnel, err}
 	}()
 
+	timer := time.NewTimer(timeout)
+	defer timer.Stop()
 	select {
-	case err := <-done:
-		if err != nil {
-			return fmt.Errorf("tunnel creation failed: %v", err)
+	case r := <-done:
+		if r.err != nil {
+			return 0, fmt.Errorf("tunnel creation failed: %v", r.err)
 		}
-	case <-time.After(timeout):
-		return fmt.Errorf("timeout waiting for tunnel connection")
-	}
-
-	// Tunnel created successfully, close it
-	if tunnel != nil {
-		_ = tunnel.Close()
+		elapsed := time.Since(start)
+		// Tunnel created successfully, close it
+		_ = r.tunnel.Close()
+		return elapsed, nil
+	case <-timer.C:
+		// Close the tunnel if it comes up after all
+		go func() {
+			if r := <-done; r.tunnel != nil {
+				_ = r.tunnel.Close()
+			}
+		}()
+		return 0, fmt.Errorf("timeout waiting for tunnel connection")
 	}
-
-	return nil
 }
 
 // TunnelTestResult holds the result of a tunnel connection test
@@ -0,0 +1,270 @@
+package dnstt_client
+
+// Response size discovery.
+//
+// The server sizes its responses for the common case (1232 bytes, which it
+// never exceeds), but some resolver paths truncate or drop responses well
+// below that. A client can ask the server for smaller responses
+// with a "mtu-N" label just before the tunnel domain, and can ask for a probe
+// response of exactly N bytes with "probe-XXXX.mtu-N.DOMAIN". Probing a range
+// of sizes through a resolver shows the largest response that makes it back
+// whole. Servers that predate this answer probes with NXDOMAIN.
+
+import (
+	"crypto/rand"
+	"encoding/binary"
+	"errors"
+	"fmt"
+	"sync"
+	"time"
+
+	utls "github.com/refraction-networking/utls"
+	"www.bamsoftware.com/git/dnstt.git/dns"
+)
+
+const (
+	// Must match the server.
+	sizeLabelPrefix  = "mtu-"
+	probeLabelPrefix = "probe-"
+
+	// Each size is probed this many times, so one lost packet doesn't
+	// count against it.
+	probesPerSize = 2
+)
+
+// DefaultResponseSize is the largest response the server sends, and what it
+// sends without a size label. Must match the server's maxUDPPayload.
+const DefaultResponseSize = 1232
+
+// probeSizes are the response sizes ProbeResponseSize tries. Larger sizes
+// than DefaultResponseSize couldn't change what the server sends.
+var probeSizes = []int{512, 768, 900, 1024, DefaultResponseSize}
+
+// ErrSizeProbeUnsupported is returned by ProbeResponseSize when the server
+// doesn't know size probes.
+var ErrSizeProbeUnsupported = errors.New("server does not answer size probes")
+
+// WithSizeLabel returns domain prefixed with the label that asks the server
+// for responses of at most size bytes. Tunnels created with the returned name
+// as their domain get responses the path can carry; the label takes a few
+// bytes from each query's capacity, which DNSNameCapacity accounts for.
+func WithSizeLabel(domain dns.Name, size int) dns.Name {
+	labeled := make(dns.Name, 0, len(domain)+1)
+	labeled = append(labeled, []byte(fmt.Sprintf("%s%d", sizeLabelPrefix, size)))
+	return append(labeled, domain...)
+}
+
+// ProbeResponseSize finds the largest response, out of probeSizes, that
+// arrives whole through the given transport and resolver, sending all probes
+// at once and waiting at most timeout for them.
+func ProbeResponseSize(
+	utlsClientHelloID *utls.ClientHelloID,
+	domain dns.Name,
+	transportType string,
+	transportArg string,
+	timeout time.Duration,
+) (int, error) {
+	remoteAddr, pconn, err := newTransport(utlsClientHelloID, transportType, transportArg)
+	if err != nil {
+		return 0, err
+	}
+	defer pconn.Close()
+
+	// Query ID -> size probed
+	pending := make(map[uint16]int)
+	for _, size := range probeSizes {
+		for i := 0; i < probesPerSize; i++ {
+			query, id, err := sizeProbeQuery(domain, size)
+			if err != nil {
+				return 0, err
+			}
+			if _, dup := pending[id]; dup {
+				continue
+			}
+			pending[id] = size
+			if _, err := pconn.WriteTo(query, remoteAddr); err != nil {
+				return 0, fmt.Errorf("sending probe: %v", err)
+			}
+		}
+	}
+
+	var mu sync.Mutex
+	best := 0
+	unsupported := false
+	done := make(chan struct{})
+	// Close the transport at the deadline to end the read loop
+	timer := time.AfterFunc(timeout, func() { pconn.Close() })
+	defer timer.Stop()
+
+	go func() {
+		defer close(done)
+		buf := make([]byte, 65535)
+		for {
+			n, _, err := pconn.ReadFrom(buf)
+			if err != nil {
+				return
+			}
+			resp, err := dns.MessageFromWireFormat(buf[:n])
+			if err != nil || resp.Flags&0x8000 == 0 {
+				continue
+			}
+			mu.Lock()
+			size, ok := pending[resp.ID]
+			if ok {
+				delete(pending, resp.ID)
+				switch {
+				case resp.Rcode() == dns.RcodeNameError:
+					unsupported = true
+				case sizeProbeIntact(&resp) && size > best:
+					best = size
+				}
+			}
+			// Done once nothing larger than best is outstanding
+			finished := unsupported
+			if !finished {
+				finished = true
+				for _, s := range pending {
+					if s > best {
+						finished = false
+						break
+					}
+				}
+			}
+			mu.Unlock()
+			if finished {
+				pconn.Close()
+				return
+			}
+		}
+	}()
+	<-done
+
+	mu.Lock()
+	defer mu.Unlock()
+	if best > 0 {
+		return best, nil
+	}
+	if unsupported {
+		return 0, ErrSizeProbeUnsupported
+	}
+	return 0, errors.New("no size probe was answered")
+}
+
+// MeasureResponseRate sends count probes for size-byte responses at once
+// through the given transport and resolver, and returns the rate at which
+// whole responses came back, in bytes per second. It measures how fast the
+// path can carry the downstream half of a tunnel, which is where most of a
+// tunnel's traffic goes.
+func MeasureResponseRate(
+	utlsClientHelloID *utls.ClientHelloID,
+	domain dns.Name,
+	transportType string,
+	transportArg string,
+	size int,
+	count int,
+	timeout time.Duration,
+) (float64, error) {
+	remoteAddr, pconn, err := newTransport(utlsClientHelloID, transportType, transportArg)
+	if err != nil {
+		return 0, err
+	}
+	defer pconn.Close()
+
+	pending := make(map[uint16]bool)
+	start := time.Now()
+	for i := 0; i < count; i++ {
+		query, id, err := sizeProbeQuery(domain, size)
+		if err != nil {
+			return 0, err
+		}
+		if pending[id] {
+			continue
+		}
+		pending[id] = true
+		if _, err := pconn.WriteTo(query, remoteAddr); err != nil {
+			return 0, fmt.Errorf("sending probe: %v", err)
+		}
+	}
+
+	// Close the transport at the deadline to end the read loop
+	timer := time.AfterFunc(timeout, func() { pconn.Close() })
+	defer timer.Stop()
+
+	received := 0
+	var last time.Time
+	buf := make([]byte, 65535)
+	for len(pending) > 0 {
+		n, _, err := pconn.ReadFrom(buf)
+		if err != nil {
+			break
+		}
+		resp, err := dns.MessageFromWireFormat(buf[:n])
+		if err != nil || resp.Flags&0x8000 == 0 || !pending[resp.ID] {
+			continue
+		}
+		delete(pending, resp.ID)
+		if resp.Rcode() == dns.RcodeNameError {
+			return 0, ErrSizeProbeUnsupported
+		}
+		if sizeProbeIntact(&resp) {
+			received += n
+			last = time.Now()
+		}
+	}
+	if received == 0 {
+		return 0, errors.New("no probe response arrived whole")
+	}
+	return float64(received) / last.Sub(start).Seconds(), nil
+}
+
+// sizeProbeQuery returns a query for a probe response of size bytes, and its
+// ID.
+func sizeProbeQuery(domain dns.Name, size int) ([]byte, uint16, error) {
+	var nonce [6]byte
+	if _, err := rand.Read(nonce[:]); err != nil {
+		return nil, 0, err
+	}
+	name, err := dns.NewName(append(dns.Name{
+		[]byte(fmt.Sprintf("%s%x", probeLabelPrefix, nonce)),
+	}, WithSizeLabel(domain, size)...))
+	if err != nil {
+		return nil, 0, err
+	}
+	id := binary.BigEndian.Uint16(nonce[:2])
+	query := &dns.Message{
+		ID:    id,
+		Flags: 0x0100, // QR = 0, RD = 1
+		Question: []dns.Question{
+			{
+				Name:  name,
+				Type:  dns.RRTypeTXT,
+				Class: dns.ClassIN,
+			},
+		},
+		// EDNS(0), advertising room for the largest probe
+		Additional: []dns.RR{
+			{
+				Name:  dns.Name{},
+				Type:  dns.RRTypeOPT,
+				Class: 4096, // requester's UDP payload size
+				TTL:   0,    // extended RCODE and flags
+				Data:  []byte{},
+			},
+		},
+	}
+	buf, err := query.WireFormat()
+	return buf, id, err
+}
+
+// sizeProbeIntact reports whether resp is a complete probe response: not
+// truncated, and with TXT data as long as its own 2-byte length prefix says.
+func sizeProbeIntact(resp *dns.Message) bool {
+	if resp.Flags&0x0200 != 0 || resp.Rcode() != dns.RcodeNoError || len(resp.Answer) != 1 {
+		return false
+	}
+	data, err := dns.DecodeRDataTXT(resp.Answer[0].Data)
+	if err != nil || len(data) < 2 {
+		return false
+	}
+	return int(binary.BigEndian.Uint16(data)) == len(data)
+}
@@ -0,0 +1,46 @@
+package dnstt_client
+
+import (
+	"encoding/binary"
+	"testing"
+
+	"www.bamsoftware.com/git/dnstt.git/dns"
+)
+
+func TestWithSizeLabel(t *testing.T) {
+	domain, err := dns.ParseName("t.example.com")
+	if err != nil {
+		t.Fatal(err)
+	}
+	labeled := WithSizeLabel(domain, 900)
+	if got := labeled.String(); got != "mtu-900.t.example.com" {
+		t.Errorf("got %s", got)
+	}
+	if DNSNameCapacity(labeled) >= DNSNameCapacity(domain) {
+		t.Errorf("label did not reduce name capacity")
+	}
+}
+
+func TestSizeProbeIntact(t *testing.T) {
+	probe := func(data []byte, flags uint16) *dns.Message {
+		return &dns.Message{
+			Flags:  0x8000 | flags,
+			Answer: []dns.RR{{Type: dns.RRTypeTXT, Class: dns.ClassIN, Data: dns.EncodeRDataTXT(data)}},
+		}
+	}
+	data := make([]byte, 700)
+	binary.BigEndian.PutUint16(data, uint16(len(data)))
+
+	if !sizeProbeIntact(probe(data, 0)) {
+		t.Error("complete probe response rejected")
+	}
+	if sizeProbeIntact(probe(data, 0x0200)) {
+		t.Error("truncated (TC) probe response accepted")
+	}
+	if sizeProbeIntact(probe(data[:500], 0)) {
+		t.Error("shortened probe response accepted")
+	}
+	if sizeProbeIntact(probe(data, dns.RcodeNameError)) {
+		t.Error("NXDOMAIN accepted")
+	}
+}
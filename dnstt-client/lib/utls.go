@@ -65,33 +65,42 @@ func utlsDialContext(ctx context.Context, network, addr string, config *utls.Con
 		}
 		config.ServerName = host
 	}
-	dialer := &net.Dialer{}
-	conn, err := dialer.DialContext(ctx, network, addr)
-	if err != nil {
-		return nil, err
-	}
-	uconn := utls.UClient(conn, config, *id)
-	// Manually remove the SNI if it contains an IP address.
-	// https://github.com/refraction-networking/utls/issues/96
-	if net.ParseIP(config.ServerName) != nil {
-		err := uconn.RemoveSNIExtension()
+	dialer := &net.Dialer{Control: socketControl}
+	// The handshake is part of each attempt, so a cached address that
+	// fails it gives way to the others (see BootstrapCache.dial).
+	conn, err := BootstrapAddrs.dial(ctx, addr, func(ctx context.Context, target string) (net.Conn, error) {
+		conn, err := dialer.DialContext(ctx, network, target)
+		if err != nil {
+			return nil, err
+		}
+		uconn := utls.UClient(conn, config, *id)
+		// Manually remove the SNI if it contains an IP address.
+		// https://github.com/refraction-networking/utls/issues/96
+		if net.ParseIP(config.ServerName) != nil {
+			err := uconn.RemoveSNIExtension()
+			if err != nil {
+				_ = uconn.Close()
+				return nil, err
+			}
+		}
+		// We must call Handshake before returning, or else the UConn may
+		// not actually use the selected ClientHelloID. It depends on
+		// whether a Read or a Write happens first. If a Read happens
+		// first, the connection will use the normal crypto/tls
+		// fingerprint. If a Write happens first, it will use the selected
+		// fingerprint as expected.
+		// https://github.com/refraction-networking/utls/issues/75
+		err = uconn.Handshake()
 		if err != nil {
 			_ = uconn.Close()
 			return nil, err
 		}
-	}
-	// We must call Handshake before returning, or else the UConn may not
-	// actually use the selected ClientHelloID. It depends on whether a Read
-	// or a Write happens first. If a Read happens first, the connection
-	// will use the normal crypto/tls fingerprint. If a Write happens first,
-	// it will use the selected fingerprint as expected.
-	// https://github.com/refraction-networking/utls/issues/75
-	err = uconn.Handshake()
+		return uconn, nil
+	})
 	if err != nil {
-		_ = uconn.Close()
 		return nil, err
 	}
-	return uconn, nil
+	return conn.(*utls.UConn), nil
 }
 
 // The goal of utlsRoundTripper is: provide an http.RoundTripper abstraction
@@ -0,0 +1,82 @@
+package mobile
+
+// Transport benchmarking, for ranking DoH providers: the tunnel handshake
+// time and downstream rate through each candidate, all measured at once.
+
+import (
+	"log"
+	"sync"
+	"time"
+
+	dnstt "www.bamsoftware.com/git/dnstt.git/dnstt-client/lib"
+	"www.bamsoftware.com/git/dnstt.git/noise"
+)
+
+const (
+	// The downstream rate is measured with this many probe responses of
+	// this size, sent at once. 1024 bytes passes almost every resolver.
+	benchmarkProbeSize  = 1024
+	benchmarkProbeCount = 32
+)
+
+// BenchmarkCallback receives the results of BenchmarkTransports.
+type BenchmarkCallback interface {
+	// OnBenchmarkResult is called once per candidate, from any goroutine.
+	// handshakeMs is -1 if no tunnel came up, and errorMsg then says why.
+	// bytesPerSecond is the downstream rate, 0 if it couldn't be measured
+	// (the server doesn't answer size probes, or none came back).
+	OnBenchmarkResult(candidate string, handshakeMs, bytesPerSecond int64, errorMsg string)
+}
+
+// BenchmarkTransports measures every candidate at once and returns when all
+// are done. candidates are "type address" lines as for RaceTransports, and
+// timeoutMs bounds each of the two measurements of each candidate.
+func BenchmarkTransports(candidates string, domain string, pubkeyHex string, timeoutMs int64, callback BenchmarkCallback) error {
+	list := parseRaceCandidates(candidates)
+	domainName, err := dnstt.ParseDomain(domain)
+	if err != nil {
+		return err
+	}
+	pubkey, err := noise.DecodeKey(pubkeyHex)
+	if err != nil {
+		return err
+	}
+	timeout := time.Duration(timeoutMs) * time.Millisecond
+	if timeout < 1*time.Second {
+		timeout = 10 * time.Second
+	}
+	log.Printf("benchmark: %d candidates", len(list))
+
+	sem := make(chan struct{}, maxRacers)
+	var wg sync.WaitGroup
+	for _, cand := range list {
+		wg.Add(1)
+		go func(cand raceCandidate) {
+			defer wg.Done()
+			sem <- struct{}{}
+			defer func() { <-sem }()
+
+			// Standard TLS, as tunnels use on Android
+			rtt, err := dnstt.TestTunnelTransport(cand.transportType, cand.transportAddr,
+				domainName, pubkey, nil, timeout)
+			if err != nil {
+				log.Printf("benchmark: %s failed: %v", cand, err)
+				if callback != nil {
+					callback.OnBenchmarkResult(cand.String(), -1, 0, err.Error())
+				}
+				return
+			}
+			rate, err := dnstt.MeasureResponseRate(nil, domainName, cand.transportType, cand.transportAddr,
+				benchmarkProbeSize, benchmarkProbeCount, timeout)
+			if err != nil {
+				log.Printf("benchmark: %s: rate not measured: %v", cand, err)
+			}
+			log.Printf("benchmark: %s handshake %dms, %.0f B/s", cand, rtt.Milliseconds(), rate)
+			if callback != nil {
+				callback.OnBenchmarkResult(cand.String(), rtt.Milliseconds(), int64(rate), "")
+			}
+		}(cand)
+	}
+	wg.Wait()
+	return nil
+}
@@ -0,0 +1,127 @@
+package mobile
+
+// Bootstrap addresses of DoH and DoT servers (see dnstt.BootstrapCache).
+// The mobile client installs the cache, starting from the published
+// addresses of the providers the app offers. The app saves it between runs;
+// once connected, it is refreshed through the tunnel, where the system
+// resolver can't interfere.
+
+import (
+	"context"
+	"log"
+	"net"
+	"net/url"
+	"strings"
+	"time"
+
+	dnstt "www.bamsoftware.com/git/dnstt.git/dnstt-client/lib"
+)
+
+const (
+	// bootstrapRefreshDelay lets the first connections through a new
+	// tunnel go ahead of the refresh queries.
+	bootstrapRefreshDelay = 10 * time.Second
+	// bootstrapRefreshUpstream answers the refresh queries when the DNS
+	// stub, and so its upstream, is off.
+	bootstrapRefreshUpstream = "1.1.1.1:53"
+)
+
+// defaultBootstrapAddrs are the published anycast addresses of the DoH and
+// DoT providers the Android app offers. Providers whose addresses depend on
+// where they are resolved from are left to the refresh.
+var defaultBootstrapAddrs = map[string][]string{
+	"dns.google":          {"8.8.8.8", "8.8.4.4"},
+	"cloudflare-dns.com":  {"104.16.248.249", "104.16.249.249"},
+	"one.one.one.one":     {"1.1.1.1", "1.0.0.1"},
+	"dns.quad9.net":       {"9.9.9.9", "149.112.112.112"},
+	"dns.adguard.com":     {"94.140.14.14", "94.140.15.15"},
+	"dns.adguard-dns.com": {"94.140.14.14", "94.140.15.15"},
+	"doh.opendns.com":     {"146.112.41.2"},
+}
+
+func init() {
+	cache := dnstt.NewBootstrapCache()
+	for host, addrs := range defaultBootstrapAddrs {
+		var ips []net.IP
+		for _, addr := range addrs {
+			ips = append(ips, net.ParseIP(addr))
+		}
+		cache.Set(host, ips)
+	}
+	dnstt.BootstrapAddrs = cache
+}
+
+// LoadBootstrapAddrs adds addresses saved from GetBootstrapAddrs to the
+// cache the DoH and DoT transports connect through.
+func LoadBootstrapAddrs(addrs string) {
+	dnstt.BootstrapAddrs.Load(addrs)
+}
+
+// GetBootstrapAddrs returns the cache the DoH and DoT transports connect
+// through, one "host address..." line per hostname, for saving.
+func GetBootstrapAddrs() string {
+	return dnstt.BootstrapAddrs.String()
+}
+
+// BootstrapAddrsFor returns the cached addresses of host separated by
+// spaces, or "" if there are none.
+func BootstrapAddrsFor(host string) string {
+	var addrs []string
+	for _, ip := range dnstt.BootstrapAddrs.Lookup(host) {
+		addrs = append(addrs, ip.String())
+	}
+	return strings.Join(addrs, " ")
+}
+
+// transportHost returns the hostname a DoH or DoT transport connects to,
+// or "" for UDP and addresses that aren't hostnames.
+func transportHost(transportType, transportAddr string) string {
+	var host string
+	switch transportType {
+	case "doh":
+		u, err := url.Parse(transportAddr)
+		if err != nil {
+			return ""
+		}
+		host = u.Hostname()
+	case "dot":
+		h, _, err := net.SplitHostPort(transportAddr)
+		if err != nil {
+			return ""
+		}
+		host = h
+	}
+	if net.ParseIP(host) != nil {
+		return ""
+	}
+	return host
+}
+
+// bootstrapRefresher refreshes the bootstrap addresses, and adds those of the
+// current transport's host, through the tunnel a little after connecting.
+func (c *Client) bootstrapRefresher(ctx context.Context) {
+	select {
+	case <-ctx.Done():
+		return
+	case <-time.After(bootstrapRefreshDelay):
+	}
+
+	pool := c.currentPool()
+	if pool == nil {
+		return
+	}
+	c.mu.Lock()
+	upstream := c.dnsUpstream
+	extra := []string{transportHost(c.params.transportType, c.params.transportAddr)}
+	c.mu.Unlock()
+	if upstream == "" {
+		upstream = bootstrapRefreshUpstream
+	}
+	n := dnstt.BootstrapAddrs.Refresh(extra, func(query []byte) ([]byte, error) {
+		if err := ctx.Err(); err != nil {
+			return nil, err
+		}
+		return forwardDNS(pool, upstream, query)
+	})
+	log.Printf("bootstrap: refreshed the addresses of %d hosts through the tunnel", n)
+}
@@ -0,0 +1,22 @@
+package mobile
+
+import "testing"
+
+func TestTransportHost(t *testing.T) {
+	for _, test := range []struct {
+		transportType, transportAddr string
+		expected                     string
+	}{
+		{"doh", "https://dns.google/dns-query", "dns.google"},
+		{"doh", "https://cloudflare-dns.com:443/dns-query", "cloudflare-dns.com"},
+		{"doh", "https://1.1.1.1/dns-query", ""},
+		{"dot", "dns.quad9.net:853", "dns.quad9.net"},
+		{"dot", "[2606:4700:4700::1111]:853", ""},
+		{"dot", "dns.quad9.net", ""},
+		{"udp", "8.8.8.8:53", ""},
+	} {
+		if got := transportHost(test.transportType, test.transportAddr); got != test.expected {
+			t.Errorf("%s %s: got %q, expected %q", test.transportType, test.transportAddr, got, test.expected)
+		}
+	}
+}
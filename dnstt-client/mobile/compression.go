@@ -0,0 +1,129 @@
+package mobile
+
+// Compression mode selection.
+//
+// zstd is a large win for text and pure CPU cost for traffic that is already
+// compressed, such as HTTPS bodies and video. In CompressionAuto the client
+// measures what it sends and picks the mode for the session: zstd's fastest
+// level to begin with, its default level when the data compresses well and
+// encoding is cheap, and raw blocks when the data doesn't compress at all.
+// All modes are zstd streams, so the server decodes them without being told.
+// Traffic from the server is compressed as the server is configured; it is
+// measured and reported, but not controlled from here.
+
+import (
+	"context"
+	"log"
+	"time"
+
+	"www.bamsoftware.com/git/dnstt.git/turbotunnel"
+)
+
+// Compression modes accepted by Config.SetCompressionMode. They apply only
+// with Config.SetUseZstd(true), which must match the server's -zstd.
+const (
+	// CompressionAuto picks one of the others from measurements.
+	CompressionAuto = "auto"
+	// CompressionFast always uses zstd's fastest level; the default.
+	CompressionFast = "fast"
+	// CompressionStrong uses zstd's default level: smaller, more CPU.
+	CompressionStrong = "strong"
+	// CompressionStore sends zstd framing without compressing.
+	CompressionStore = "store"
+)
+
+const (
+	compressionReportInterval = 5 * time.Second
+	// Raw bytes sent that a decision needs, so a few small writes don't
+	// decide for the whole session
+	compressionMinSample = 64 * 1024
+	// Nothing is learned in store mode, so compressing is tried again
+	// after this long
+	compressionRetryStore = 2 * time.Minute
+	// Wire bytes per raw byte above which compressing isn't worth it
+	incompressibleRatio = 0.95
+	// Below this ratio the stronger level is tried, if encoding is cheap
+	compressibleRatio = 0.6
+	// Encoding cost per raw byte above which the stronger level is given up
+	maxStrongEncodeNsPerByte = 40
+)
+
+// parseCompressionMode returns the mode to start with for a Config mode
+// name, and whether it is to be tuned.
+func parseCompressionMode(name string) (turbotunnel.CompressionMode, bool) {
+	switch name {
+	case CompressionAuto:
+		return turbotunnel.CompressionFastest, true
+	case CompressionStrong:
+		return turbotunnel.CompressionDefault, false
+	case CompressionStore:
+		return turbotunnel.CompressionStore, false
+	}
+	return turbotunnel.CompressionFastest, false
+}
+
+// chooseCompressionMode returns the mode to use next, given the current one
+// and what was sent in it since the last decision.
+func chooseCompressionMode(mode turbotunnel.CompressionMode, rawOut, wireOut int64, encodeTime time.Duration) turbotunnel.CompressionMode {
+	if mode == turbotunnel.CompressionStore || rawOut < compressionMinSample {
+		return mode
+	}
+	ratio := float64(wireOut) / float64(rawOut)
+	nsPerByte := float64(encodeTime.Nanoseconds()) / float64(rawOut)
+	switch {
+	case ratio > incompressibleRatio:
+		return turbotunnel.CompressionStore
+	case mode == turbotunnel.CompressionFastest && ratio < compressibleRatio && nsPerByte < maxStrongEncodeNsPerByte/2:
+		return turbotunnel.CompressionDefault
+	case mode == turbotunnel.CompressionDefault && nsPerByte > maxStrongEncodeNsPerByte:
+		return turbotunnel.CompressionFastest
+	}
+	return mode
+}
+
+// compressionMonitor reports the session's compression counters every few
+// seconds and, if auto is set, changes the mode as the measurements direct.
+func (c *Client) compressionMonitor(ctx context.Context, state *turbotunnel.CompressionState, auto bool) {
+	ticker := time.NewTicker(compressionReportInterval)
+	defer ticker.Stop()
+
+	// Counters at the start of the current sample
+	base := state.Stats()
+	modeSince := time.Now()
+	for {
+		select {
+		case <-ctx.Done():
+			return
+		case <-ticker.C:
+		}
+
+		stats := state.Stats()
+		mode := state.Mode()
+		if auto {
+			next := chooseCompressionMode(mode, stats.RawOut-base.RawOut,
+				stats.WireOut-base.WireOut, stats.EncodeTime-base.EncodeTime)
+			if mode == turbotunnel.CompressionStore && time.Since(modeSince) >= compressionRetryStore {
+				next = turbotunnel.CompressionFastest
+			}
+			// Each sample covers one mode; store mode has nothing to sample
+			if next != mode || next == turbotunnel.CompressionStore ||
+				stats.RawOut-base.RawOut >= compressionMinSample {
+				base = stats
+			}
+			if next != mode {
+				log.Printf("compression: %s -> %s", mode, next)
+				state.SetMode(next)
+				mode = next
+				modeSince = time.Now()
+			}
+		}
+
+		c.mu.Lock()
+		cb := c.callback
+		c.mu.Unlock()
+		if cb != nil {
+			cb.OnCompressionStats(stats.RawOut, stats.WireOut, stats.RawIn, stats.WireIn,
+				(stats.EncodeTime + stats.DecodeTime).Milliseconds(), mode.String())
+		}
+	}
+}
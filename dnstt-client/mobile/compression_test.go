@@ -0,0 +1,51 @@
+package mobile
+
+import (
+	"testing"
+	"time"
+
+	"www.bamsoftware.com/git/dnstt.git/turbotunnel"
+)
+
+func TestChooseCompressionMode(t *testing.T) {
+	const raw = 1 << 20
+	for _, test := range []struct {
+		mode       turbotunnel.CompressionMode
+		rawOut     int64
+		wireOut    int64
+		encodeTime time.Duration
+		expected   turbotunnel.CompressionMode
+	}{
+		// Too little data to judge
+		{turbotunnel.CompressionFastest, 1000, 1000, 0, turbotunnel.CompressionFastest},
+		// Already compressed
+		{turbotunnel.CompressionFastest, raw, raw, 5 * time.Millisecond, turbotunnel.CompressionStore},
+		{turbotunnel.CompressionDefault, raw, raw, 5 * time.Millisecond, turbotunnel.CompressionStore},
+		// Compresses well and cheaply: try harder
+		{turbotunnel.CompressionFastest, raw, raw / 4, 5 * time.Millisecond, turbotunnel.CompressionDefault},
+		// Compresses well but encoding is slow
+		{turbotunnel.CompressionFastest, raw, raw / 4, 30 * time.Millisecond, turbotunnel.CompressionFastest},
+		{turbotunnel.CompressionDefault, raw, raw / 5, 60 * time.Millisecond, turbotunnel.CompressionFastest},
+		// Moderate gain: stay
+		{turbotunnel.CompressionFastest, raw, raw * 3 / 4, 5 * time.Millisecond, turbotunnel.CompressionFastest},
+		// Store mode is left by time, not by measurement
+		{turbotunnel.CompressionStore, raw, raw, 0, turbotunnel.CompressionStore},
+	} {
+		if got := chooseCompressionMode(test.mode, test.rawOut, test.wireOut, test.encodeTime); got != test.expected {
+			t.Errorf("%v %d/%d in %v: got %v, expected %v",
+				test.mode, test.wireOut, test.rawOut, test.encodeTime, got, test.expected)
+		}
+	}
+}
+
+func TestParseCompressionMode(t *testing.T) {
+	if mode, auto := parseCompressionMode(CompressionAuto); mode != turbotunnel.CompressionFastest || !auto {
+		t.Errorf("auto: %v %v", mode, auto)
+	}
+	if mode, auto := parseCompressionMode(""); mode != turbotunnel.CompressionFastest || auto {
+		t.Errorf("default: %v %v", mode, auto)
+	}
+	if mode, _ := parseCompressionMode(CompressionStore); mode != turbotunnel.CompressionStore {
+		t.Errorf("store: %v", mode)
+	}
+}
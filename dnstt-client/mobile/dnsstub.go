@@ -0,0 +1,558 @@
+package mobile
+
+// Local DNS stub for VPN mode.
+//
+// hev-socks5-tunnel, configured with udp: 'tcp', carries UDP flows from the
+// TUN interface to the SOCKS server using a non-standard FWD_UDP command.
+// Queries to port 53 are answered here from an LRU cache; misses are sent
+// through the tunnel as DNS over TCP to an upstream resolver, so a page that
+// touches many hostnames pays one tunnel round trip per distinct name at most.
+
+import (
+	"container/list"
+	"context"
+	"encoding/binary"
+	"errors"
+	"fmt"
+	"io"
+	"log"
+	"net"
+	"strconv"
+	"strings"
+	"sync"
+	"sync/atomic"
+	"time"
+
+	"www.bamsoftware.com/git/dnstt.git/dns"
+	dnstt "www.bamsoftware.com/git/dnstt.git/dnstt-client/lib"
+)
+
+const (
+	// socksCmdFwdUDP is hev-socks5-tunnel's UDP-in-TCP command. After a
+	// successful reply, every datagram in either direction is framed as
+	// [2-byte payload length][1-byte header length][SOCKS5 address][payload],
+	// where the header length counts the first three bytes and the address.
+	socksCmdFwdUDP = 0x05
+
+	// dnsForwardTimeout bounds a single forwarded query, including the
+	// SOCKS handshake with the upstream proxy.
+	dnsForwardTimeout = 10 * time.Second
+
+	// Cached responses are kept for at most dnsMaxTTL, whatever their TTL.
+	dnsMaxTTL = 1 * time.Hour
+	// Negative answers are cached for dnsDefaultNegativeTTL when they carry
+	// no SOA record, and never for longer than dnsMaxNegativeTTL.
+	dnsDefaultNegativeTTL = 60 * time.Second
+	dnsMaxNegativeTTL     = 5 * time.Minute
+
+	// https://tools.ietf.org/html/rfc1035#section-3.2.2
+	rrTypeSOA = 6
+)
+
+var errShortDNSMessage = errors.New("DNS message too short")
+
+type dnsCacheEntry struct {
+	key     string
+	resp    []byte
+	stored  time.Time
+	expires time.Time
+}
+
+// dnsCall is a forwarded query that other identical queries can wait on.
+type dnsCall struct {
+	done chan struct{}
+	resp []byte
+	err  error
+}
+
+// dnsCache is an LRU cache of DNS responses with TTL expiry, negative caching
+// and deduplication of identical in-flight queries.
+type dnsCache struct {
+	mu       sync.Mutex
+	capacity int
+	lru      *list.List // of *dnsCacheEntry, most recently used first
+	entries  map[string]*list.Element
+	inflight map[string]*dnsCall
+	now      func() time.Time
+
+	hits   int64 // answered from cache or by joining an in-flight query
+	misses int64 // forwarded upstream
+}
+
+func newDNSCache(capacity int) *dnsCache {
+	if capacity < 1 {
+		capacity = 1024
+	}
+	return &dnsCache{
+		capacity: capacity,
+		lru:      list.New(),
+		entries:  make(map[string]*list.Element),
+		inflight: make(map[string]*dnsCall),
+		now:      time.Now,
+	}
+}
+
+// dnsCacheKey returns the cache key for query, made of the case-folded
+// question name, type and class. ok is false for messages that are not plain
+// single-question queries; those bypass the cache.
+func dnsCacheKey(query []byte) (key string, ok bool) {
+	msg, err := dns.MessageFromWireFormat(query)
+	if err != nil || msg.Flags&0x8000 != 0 || msg.Opcode() != 0 || len(msg.Question) != 1 {
+		return "", false
+	}
+	q := msg.Question[0]
+	return fmt.Sprintf("%s/%d/%d", strings.ToLower(q.Name.String()), q.Type, q.Class), true
+}
+
+// withDNSID returns a copy of msg with its ID replaced by id.
+func withDNSID(msg []byte, id uint16) []byte {
+	out := make([]byte, len(msg))
+	copy(out, msg)
+	binary.BigEndian.PutUint16(out, id)
+	return out
+}
+
+// agedDNSResponse returns a copy of resp with its ID replaced by id and the
+// TTL of every record lowered by age, so that a response served from the
+// cache expires downstream when the original would have. The OPT record is
+// left alone: its TTL field holds EDNS flags. TTLs are rewritten in place on
+// the wire, since re-encoding would break compressed names inside RDATA; if
+// resp can't be walked, only the ID is changed.
+func agedDNSResponse(resp []byte, id uint16, age time.Duration) []byte {
+	out := withDNSID(resp, id)
+	secs := uint32(age / time.Second)
+	if secs == 0 {
+		return out
+	}
+	qdCount := int(binary.BigEndian.Uint16(out[4:]))
+	rrCount := int(binary.BigEndian.Uint16(out[6:])) +
+		int(binary.BigEndian.Uint16(out[8:])) +
+		int(binary.BigEndian.Uint16(out[10:]))
+	off := 12
+	var ok bool
+	for i := 0; i < qdCount; i++ {
+		if off, ok = skipDNSName(out, off); !ok {
+			return withDNSID(resp, id)
+		}
+		off += 4 // QTYPE, QCLASS
+	}
+	for i := 0; i < rrCount; i++ {
+		if off, ok = skipDNSName(out, off); !ok || off+10 > len(out) {
+			return withDNSID(resp, id)
+		}
+		if binary.BigEndian.Uint16(out[off:]) != dns.RRTypeOPT {
+			ttl := binary.BigEndian.Uint32(out[off+4:])
+			if ttl > secs {
+				ttl -= secs
+			} else {
+				ttl = 0
+			}
+			binary.BigEndian.PutUint32(out[off+4:], ttl)
+		}
+		off += 10 + int(binary.BigEndian.Uint16(out[off+8:]))
+	}
+	return out
+}
+
+// skipDNSName returns the offset just past the possibly compressed name that
+// starts at off in msg.
+func skipDNSName(msg []byte, off int) (int, bool) {
+	for {
+		if off >= len(msg) {
+			return 0, false
+		}
+		n := int(msg[off])
+		switch {
+		case n == 0:
+			return off + 1, true
+		case n&0xc0 == 0xc0:
+			if off+2 > len(msg) {
+				return 0, false
+			}
+			return off + 2, true
+		case n&0xc0 != 0:
+			return 0, false
+		}
+		off += 1 + n
+	}
+}
+
+// dnsResponseTTL returns how long resp may be cached, or 0 if it must not be.
+// Positive answers use their smallest record TTL. NXDOMAIN and empty NOERROR
+// answers are cached following RFC 2308, using the SOA record when present.
+func dnsResponseTTL(resp []byte) time.Duration {
+	msg, err := dns.MessageFromWireFormat(resp)
+	if err != nil || msg.Flags&0x0200 != 0 { // unparseable or truncated
+		return 0
+	}
+
+	switch msg.Rcode() {
+	case dns.RcodeNoError:
+		if len(msg.Answer) > 0 {
+			ttl := dnsMaxTTL
+			for _, rr := range msg.Answer {
+				if d := time.Duration(rr.TTL) * time.Second; d < ttl {
+					ttl = d
+				}
+			}
+			return ttl
+		}
+	case dns.RcodeNameError:
+	default:
+		return 0
+	}
+
+	// Negative answer
+	for _, rr := range msg.Authority {
+		if rr.Type != rrTypeSOA || len(rr.Data) < 4 {
+			continue
+		}
+		// The SOA MINIMUM field is the last 4 bytes of RDATA; the names
+		// before it may be compressed but are of no interest here.
+		minimum := binary.BigEndian.Uint32(rr.Data[len(rr.Data)-4:])
+		ttl := rr.TTL
+		if minimum < ttl {
+			ttl = minimum
+		}
+		d := time.Duration(ttl) * time.Second
+		if d > dnsMaxNegativeTTL {
+			d = dnsMaxNegativeTTL
+		}
+		return d
+	}
+	return dnsDefaultNegativeTTL
+}
+
+// Resolve answers query from the cache, or calls forward to obtain the
+// response. Concurrent identical queries share one forward call. The returned
+// response always carries the ID of query.
+func (c *dnsCache) Resolve(query []byte, forward func([]byte) ([]byte, error)) ([]byte, error) {
+	if len(query) < 12 {
+		return nil, errShortDNSMessage
+	}
+	key, ok := dnsCacheKey(query)
+	if !ok {
+		return forward(query)
+	}
+	id := binary.BigEndian.Uint16(query)
+
+	c.mu.Lock()
+	if elem, ok := c.entries[key]; ok {
+		entry := elem.Value.(*dnsCacheEntry)
+		if now := c.now(); now.Before(entry.expires) {
+			c.lru.MoveToFront(elem)
+			resp := agedDNSResponse(entry.resp, id, now.Sub(entry.stored))
+			c.mu.Unlock()
+			atomic.AddInt64(&c.hits, 1)
+			return resp, nil
+		}
+		c.lru.Remove(elem)
+		delete(c.entries, key)
+	}
+	if call, ok := c.inflight[key]; ok {
+		c.mu.Unlock()
+		<-call.done
+		if call.err != nil {
+			return nil, call.err
+		}
+		atomic.AddInt64(&c.hits, 1)
+		return withDNSID(call.resp, id), nil
+	}
+	call := &dnsCall{done: make(chan struct{})}
+	c.inflight[key] = call
+	c.mu.Unlock()
+
+	atomic.AddInt64(&c.misses, 1)
+	resp, err := forward(query)
+	if err == nil && len(resp) < 12 {
+		err = errShortDNSMessage
+	}
+	call.resp, call.err = resp, err
+
+	c.mu.Lock()
+	delete(c.inflight, key)
+	if err == nil {
+		if ttl := dnsResponseTTL(resp); ttl > 0 {
+			now := c.now()
+			c.store(key, resp, now, now.Add(ttl))
+		}
+	}
+	c.mu.Unlock()
+	close(call.done)
+
+	if err != nil {
+		return nil, err
+	}
+	return withDNSID(resp, id), nil
+}
+
+// store adds or replaces an entry and evicts the least recently used entries
+// beyond capacity. c.mu must be held.
+func (c *dnsCache) store(key string, resp []byte, stored, expires time.Time) {
+	if elem, ok := c.entries[key]; ok {
+		entry := elem.Value.(*dnsCacheEntry)
+		entry.resp = resp
+		entry.stored = stored
+		entry.expires = expires
+		c.lru.MoveToFront(elem)
+		return
+	}
+	c.entries[key] = c.lru.PushFront(&dnsCacheEntry{key: key, resp: resp, stored: stored, expires: expires})
+	for c.lru.Len() > c.capacity {
+		oldest := c.lru.Back()
+		c.lru.Remove(oldest)
+		delete(c.entries, oldest.Value.(*dnsCacheEntry).key)
+	}
+}
+
+// socksConnectRequest encodes a SOCKS5 CONNECT request for addr ("host:port").
+func socksConnectRequest(addr string) ([]byte, error) {
+	host, portStr, err := net.SplitHostPort(addr)
+	if err != nil {
+		return nil, err
+	}
+	port, err := strconv.ParseUint(portStr, 10, 16)
+	if err != nil {
+		return nil, fmt.Errorf("invalid port %q", portStr)
+	}
+
+	req := []byte{0x05, 0x01, 0x00}
+	if ip := net.ParseIP(host); ip != nil {
+		if ip4 := ip.To4(); ip4 != nil {
+			req = append(req, 0x01)
+			req = append(req, ip4...)
+		} else {
+			req = append(req, 0x04)
+			req = append(req, ip.To16()...)
+		}
+	} else {
+		if len(host) > 255 {
+			return nil, fmt.Errorf("host name too long")
+		}
+		req = append(req, 0x03, byte(len(host)))
+		req = append(req, host...)
+	}
+	return append(req, byte(port>>8), byte(port)), nil
+}
+
+// readSOCKSReply reads a complete SOCKS5 reply from r and returns an error if
+// the request was not granted.
+func readSOCKSReply(r io.Reader) error {
+	var hdr [4]byte
+	if _, err := io.ReadFull(r, hdr[:]); err != nil {
+		return err
+	}
+	if hdr[0] != 0x05 {
+		return fmt.Errorf("unexpected SOCKS version %d", hdr[0])
+	}
+	var addrLen int
+	switch hdr[3] {
+	case 0x01:
+		addrLen = 4
+	case 0x04:
+		addrLen = 16
+	case 0x03:
+		var l [1]byte
+		if _, err := io.ReadFull(r, l[:]); err != nil {
+			return err
+		}
+		addrLen = int(l[0])
+	default:
+		return fmt.Errorf("unexpected SOCKS address type %d", hdr[3])
+	}
+	if _, err := io.ReadFull(r, make([]byte, addrLen+2)); err != nil {
+		return err
+	}
+	if hdr[1] != 0x00 {
+		return fmt.Errorf("SOCKS request failed with code %d", hdr[1])
+	}
+	return nil
+}
+
+// forwardDNS sends query to upstream as DNS over TCP through a tunnel stream.
+// The greeting, CONNECT request and query are written in one go, so a miss
+// costs a single tunnel round trip.
+func forwardDNS(pool *dnstt.TunnelPool, upstream string, query []byte) ([]byte, error) {
+	tunnel := pool.Get()
+	if tunnel == nil {
+		return nil, errors.New("no tunnel available")
+	}
+	req, err := socksConnectRequest(upstream)
+	if err != nil {
+		return nil, err
+	}
+	stream, err := tunnel.OpenStream()
+	if err != nil {
+		return nil, err
+	}
+	defer stream.Close()
+	_ = stream.SetDeadline(time.Now().Add(dnsForwardTimeout))
+
+	msg := make([]byte, 0, 3+len(req)+2+len(query))
+	msg = append(msg, 0x05, 0x01, 0x00) // VER=5, 1 method, NO AUTH
+	msg = append(msg, req...)
+	msg = append(msg, byte(len(query)>>8), byte(len(query)))
+	msg = append(msg, query...)
+	if _, err := stream.Write(msg); err != nil {
+		return nil, err
+	}
+
+	var authResp [2]byte
+	if _, err := io.ReadFull(stream, authResp[:]); err != nil {
+		return nil, err
+	}
+	if authResp[0] != 0x05 || authResp[1] != 0x00 {
+		return nil, fmt.Errorf("upstream rejected auth: %v", authResp)
+	}
+	if err := readSOCKSReply(stream); err != nil {
+		return nil, err
+	}
+
+	var lenBuf [2]byte
+	if _, err := io.ReadFull(stream, lenBuf[:]); err != nil {
+		return nil, err
+	}
+	resp := make([]byte, binary.BigEndian.Uint16(lenBuf[:]))
+	if _, err := io.ReadFull(stream, resp); err != nil {
+		return nil, err
+	}
+	return resp, nil
+}
+
+// socksAddrPort returns the port of an encoded SOCKS5 address (ATYP, address,
+// port), checking that the encoding is complete.
+func socksAddrPort(addr []byte) (int, bool) {
+	if len(addr) < 1 {
+		return 0, false
+	}
+	var want int
+	switch addr[0] {
+	case 0x01:
+		want = 1 + 4 + 2
+	case 0x04:
+		want = 1 + 16 + 2
+	case 0x03:
+		if len(addr) < 2 {
+			return 0, false
+		}
+		want = 1 + 1 + int(addr[1]) + 2
+	default:
+		return 0, false
+	}
+	if len(addr) != want {
+		return 0, false
+	}
+	return int(binary.BigEndian.Uint16(addr[want-2:])), true
+}
+
+// udpFrame encodes a FWD_UDP datagram for addr carrying payload.
+func udpFrame(addr, payload []byte) []byte {
+	frame := make([]byte, 3, 3+len(addr)+len(payload))
+	binary.BigEndian.PutUint16(frame, uint16(len(payload)))
+	frame[2] = byte(3 + len(addr))
+	frame = append(frame, addr...)
+	return append(frame, payload...)
+}
+
+// handleUDPRelay serves a FWD_UDP session from tun2socks. r yields the
+// datagrams, conn receives the replies. DNS queries are answered by the stub;
+// other datagrams are refused according to the client's UDP policy, since the
+// tunnel only carries streams.
+func (c *Client) handleUDPRelay(ctx context.Context, conn net.Conn, r io.Reader) {
+	c.mu.Lock()
+	cache := c.dnsCache
+	upstream := c.dnsUpstream
+	policy := c.udpPolicy
+	rejectIPv6 := c.ipv6Mode == IPv6ModeReject
+	c.mu.Unlock()
+	stats := c.udpStats()
+
+	if _, err := conn.Write([]byte{0x05, 0x00, 0x00, 0x01, 0, 0, 0, 0, 0, 0}); err != nil {
+		return
+	}
+
+	// Unblock the read loop when the tunnel is stopped.
+	done := make(chan struct{})
+	defer close(done)
+	go func() {
+		select {
+		case <-ctx.Done():
+			conn.Close()
+		case <-done:
+		}
+	}()
+
+	// Look the pool up per query, so a session outlives Reconnect
+	forward := func(query []byte) ([]byte, error) {
+		pool := c.currentPool()
+		if pool == nil {
+			return nil, errors.New("tunnel stopped")
+		}
+		return forwardDNS(pool, upstream, query)
+	}
+
+	var writeMu sync.Mutex
+	for {
+		var hdr [3]byte
+		if _, err := io.ReadFull(r, hdr[:]); err != nil {
+			return
+		}
+		datLen := int(binary.BigEndian.Uint16(hdr[:2]))
+		hdrLen := int(hdr[2])
+		if hdrLen <= 3 {
+			return
+		}
+		addr := make([]byte, hdrLen-3)
+		if _, err := io.ReadFull(r, addr); err != nil {
+			return
+		}
+		payload := make([]byte, datLen)
+		if _, err := io.ReadFull(r, payload); err != nil {
+			return
+		}
+
+		port, ok := socksAddrPort(addr)
+		if !ok {
+			return
+		}
+		if addr[0] == socksAtypIPv6 && rejectIPv6 {
+			atomic.AddInt64(&c.ipv6Rejected, 1)
+			continue
+		}
+		if port != 53 || cache == nil {
+			var vn []byte
+			if policy == UDPPolicyReject {
+				vn = quicVersionNegotiation(payload)
+			}
+			stats.add(port, vn != nil)
+			if vn != nil {
+				writeMu.Lock()
+				conn.Write(udpFrame(addr, vn))
+				writeMu.Unlock()
+			}
+			continue
+		}
+
+		if rejectIPv6 {
+			if resp := aaaaNoData(payload); resp != nil {
+				atomic.AddInt64(&c.ipv6Rejected, 1)
+				writeMu.Lock()
+				conn.Write(udpFrame(addr, resp))
+				writeMu.Unlock()
+				continue
+			}
+		}
+
+		go func() {
+			resp, err := cache.Resolve(payload, forward)
+			if err != nil {
+				log.Printf("DNS stub: %v", err)
+				return
+			}
+			frame := udpFrame(addr, resp)
+			writeMu.Lock()
+			defer writeMu.Unlock()
+			conn.Write(frame)
+		}()
+	}
+}
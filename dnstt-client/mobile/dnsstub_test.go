@@ -0,0 +1,299 @@
+package mobile
+
+import (
+	"bytes"
+	"encoding/binary"
+	"sync"
+	"sync/atomic"
+	"testing"
+	"time"
+
+	"www.bamsoftware.com/git/dnstt.git/dns"
+)
+
+func mustWireFormat(t *testing.T, msg *dns.Message) []byte {
+	t.Helper()
+	buf, err := msg.WireFormat()
+	if err != nil {
+		t.Fatal(err)
+	}
+	return buf
+}
+
+func testQuery(t *testing.T, id uint16, name string) []byte {
+	t.Helper()
+	n, err := dns.ParseName(name)
+	if err != nil {
+		t.Fatal(err)
+	}
+	return mustWireFormat(t, &dns.Message{
+		ID:       id,
+		Flags:    0x0100, // RD
+		Question: []dns.Question{{Name: n, Type: 1, Class: dns.ClassIN}},
+	})
+}
+
+// testResponse builds a response to query with one A record of the given TTL,
+// or an NXDOMAIN response with no records if ttl is negative.
+func testResponse(t *testing.T, query []byte, ttl int) []byte {
+	t.Helper()
+	q, err := dns.MessageFromWireFormat(query)
+	if err != nil {
+		t.Fatal(err)
+	}
+	resp := &dns.Message{
+		ID:       q.ID,
+		Flags:    0x8180, // QR, RD, RA
+		Question: q.Question,
+	}
+	if ttl < 0 {
+		resp.Flags |= dns.RcodeNameError
+	} else {
+		resp.Answer = []dns.RR{{
+			Name:  q.Question[0].Name,
+			Type:  1,
+			Class: dns.ClassIN,
+			TTL:   uint32(ttl),
+			Data:  []byte{192, 0, 2, 1},
+		}}
+	}
+	return mustWireFormat(t, resp)
+}
+
+func TestDNSCacheHitAndExpiry(t *testing.T) {
+	now := time.Unix(1000, 0)
+	cache := newDNSCache(16)
+	cache.now = func() time.Time { return now }
+
+	var forwarded int
+	forward := func(query []byte) ([]byte, error) {
+		forwarded++
+		return testResponse(t, query, 30), nil
+	}
+
+	resp, err := cache.Resolve(testQuery(t, 1, "example.com"), forward)
+	if err != nil {
+		t.Fatal(err)
+	}
+	if id := binary.BigEndian.Uint16(resp); id != 1 {
+		t.Errorf("first response has ID %d, expected 1", id)
+	}
+
+	// Same question with a different ID and case is a hit.
+	resp, err = cache.Resolve(testQuery(t, 2, "EXAMPLE.com"), forward)
+	if err != nil {
+		t.Fatal(err)
+	}
+	if id := binary.BigEndian.Uint16(resp); id != 2 {
+		t.Errorf("cached response has ID %d, expected 2", id)
+	}
+	if forwarded != 1 {
+		t.Errorf("forwarded %d queries, expected 1", forwarded)
+	}
+
+	// A hit later on carries what is left of the TTL.
+	now = now.Add(12 * time.Second)
+	resp, err = cache.Resolve(testQuery(t, 4, "example.com"), forward)
+	if err != nil {
+		t.Fatal(err)
+	}
+	msg, err := dns.MessageFromWireFormat(resp)
+	if err != nil {
+		t.Fatal(err)
+	}
+	if ttl := msg.Answer[0].TTL; ttl != 18 {
+		t.Errorf("cached response has TTL %d, expected 18", ttl)
+	}
+
+	// After the TTL the entry is refreshed.
+	now = now.Add(19 * time.Second)
+	if _, err := cache.Resolve(testQuery(t, 3, "example.com"), forward); err != nil {
+		t.Fatal(err)
+	}
+	if forwarded != 2 {
+		t.Errorf("forwarded %d queries after expiry, expected 2", forwarded)
+	}
+	if cache.hits != 2 || cache.misses != 2 {
+		t.Errorf("hits %d misses %d, expected 2 and 2", cache.hits, cache.misses)
+	}
+}
+
+func TestAgedDNSResponse(t *testing.T) {
+	query := testQuery(t, 1, "example.com")
+	q, err := dns.MessageFromWireFormat(query)
+	if err != nil {
+		t.Fatal(err)
+	}
+	resp := mustWireFormat(t, &dns.Message{
+		ID:       1,
+		Flags:    0x8180,
+		Question: q.Question,
+		Answer: []dns.RR{
+			{Name: q.Question[0].Name, Type: 1, Class: dns.ClassIN, TTL: 100, Data: []byte{192, 0, 2, 1}},
+			{Name: q.Question[0].Name, Type: 1, Class: dns.ClassIN, TTL: 10, Data: []byte{192, 0, 2, 2}},
+		},
+		Additional: []dns.RR{
+			{Name: dns.Name{}, Type: dns.RRTypeOPT, Class: 4096, TTL: 0x8000, Data: []byte{}},
+		},
+	})
+
+	msg, err := dns.MessageFromWireFormat(agedDNSResponse(resp, 7, 30*time.Second))
+	if err != nil {
+		t.Fatal(err)
+	}
+	if msg.ID != 7 {
+		t.Errorf("ID %d, expected 7", msg.ID)
+	}
+	if msg.Answer[0].TTL != 70 || msg.Answer[1].TTL != 0 {
+		t.Errorf("TTLs %d and %d, expected 70 and 0", msg.Answer[0].TTL, msg.Answer[1].TTL)
+	}
+	if msg.Additional[0].TTL != 0x8000 {
+		t.Errorf("OPT TTL field changed to %#x", msg.Additional[0].TTL)
+	}
+}
+
+func TestDNSCacheNegative(t *testing.T) {
+	now := time.Unix(1000, 0)
+	cache := newDNSCache(16)
+	cache.now = func() time.Time { return now }
+
+	var forwarded int
+	forward := func(query []byte) ([]byte, error) {
+		forwarded++
+		return testResponse(t, query, -1), nil
+	}
+
+	for i := 0; i < 3; i++ {
+		if _, err := cache.Resolve(testQuery(t, uint16(i), "nonexistent.example"), forward); err != nil {
+			t.Fatal(err)
+		}
+	}
+	if forwarded != 1 {
+		t.Errorf("forwarded %d queries, expected 1", forwarded)
+	}
+
+	now = now.Add(dnsDefaultNegativeTTL + time.Second)
+	if _, err := cache.Resolve(testQuery(t, 9, "nonexistent.example"), forward); err != nil {
+		t.Fatal(err)
+	}
+	if forwarded != 2 {
+		t.Errorf("forwarded %d queries after negative TTL, expected 2", forwarded)
+	}
+}
+
+func TestDNSCacheEviction(t *testing.T) {
+	cache := newDNSCache(2)
+	var forwarded int
+	forward := func(query []byte) ([]byte, error) {
+		forwarded++
+		return testResponse(t, query, 300), nil
+	}
+
+	for _, name := range []string{"a.example", "b.example", "a.example", "c.example", "a.example", "b.example"} {
+		if _, err := cache.Resolve(testQuery(t, 1, name), forward); err != nil {
+			t.Fatal(err)
+		}
+	}
+	// a, b, (a hit), c evicts b, (a hit), b evicts c.
+	if forwarded != 4 {
+		t.Errorf("forwarded %d queries, expected 4", forwarded)
+	}
+}
+
+func TestDNSCacheInflightDedupe(t *testing.T) {
+	cache := newDNSCache(16)
+	release := make(chan struct{})
+	var forwarded int32
+	resp := testResponse(t, testQuery(t, 0, "slow.example"), 300)
+	forward := func(query []byte) ([]byte, error) {
+		atomic.AddInt32(&forwarded, 1)
+		<-release
+		return resp, nil
+	}
+
+	const n = 8
+	queries := make([][]byte, n)
+	for i := range queries {
+		queries[i] = testQuery(t, uint16(100+i), "slow.example")
+	}
+	var wg sync.WaitGroup
+	results := make([][]byte, n)
+	for i := 0; i < n; i++ {
+		wg.Add(1)
+		go func(i int) {
+			defer wg.Done()
+			resp, err := cache.Resolve(queries[i], forward)
+			if err != nil {
+				t.Error(err)
+				return
+			}
+			results[i] = resp
+		}(i)
+	}
+	// Give the goroutines time to queue up behind the first forward.
+	time.Sleep(50 * time.Millisecond)
+	close(release)
+	wg.Wait()
+
+	if forwarded != 1 {
+		t.Errorf("forwarded %d queries, expected 1", forwarded)
+	}
+	for i, resp := range results {
+		if resp == nil {
+			continue
+		}
+		if id := binary.BigEndian.Uint16(resp); id != uint16(100+i) {
+			t.Errorf("response %d has ID %d", i, id)
+		}
+	}
+}
+
+func TestUDPFrameRoundTrip(t *testing.T) {
+	addr := []byte{0x01, 10, 0, 0, 53, 0, 53}
+	port, ok := socksAddrPort(addr)
+	if !ok || port != 53 {
+		t.Fatalf("socksAddrPort = %d, %v", port, ok)
+	}
+	frame := udpFrame(addr, []byte("payload"))
+	if got := binary.BigEndian.Uint16(frame); got != 7 {
+		t.Errorf("payload length %d, expected 7", got)
+	}
+	if frame[2] != byte(3+len(addr)) {
+		t.Errorf("header length %d, expected %d", frame[2], 3+len(addr))
+	}
+	if !bytes.Equal(frame[3:3+len(addr)], addr) || !bytes.Equal(frame[3+len(addr):], []byte("payload")) {
+		t.Errorf("bad frame %x", frame)
+	}
+
+	for _, bad := range [][]byte{{}, {0x01, 1, 2}, {0x03, 5, 'a'}, {0x09, 0, 0}} {
+		if _, ok := socksAddrPort(bad); ok {
+			t.Errorf("socksAddrPort(%x) succeeded", bad)
+		}
+	}
+}
+
+func TestAAAANoData(t *testing.T) {
+	if resp := aaaaNoData(testQuery(t, 7, "example.com")); resp != nil {
+		t.Errorf("answered an A query: %x", resp)
+	}
+
+	name, err := dns.ParseName("example.com")
+	if err != nil {
+		t.Fatal(err)
+	}
+	query := mustWireFormat(t, &dns.Message{
+		ID:       7,
+		Flags:    0x0100, // RD
+		Question: []dns.Question{{Name: name, Type: rrTypeAAAA, Class: dns.ClassIN}},
+	})
+	resp, err := dns.MessageFromWireFormat(aaaaNoData(query))
+	if err != nil {
+		t.Fatal(err)
+	}
+	if resp.ID != 7 || resp.Flags&0x8000 == 0 || resp.Flags&0x000f != dns.RcodeNoError {
+		t.Errorf("bad response header: ID %d flags %04x", resp.ID, resp.Flags)
+	}
+	if len(resp.Question) != 1 || len(resp.Answer) != 0 {
+		t.Errorf("%d questions and %d answers, expected 1 and 0", len(resp.Question), len(resp.Answer))
+	}
+}
@@ -0,0 +1,74 @@
+package mobile
+
+// IPv6 handling for VPN mode.
+//
+// On dual-stack networks, apps race IPv6 against IPv4 (Happy Eyeballs) and
+// can stall for seconds on IPv6 attempts that never complete. In
+// IPv6ModeReject the VPN captures ::/0 and every IPv6 attempt is refused as
+// early as possible: AAAA queries to the DNS stub get an empty answer, so most
+// apps never try IPv6 at all, and IPv6 connections that are attempted anyway
+// fail at once with "host unreachable" instead of timing out.
+
+import (
+	"sync/atomic"
+
+	"www.bamsoftware.com/git/dnstt.git/dns"
+)
+
+// IPv6 modes accepted by Config.SetIPv6Mode.
+const (
+	// IPv6ModeOff leaves IPv6 alone; the VPN does not capture it.
+	IPv6ModeOff = "off"
+	// IPv6ModeReject refuses IPv6 so that apps go straight to IPv4.
+	IPv6ModeReject = "reject"
+	// IPv6ModeTunnel carries IPv6 destinations through the tunnel like
+	// any other.
+	IPv6ModeTunnel = "tunnel"
+)
+
+const (
+	socksAtypIPv6 = 0x04
+	// https://tools.ietf.org/html/rfc3596#section-2.1
+	rrTypeAAAA = 28
+)
+
+// socksReplyHostUnreachable is the SOCKS5 reply sent for a refused IPv6
+// CONNECT.
+var socksReplyHostUnreachable = []byte{0x05, 0x04, 0x00, 0x01, 0, 0, 0, 0, 0, 0}
+
+// aaaaNoData returns an empty NOERROR response to query if it is a single
+// AAAA question, or nil otherwise.
+func aaaaNoData(query []byte) []byte {
+	msg, err := dns.MessageFromWireFormat(query)
+	if err != nil || msg.Flags&0x8000 != 0 || len(msg.Question) != 1 {
+		return nil
+	}
+	if msg.Question[0].Type != rrTypeAAAA {
+		return nil
+	}
+	resp := &dns.Message{
+		ID: msg.ID,
+		// QR, copy of RD, RA, NOERROR
+		Flags:    0x8000 | msg.Flags&0x0100 | 0x0080,
+		Question: msg.Question,
+	}
+	buf, err := resp.WireFormat()
+	if err != nil {
+		return nil
+	}
+	return buf
+}
+
+// rejectsIPv6 reports whether the running tunnel refuses IPv6.
+func (c *Client) rejectsIPv6() bool {
+	c.mu.Lock()
+	defer c.mu.Unlock()
+	return c.ipv6Mode == IPv6ModeReject
+}
+
+// GetIPv6Rejected returns the number of IPv6 attempts short-circuited under
+// IPv6ModeReject: AAAA queries answered empty, plus IPv6 connections and
+// datagrams refused.
+func (c *Client) GetIPv6Rejected() int64 {
+	return atomic.LoadInt64(&c.ipv6Rejected)
+}
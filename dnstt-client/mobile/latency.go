@@ -0,0 +1,147 @@
+package mobile
+
+// In-tunnel round-trip time.
+//
+// Throughput says little about how responsive the tunnel is: an idle tunnel
+// moves no bytes, and a busy one is limited by the resolver's query rate.
+// Instead the client periodically opens a stream and sends the SOCKS
+// greeting the server's upstream proxy answers without touching the
+// network, which costs one round trip through resolver, server and back.
+// The last few results are summarized as min/avg/p95 and loss and reported
+// through StatusCallback.OnLatencyUpdate.
+
+import (
+	"context"
+	"errors"
+	"io"
+	"sort"
+	"sync"
+	"time"
+
+	dnstt "www.bamsoftware.com/git/dnstt.git/dnstt-client/lib"
+)
+
+const (
+	// latencyProbeInterval is the time between probes.
+	latencyProbeInterval = 5 * time.Second
+	// A probe not answered within latencyProbeTimeout counts as lost.
+	latencyProbeTimeout = 5 * time.Second
+	// latencyWindow is the number of recent probes summarized.
+	latencyWindow = 12
+)
+
+// rttWindow holds the results of the last latencyWindow probes.
+type rttWindow struct {
+	mu      sync.Mutex
+	samples [latencyWindow]int64 // ms, -1 for a lost probe
+	next    int
+	n       int
+}
+
+func (w *rttWindow) add(ms int64) {
+	w.mu.Lock()
+	defer w.mu.Unlock()
+	w.samples[w.next] = ms
+	w.next = (w.next + 1) % latencyWindow
+	if w.n < latencyWindow {
+		w.n++
+	}
+}
+
+func (w *rttWindow) reset() {
+	w.mu.Lock()
+	defer w.mu.Unlock()
+	w.next = 0
+	w.n = 0
+}
+
+// summary returns the minimum, mean and 95th percentile of the answered
+// probes, each -1 if none was answered, and the percentage of probes lost.
+func (w *rttWindow) summary() (minMs, avgMs, p95Ms, lossPercent int64) {
+	w.mu.Lock()
+	answered := make([]int64, 0, w.n)
+	for i := 0; i < w.n; i++ {
+		if w.samples[i] >= 0 {
+			answered = append(answered, w.samples[i])
+		}
+	}
+	n := w.n
+	w.mu.Unlock()
+
+	if n == 0 {
+		return -1, -1, -1, 0
+	}
+	lossPercent = int64(100 * (n - len(answered)) / n)
+	if len(answered) == 0 {
+		return -1, -1, -1, lossPercent
+	}
+	sort.Slice(answered, func(i, j int) bool { return answered[i] < answered[j] })
+	var sum int64
+	for _, ms := range answered {
+		sum += ms
+	}
+	// Nearest-rank percentile
+	rank := (95*len(answered) + 99) / 100
+	return answered[0], sum / int64(len(answered)), answered[rank-1], lossPercent
+}
+
+// probeRTT measures one round trip through a tunnel from pool.
+func probeRTT(pool *dnstt.TunnelPool) (time.Duration, error) {
+	tunnel := pool.Get()
+	if tunnel == nil {
+		return 0, errors.New("no tunnel available")
+	}
+	stream, err := tunnel.OpenStream()
+	if err != nil {
+		return 0, err
+	}
+	defer stream.Close()
+	_ = stream.SetDeadline(time.Now().Add(latencyProbeTimeout))
+
+	start := time.Now()
+	if _, err := stream.Write([]byte{0x05, 0x01, 0x00}); err != nil { // VER=5, 1 method, NO AUTH
+		return 0, err
+	}
+	var resp [2]byte
+	if _, err := io.ReadFull(stream, resp[:]); err != nil {
+		return 0, err
+	}
+	return time.Since(start), nil
+}
+
+// latencyProber probes the current pool every latencyProbeInterval until ctx
+// is done and reports each result with the updated summary.
+func (c *Client) latencyProber(ctx context.Context) {
+	ticker := time.NewTicker(latencyProbeInterval)
+	defer ticker.Stop()
+
+	for {
+		select {
+		case <-ctx.Done():
+			return
+		case <-ticker.C:
+		}
+
+		pool := c.currentPool()
+		if pool == nil {
+			continue
+		}
+		lastMs := int64(-1)
+		if rtt, err := probeRTT(pool); err == nil {
+			lastMs = rtt.Milliseconds()
+		}
+		if ctx.Err() != nil {
+			// Stopped mid-probe; the failure says nothing about the tunnel
+			return
+		}
+		c.rtt.add(lastMs)
+
+		c.mu.Lock()
+		cb := c.callback
+		c.mu.Unlock()
+		if cb != nil {
+			minMs, avgMs, p95Ms, loss := c.rtt.summary()
+			cb.OnLatencyUpdate(lastMs, minMs, avgMs, p95Ms, loss)
+		}
+	}
+}
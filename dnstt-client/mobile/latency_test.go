@@ -0,0 +1,31 @@
+package mobile
+
+import "testing"
+
+func TestRTTWindowSummary(t *testing.T) {
+	var w rttWindow
+	if minMs, avgMs, p95Ms, loss := w.summary(); minMs != -1 || avgMs != -1 || p95Ms != -1 || loss != 0 {
+		t.Errorf("empty window: %d %d %d %d", minMs, avgMs, p95Ms, loss)
+	}
+
+	for _, ms := range []int64{300, 100, -1, 200} {
+		w.add(ms)
+	}
+	minMs, avgMs, p95Ms, loss := w.summary()
+	if minMs != 100 || avgMs != 200 || p95Ms != 300 || loss != 25 {
+		t.Errorf("got min %d avg %d p95 %d loss %d, expected 100 200 300 25", minMs, avgMs, p95Ms, loss)
+	}
+
+	// Old samples fall out of the window
+	for i := 0; i < latencyWindow; i++ {
+		w.add(-1)
+	}
+	if minMs, _, _, loss := w.summary(); minMs != -1 || loss != 100 {
+		t.Errorf("all lost: min %d loss %d", minMs, loss)
+	}
+
+	w.reset()
+	if _, _, _, loss := w.summary(); loss != 0 {
+		t.Errorf("loss %d after reset", loss)
+	}
+}
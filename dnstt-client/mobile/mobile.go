@@ -3,12 +3,14 @@
 package mobile
 
 import (
+	"bytes"
 	"context"
 	"errors"
 	"fmt"
 	"io"
 	"log"
 	"net"
+	"os"
 	"sort"
 	"strings"
 	"sync"
@@ -18,6 +20,7 @@ import (
 	utls "github.com/refraction-networking/utls"
 	dnstt "www.bamsoftware.com/git/dnstt.git/dnstt-client/lib"
 	"www.bamsoftware.com/git/dnstt.git/noise"
+	"www.bamsoftware.com/git/dnstt.git/turbotunnel"
 )
 
 // State constants - exported as int for gomobile
@@ -33,6 +36,28 @@ const (
 type StatusCallback interface {
 	OnStatusChange(state int64, message string)
 	OnBytesTransferred(bytesIn, bytesOut int64)
+	// OnListenerReady is called once the SOCKS listener is bound and the
+	// first tunnel session has completed its handshake. addr is the
+	// address the listener is actually bound to.
+	OnListenerReady(addr string)
+	// OnListenerClosed is called from Stop after the SOCKS listener has
+	// been closed and the accept loop has exited.
+	OnListenerClosed()
+	// OnLatencyUpdate is called after each round-trip probe through the
+	// tunnel, every few seconds while connected. lastMs is the probe just
+	// made, -1 if it was lost; the rest summarize the recent probes, with
+	// minMs, avgMs and p95Ms -1 if none of them was answered.
+	OnLatencyUpdate(lastMs, minMs, avgMs, p95Ms, lossPercent int64)
+	// OnCompressionStats is called every few seconds while connected with
+	// zstd on. rawOut and wireOut are the bytes sent before and after
+	// compression, wireIn and rawIn the bytes received before and after
+	// decompression, cpuMs the time spent on both, and mode the encoding
+	// now used for sending ("store", "fastest" or "default").
+	OnCompressionStats(rawOut, wireOut, rawIn, wireIn, cpuMs int64, mode string)
+	// OnFirstByte is called once per Start, when the first byte comes back
+	// through the tunnel, with the milliseconds since Start. It runs on the
+	// connection's goroutine, so it should return quickly.
+	OnFirstByte(ms int64)
 }
 
 // Config holds the tunnel configuration.
@@ -44,10 +69,16 @@ type Config struct {
 	domain          string
 	listenAddr      string
 	tunnels         int
-	mtu             int
+	mtu             int // Unused; the KCP MTU follows from the domain
 	utlsFingerprint string
-	useZstd         bool // Enable zstd compression (server must also have -zstd flag)
-	numParallel     int  // Number of parallel DNS query senders (1-16, higher = more throughput)
+	useZstd         bool   // Enable zstd compression (server must also have -zstd flag)
+	numParallel     int    // Number of parallel DNS query senders (1-16, higher = more throughput)
+	dnsUpstream     string // Resolver reached through the tunnel by the local DNS stub ("" disables the stub)
+	dnsCacheSize    int    // Maximum number of responses kept by the DNS stub
+	udpPolicy       string // UDPPolicyReject or UDPPolicyDrop for non-DNS UDP
+	ipv6Mode        string // IPv6ModeOff, IPv6ModeReject or IPv6ModeTunnel
+	responseSize    int    // Largest DNS response the resolver path carries, from ProbeResponseSize (0 leaves it to the server)
+	compression     string // CompressionAuto, CompressionFast, CompressionStrong or CompressionStore
 }
 
 // NewConfig creates a default configuration.
@@ -61,6 +92,9 @@ func NewConfig() *Config {
 		utlsFingerprint: "none", // Use standard TLS - uTLS causes errors on Android
 		useZstd:         true,   // Default to enabled (server has it on by default)
 		numParallel:     8,      // Default parallel DNS senders for better throughput
+		dnsCacheSize:    1024,
+		udpPolicy:       UDPPolicyReject,
+		ipv6Mode:        IPv6ModeOff,
 	}
 }
 
@@ -75,20 +109,46 @@ func (c *Config) SetMTU(v int)                { c.mtu = v }
 func (c *Config) SetUTLSFingerprint(v string) { c.utlsFingerprint = v }
 func (c *Config) SetUseZstd(v bool)           { c.useZstd = v }
 func (c *Config) SetNumParallel(v int)        { c.numParallel = v }
+func (c *Config) SetDNSUpstream(v string)     { c.dnsUpstream = v }
+func (c *Config) SetDNSCacheSize(v int)       { c.dnsCacheSize = v }
+func (c *Config) SetUDPPolicy(v string)       { c.udpPolicy = v }
+func (c *Config) SetIPv6Mode(v string)        { c.ipv6Mode = v }
+func (c *Config) SetResponseSize(v int)       { c.responseSize = v }
+func (c *Config) SetCompressionMode(v string) { c.compression = v }
 
 // Client represents a dnstt tunnel client for mobile.
 type Client struct {
-	mu            sync.Mutex
-	listener      net.Listener
-	pool          *dnstt.TunnelPool
-	state         int32
-	cancel        context.CancelFunc
-	callback      StatusCallback
-	bytesIn       int64
-	bytesOut      int64
-	activeStreams int32
+	mu              sync.Mutex
+	listener        net.Listener
+	acceptDone      chan struct{}     // closed when acceptLoop returns
+	pool            *dnstt.TunnelPool // replaced by Reconnect
+	params          tunnelParams      // how pool was created
+	reconnectMu     sync.Mutex        // serializes Reconnect calls
+	resizeMu        sync.Mutex        // serializes SetTunnelCount calls
+	state           int32
+	cancel          context.CancelFunc
+	callback        StatusCallback
+	bytesIn         int64
+	bytesOut        int64
+	activeStreams   int32
+	streamsOpened   int64
+	connectFailures int64
+	startedAt       int64     // UnixNano of the last Start
+	firstByteMs     int64     // see StatsFirstByteMs
+	rtt             rttWindow // recent latency probes
+	dnsCache        *dnsCache // nil when the DNS stub is disabled
+	dnsUpstream     string
+	udpPolicy       string
+	udpBlocked      *udpBlockStats
+	ipv6Mode        string
+	ipv6Rejected    int64
+	stops           int64 // number of Stop calls, so a Start in progress can tell it was stopped
 }
 
+// errStoppedWhileStarting is returned by a Start that Stop was called
+// during. Nothing is left running.
+var errStoppedWhileStarting = errors.New("stopped while connecting")
+
 // NewClient creates a new tunnel client.
 func NewClient() *Client {
 	return &Client{
@@ -118,6 +178,82 @@ func (c *Client) GetBytesOut() int64 {
 	return atomic.LoadInt64(&c.bytesOut)
 }
 
+// GetDNSCacheHits returns the number of DNS queries answered by the local
+// stub without a tunnel round trip.
+func (c *Client) GetDNSCacheHits() int64 {
+	c.mu.Lock()
+	cache := c.dnsCache
+	c.mu.Unlock()
+	if cache == nil {
+		return 0
+	}
+	return atomic.LoadInt64(&cache.hits)
+}
+
+// GetDNSCacheMisses returns the number of DNS queries the local stub had to
+// forward through the tunnel.
+func (c *Client) GetDNSCacheMisses() int64 {
+	c.mu.Lock()
+	cache := c.dnsCache
+	c.mu.Unlock()
+	if cache == nil {
+		return 0
+	}
+	return atomic.LoadInt64(&cache.misses)
+}
+
+// GetListenAddr returns the address the SOCKS listener is bound to, or an
+// empty string if the tunnel is not running. When the configured listen
+// address uses port 0, this reports the port the OS assigned.
+func (c *Client) GetListenAddr() string {
+	c.mu.Lock()
+	defer c.mu.Unlock()
+	if c.listener == nil {
+		return ""
+	}
+	return listenerAddrString(c.listener)
+}
+
+// unixPrefix marks a listen address as a Unix-domain socket path rather than
+// a TCP host:port, e.g. "unix:/data/data/com.dnstt.client/cache/socks.sock".
+const unixPrefix = "unix:"
+
+// listen opens the SOCKS listener. Addresses starting with unixPrefix are
+// bound as Unix-domain sockets, which avoids the TCP/IP loopback stack
+// between tun2socks and the client; anything else is a TCP address.
+func listen(addr string) (net.Listener, error) {
+	if path := strings.TrimPrefix(addr, unixPrefix); path != addr {
+		// A socket file left behind by a previous session would make
+		// the bind fail.
+		if err := os.Remove(path); err != nil && !os.IsNotExist(err) {
+			return nil, err
+		}
+		ln, err := net.Listen("unix", path)
+		if err != nil {
+			return nil, err
+		}
+		// Remove the socket file when the listener is closed.
+		ln.(*net.UnixListener).SetUnlinkOnClose(true)
+		return ln, nil
+	}
+	return net.Listen("tcp", addr)
+}
+
+// listenerAddrString formats a listener's address in the same form accepted
+// by Config.SetListenAddr.
+func listenerAddrString(ln net.Listener) string {
+	if ln.Addr().Network() == "unix" {
+		return unixPrefix + ln.Addr().String()
+	}
+	return ln.Addr().String()
+}
+
+// halfCloser is implemented by both *net.TCPConn and *net.UnixConn.
+type halfCloser interface {
+	CloseRead() error
+	CloseWrite() error
+}
+
 // GetActiveStreams returns the number of active connections.
 func (c *Client) GetActiveStreams() int {
 	return int(atomic.LoadInt32(&c.activeStreams))
@@ -137,11 +273,24 @@ func (c *Client) setState(state int32, message string) {
 
 // Start starts the tunnel with the given configuration.
 func (c *Client) Start(cfg *Config) error {
-	if atomic.LoadInt32(&c.state) == StateConnecting || atomic.LoadInt32(&c.state) == StateConnected {
+	// Stop does nothing to a Start that hasn't published its pool and
+	// listener yet; such a Start notices the count change and undoes itself.
+	// The count is read together with the move to StateConnecting, so a Stop
+	// can't slip in between and have its StateStopped overwritten.
+	c.mu.Lock()
+	if state := atomic.LoadInt32(&c.state); state == StateConnecting || state == StateConnected {
+		c.mu.Unlock()
 		return errors.New("tunnel already running")
 	}
-
-	c.setState(StateConnecting, "Connecting...")
+	stops := atomic.LoadInt64(&c.stops)
+	atomic.StoreInt32(&c.state, StateConnecting)
+	cb := c.callback
+	c.mu.Unlock()
+	if cb != nil {
+		cb.OnStatusChange(StateConnecting, "Connecting...")
+	}
+	atomic.StoreInt64(&c.startedAt, time.Now().UnixNano())
+	atomic.StoreInt64(&c.firstByteMs, 0)
 
 	// Parse public key
 	pubkey, err := noise.DecodeKey(cfg.pubkeyHex)
@@ -174,27 +323,49 @@ func (c *Client) Start(cfg *Config) error {
 		log.Printf("using uTLS fingerprint: %s", spec)
 	}
 
-	// Create tunnel pool
-	pool := dnstt.NewTunnelPool()
+	switch cfg.udpPolicy {
+	case UDPPolicyReject, UDPPolicyDrop:
+	default:
+		c.setState(StateError, fmt.Sprintf("Invalid UDP policy: %q", cfg.udpPolicy))
+		return fmt.Errorf("invalid udp policy %q", cfg.udpPolicy)
+	}
+	switch cfg.ipv6Mode {
+	case IPv6ModeOff, IPv6ModeReject, IPv6ModeTunnel:
+	default:
+		c.setState(StateError, fmt.Sprintf("Invalid IPv6 mode: %q", cfg.ipv6Mode))
+		return fmt.Errorf("invalid ipv6 mode %q", cfg.ipv6Mode)
+	}
+
 	numTunnels := cfg.tunnels
 	if numTunnels < 1 {
 		numTunnels = 8
 	}
 
-	// Calculate the proper MTU based on domain name capacity
-	// DNS encoding has strict limits - the MTU must fit in DNS query names
-	// The formula subtracts: 8 (ClientID) + 1 (padding length) + 3 (numPadding) + 1 (packet length)
-	mtu := dnstt.DNSNameCapacity(domain) - 8 - 1 - 3 - 1
-	if mtu < 80 {
-		c.setState(StateError, fmt.Sprintf("Domain too long, MTU only %d bytes", mtu))
-		return fmt.Errorf("domain %s leaves only %d bytes for payload", cfg.domain, mtu)
+	// Calculate the proper MTU based on domain name capacity, including
+	// the size label if responses must be kept small
+	tunnelDomainName, mtu, err := tunnelDomain(domain, cfg.responseSize)
+	if err != nil {
+		c.setState(StateError, "Domain too long")
+		return err
 	}
 	log.Printf("calculated effective MTU: %d bytes", mtu)
+	if cfg.responseSize > 0 {
+		log.Printf("asking for responses of at most %d bytes", cfg.responseSize)
+	}
 
 	// Set compression flag before creating tunnels
 	dnstt.UseCompression = cfg.useZstd
+	dnstt.Compression = nil
+	var compression *turbotunnel.CompressionState
+	compressionMode, autoCompression := parseCompressionMode(cfg.compression)
 	if cfg.useZstd {
-		log.Printf("zstd compression enabled")
+		compression = turbotunnel.NewCompressionState(compressionMode)
+		dnstt.Compression = compression
+		if autoCompression {
+			log.Printf("zstd compression enabled (auto)")
+		} else {
+			log.Printf("zstd compression enabled (%s)", compressionMode)
+		}
 	}
 
 	// Set parallel DNS senders for better throughput
@@ -206,28 +377,26 @@ func (c *Client) Start(cfg *Config) error {
 		log.Printf("parallel DNS senders: %d", cfg.numParallel)
 	}
 
-	// Create tunnels
-	successCount := 0
-	log.Printf("creating %d tunnels with transport=%s addr=%s domain=%s", numTunnels, cfg.transportType, cfg.transportAddr, cfg.domain)
-	for i := 0; i < numTunnels; i++ {
-		log.Printf("creating tunnel %d/%d...", i+1, numTunnels)
-		tunnel, err := dnstt.CreateTunnelExported(
-			utlsID,
-			pubkey,
-			domain,
-			mtu,
-			cfg.transportType,
-			cfg.transportAddr,
-		)
-		if err != nil {
-			log.Printf("failed to create tunnel %d: %v", i, err)
-			continue
-		}
-		log.Printf("tunnel %d created successfully", i+1)
-		pool.Add(tunnel)
-		successCount++
+	params := tunnelParams{
+		utlsID:        utlsID,
+		pubkey:        pubkey,
+		domain:        tunnelDomainName,
+		baseDomain:    domain,
+		responseSize:  cfg.responseSize,
+		mtu:           mtu,
+		numTunnels:    numTunnels,
+		transportType: cfg.transportType,
+		transportAddr: cfg.transportAddr,
+		packets:       new(dnstt.PacketCounters),
 	}
+	log.Printf("creating %d tunnels with transport=%s addr=%s domain=%s", numTunnels, cfg.transportType, cfg.transportAddr, cfg.domain)
+	pool, successCount := createPool(params)
 
+	if atomic.LoadInt64(&c.stops) != stops {
+		pool.Close()
+		c.setState(StateStopped, "Stopped")
+		return errStoppedWhileStarting
+	}
 	if successCount == 0 {
 		c.setState(StateError, "Failed to create any tunnels")
 		return errors.New("failed to create any tunnels")
@@ -238,7 +407,7 @@ func (c *Client) Start(cfg *Config) error {
 	if listenAddr == "" {
 		listenAddr = "127.0.0.1:1080"
 	}
-	ln, err := net.Listen("tcp", listenAddr)
+	ln, err := listen(listenAddr)
 	if err != nil {
 		pool.Close()
 		c.setState(StateError, fmt.Sprintf("Failed to listen: %v", err))
@@ -246,27 +415,65 @@ func (c *Client) Start(cfg *Config) error {
 	}
 
 	ctx, cancel := context.WithCancel(context.Background())
+	acceptDone := make(chan struct{})
 
 	c.mu.Lock()
+	if atomic.LoadInt64(&c.stops) != stops {
+		c.mu.Unlock()
+		ln.Close()
+		pool.Close()
+		c.setState(StateStopped, "Stopped")
+		return errStoppedWhileStarting
+	}
 	c.pool = pool
+	c.params = params
 	c.listener = ln
+	c.acceptDone = acceptDone
 	c.cancel = cancel
+	c.dnsCache = nil
+	c.dnsUpstream = cfg.dnsUpstream
+	if cfg.dnsUpstream != "" {
+		c.dnsCache = newDNSCache(cfg.dnsCacheSize)
+		log.Printf("DNS stub enabled, forwarding misses to %s", cfg.dnsUpstream)
+	}
+	c.udpPolicy = cfg.udpPolicy
+	c.udpBlocked = newUDPBlockStats()
+	c.ipv6Mode = cfg.ipv6Mode
+	atomic.StoreInt64(&c.ipv6Rejected, 0)
+	cb = c.callback
 	atomic.StoreInt64(&c.bytesIn, 0)
 	atomic.StoreInt64(&c.bytesOut, 0)
+	atomic.StoreInt64(&c.streamsOpened, 0)
+	atomic.StoreInt64(&c.connectFailures, 0)
 	c.mu.Unlock()
+	c.rtt.reset()
 
-	c.setState(StateConnected, fmt.Sprintf("Connected with %d tunnels", successCount))
+	c.setState(StateConnected, fmt.Sprintf("Connected with %d/%d tunnels", successCount, numTunnels))
 
 	// Accept SOCKS connections
-	go c.acceptLoop(ctx, ln, pool)
+	go c.acceptLoop(ctx, ln, acceptDone)
 
 	// Stats reporter
 	go c.statsReporter(ctx)
+	go c.latencyProber(ctx)
+	go c.bootstrapRefresher(ctx)
+	if compression != nil {
+		go c.compressionMonitor(ctx, compression, autoCompression)
+	}
+
+	// The listener is bound and at least one tunnel has finished its Noise
+	// handshake, so connections accepted from now on are served immediately.
+	// The remaining tunnels join the pool as their handshakes finish.
+	log.Printf("SOCKS listener ready on %s", listenerAddrString(ln))
+	if cb != nil {
+		cb.OnListenerReady(listenerAddrString(ln))
+	}
 
 	return nil
 }
 
-func (c *Client) acceptLoop(ctx context.Context, ln net.Listener, pool *dnstt.TunnelPool) {
+func (c *Client) acceptLoop(ctx context.Context, ln net.Listener, done chan struct{}) {
+	defer close(done)
 	for {
 		select {
 		case <-ctx.Done():
@@ -284,27 +491,16 @@ func (c *Client) acceptLoop(ctx context.Context, ln net.Listener, pool *dnstt.Tu
 			}
 		}
 
-		go c.handleSOCKS(ctx, conn, pool)
+		go c.handleSOCKS(ctx, conn)
 	}
 }
 
-func (c *Client) handleSOCKS(ctx context.Context, conn net.Conn, pool *dnstt.TunnelPool) {
+func (c *Client) handleSOCKS(ctx context.Context, conn net.Conn) {
 	defer conn.Close()
 
 	atomic.AddInt32(&c.activeStreams, 1)
 	defer atomic.AddInt32(&c.activeStreams, -1)
 
-	tunnel := pool.Get()
-	if tunnel == nil {
-		return
-	}
-
-	stream, err := tunnel.OpenStream()
-	if err != nil {
-		return
-	}
-	defer stream.Close()
-
 	// SOCKS5 handshake with local client (tun2socks)
 	buf := make([]byte, 256)
 
@@ -319,7 +515,7 @@ func (c *Client) handleSOCKS(ctx context.Context, conn net.Conn, pool *dnstt.Tun
 
 	// Read connect request from local client
 	n, err = conn.Read(buf)
-	if err != nil || n < 7 || buf[0] != 0x05 || buf[1] != 0x01 {
+	if err != nil || n < 7 || buf[0] != 0x05 || (buf[1] != 0x01 && buf[1] != socksCmdFwdUDP) {
 		return
 	}
 
@@ -347,11 +543,44 @@ func (c *Client) handleSOCKS(ctx context.Context, conn net.Conn, pool *dnstt.Tun
 		return
 	}
 
+	if buf[1] == socksCmdFwdUDP {
+		// Datagrams may have arrived in the same read as the request.
+		r := io.MultiReader(bytes.NewReader(buf[reqLen:n]), conn)
+		c.handleUDPRelay(ctx, conn, r)
+		return
+	}
+
+	// Fail IPv6 connections at once rather than letting the app wait
+	// for a tunnel round trip before it tries IPv4.
+	if buf[3] == socksAtypIPv6 && c.rejectsIPv6() {
+		atomic.AddInt64(&c.ipv6Rejected, 1)
+		conn.Write(socksReplyHostUnreachable)
+		return
+	}
+
+	var tunnel *dnstt.Tunnel
+	if pool := c.currentPool(); pool != nil {
+		tunnel = pool.Get()
+	}
+	if tunnel == nil {
+		atomic.AddInt64(&c.connectFailures, 1)
+		return
+	}
+
+	stream, err := tunnel.OpenStream()
+	if err != nil {
+		atomic.AddInt64(&c.connectFailures, 1)
+		return
+	}
+	defer stream.Close()
+	atomic.AddInt64(&c.streamsOpened, 1)
+
 	// Now perform SOCKS5 handshake with the upstream SOCKS5 proxy through the tunnel
 	// Step 1: Send SOCKS5 greeting to upstream
 	_, err = stream.Write([]byte{0x05, 0x01, 0x00}) // VER=5, 1 method, NO AUTH
 	if err != nil {
 		log.Printf("Failed to send SOCKS5 greeting to upstream: %v", err)
+		atomic.AddInt64(&c.connectFailures, 1)
 		conn.Write([]byte{0x05, 0x01, 0x00, 0x01, 0, 0, 0, 0, 0, 0})
 		return
 	}
@@ -361,11 +590,13 @@ func (c *Client) handleSOCKS(ctx context.Context, conn net.Conn, pool *dnstt.Tun
 	_, err = io.ReadFull(stream, authResp)
 	if err != nil {
 		log.Printf("Failed to read auth response from upstream: %v", err)
+		atomic.AddInt64(&c.connectFailures, 1)
 		conn.Write([]byte{0x05, 0x01, 0x00, 0x01, 0, 0, 0, 0, 0, 0})
 		return
 	}
 	if authResp[0] != 0x05 || authResp[1] != 0x00 {
 		log.Printf("Upstream rejected auth: %v", authResp)
+		atomic.AddInt64(&c.connectFailures, 1)
 		conn.Write([]byte{0x05, 0x01, 0x00, 0x01, 0, 0, 0, 0, 0, 0})
 		return
 	}
@@ -374,6 +605,7 @@ func (c *Client) handleSOCKS(ctx context.Context, conn net.Conn, pool *dnstt.Tun
 	_, err = stream.Write(buf[:reqLen])
 	if err != nil {
 		log.Printf("Failed to send CONNECT request to upstream: %v", err)
+		atomic.AddInt64(&c.connectFailures, 1)
 		conn.Write([]byte{0x05, 0x01, 0x00, 0x01, 0, 0, 0, 0, 0, 0})
 		return
 	}
@@ -383,12 +615,14 @@ func (c *Client) handleSOCKS(ctx context.Context, conn net.Conn, pool *dnstt.Tun
 	respN, err := stream.Read(respBuf)
 	if err != nil || respN < 10 {
 		log.Printf("Failed to read SOCKS5 response: %v (got %d bytes)", err, respN)
+		atomic.AddInt64(&c.connectFailures, 1)
 		conn.Write([]byte{0x05, 0x01, 0x00, 0x01, 0, 0, 0, 0, 0, 0})
 		return
 	}
 
 	// Check if upstream connection succeeded
 	if respBuf[1] != 0x00 {
+		atomic.AddInt64(&c.connectFailures, 1)
 		log.Printf("Upstream SOCKS5 connection failed with code: %d", respBuf[1])
 	}
 
@@ -399,21 +633,19 @@ func (c *Client) handleSOCKS(ctx context.Context, conn net.Conn, pool *dnstt.Tun
 	done := make(chan struct{}, 2)
 
 	go func() {
-		n, _ := io.Copy(stream, conn)
-		atomic.AddInt64(&c.bytesOut, n)
+		io.Copy(countingWriter{stream, &c.bytesOut, nil}, conn)
 		// Signal we're done reading from conn
-		if tcpConn, ok := conn.(*net.TCPConn); ok {
-			tcpConn.CloseRead()
+		if hc, ok := conn.(halfCloser); ok {
+			hc.CloseRead()
 		}
 		done <- struct{}{}
 	}()
 
 	go func() {
-		n, _ := io.Copy(conn, stream)
-		atomic.AddInt64(&c.bytesIn, n)
+		io.Copy(countingWriter{conn, &c.bytesIn, c.markFirstByte}, stream)
 		// Signal we're done writing to conn
-		if tcpConn, ok := conn.(*net.TCPConn); ok {
-			tcpConn.CloseWrite()
+		if hc, ok := conn.(halfCloser); ok {
+			hc.CloseWrite()
 		}
 		done <- struct{}{}
 	}()
@@ -454,23 +686,41 @@ func (c *Client) statsReporter(ctx context.Context) {
 	}
 }
 
-// Stop stops the tunnel.
+// Stop stops the tunnel. It returns only after the SOCKS listener is closed
+// and its accept loop has exited, so the listen address can be reused as
+// soon as Stop returns. A Start still connecting on another goroutine closes
+// whatever it has set up and returns an error instead of publishing it.
 func (c *Client) Stop() {
 	c.mu.Lock()
+	atomic.AddInt64(&c.stops, 1)
 	if c.cancel != nil {
 		c.cancel()
 		c.cancel = nil
 	}
+	hadListener := c.listener != nil
 	if c.listener != nil {
 		c.listener.Close()
 		c.listener = nil
 	}
+	acceptDone := c.acceptDone
+	c.acceptDone = nil
 	if c.pool != nil {
 		c.pool.Close()
 		c.pool = nil
 	}
+	cb := c.callback
 	c.mu.Unlock()
 
+	if acceptDone != nil {
+		<-acceptDone
+	}
+	if hadListener {
+		log.Printf("SOCKS listener closed")
+		if cb != nil {
+			cb.OnListenerClosed()
+		}
+	}
+
 	c.setState(StateStopped, "Stopped")
 }
 
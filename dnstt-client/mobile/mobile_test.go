@@ -0,0 +1,75 @@
+package mobile
+
+import (
+	"strings"
+	"sync"
+	"testing"
+)
+
+// stopOnConnecting is a StatusCallback that calls Stop on its client the
+// first time the client reports StateConnecting.
+type stopOnConnecting struct {
+	c    *Client
+	once sync.Once
+}
+
+func (s *stopOnConnecting) OnStatusChange(state int64, message string) {
+	if state == StateConnecting {
+		s.once.Do(s.c.Stop)
+	}
+}
+func (s *stopOnConnecting) OnBytesTransferred(bytesIn, bytesOut int64) {}
+func (s *stopOnConnecting) OnListenerReady(addr string) {}
+func (s *stopOnConnecting) OnListenerClosed() {}
+func (s *stopOnConnecting) OnLatencyUpdate(lastMs, minMs, avgMs, p95Ms, lossPercent int64) {}
+func (s *stopOnConnecting) OnCompressionStats(rawOut, wireOut, rawIn, wireIn, cpuMs int64, mode string) {}
+func (s *stopOnConnecting) OnFirstByte(ms int64) {}
+
+// failingConfig returns a Config whose tunnels fail at once, so Start gets
+// past createPool without touching the network.
+func failingConfig() *Config {
+	cfg := NewConfig()
+	cfg.SetTransportType("none")
+	cfg.SetPubkeyHex(strings.Repeat("00", 32))
+	cfg.SetDomain("t.example.com")
+	cfg.SetTunnels(1)
+	return cfg
+}
+
+func TestStopWhileStarting(t *testing.T) {
+	c := NewClient()
+	c.SetCallback(&stopOnConnecting{c: c})
+	if err := c.Start(failingConfig()); err != errStoppedWhileStarting {
+		t.Fatalf("Start stopped while connecting returned %v", err)
+	}
+	if state := c.GetState(); state != StateStopped {
+		t.Fatalf("state %d after Stop during Start, expected %d", state, StateStopped)
+	}
+
+	// The client is free to start again
+	err := c.Start(failingConfig())
+	if err == nil || strings.Contains(err.Error(), "already running") {
+		t.Fatalf("second Start returned %v", err)
+	}
+}
+
+func TestStartStopInterleaved(t *testing.T) {
+	for i := 0; i < 200; i++ {
+		c := NewClient()
+		var wg sync.WaitGroup
+		wg.Add(2)
+		go func() {
+			defer wg.Done()
+			_ = c.Start(failingConfig())
+		}()
+		go func() {
+			defer wg.Done()
+			c.Stop()
+		}()
+		wg.Wait()
+		// However the two ran, the client must not be left looking busy
+		if state := c.GetState(); state == StateConnecting || state == StateConnected {
+			t.Fatalf("iteration %d: state %d after Start and Stop returned", i, state)
+		}
+	}
+}
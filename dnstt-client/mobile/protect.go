@@ -0,0 +1,32 @@
+package mobile
+
+import (
+	"fmt"
+
+	dnstt "www.bamsoftware.com/git/dnstt.git/dnstt-client/lib"
+)
+
+// SocketProtector is implemented by the app to prepare each socket the
+// tunnel opens to its resolver: on Android, VpnService.protect so the
+// socket bypasses the VPN, and Network.bindSocket so it uses the chosen
+// physical network. Protect is called before the socket is bound or
+// connected and returns false to fail it.
+type SocketProtector interface {
+	Protect(fd int) bool
+}
+
+// SetSocketProtector installs p for every socket created from now on, by
+// all clients and by resolver testing. Pass nil to remove it, e.g. when the
+// VPN service that implements it stops.
+func SetSocketProtector(p SocketProtector) {
+	if p == nil {
+		dnstt.SetSocketProtector(nil)
+		return
+	}
+	dnstt.SetSocketProtector(func(fd int) error {
+		if !p.Protect(fd) {
+			return fmt.Errorf("socket %d could not be protected", fd)
+		}
+		return nil
+	})
+}
@@ -0,0 +1,173 @@
+package mobile
+
+// Transport racing.
+//
+// Which way through works changes from network to network, and on filtered
+// networks from day to day: plain UDP to some resolver, DoH to a provider
+// that isn't blocked, or DoT. RaceTransports starts a tunnel handshake over
+// every candidate of all three kinds at once and picks the first to complete,
+// which is the one with the lowest handshake round-trip time.
+
+import (
+	"log"
+	"net"
+	"strings"
+	"sync"
+	"sync/atomic"
+	"time"
+
+	dnstt "www.bamsoftware.com/git/dnstt.git/dnstt-client/lib"
+	"www.bamsoftware.com/git/dnstt.git/noise"
+)
+
+// maxRacers bounds the handshakes RaceTransports runs at once.
+const maxRacers = 16
+
+// raceCandidate is one line of RaceTransports' candidates.
+type raceCandidate struct {
+	transportType string
+	transportAddr string
+}
+
+func (c raceCandidate) String() string {
+	return c.transportType + " " + c.transportAddr
+}
+
+// parseRaceCandidates parses lines of "type address", skipping blank lines,
+// comments, unknown transport types and duplicates. UDP addresses get port
+// 53 if they have none. The candidates are returned interleaved by type, in
+// order within each type, so that when there are more than maxRacers a
+// type listed last still gets its share of the first handshakes.
+func parseRaceCandidates(s string) []raceCandidate {
+	var types []string
+	byType := make(map[string][]raceCandidate)
+	seen := make(map[raceCandidate]bool)
+	for _, line := range strings.Split(s, "\n") {
+		fields := strings.Fields(line)
+		if len(fields) != 2 || strings.HasPrefix(fields[0], "#") {
+			continue
+		}
+		cand := raceCandidate{strings.ToLower(fields[0]), fields[1]}
+		switch cand.transportType {
+		case "udp":
+			if _, _, err := net.SplitHostPort(cand.transportAddr); err != nil {
+				host := strings.TrimSuffix(strings.TrimPrefix(cand.transportAddr, "["), "]")
+				cand.transportAddr = net.JoinHostPort(host, "53")
+			}
+		case "doh", "dot":
+		default:
+			continue
+		}
+		if !seen[cand] {
+			seen[cand] = true
+			if byType[cand.transportType] == nil {
+				types = append(types, cand.transportType)
+			}
+			byType[cand.transportType] = append(byType[cand.transportType], cand)
+		}
+	}
+
+	var list []raceCandidate
+	for i := 0; len(list) < len(seen); i++ {
+		for _, t := range types {
+			if i < len(byType[t]) {
+				list = append(list, byType[t][i])
+			}
+		}
+	}
+	return list
+}
+
+// RaceTransports tries every candidate at once and returns the line of the
+// first whose tunnel comes up, or "" if none does within windowMs.
+// candidates has one "type address" line per candidate, type being "udp",
+// "doh" or "dot" and address as for Config.SetTransportAddr. callback, if
+// not nil, hears about each candidate as it starts and finishes, with the
+// candidate given as its "type address" line.
+//
+// Handshakes still running when the winner is found are left to finish or
+// time out on their own; their tunnels are closed.
+func RaceTransports(candidates string, domain string, pubkeyHex string, windowMs int64, callback ResolverCallback) string {
+	list := parseRaceCandidates(candidates)
+	if len(list) == 0 {
+		log.Printf("race: no candidates")
+		return ""
+	}
+	domainName, err := dnstt.ParseDomain(domain)
+	if err != nil {
+		log.Printf("invalid domain: %v", err)
+		return ""
+	}
+	pubkey, err := noise.DecodeKey(pubkeyHex)
+	if err != nil {
+		log.Printf("invalid pubkey: %v", err)
+		return ""
+	}
+
+	window := time.Duration(windowMs) * time.Millisecond
+	if window < 1*time.Second {
+		window = 5 * time.Second
+	}
+	deadline := time.Now().Add(window)
+	log.Printf("race: %d candidates, %v window", len(list), window)
+
+	var found, started int32
+	winner := make(chan raceCandidate, 1)
+	sem := make(chan struct{}, maxRacers)
+	var wg sync.WaitGroup
+	for _, cand := range list {
+		wg.Add(1)
+		go func(cand raceCandidate) {
+			defer wg.Done()
+			sem <- struct{}{}
+			defer func() { <-sem }()
+
+			remaining := time.Until(deadline)
+			if atomic.LoadInt32(&found) != 0 || remaining <= 0 {
+				return
+			}
+			if callback != nil {
+				callback.OnProgress(int(atomic.AddInt32(&started, 1)), len(list), cand.String())
+			}
+			// Standard TLS, as tunnels use on Android
+			rtt, err := dnstt.TestTunnelTransport(cand.transportType, cand.transportAddr,
+				domainName, pubkey, nil, remaining)
+			if err != nil {
+				log.Printf("race: %s failed: %v", cand, err)
+				if callback != nil {
+					callback.OnResult(cand.String(), false, 0, err.Error())
+				}
+				return
+			}
+			log.Printf("race: %s up in %dms", cand, rtt.Milliseconds())
+			if callback != nil {
+				callback.OnResult(cand.String(), true, rtt.Milliseconds(), "")
+			}
+			if atomic.CompareAndSwapInt32(&found, 0, 1) {
+				winner <- cand
+			}
+		}(cand)
+	}
+
+	allDone := make(chan struct{})
+	go func() {
+		wg.Wait()
+		close(allDone)
+	}()
+	select {
+	case w := <-winner:
+		log.Printf("race: %s wins", w)
+		return w.String()
+	case <-allDone:
+		// The winner may have been sent just before the last racer
+		// finished
+		select {
+		case w := <-winner:
+			log.Printf("race: %s wins", w)
+			return w.String()
+		default:
+		}
+	}
+	log.Printf("race: no candidate came up")
+	return ""
+}
@@ -0,0 +1,57 @@
+package mobile
+
+import "testing"
+
+func TestParseRaceCandidates(t *testing.T) {
+	list := parseRaceCandidates(`
+udp 8.8.8.8
+UDP 8.8.8.8:53
+# dot dns.google:853
+doh https://dns.google/dns-query
+dot dns.google:853
+tcp 1.1.1.1:53
+udp
+`)
+	expected := []string{
+		"udp 8.8.8.8:53",
+		"doh https://dns.google/dns-query",
+		"dot dns.google:853",
+	}
+	if len(list) != len(expected) {
+		t.Fatalf("got %v, expected %v", list, expected)
+	}
+	for i, cand := range list {
+		if cand.String() != expected[i] {
+			t.Errorf("%d: got %q, expected %q", i, cand, expected[i])
+		}
+	}
+}
+
+func TestParseRaceCandidatesInterleaved(t *testing.T) {
+	list := parseRaceCandidates(`
+udp 8.8.8.8
+udp 2001:4860:4860::8888
+udp [2606:4700:4700::1111]
+udp [2620:fe::fe]:5353
+doh https://dns.google/dns-query
+doh https://cloudflare-dns.com/dns-query
+dot dns.google:853
+`)
+	expected := []string{
+		"udp 8.8.8.8:53",
+		"doh https://dns.google/dns-query",
+		"dot dns.google:853",
+		"udp [2001:4860:4860::8888]:53",
+		"doh https://cloudflare-dns.com/dns-query",
+		"udp [2606:4700:4700::1111]:53",
+		"udp [2620:fe::fe]:5353",
+	}
+	if len(list) != len(expected) {
+		t.Fatalf("got %v, expected %v", list, expected)
+	}
+	for i, cand := range list {
+		if cand.String() != expected[i] {
+			t.Errorf("%d: got %q, expected %q", i, cand, expected[i])
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package mobile
+
+import (
+	"errors"
+	"fmt"
+	"log"
+	"time"
+
+	utls "github.com/refraction-networking/utls"
+	"www.bamsoftware.com/git/dnstt.git/dns"
+	dnstt "www.bamsoftware.com/git/dnstt.git/dnstt-client/lib"
+)
+
+// tunnelParams is everything needed to build the tunnel pool, kept so that
+// Reconnect can build a new one over a different transport.
+type tunnelParams struct {
+	utlsID        *utls.ClientHelloID
+	pubkey        []byte
+	domain        dns.Name // baseDomain plus any size label
+	baseDomain    dns.Name
+	responseSize  int // 0 when the server picks
+	mtu           int
+	numTunnels    int
+	transportType string
+	transportAddr string
+	packets       *dnstt.PacketCounters // shared by every tunnel since Start
+}
+
+// tunnelDomain returns the domain tunnels use to get responses of at most
+// responseSize bytes (0 for the server's default), and the KCP MTU that fits
+// in the query names under it. The size label costs query-name capacity, so
+// it is only added when it asks for less than the server sends anyway.
+func tunnelDomain(base dns.Name, responseSize int) (dns.Name, int, error) {
+	domain := base
+	if responseSize > 0 && responseSize < dnstt.DefaultResponseSize {
+		domain = dnstt.WithSizeLabel(base, responseSize)
+	}
+	// DNS encoding has strict limits - the MTU must fit in DNS query names
+	// The formula subtracts: 8 (ClientID) + 1 (padding length) + 3 (numPadding) + 1 (packet length)
+	mtu := dnstt.DNSNameCapacity(domain) - 8 - 1 - 3 - 1
+	if mtu < 80 {
+		return nil, 0, fmt.Errorf("domain %s leaves only %d bytes for payload", domain, mtu)
+	}
+	return domain, mtu, nil
+}
+
+// createPool starts p.numTunnels tunnels concurrently and returns as soon as
+// one of them is up, with the pool and the number of tunnels in it at that
+// point. The others join the pool in the background as their handshakes
+// finish, so the caller can start serving after one handshake instead of all
+// of them. If every tunnel fails, it returns after the last failure with a
+// count of zero.
+func createPool(p tunnelParams) (*dnstt.TunnelPool, int) {
+	pool := dnstt.NewTunnelPool()
+	// Buffered so late tunnels never block once we've returned
+	results := make(chan bool, p.numTunnels)
+	for i := 0; i < p.numTunnels; i++ {
+		go func(i int) {
+			tunnel, err := dnstt.CreateTunnelExported(
+				p.utlsID,
+				p.pubkey,
+				p.domain,
+				p.mtu,
+				p.transportType,
+				p.transportAddr,
+				p.packets,
+			)
+			if err != nil {
+				log.Printf("failed to create tunnel %d: %v", i+1, err)
+				results <- false
+				return
+			}
+			log.Printf("tunnel %d/%d created successfully", i+1, p.numTunnels)
+			pool.Add(tunnel)
+			results <- true
+		}(i)
+	}
+	for failed := 0; failed < p.numTunnels; failed++ {
+		if <-results {
+			return pool, pool.Size()
+		}
+	}
+	return pool, 0
+}
+
+// currentPool returns the pool new connections should use, or nil when the
+// client is stopped.
+func (c *Client) currentPool() *dnstt.TunnelPool {
+	c.mu.Lock()
+	defer c.mu.Unlock()
+	return c.pool
+}
+
+// Reconnect replaces the tunnels with new ones over the given transport,
+// keeping the SOCKS listener open, so whatever is attached to it (tun2socks
+// and the VPN interface) stays up. Call it when the device's network
+// changes: connections carried by the old tunnels are closed and later ones
+// use the new tunnels. Counters and settings other than the transport carry
+// over.
+//
+// If no new tunnel can be created the old ones are kept, in case the old
+// network comes back, and an error is returned.
+//
+// The response size asked for so far is kept if the transport is the same
+// and dropped otherwise, since it belongs to the old resolver's path; use
+// ReconnectWithResponseSize when the new path's size is known.
+func (c *Client) Reconnect(transportType, transportAddr string) error {
+	c.mu.Lock()
+	params := c.params
+	c.mu.Unlock()
+	responseSize := 0
+	if params.transportType == transportType && params.transportAddr == transportAddr {
+		responseSize = params.responseSize
+	}
+	return c.ReconnectWithResponseSize(transportType, transportAddr, responseSize)
+}
+
+// ReconnectWithResponseSize is Reconnect with the response size for the new
+// path, as found by ProbeResponseSize, or 0 to leave it to the server.
+func (c *Client) ReconnectWithResponseSize(transportType, transportAddr string, responseSize int) error {
+	c.reconnectMu.Lock()
+	defer c.reconnectMu.Unlock()
+
+	c.mu.Lock()
+	params := c.params
+	running := c.listener != nil
+	c.mu.Unlock()
+	if !running {
+		return errors.New("tunnel not running")
+	}
+
+	domain, mtu, err := tunnelDomain(params.baseDomain, responseSize)
+	if err != nil {
+		return err
+	}
+	params.domain = domain
+	params.mtu = mtu
+	params.responseSize = responseSize
+	params.transportType = transportType
+	params.transportAddr = transportAddr
+	c.setState(StateConnecting, "Reconnecting...")
+	log.Printf("reconnecting %d tunnels with transport=%s addr=%s", params.numTunnels, transportType, transportAddr)
+	pool, successCount := createPool(params)
+	if successCount == 0 {
+		pool.Close()
+		c.setState(StateError, "Reconnect failed: no tunnels")
+		return errors.New("failed to create any tunnels")
+	}
+
+	c.mu.Lock()
+	if c.listener == nil {
+		// Stopped while the new tunnels were being created
+		c.mu.Unlock()
+		pool.Close()
+		return errors.New("tunnel stopped during reconnect")
+	}
+	old := c.pool
+	c.pool = pool
+	c.params = params
+	c.mu.Unlock()
+
+	if old != nil {
+		old.Close()
+	}
+	// Probes of the old tunnels say nothing about the new ones
+	c.rtt.reset()
+	c.setState(StateConnected, fmt.Sprintf("Reconnected with %d/%d tunnels", successCount, params.numTunnels))
+	return nil
+}
+
+const (
+	// MaxTunnels bounds SetTunnelCount.
+	MaxTunnels = 16
+	// retiredTunnelGrace is how long a tunnel taken out of the pool by
+	// SetTunnelCount keeps carrying its open streams before it is closed.
+	retiredTunnelGrace = 2 * time.Minute
+)
+
+// SetTunnelCount grows or shrinks the running client's pool to n tunnels, so
+// the count can be tuned while connected. New tunnels use the current
+// transport and SetTunnelCount returns once their handshakes are done, with
+// an error if none of them could be created. Tunnels taken out stop getting
+// new streams at once and are closed when their streams finish. Later
+// Reconnects keep the new count.
+func (c *Client) SetTunnelCount(n int) error {
+	if n < 1 {
+		n = 1
+	} else if n > MaxTunnels {
+		n = MaxTunnels
+	}
+	c.resizeMu.Lock()
+	defer c.resizeMu.Unlock()
+
+	c.mu.Lock()
+	pool := c.pool
+	params := c.params
+	c.mu.Unlock()
+	if pool == nil {
+		return errors.New("tunnel not running")
+	}
+
+	have := pool.Size()
+	if n > have {
+		results := make(chan bool, n-have)
+		for i := have; i < n; i++ {
+			go func() {
+				tunnel, err := dnstt.CreateTunnelExported(
+					params.utlsID,
+					params.pubkey,
+					params.domain,
+					params.mtu,
+					params.transportType,
+					params.transportAddr,
+					params.packets,
+				)
+				if err != nil {
+					log.Printf("failed to add tunnel: %v", err)
+					results <- false
+					return
+				}
+				pool.Add(tunnel)
+				results <- true
+			}()
+		}
+		added := 0
+		for i := have; i < n; i++ {
+			if <-results {
+				added++
+			}
+		}
+		if added == 0 {
+			return errors.New("failed to add any tunnels")
+		}
+		log.Printf("tunnels: %d -> %d", have, have+added)
+	} else if n < have {
+		for i := n; i < have; i++ {
+			if t := pool.Remove(); t != nil {
+				go c.retireTunnel(pool, t)
+			}
+		}
+		log.Printf("tunnels: %d -> %d", have, pool.Size())
+	}
+
+	c.mu.Lock()
+	if c.pool == pool {
+		c.params.numTunnels = n
+	}
+	c.mu.Unlock()
+	return nil
+}
+
+// retireTunnel closes t, taken out of pool, once its streams have finished,
+// after retiredTunnelGrace, or when pool is no longer in use, whichever
+// comes first.
+func (c *Client) retireTunnel(pool *dnstt.TunnelPool, t *dnstt.Tunnel) {
+	deadline := time.Now().Add(retiredTunnelGrace)
+	for t.NumStreams() > 0 && time.Now().Before(deadline) && c.currentPool() == pool {
+		time.Sleep(1 * time.Second)
+	}
+	t.Close()
+}
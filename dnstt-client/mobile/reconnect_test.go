@@ -0,0 +1,48 @@
+package mobile
+
+import (
+	"testing"
+
+	dnstt "www.bamsoftware.com/git/dnstt.git/dnstt-client/lib"
+)
+
+func TestReconnectNotRunning(t *testing.T) {
+	c := NewClient()
+	if err := c.Reconnect("udp", "127.0.0.1:53"); err == nil {
+		t.Fatal("Reconnect succeeded on a stopped client")
+	}
+	if state := c.GetState(); state != StateStopped {
+		t.Fatalf("state %d after failed Reconnect, expected %d", state, StateStopped)
+	}
+}
+
+func TestSetTunnelCountNotRunning(t *testing.T) {
+	c := NewClient()
+	if err := c.SetTunnelCount(4); err == nil {
+		t.Fatal("SetTunnelCount succeeded on a stopped client")
+	}
+}
+
+func TestTunnelDomain(t *testing.T) {
+	base, err := dnstt.ParseDomain("t.example.com")
+	if err != nil {
+		t.Fatal(err)
+	}
+	domain, mtu, err := tunnelDomain(base, 0)
+	if err != nil || domain.String() != "t.example.com" {
+		t.Fatalf("no size: %v %v", domain, err)
+	}
+	labeled, labeledMTU, err := tunnelDomain(base, 900)
+	if err != nil || labeled.String() != "mtu-900.t.example.com" {
+		t.Fatalf("size 900: %v %v", labeled, err)
+	}
+	if labeledMTU >= mtu {
+		t.Errorf("size label left MTU at %d, expected less than %d", labeledMTU, mtu)
+	}
+	for _, size := range []int{dnstt.DefaultResponseSize, 4096} {
+		unlabeled, unlabeledMTU, err := tunnelDomain(base, size)
+		if err != nil || unlabeled.String() != "t.example.com" || unlabeledMTU != mtu {
+			t.Errorf("size %d: got %v, MTU %d, %v", size, unlabeled, unlabeledMTU, err)
+		}
+	}
+}
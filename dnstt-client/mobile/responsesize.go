@@ -0,0 +1,37 @@
+package mobile
+
+import (
+	"errors"
+	"log"
+	"time"
+
+	dnstt "www.bamsoftware.com/git/dnstt.git/dnstt-client/lib"
+)
+
+// ProbeResponseSize finds the largest DNS response that gets back whole
+// through the given resolver, for Config.SetResponseSize. It returns 0, and
+// no error, when the server doesn't answer size probes; tunnels then use the
+// server's default size as before. transportType is "udp", "doh" or "dot",
+// as in Reconnect.
+func ProbeResponseSize(transportType, transportAddr, domain string, timeoutMs int64) (int, error) {
+	domainName, err := dnstt.ParseDomain(domain)
+	if err != nil {
+		return 0, err
+	}
+	timeout := time.Duration(timeoutMs) * time.Millisecond
+	if timeout <= 0 {
+		timeout = 2 * time.Second
+	}
+	// Standard TLS, as tunnels use on Android (Config's utlsFingerprint
+	// "none")
+	size, err := dnstt.ProbeResponseSize(nil, domainName, transportType, transportAddr, timeout)
+	if errors.Is(err, dnstt.ErrSizeProbeUnsupported) {
+		log.Printf("%s %s: server does not answer size probes", transportType, transportAddr)
+		return 0, nil
+	}
+	if err != nil {
+		return 0, err
+	}
+	log.Printf("%s %s: responses of %d bytes arrive whole", transportType, transportAddr, size)
+	return size, nil
+}
@@ -0,0 +1,126 @@
+package mobile
+
+import (
+	"encoding/binary"
+	"io"
+	"sync/atomic"
+	"time"
+)
+
+// Fields written by Client.ReadStats, as indexes of little-endian int64
+// values. Multiply by 8 for the byte offset.
+const (
+	StatsBytesIn         = 0  // payload bytes received through the tunnel
+	StatsBytesOut        = 1  // payload bytes sent through the tunnel
+	StatsActiveStreams   = 2  // SOCKS connections currently open
+	StatsStreamsOpened   = 3  // tunnel streams opened since Start
+	StatsConnectFailures = 4  // connections that failed to get through the tunnel
+	StatsPacketsSent     = 5  // DNS queries sent by the tunnels since Start
+	StatsPacketsReceived = 6  // DNS responses received by the tunnels since Start
+	StatsPacketsDropped  = 7  // UDP datagrams and IPv6 attempts refused locally
+	StatsSendErrors      = 8  // DNS queries that failed to send
+	StatsDNSCacheHits    = 9  // DNS stub answers served from cache
+	StatsDNSCacheMisses  = 10 // DNS stub queries forwarded through the tunnel
+	StatsTunnels         = 11 // tunnels in the pool
+	StatsFirstByteMs     = 12 // ms from Start to the first byte received, 0 if none yet
+	StatsUDPBlocked      = 13 // UDP datagrams refused by the UDP policy
+	StatsUDPRejected     = 14 // of those, QUIC handshakes answered with a rejection
+	StatsIPv6Rejected    = 15 // IPv6 attempts and AAAA queries short-circuited
+
+	// StatsFieldCount is the number of fields, and StatsBufferSize the
+	// buffer size that holds all of them.
+	StatsFieldCount = 16
+	StatsBufferSize = StatsFieldCount * 8
+)
+
+// ReadStats fills buf with the current counters in the layout given by the
+// Stats* constants and returns the number of fields written. It allocates
+// nothing, so the caller can poll it with the same buffer indefinitely;
+// fields that don't fit in buf are skipped.
+func (c *Client) ReadStats(buf []byte) int {
+	c.mu.Lock()
+	cache := c.dnsCache
+	pool := c.pool
+	packets := c.params.packets
+	udp := c.udpBlocked
+	c.mu.Unlock()
+
+	var hits, misses int64
+	if cache != nil {
+		hits = atomic.LoadInt64(&cache.hits)
+		misses = atomic.LoadInt64(&cache.misses)
+	}
+	var tunnels int64
+	if pool != nil {
+		tunnels = int64(pool.Size())
+	}
+	var udpBlocked, udpRejected int64
+	if udp != nil {
+		udpBlocked, udpRejected = udp.total()
+	}
+	ipv6Rejected := atomic.LoadInt64(&c.ipv6Rejected)
+	dropped := udpBlocked + ipv6Rejected
+	sent, received, sendErrors := packets.Load()
+
+	fields := [StatsFieldCount]int64{
+		StatsBytesIn:         atomic.LoadInt64(&c.bytesIn),
+		StatsBytesOut:        atomic.LoadInt64(&c.bytesOut),
+		StatsActiveStreams:   int64(atomic.LoadInt32(&c.activeStreams)),
+		StatsStreamsOpened:   atomic.LoadInt64(&c.streamsOpened),
+		StatsConnectFailures: atomic.LoadInt64(&c.connectFailures),
+		StatsPacketsSent:     int64(sent),
+		StatsPacketsReceived: int64(received),
+		StatsPacketsDropped:  dropped,
+		StatsSendErrors:      int64(sendErrors),
+		StatsDNSCacheHits:    hits,
+		StatsDNSCacheMisses:  misses,
+		StatsTunnels:         tunnels,
+		StatsFirstByteMs:     atomic.LoadInt64(&c.firstByteMs),
+		StatsUDPBlocked:      udpBlocked,
+		StatsUDPRejected:     udpRejected,
+		StatsIPv6Rejected:    ipv6Rejected,
+	}
+	n := len(buf) / 8
+	if n > StatsFieldCount {
+		n = StatsFieldCount
+	}
+	for i := 0; i < n; i++ {
+		binary.LittleEndian.PutUint64(buf[i*8:], uint64(fields[i]))
+	}
+	return n
+}
+
+// countingWriter adds the bytes written through it to *n as they pass, so the
+// byte counters move while a connection is open rather than when it closes.
+// If first is set, it is called by the write that takes *n from zero.
+type countingWriter struct {
+	w     io.Writer
+	n     *int64
+	first func()
+}
+
+func (cw countingWriter) Write(p []byte) (int, error) {
+	n, err := cw.w.Write(p)
+	if atomic.AddInt64(cw.n, int64(n)) == int64(n) && n > 0 && cw.first != nil {
+		cw.first()
+	}
+	return n, err
+}
+
+// markFirstByte records how long after Start the first byte arrived through
+// the tunnel, once per Start.
+func (c *Client) markFirstByte() {
+	ms := (time.Now().UnixNano() - atomic.LoadInt64(&c.startedAt)) / int64(time.Millisecond)
+	if ms < 1 {
+		ms = 1
+	}
+	if !atomic.CompareAndSwapInt64(&c.firstByteMs, 0, ms) {
+		return
+	}
+	c.mu.Lock()
+	cb := c.callback
+	c.mu.Unlock()
+	if cb != nil {
+		cb.OnFirstByte(ms)
+	}
+}
@@ -0,0 +1,61 @@
+package mobile
+
+import (
+	"bytes"
+	"encoding/binary"
+	"testing"
+)
+
+func TestReadStats(t *testing.T) {
+	c := NewClient()
+	c.bytesIn = 1234
+	c.connectFailures = 3
+	c.ipv6Rejected = 2
+	c.udpStats().add(443, true)
+
+	buf := make([]byte, StatsBufferSize)
+	if n := c.ReadStats(buf); n != StatsFieldCount {
+		t.Fatalf("wrote %d fields, expected %d", n, StatsFieldCount)
+	}
+	field := func(i int) int64 {
+		return int64(binary.LittleEndian.Uint64(buf[i*8:]))
+	}
+	if got := field(StatsBytesIn); got != 1234 {
+		t.Errorf("bytes in %d, expected 1234", got)
+	}
+	if got := field(StatsConnectFailures); got != 3 {
+		t.Errorf("connect failures %d, expected 3", got)
+	}
+	if got := field(StatsPacketsDropped); got != 3 {
+		t.Errorf("dropped %d, expected 3", got)
+	}
+	if got := field(StatsUDPBlocked); got != 1 {
+		t.Errorf("UDP blocked %d, expected 1", got)
+	}
+	if got := field(StatsUDPRejected); got != 1 {
+		t.Errorf("UDP rejected %d, expected 1", got)
+	}
+	if got := field(StatsIPv6Rejected); got != 2 {
+		t.Errorf("IPv6 rejected %d, expected 2", got)
+	}
+
+	// A short buffer gets only the fields that fit.
+	if n := c.ReadStats(make([]byte, 20)); n != 2 {
+		t.Errorf("wrote %d fields into 20 bytes, expected 2", n)
+	}
+}
+
+func TestCountingWriter(t *testing.T) {
+	var buf bytes.Buffer
+	var n int64
+	var firsts int
+	w := countingWriter{&buf, &n, func() { firsts++ }}
+	w.Write([]byte("hello"))
+	w.Write([]byte(" world"))
+	if n != 11 || buf.String() != "hello world" {
+		t.Errorf("counted %d bytes, wrote %q", n, buf.String())
+	}
+	if firsts != 1 {
+		t.Errorf("first called %d times, expected 1", firsts)
+	}
+}
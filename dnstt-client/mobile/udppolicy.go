@@ -0,0 +1,161 @@
+package mobile
+
+// UDP policy for VPN mode.
+//
+// The tunnel only carries streams, so the only UDP that can be served is DNS,
+// which the local stub answers. Everything else that tun2socks relays would
+// otherwise vanish, and apps that try QUIC first (browsers, video players)
+// wait for their handshake to time out before falling back to TCP. Android's
+// VpnService gives us no way to emit ICMP port unreachable from here, so the
+// closest equivalent is at the QUIC layer: a client Initial is answered with
+// a Version Negotiation packet listing no version the client supports, which
+// RFC 9000 requires it to treat as a failed connection attempt. Browsers
+// then mark QUIC broken for the origin and go straight to TCP.
+
+import (
+	"encoding/binary"
+	"fmt"
+	"sort"
+	"strings"
+	"sync"
+)
+
+// UDP policies accepted by Config.SetUDPPolicy.
+const (
+	// UDPPolicyReject answers QUIC handshakes with a Version Negotiation
+	// packet so the application falls back to TCP at once, and drops
+	// other non-DNS datagrams.
+	UDPPolicyReject = "reject"
+	// UDPPolicyDrop silently drops all non-DNS datagrams.
+	UDPPolicyDrop = "drop"
+)
+
+const (
+	// https://tools.ietf.org/html/rfc9000#section-14.1: a client's first
+	// Initial datagram is padded to at least 1200 bytes.
+	quicMinInitialSize = 1200
+	// Connection IDs are at most 20 bytes in QUIC version 1.
+	quicMaxConnIDLen = 20
+	// quicGreaseVersion follows the 0x?a?a?a?a pattern reserved for
+	// version negotiation, so no client will ever have it selected.
+	// https://tools.ietf.org/html/rfc9000#section-15
+	quicGreaseVersion = 0x1a2a3a4a
+)
+
+// quicVersionNegotiation returns a Version Negotiation packet answering p if
+// p looks like the first datagram of a QUIC handshake, or nil otherwise.
+func quicVersionNegotiation(p []byte) []byte {
+	// Long header: form bit, 4-byte version, DCID length and DCID, SCID
+	// length and SCID.
+	if len(p) < quicMinInitialSize || p[0]&0x80 == 0 {
+		return nil
+	}
+	if binary.BigEndian.Uint32(p[1:5]) == 0 {
+		// Already a Version Negotiation packet.
+		return nil
+	}
+	dcidLen := int(p[5])
+	if dcidLen > quicMaxConnIDLen {
+		return nil
+	}
+	dcid := p[6 : 6+dcidLen]
+	scidLen := int(p[6+dcidLen])
+	if scidLen > quicMaxConnIDLen {
+		return nil
+	}
+	scid := p[7+dcidLen : 7+dcidLen+scidLen]
+
+	// The response swaps the connection IDs.
+	// https://tools.ietf.org/html/rfc9000#section-17.2.1
+	vn := make([]byte, 0, 1+4+1+len(scid)+1+len(dcid)+4)
+	vn = append(vn, 0x80|p[0]&0x7f, 0, 0, 0, 0)
+	vn = append(vn, byte(len(scid)))
+	vn = append(vn, scid...)
+	vn = append(vn, byte(len(dcid)))
+	vn = append(vn, dcid...)
+	return binary.BigEndian.AppendUint32(vn, quicGreaseVersion)
+}
+
+// udpBlockStats counts datagrams refused by the UDP policy, per destination
+// port.
+type udpBlockStats struct {
+	mu       sync.Mutex
+	dropped  map[int]int64
+	rejected int64
+}
+
+func newUDPBlockStats() *udpBlockStats {
+	return &udpBlockStats{dropped: make(map[int]int64)}
+}
+
+func (s *udpBlockStats) add(port int, rejected bool) {
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	s.dropped[port]++
+	if rejected {
+		s.rejected++
+	}
+}
+
+func (s *udpBlockStats) total() (blocked, rejected int64) {
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	for _, n := range s.dropped {
+		blocked += n
+	}
+	return blocked, s.rejected
+}
+
+// summary formats the per-port counters as "port=count" pairs, busiest port
+// first.
+func (s *udpBlockStats) summary() string {
+	s.mu.Lock()
+	ports := make([]int, 0, len(s.dropped))
+	counts := make(map[int]int64, len(s.dropped))
+	for port, n := range s.dropped {
+		ports = append(ports, port)
+		counts[port] = n
+	}
+	s.mu.Unlock()
+
+	sort.Slice(ports, func(i, j int) bool {
+		if counts[ports[i]] != counts[ports[j]] {
+			return counts[ports[i]] > counts[ports[j]]
+		}
+		return ports[i] < ports[j]
+	})
+	parts := make([]string, len(ports))
+	for i, port := range ports {
+		parts[i] = fmt.Sprintf("%d=%d", port, counts[port])
+	}
+	return strings.Join(parts, " ")
+}
+
+// GetUDPBlocked returns the number of non-DNS UDP datagrams refused by the
+// UDP policy since the tunnel was started.
+func (c *Client) GetUDPBlocked() int64 {
+	blocked, _ := c.udpStats().total()
+	return blocked
+}
+
+// GetUDPRejected returns the number of QUIC handshakes answered with a
+// Version Negotiation packet under UDPPolicyReject.
+func (c *Client) GetUDPRejected() int64 {
+	_, rejected := c.udpStats().total()
+	return rejected
+}
+
+// GetUDPBlockedSummary returns the refused datagram counts per destination
+// port, e.g. "443=120 3478=6", busiest port first.
+func (c *Client) GetUDPBlockedSummary() string {
+	return c.udpStats().summary()
+}
+
+func (c *Client) udpStats() *udpBlockStats {
+	c.mu.Lock()
+	defer c.mu.Unlock()
+	if c.udpBlocked == nil {
+		c.udpBlocked = newUDPBlockStats()
+	}
+	return c.udpBlocked
+}
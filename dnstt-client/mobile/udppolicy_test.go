@@ -0,0 +1,67 @@
+package mobile
+
+import (
+	"bytes"
+	"encoding/binary"
+	"testing"
+)
+
+func testQUICInitial(dcid, scid []byte) []byte {
+	p := []byte{0xc3, 0x00, 0x00, 0x00, 0x01}
+	p = append(p, byte(len(dcid)))
+	p = append(p, dcid...)
+	p = append(p, byte(len(scid)))
+	p = append(p, scid...)
+	return append(p, make([]byte, quicMinInitialSize-len(p))...)
+}
+
+func TestQUICVersionNegotiation(t *testing.T) {
+	dcid := []byte{1, 2, 3, 4, 5, 6, 7, 8}
+	scid := []byte{9, 10, 11}
+	vn := quicVersionNegotiation(testQUICInitial(dcid, scid))
+	if vn == nil {
+		t.Fatal("no Version Negotiation for a QUIC Initial")
+	}
+	if vn[0]&0x80 == 0 || binary.BigEndian.Uint32(vn[1:5]) != 0 {
+		t.Fatalf("bad long header %x", vn[:5])
+	}
+	// Connection IDs are swapped.
+	rest := vn[5:]
+	if int(rest[0]) != len(scid) || !bytes.Equal(rest[1:1+len(scid)], scid) {
+		t.Errorf("bad destination connection ID in %x", vn)
+	}
+	rest = rest[1+len(scid):]
+	if int(rest[0]) != len(dcid) || !bytes.Equal(rest[1:1+len(dcid)], dcid) {
+		t.Errorf("bad source connection ID in %x", vn)
+	}
+	rest = rest[1+len(dcid):]
+	if len(rest) != 4 || binary.BigEndian.Uint32(rest) != quicGreaseVersion {
+		t.Errorf("bad supported versions %x", rest)
+	}
+
+	for _, p := range [][]byte{
+		testQUICInitial(dcid, scid)[:100],                       // too short for an Initial
+		append([]byte{0x43}, make([]byte, 1300)...),             // short header
+		testQUICInitial(make([]byte, 21), scid),                 // connection ID too long
+		append([]byte{0xc3, 0, 0, 0, 0}, make([]byte, 1300)...), // version 0
+	} {
+		if vn := quicVersionNegotiation(p); vn != nil {
+			t.Errorf("Version Negotiation for %x...", p[:8])
+		}
+	}
+}
+
+func TestUDPBlockStatsSummary(t *testing.T) {
+	s := newUDPBlockStats()
+	for i := 0; i < 3; i++ {
+		s.add(443, true)
+	}
+	s.add(3478, false)
+	s.add(123, false)
+	if got, want := s.summary(), "443=3 123=1 3478=1"; got != want {
+		t.Errorf("summary %q, expected %q", got, want)
+	}
+	if blocked, rejected := s.total(); blocked != 5 || rejected != 3 {
+		t.Errorf("blocked %d rejected %d, expected 5 and 3", blocked, rejected)
+	}
+}
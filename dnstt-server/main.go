@@ -25,7 +25,9 @@
 // The -mtu option controls the maximum size of response UDP payloads.
 // Queries that do not advertise requester support for responses of at least
 // this size at least this size will be responded to with a FORMERR. The default
-// value is maxUDPPayload.
+// value is maxUDPPayload. A client whose path loses large responses can ask
+// for smaller ones by putting a label "mtu-N" just before DOMAIN; see
+// sizeLabelPrefix.
 //
 // DOMAIN is the root of the DNS zone reserved for the tunnel. See README for
 // instructions on setting it up.
@@ -48,6 +50,7 @@ import (
 	"net"
 	"os"
 	"os/signal"
+	"strconv"
 	"sync"
 	"syscall"
 	"time"
@@ -80,6 +83,21 @@ const (
 
 	// How long to wait for a TCP connection to upstream to be established.
 	upstreamDialTimeout = 30 * time.Second
+
+	// A query name may end in a label "mtu-N" before the domain, asking
+	// that responses to it be at most N bytes. Clients use it when the
+	// path through their resolver drops or truncates larger responses.
+	// The name is otherwise handled as usual; since base32 has no '-',
+	// the label can't be mistaken for data.
+	sizeLabelPrefix = "mtu-"
+	// A query for "probe-XXXX.mtu-N.DOMAIN" is a size probe: it is answered
+	// at once with a TXT record that makes the response N bytes long, up to
+	// maxProbeSize, so the client can find the largest response that
+	// reaches it. XXXX is anything, to defeat caching.
+	probeLabelPrefix = "probe-"
+	maxProbeSize     = 4096
+	// Size limits below this are raised to it; see RFC 6891 section 6.2.3.
+	minResponseSize = 512
 )
 
 var (
@@ -293,6 +311,48 @@ func acceptStreams(conn *kcp.UDPSession, privkey []byte, upstream string) error
 	}
 }
 
+// sizeLimits remembers the response size limit each client asked for with a
+// size label, so that its KCP session can be given an MTU that fits.
+type sizeLimits struct {
+	mu sync.Mutex
+	m  map[turbotunnel.ClientID]sizeLimit
+}
+
+type sizeLimit struct {
+	limit    int
+	lastSeen time.Time
+}
+
+var clientLimits = &sizeLimits{m: make(map[turbotunnel.ClientID]sizeLimit)}
+
+func (s *sizeLimits) Set(id turbotunnel.ClientID, limit int) {
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	now := time.Now()
+	if len(s.m) >= 4096 {
+		// Forget clients that went away without their session ending
+		for id, e := range s.m {
+			if now.Sub(e.lastSeen) > idleTimeout {
+				delete(s.m, id)
+			}
+		}
+	}
+	s.m[id] = sizeLimit{limit, now}
+}
+
+func (s *sizeLimits) Get(id turbotunnel.ClientID) (int, bool) {
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	e, ok := s.m[id]
+	return e.limit, ok
+}
+
+func (s *sizeLimits) Delete(id turbotunnel.ClientID) {
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	delete(s.m, id)
+}
+
 // acceptSessions listens for incoming KCP connections and passes them to
 // acceptStreams.
 func acceptSessions(ln *kcp.Listener, privkey []byte, mtu int, upstream string) error {
@@ -317,12 +377,22 @@ func acceptSessions(ln *kcp.Listener, privkey []byte, mtu int, upstream string)
 			1, // nc=1 => congestion window off
 		)
 		conn.SetWindowSize(turbotunnel.QueueSize/2, turbotunnel.QueueSize/2)
-		if rc := conn.SetMtu(mtu); !rc {
+		sessionMTU := mtu
+		clientID, _ := conn.RemoteAddr().(turbotunnel.ClientID)
+		if limit, ok := clientLimits.Get(clientID); ok {
+			// Every KCP packet must fit in a single response
+			if m := computeMaxEncodedPayload(limit) - 2; m >= 80 && m < sessionMTU {
+				sessionMTU = m
+				log.Printf("session %08x MTU %d for responses of at most %d bytes", conn.GetConv(), m, limit)
+			}
+		}
+		if rc := conn.SetMtu(sessionMTU); !rc {
 			panic(rc)
 		}
 		go func() {
 			defer func() {
 				log.Printf("end session %08x", conn.GetConv())
+				clientLimits.Delete(clientID)
 				_ = conn.Close()
 			}()
 			err := acceptStreams(conn, privkey, upstream)
@@ -371,11 +441,14 @@ func nextPacket(r *bytes.Reader) ([]byte, error) {
 }
 
 // responseFor constructs a response dns.Message that is appropriate for query.
-// Along with the dns.Message, it returns the query's decoded data payload. If
-// the returned dns.Message is nil, it means that there should be no response to
-// this query. If the returned dns.Message has an Rcode() of dns.RcodeNoError,
-// the message is a candidate for for carrying downstream data in a TXT record.
-func responseFor(query *dns.Message, domain dns.Name) (*dns.Message, []byte) {
+// Along with the dns.Message, it returns the query's decoded data payload and
+// the largest response the client can receive. If the returned dns.Message is
+// nil, it means that there should be no response to this query. If the
+// returned dns.Message has an Answer, it is complete and must be sent as it
+// is (a size probe). Otherwise, if it has an Rcode() of dns.RcodeNoError, the
+// message is a candidate for for carrying downstream data in a TXT record.
+func responseFor(query *dns.Message, domain dns.Name) (*dns.Message, []byte, int) {
+	limit := maxUDPPayload
 	resp := &dns.Message{
 		ID:       query.ID,
 		Flags:    0x8000, // QR = 1, RCODE = no error
@@ -384,7 +457,7 @@ func responseFor(query *dns.Message, domain dns.Name) (*dns.Message, []byte) {
 
 	if query.Flags&0x8000 != 0 {
 		// QR != 0, this is not a query. Don't even send a response.
-		return nil, nil
+		return nil, nil, limit
 	}
 
 	// Check for EDNS(0) support. Include our own OPT RR only if we receive
@@ -405,7 +478,7 @@ func responseFor(query *dns.Message, domain dns.Name) (*dns.Message, []byte) {
 			// received, a FORMERR (RCODE=1) MUST be returned."
 			resp.Flags |= dns.RcodeFormatError
 			log.Printf("FORMERR: more than one OPT RR")
-			return resp, nil
+			return resp, nil, limit
 		}
 		resp.Additional = append(resp.Additional, dns.RR{
 			Name:  dns.Name{},
@@ -425,7 +498,7 @@ func responseFor(query *dns.Message, domain dns.Name) (*dns.Message, []byte) {
 			resp.Flags |= dns.ExtendedRcodeBadVers & 0xf
 			additional.TTL = (dns.ExtendedRcodeBadVers >> 4) << 24
 			log.Printf("BADVERS: EDNS version %d != 0", version)
-			return resp, nil
+			return resp, nil, limit
 		}
 
 		payloadSize = int(rr.Class)
@@ -442,7 +515,7 @@ func responseFor(query *dns.Message, domain dns.Name) (*dns.Message, []byte) {
 	if len(query.Question) != 1 {
 		resp.Flags |= dns.RcodeFormatError
 		log.Printf("FORMERR: too few or too many questions (%d)", len(query.Question))
-		return resp, nil
+		return resp, nil, limit
 	}
 	question := query.Question[0]
 	// Check the name to see if it ends in our chosen domain, and extract
@@ -454,15 +527,26 @@ func responseFor(query *dns.Message, domain dns.Name) (*dns.Message, []byte) {
 		// Not a name we are authoritative for.
 		resp.Flags |= dns.RcodeNameError
 		log.Printf("NXDOMAIN: not authoritative for %s", question.Name)
-		return resp, nil
+		return resp, nil, limit
 	}
 	resp.Flags |= 0x0400 // AA = 1
 
+	labelSize := 0
+	if n := len(prefix); n > 0 {
+		if size, ok := parseSizeLabel(prefix[n-1]); ok {
+			prefix = prefix[:n-1]
+			labelSize = size
+			if size < limit {
+				limit = size
+			}
+		}
+	}
+
 	if query.Opcode() != 0 {
 		// We don't support OPCODE != QUERY.
 		resp.Flags |= dns.RcodeNotImplemented
 		log.Printf("NOTIMPL: unrecognized OPCODE %d", query.Opcode())
-		return resp, nil
+		return resp, nil, limit
 	}
 
 	if question.Type != dns.RRTypeTXT {
@@ -473,7 +557,14 @@ func responseFor(query *dns.Message, domain dns.Name) (*dns.Message, []byte) {
 		// suspect this is related to QNAME minimization, but I'm not
 		// sure. https://tools.ietf.org/html/rfc7816
 		// log.Printf("NXDOMAIN: QTYPE %d != TXT", question.Type)
-		return resp, nil
+		return resp, nil, limit
+	}
+
+	if len(prefix) == 1 && labelSize > 0 && hasPrefixFold(prefix[0], probeLabelPrefix) {
+		// The probe response is truncated like any other if it exceeds
+		// what the resolver that sent it can take.
+		fillProbeResponse(resp, labelSize)
+		return resp, nil, payloadSize
 	}
 
 	encoded := bytes.ToUpper(bytes.Join(prefix, nil))
@@ -483,7 +574,7 @@ func responseFor(query *dns.Message, domain dns.Name) (*dns.Message, []byte) {
 		// Base32 error, make like the name doesn't exist.
 		resp.Flags |= dns.RcodeNameError
 		log.Printf("NXDOMAIN: base32 decoding: %v", err)
-		return resp, nil
+		return resp, nil, limit
 	}
 	payload = payload[:n]
 
@@ -493,13 +584,68 @@ func responseFor(query *dns.Message, domain dns.Name) (*dns.Message, []byte) {
 	// problem with processing the OPT record itself, such as an option
 	// value that is badly formatted or that includes out-of-range values, a
 	// FORMERR MUST be returned."
-	if payloadSize < maxUDPPayload {
+	if payloadSize < limit {
 		resp.Flags |= dns.RcodeFormatError
-		log.Printf("FORMERR: requester payload size %d is too small (minimum %d)", payloadSize, maxUDPPayload)
-		return resp, nil
+		log.Printf("FORMERR: requester payload size %d is too small (minimum %d)", payloadSize, limit)
+		return resp, nil, limit
+	}
+
+	return resp, payload, limit
+}
+
+// parseSizeLabel parses a label of the form "mtu-N" and returns N, raised to
+// minResponseSize if lower.
+func parseSizeLabel(label []byte) (int, bool) {
+	if !hasPrefixFold(label, sizeLabelPrefix) {
+		return 0, false
 	}
+	size, err := strconv.Atoi(string(label[len(sizeLabelPrefix):]))
+	if err != nil || size <= 0 {
+		return 0, false
+	}
+	if size < minResponseSize {
+		size = minResponseSize
+	}
+	return size, true
+}
 
-	return resp, payload
+// hasPrefixFold reports whether label begins with prefix, ignoring case, as
+// resolvers may randomize the case of names.
+func hasPrefixFold(label []byte, prefix string) bool {
+	return len(label) >= len(prefix) && bytes.EqualFold(label[:len(prefix)], []byte(prefix))
+}
+
+// fillProbeResponse gives resp an Answer that brings its wire format as close
+// to size bytes as possible without exceeding it, capped at maxProbeSize. The
+// TXT data starts with its own length as a 16-bit big-endian integer, so the
+// client can tell a response that arrived whole from one that was cut short.
+func fillProbeResponse(resp *dns.Message, size int) {
+	if size > maxProbeSize {
+		size = maxProbeSize
+	}
+	q := resp.Question[0]
+	resp.Answer = []dns.RR{{Name: q.Name, Type: q.Type, Class: q.Class, TTL: 0}}
+	fill := func(n int) int {
+		data := make([]byte, n)
+		binary.BigEndian.PutUint16(data, uint16(n))
+		resp.Answer[0].Data = dns.EncodeRDataTXT(data)
+		buf, err := resp.WireFormat()
+		if err != nil {
+			panic(err)
+		}
+		return len(buf)
+	}
+	// Binary search as in computeMaxEncodedPayload
+	low, high := 2, size
+	for low+1 < high {
+		mid := (low + high) / 2
+		if fill(mid) <= size {
+			low = mid
+		} else {
+			high = mid
+		}
+	}
+	fill(low)
 }
 
 // record represents a DNS message appropriate for a response to a previously
@@ -511,6 +657,7 @@ type record struct {
 	Resp     *dns.Message
 	Addr     net.Addr
 	ClientID turbotunnel.ClientID
+	Limit    int // largest response the client can receive
 }
 
 // recvLoop repeatedly calls dnsConn.ReadFrom, extracts the packets contained in
@@ -537,12 +684,23 @@ func recvLoop(domain dns.Name, dnsConn net.PacketConn, ttConn *turbotunnel.Queue
 			continue
 		}
 
-		resp, payload := responseFor(&query, domain)
+		resp, payload, limit := responseFor(&query, domain)
+		if resp != nil && len(resp.Answer) != 0 {
+			// A size probe, answered already and carrying no data.
+			select {
+			case ch <- &record{resp, addr, turbotunnel.ClientID{}, limit}:
+			default:
+			}
+			continue
+		}
 		// Extract the ClientID from the payload.
 		var clientID turbotunnel.ClientID
 		n = copy(clientID[:], payload)
 		payload = payload[n:]
 		if n == len(clientID) {
+			if limit < maxUDPPayload {
+				clientLimits.Set(clientID, limit)
+			}
 			// Discard padding and pull out the packets contained in
 			// the payload.
 			r := bytes.NewReader(payload)
@@ -564,7 +722,7 @@ func recvLoop(domain dns.Name, dnsConn net.PacketConn, ttConn *turbotunnel.Queue
 		// If a response is called for, pass it to sendLoop via the channel.
 		if resp != nil {
 			select {
-			case ch <- &record{resp, addr, clientID}:
+			case ch <- &record{resp, addr, clientID, limit}:
 			default:
 			}
 		}
@@ -577,6 +735,8 @@ func recvLoop(domain dns.Name, dnsConn net.PacketConn, ttConn *turbotunnel.Queue
 // fit while keeping the total size under maxEncodedPayload, then sends it.
 func sendLoop(dnsConn net.PacketConn, ttConn *turbotunnel.QueuePacketConn, ch <-chan *record, maxEncodedPayload int) error {
 	var nextRec *record
+	// maxEncodedPayload for clients that asked for smaller responses
+	smallerPayloads := make(map[int]int)
 	for {
 		rec := nextRec
 		nextRec = nil
@@ -589,7 +749,7 @@ func sendLoop(dnsConn net.PacketConn, ttConn *turbotunnel.QueuePacketConn, ch <-
 			}
 		}
 
-		if rec.Resp.Rcode() == dns.RcodeNoError && len(rec.Resp.Question) == 1 {
+		if rec.Resp.Rcode() == dns.RcodeNoError && len(rec.Resp.Question) == 1 && len(rec.Resp.Answer) == 0 {
 			// If it's a non-error response, we can fill the Answer
 			// section with downstream packets.
 
@@ -607,6 +767,12 @@ func sendLoop(dnsConn net.PacketConn, ttConn *turbotunnel.QueuePacketConn, ch <-
 
 			var payload bytes.Buffer
 			limit := maxEncodedPayload
+			if rec.Limit < maxUDPPayload {
+				if _, ok := smallerPayloads[rec.Limit]; !ok {
+					smallerPayloads[rec.Limit] = computeMaxEncodedPayload(rec.Limit)
+				}
+				limit = smallerPayloads[rec.Limit]
+			}
 			// We loop and bundle as many packets from OutgoingQueue
 			// into the response as will fit. Any packet that would
 			// overflow the capacity of the DNS response, we stash
@@ -679,9 +845,9 @@ func sendLoop(dnsConn net.PacketConn, ttConn *turbotunnel.QueuePacketConn, ch <-
 		}
 		// Truncate if necessary.
 		// https://tools.ietf.org/html/rfc1035#section-4.1.1
-		if len(buf) > maxUDPPayload {
-			log.Printf("truncating response of %d bytes to max of %d", len(buf), maxUDPPayload)
-			buf = buf[:maxUDPPayload]
+		if len(buf) > rec.Limit {
+			log.Printf("truncating response of %d bytes to max of %d", len(buf), rec.Limit)
+			buf = buf[:rec.Limit]
 			buf[2] |= 0x02 // TC = 1
 		}
 
@@ -731,8 +897,10 @@ func computeMaxEncodedPayload(limit int) int {
 		}
 	}
 
+	// The requester's payload size doesn't change the size of the
+	// response, only whether responseFor accepts the query.
 	queryLimit := uint16(limit)
-	if int(queryLimit) != limit {
+	if int(queryLimit) != limit || limit < maxUDPPayload {
 		queryLimit = 0xffff
 	}
 	query := &dns.Message{
@@ -754,7 +922,7 @@ func computeMaxEncodedPayload(limit int) int {
 			},
 		},
 	}
-	resp, _ := responseFor(query, [][]byte{})
+	resp, _, _ := responseFor(query, [][]byte{})
 	// As in sendLoop.
 	resp.Answer = []dns.RR{
 		{
@@ -3,59 +3,238 @@ package turbotunnel
 import (
 	"io"
 	"sync"
+	"sync/atomic"
+	"time"
 
 	"github.com/klauspost/compress/zstd"
 )
 
+// CompressionMode selects how a CompressedReadWriteCloser encodes what is
+// written to it. Every mode produces a zstd stream, so the peer decodes all
+// of them the same way and the mode can change at any time without the
+// peer's knowledge.
+type CompressionMode int32
+
+const (
+	// CompressionStore sends data in raw zstd blocks: zstd framing only,
+	// no compression work. For data that is already compressed.
+	CompressionStore CompressionMode = iota
+	// CompressionFastest is zstd's fastest level, the default.
+	CompressionFastest
+	// CompressionDefault is zstd's default level: smaller output for
+	// roughly twice the CPU.
+	CompressionDefault
+)
+
+func (m CompressionMode) String() string {
+	switch m {
+	case CompressionStore:
+		return "store"
+	case CompressionFastest:
+		return "fastest"
+	case CompressionDefault:
+		return "default"
+	}
+	return "unknown"
+}
+
+const (
+	compressionWindowSize = 32 * 1024
+	// Raw blocks may be no larger than the window. The window descriptor
+	// byte is exponent<<3 | mantissa, for a window of 1<<(10+exponent).
+	storedBlockSize        = compressionWindowSize
+	storedWindowDescriptor = 5 << 3
+)
+
+// CompressionState is shared by the compressed streams of one session. It
+// holds the mode they encode with and collects their byte counts and the
+// time they spend compressing and decompressing, so the mode can be chosen
+// from measurements.
+type CompressionState struct {
+	mode        int32
+	rawOut      int64
+	wireOut     int64
+	wireIn      int64
+	rawIn       int64
+	encodeNanos int64
+	decodeNanos int64
+}
+
+// CompressionStats is a snapshot of a CompressionState's counters.
+type CompressionStats struct {
+	RawOut, WireOut int64 // bytes written by the application, and sent after compression
+	WireIn, RawIn   int64 // bytes received, and read by the application after decompression
+	EncodeTime      time.Duration
+	DecodeTime      time.Duration
+}
+
+// NewCompressionState returns a CompressionState that starts in mode.
+func NewCompressionState(mode CompressionMode) *CompressionState {
+	return &CompressionState{mode: int32(mode)}
+}
+
+// Mode returns the mode streams currently encode with.
+func (s *CompressionState) Mode() CompressionMode {
+	return CompressionMode(atomic.LoadInt32(&s.mode))
+}
+
+// SetMode changes the mode. Each stream switches at its next write.
+func (s *CompressionState) SetMode(mode CompressionMode) {
+	atomic.StoreInt32(&s.mode, int32(mode))
+}
+
+// Stats returns the counters so far.
+func (s *CompressionState) Stats() CompressionStats {
+	return CompressionStats{
+		RawOut:     atomic.LoadInt64(&s.rawOut),
+		WireOut:    atomic.LoadInt64(&s.wireOut),
+		WireIn:     atomic.LoadInt64(&s.wireIn),
+		RawIn:      atomic.LoadInt64(&s.rawIn),
+		EncodeTime: time.Duration(atomic.LoadInt64(&s.encodeNanos)),
+		DecodeTime: time.Duration(atomic.LoadInt64(&s.decodeNanos)),
+	}
+}
+
+// wireCounter sits between the zstd coder and the underlying stream,
+// counting the compressed bytes and the time spent blocked on the stream, so
+// that time can be taken out of the coding time.
+type wireCounter struct {
+	rwc     io.ReadWriteCloser
+	bytes   *int64 // nil when not counting
+	blocked int64  // nanoseconds
+}
+
+func (w *wireCounter) Read(b []byte) (int, error) {
+	start := time.Now()
+	n, err := w.rwc.Read(b)
+	atomic.AddInt64(&w.blocked, int64(time.Since(start)))
+	if w.bytes != nil {
+		atomic.AddInt64(w.bytes, int64(n))
+	}
+	return n, err
+}
+
+func (w *wireCounter) Write(b []byte) (int, error) {
+	start := time.Now()
+	n, err := w.rwc.Write(b)
+	atomic.AddInt64(&w.blocked, int64(time.Since(start)))
+	if w.bytes != nil {
+		atomic.AddInt64(w.bytes, int64(n))
+	}
+	return n, err
+}
+
 // CompressedReadWriteCloser wraps an io.ReadWriteCloser with zstd streaming compression.
 type CompressedReadWriteCloser struct {
 	rwc     io.ReadWriteCloser
+	state   *CompressionState // nil when not measuring
+	wireIn  *wireCounter
+	wireOut *wireCounter
 	reader  *zstd.Decoder
-	writer  *zstd.Encoder
+	writer  *zstd.Encoder // nil in CompressionStore mode and until the first write
+	mode    CompressionMode
 	readMu  sync.Mutex
-	writeMu sync.Mutex
+	writeMu sync.Mutex // guards writer, mode and closed
+	closed  bool
 	once    sync.Once
 }
 
 // NewCompressedReadWriteCloser wraps an io.ReadWriteCloser with zstd compression.
 // Data written is compressed, data read is decompressed.
 func NewCompressedReadWriteCloser(rwc io.ReadWriteCloser) (*CompressedReadWriteCloser, error) {
+	return NewCompressedReadWriteCloserWithState(rwc, nil)
+}
+
+// NewCompressedReadWriteCloserWithState is like NewCompressedReadWriteCloser,
+// but takes its mode from state and adds to state's counters. With a nil
+// state it always uses CompressionFastest.
+func NewCompressedReadWriteCloserWithState(rwc io.ReadWriteCloser, state *CompressionState) (*CompressedReadWriteCloser, error) {
+	c := &CompressedReadWriteCloser{
+		rwc:     rwc,
+		state:   state,
+		wireIn:  &wireCounter{rwc: rwc},
+		wireOut: &wireCounter{rwc: rwc},
+		mode:    CompressionFastest,
+	}
+	if state != nil {
+		c.wireIn.bytes = &state.wireIn
+		c.wireOut.bytes = &state.wireOut
+		c.mode = state.Mode()
+	}
+
 	// Create streaming decoder that reads from rwc
-	decoder, err := zstd.NewReader(rwc,
+	decoder, err := zstd.NewReader(c.wireIn,
 		zstd.WithDecoderConcurrency(1),
 		zstd.WithDecoderLowmem(true),
 	)
 	if err != nil {
 		return nil, err
 	}
-
-	// Create streaming encoder that writes to rwc
-	encoder, err := zstd.NewWriter(rwc,
-		zstd.WithEncoderLevel(zstd.SpeedFastest),
-		zstd.WithEncoderConcurrency(1),
-		zstd.WithWindowSize(32*1024), // 32KB window
-	)
-	if err != nil {
-		decoder.Close()
-		return nil, err
-	}
-
-	return &CompressedReadWriteCloser{
-		rwc:    rwc,
-		reader: decoder,
-		writer: encoder,
-	}, nil
+	c.reader = decoder
+	return c, nil
 }
 
 func (c *CompressedReadWriteCloser) Read(b []byte) (int, error) {
 	c.readMu.Lock()
 	defer c.readMu.Unlock()
-	return c.reader.Read(b)
+	if c.state == nil {
+		return c.reader.Read(b)
+	}
+	start := time.Now()
+	blocked := atomic.LoadInt64(&c.wireIn.blocked)
+	n, err := c.reader.Read(b)
+	addCodingTime(&c.state.decodeNanos, start, atomic.LoadInt64(&c.wireIn.blocked)-blocked)
+	atomic.AddInt64(&c.state.rawIn, int64(n))
+	return n, err
 }
 
 func (c *CompressedReadWriteCloser) Write(b []byte) (int, error) {
 	c.writeMu.Lock()
 	defer c.writeMu.Unlock()
+	if c.closed {
+		return 0, io.ErrClosedPipe
+	}
+	if c.state != nil {
+		if mode := c.state.Mode(); mode != c.mode {
+			// Finish the current frame; the next write starts one
+			// in the new mode
+			if err := c.closeFrame(); err != nil {
+				return 0, err
+			}
+			c.mode = mode
+		}
+	}
+
+	start := time.Now()
+	blocked := atomic.LoadInt64(&c.wireOut.blocked)
+	n, err := c.write(b)
+	if c.state != nil {
+		addCodingTime(&c.state.encodeNanos, start, atomic.LoadInt64(&c.wireOut.blocked)-blocked)
+		atomic.AddInt64(&c.state.rawOut, int64(n))
+	}
+	return n, err
+}
+
+func (c *CompressedReadWriteCloser) write(b []byte) (int, error) {
+	if c.mode == CompressionStore {
+		return writeStoredFrame(c.wireOut, b)
+	}
+	if c.writer == nil {
+		level := zstd.SpeedFastest
+		if c.mode == CompressionDefault {
+			level = zstd.SpeedDefault
+		}
+		// Create streaming encoder that writes to rwc
+		encoder, err := zstd.NewWriter(c.wireOut,
+			zstd.WithEncoderLevel(level),
+			zstd.WithEncoderConcurrency(1),
+			zstd.WithWindowSize(compressionWindowSize),
+		)
+		if err != nil {
+			return 0, err
+		}
+		c.writer = encoder
+	}
 	n, err := c.writer.Write(b)
 	if err != nil {
 		return n, err
@@ -65,12 +244,77 @@ func (c *CompressedReadWriteCloser) Write(b []byte) (int, error) {
 	return n, err
 }
 
+// closeFrame ends the zstd frame the encoder has open, if any.
+func (c *CompressedReadWriteCloser) closeFrame() error {
+	if c.writer == nil {
+		return nil
+	}
+	err := c.writer.Close()
+	c.writer = nil
+	return err
+}
+
+// writeStoredFrame writes b to w as one zstd frame of raw blocks: the magic
+// number, a frame header with only a window descriptor (no content size, no
+// checksum), then blocks of at most storedBlockSize bytes, the last one
+// flagged as such.
+func writeStoredFrame(w io.Writer, b []byte) (int, error) {
+	buf := make([]byte, 0, 6+len(b)+3*(len(b)/storedBlockSize+1))
+	buf = append(buf, 0x28, 0xb5, 0x2f, 0xfd, 0x00, storedWindowDescriptor)
+	rest := b
+	for {
+		chunk := rest
+		if len(chunk) > storedBlockSize {
+			chunk = chunk[:storedBlockSize]
+		}
+		rest = rest[len(chunk):]
+		// Block header: last-block bit, 2 bits of type (0 = raw), then size
+		header := uint32(len(chunk)) << 3
+		if len(rest) == 0 {
+			header |= 1
+		}
+		buf = append(buf, byte(header), byte(header>>8), byte(header>>16))
+		buf = append(buf, chunk...)
+		if len(rest) == 0 {
+			break
+		}
+	}
+	if _, err := w.Write(buf); err != nil {
+		return 0, err
+	}
+	return len(b), nil
+}
+
+// addCodingTime adds the time since start, less the time blocked on the
+// underlying stream, to *total.
+func addCodingTime(total *int64, start time.Time, blocked int64) {
+	if d := int64(time.Since(start)) - blocked; d > 0 {
+		atomic.AddInt64(total, d)
+	}
+}
+
 func (c *CompressedReadWriteCloser) Close() error {
 	var err error
 	c.once.Do(func() {
-		c.writer.Close()
+		// The encoder is closed under writeMu, so no Write is using it
+		// or creates another afterwards. A Write holding writeMu may be
+		// blocked on rwc, which only closing rwc undoes; then rwc is
+		// closed first and the last frame is left unterminated.
+		locked := c.writeMu.TryLock()
+		if !locked {
+			err = c.rwc.Close()
+			c.writeMu.Lock()
+		}
+		if c.writer != nil {
+			c.writer.Close()
+			c.writer = nil
+		}
+		c.closed = true
+		c.writeMu.Unlock()
 		c.reader.Close()
-		err = c.rwc.Close()
+		if locked {
+			err = c.rwc.Close()
+		}
 	})
 	return err
 }
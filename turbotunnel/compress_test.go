@@ -0,0 +1,110 @@
+package turbotunnel
+
+import (
+	"bytes"
+	"crypto/rand"
+	"io"
+	"net"
+	"testing"
+	"time"
+
+	"github.com/klauspost/compress/zstd"
+)
+
+// bufferRWC collects what is written to it and has nothing to read.
+type bufferRWC struct {
+	bytes.Buffer
+}
+
+func (b *bufferRWC) Read(p []byte) (int, error) { return 0, io.EOF }
+func (b *bufferRWC) Close() error               { return nil }
+
+func TestCompressionModeSwitch(t *testing.T) {
+	var wire bufferRWC
+	state := NewCompressionState(CompressionFastest)
+	c, err := NewCompressedReadWriteCloserWithState(&wire, state)
+	if err != nil {
+		t.Fatal(err)
+	}
+
+	incompressible := make([]byte, 100*1024) // more than one raw block
+	if _, err := rand.Read(incompressible); err != nil {
+		t.Fatal(err)
+	}
+	text := bytes.Repeat([]byte("GET /index.html HTTP/1.1\r\nHost: example.com\r\n\r\n"), 100)
+
+	var want bytes.Buffer
+	steps := []struct {
+		mode CompressionMode
+		data []byte
+	}{
+		{CompressionFastest, text},
+		{CompressionStore, incompressible},
+		{CompressionStore, []byte{}},
+		{CompressionDefault, text},
+		{CompressionFastest, text},
+	}
+	for _, step := range steps {
+		state.SetMode(step.mode)
+		if _, err := c.Write(step.data); err != nil {
+			t.Fatalf("%v write: %v", step.mode, err)
+		}
+		want.Write(step.data)
+	}
+	if err := c.Close(); err != nil {
+		t.Fatal(err)
+	}
+
+	stats := state.Stats()
+	if stats.RawOut != int64(want.Len()) || stats.WireOut != int64(wire.Len()) {
+		t.Errorf("counted %d raw and %d wire bytes, expected %d and %d",
+			stats.RawOut, stats.WireOut, want.Len(), wire.Len())
+	}
+
+	// A plain decoder, like the server's, reads all modes
+	dec, err := zstd.NewReader(bytes.NewReader(wire.Bytes()))
+	if err != nil {
+		t.Fatal(err)
+	}
+	defer dec.Close()
+	got, err := io.ReadAll(dec)
+	if err != nil {
+		t.Fatal(err)
+	}
+	if !bytes.Equal(got, want.Bytes()) {
+		t.Fatalf("decoded %d bytes, expected %d", len(got), want.Len())
+	}
+}
+
+func TestCompressedCloseDuringWrite(t *testing.T) {
+	// Nothing reads the other end, so a write blocks until Close
+	local, remote := net.Pipe()
+	defer remote.Close()
+	c, err := NewCompressedReadWriteCloser(local)
+	if err != nil {
+		t.Fatal(err)
+	}
+	writeDone := make(chan error)
+	go func() {
+		_, err := c.Write([]byte("blocked"))
+		writeDone <- err
+	}()
+	time.Sleep(50 * time.Millisecond)
+
+	closeDone := make(chan struct{})
+	go func() {
+		c.Close()
+		close(closeDone)
+	}()
+	select {
+	case <-closeDone:
+	case <-time.After(5 * time.Second):
+		t.Fatal("Close blocked behind a Write")
+	}
+	if err := <-writeDone; err == nil {
+		t.Error("blocked Write succeeded after Close")
+	}
+	if _, err := c.Write([]byte("late")); err == nil {
+		t.Error("Write after Close succeeded")
+	}
+}